@@ -0,0 +1,32 @@
+package com.ticketfly;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with JMH's usual command line options, always adding
+ * the GC profiler so allocation rates (gc.alloc.rate.norm is bytes per
+ * operation) are reported next to throughput.
+ *
+ * The benchmarks measure the server's hot path one piece at a time:
+ * <ol>
+ *     <li>{@link FramingBenchmark}: splitting a read into frames with each {@link Framing}.</li>
+ *     <li>{@link RequestParserBenchmark}: validating and dissecting a request.</li>
+ *     <li>{@link SequenceSourceBenchmark}: handing out sequence numbers under contention.</li>
+ *     <li>{@link ResponseEncoderBenchmark}: writing a response.</li>
+ *     <li>{@link PipelineBenchmark}: all of the above through an embedded channel.</li>
+ * </ol>
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        final CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers() || options.shouldListResultFormats() || options.shouldListWithParams()) {
+            //Let JMH print what was asked for.
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,41 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.util.Arrays;
+
+/**
+ * Builds the requests the benchmarks feed the server.
+ */
+final class BenchmarkRequests {
+    private BenchmarkRequests() {
+    }
+
+    /**
+     * Request text of the given size that's valid with either framing.
+     */
+    static String payload(int size) {
+        final char[] chars = new char[size];
+        Arrays.fill(chars, 'a');
+        return new String(chars);
+    }
+
+    /**
+     * Several requests back to back, as a single read from a pipelining client would deliver them.
+     */
+    static ByteBuf burst(Framing framing, int payload_size, int requests) {
+        final byte[] payload = payload(payload_size).getBytes(CharsetUtil.UTF_8);
+        final ByteBuf burst = Unpooled.buffer();
+        for(int i = 0; i < requests; ++i) {
+            if (framing == Framing.LENGTH_PREFIXED) {
+                TFlyBinaryCodec.encodeRequest(burst, payload, TFlyBinaryCodec.NO_SEQUENCE_NUMBER);
+            } else {
+                burst.writeBytes(payload);
+                burst.writeBytes(TFlySimpleServer.PROTOCOL_DELIMITERS[0], 0, TFlySimpleServer.PROTOCOL_DELIMITERS[0].capacity());
+            }
+        }
+        return burst;
+    }
+}
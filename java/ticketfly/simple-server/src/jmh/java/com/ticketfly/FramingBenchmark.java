@@ -0,0 +1,57 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedByteChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a burst of pipelined requests into frames with each {@link Framing}.
+ * {@link Framing#NEWLINE} scans every byte for the delimiter while
+ * {@link Framing#LENGTH_PREFIXED} jumps from one length to the next, so the
+ * gap should grow with the payload.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+    private static final int REQUESTS_PER_BURST = 64;
+
+    @Param({ "NEWLINE", "LENGTH_PREFIXED" })
+    public Framing framing;
+
+    @Param({ "16", "1024", "10240" })
+    public int payload_size;
+
+    private EmbeddedByteChannel channel;
+    private ByteBuf burst;
+
+    @Setup
+    public void setup() {
+        channel = new EmbeddedByteChannel(framing.newFrameDecoder(TFlySimpleServer.DEFAULT_MAX_REQUEST_SIZE));
+        burst = BenchmarkRequests.burst(framing, payload_size, REQUESTS_PER_BURST);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+    }
+
+    /**
+     * One operation is a whole burst.
+     */
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS_PER_BURST)
+    public void decodeBurst(Blackhole blackhole) {
+        channel.writeInbound(burst.duplicate());
+        Object frame;
+        while((frame = channel.readInbound()) != null) {
+            blackhole.consume(frame);
+        }
+    }
+}
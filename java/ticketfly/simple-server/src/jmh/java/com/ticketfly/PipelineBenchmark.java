@@ -0,0 +1,65 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedByteChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes a burst of pipelined requests through the same frame decoder and
+ * handler the server uses, on an embedded channel so no sockets or threads
+ * are involved. Responses are flushed once per burst, just as they are
+ * when the burst arrives in a single read.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    private static final int REQUESTS_PER_BURST = 64;
+
+    @Param({ "NEWLINE", "LENGTH_PREFIXED" })
+    public Framing framing;
+
+    @Param({ "16", "1024" })
+    public int payload_size;
+
+    private EmbeddedByteChannel channel;
+    private ByteBuf burst;
+
+    @Setup
+    public void setup() {
+        //The handler logs every connection.
+        Logger.getLogger(TFlySimpleServerHandler.class.getName()).setLevel(Level.WARNING);
+
+        channel = new EmbeddedByteChannel(
+            framing.newFrameDecoder(TFlySimpleServer.DEFAULT_MAX_REQUEST_SIZE),
+            new TFlySimpleServerHandler(new AtomicSequenceSource(), framing, TFlySimpleServer.DEFAULT_MAXIMUM_UNFLUSHED_BYTES, new AtomicLong(0L))
+        );
+        burst = BenchmarkRequests.burst(framing, payload_size, REQUESTS_PER_BURST);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+    }
+
+    /**
+     * One operation is a single request and its response.
+     */
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS_PER_BURST)
+    public int requestBurst() {
+        channel.writeInbound(burst.duplicate());
+        final ByteBuf responses = channel.lastOutboundBuffer();
+        final int written = responses.readableBytes();
+        responses.clear();
+        return written;
+    }
+}
@@ -0,0 +1,58 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates and dissects a single request frame, which is what
+ * {@link TFlySimpleServerHandler} does for every request before it can
+ * respond. The length prefixed header is included for comparison: it
+ * carries the same information and there's nothing to scan.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+    @Param({ "ticketfly", "is_rad 789", "long" })
+    public String request;
+
+    private final TFlyRequestParser parser = new TFlyRequestParser();
+    private ByteBuf frame;
+    private ByteBuf length_prefixed_frame;
+
+    @Setup
+    public void setup() {
+        final String text = "long".equals(request) ? BenchmarkRequests.payload(TFlySimpleServer.DEFAULT_MAX_REQUEST_SIZE - 8) + " 123456" : request;
+        frame = Unpooled.copiedBuffer(text + TFlySimpleServer.PROTOCOL_NEWLINE, CharsetUtil.UTF_8);
+        if (parser.parse(frame) != null) {
+            throw new IllegalStateException("Invalid request: " + text);
+        }
+
+        length_prefixed_frame = Unpooled.buffer();
+        TFlyBinaryCodec.encodeRequest(length_prefixed_frame, text.getBytes(CharsetUtil.UTF_8), 789L);
+        length_prefixed_frame.skipBytes(TFlyBinaryCodec.LENGTH_FIELD_LENGTH);
+    }
+
+    @Benchmark
+    public long parse() {
+        if (parser.parse(frame) != null) {
+            throw new IllegalStateException();
+        }
+        return parser.hasSequenceNumber() ? parser.sequenceNumber() : parser.requestEnd();
+    }
+
+    @Benchmark
+    public long validateLengthPrefixed() {
+        if (TFlyBinaryCodec.validate(length_prefixed_frame) != null) {
+            throw new IllegalStateException();
+        }
+        return TFlyBinaryCodec.sequenceNumber(length_prefixed_frame);
+    }
+}
@@ -0,0 +1,65 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a single response into a reused outbound buffer, as the server
+ * does for every request. Nothing here should allocate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseEncoderBenchmark {
+    @Param({ "16", "1024", "10240" })
+    public int payload_size;
+
+    private final TFlyRequestParser parser = new TFlyRequestParser();
+    private ByteBuf frame;
+    private ByteBuf length_prefixed_frame;
+    private ByteBuf out;
+    private long sequence_number = 1L;
+
+    @Setup
+    public void setup() {
+        final String payload = BenchmarkRequests.payload(payload_size);
+        frame = Unpooled.copiedBuffer(payload + TFlySimpleServer.PROTOCOL_NEWLINE, CharsetUtil.UTF_8);
+        if (parser.parse(frame) != null) {
+            throw new IllegalStateException("Invalid request");
+        }
+
+        length_prefixed_frame = Unpooled.buffer();
+        TFlyBinaryCodec.encodeRequest(length_prefixed_frame, payload.getBytes(CharsetUtil.UTF_8), TFlyBinaryCodec.NO_SEQUENCE_NUMBER);
+        length_prefixed_frame.skipBytes(TFlyBinaryCodec.LENGTH_FIELD_LENGTH);
+
+        out = Unpooled.buffer(2 * TFlySimpleServer.DEFAULT_MAX_REQUEST_SIZE);
+    }
+
+    @Benchmark
+    public int encodeResponse() {
+        out.clear();
+        TFlyResponseEncoder.encodeResponse(out, frame, parser, sequence_number++);
+        return out.writerIndex();
+    }
+
+    @Benchmark
+    public int encodeLengthPrefixedResponse() {
+        out.clear();
+        TFlyBinaryCodec.encodeResponse(out, length_prefixed_frame, sequence_number++);
+        return out.writerIndex();
+    }
+
+    @Benchmark
+    public int encodeError() {
+        out.clear();
+        TFlyResponseEncoder.encodeError(out, ErrorCode.ERROR_INVALID_INPUT_FORMAT);
+        return out.writerIndex();
+    }
+}
@@ -0,0 +1,50 @@
+package com.ticketfly;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out sequence numbers from several threads at once, the way every
+ * event loop does for every response. The mixed group also moves the
+ * sequence forward the way client overrides do, which disturbs the
+ * threads calling {@link SequenceSource#next()}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SequenceSourceBenchmark {
+    @Param({ "atomic", "striped" })
+    public String source_type;
+
+    private SequenceSource source;
+
+    @Setup
+    public void setup() {
+        source = "striped".equals(source_type) ? new StripedSequenceSource() : new AtomicSequenceSource();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long next() {
+        return source.next();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public long mixedNext() {
+        return source.next();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean mixedAdvanceTo() {
+        //Just ahead of what's been handed out, so most overrides are accepted.
+        return source.advanceTo(source.current() + 16L);
+    }
+}
@@ -0,0 +1,77 @@
+package com.ticketfly;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SequenceSource} backed by a single {@link AtomicLong}.
+ *
+ * Numbers are globally ordered: a number handed out later (in real time)
+ * is always larger than one handed out earlier, regardless of thread.
+ * The price is that every thread increments the same cache line, which
+ * becomes a point of contention with many busy event loops. See
+ * {@link StripedSequenceSource} for an alternative.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class AtomicSequenceSource implements SequenceSource {
+    /**
+     * The last number handed out (or the last accepted override).
+     */
+    private final AtomicLong value;
+
+    public AtomicSequenceSource() {
+        this(0L);
+    }
+
+    /**
+     * @param initial_value the sequence number considered to have already been handed out.
+     */
+    public AtomicSequenceSource(long initial_value) {
+        if (initial_value < 0L) {
+            throw new IllegalArgumentException("initial_value must be non-negative: " + initial_value);
+        }
+        this.value = new AtomicLong(initial_value);
+    }
+
+    @Override
+    public long next() {
+        final long next = value.incrementAndGet();
+        if (next > 0L) {
+            return next;
+        }
+        return wrap();
+    }
+
+    /**
+     * Slow path taken once the counter has overflowed past {@link #MAXIMUM}.
+     */
+    private long wrap() {
+        while(true) {
+            final long current = value.get();
+            final long next = (current <= 0L || current == MAXIMUM) ? MINIMUM : current + 1L;
+            if (value.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    @Override
+    public boolean advanceTo(long requested) {
+        //A lock-free "set if greater". A plain get() followed by set() would
+        //let two concurrent overrides race and move the sequence backwards.
+        while(true) {
+            final long current = value.get();
+            if (requested <= current) {
+                return false;
+            }
+            if (value.compareAndSet(current, requested)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public long current() {
+        return value.get();
+    }
+}
@@ -0,0 +1,316 @@
+package com.ticketfly;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects requests into batches and runs each batch with a single call to
+ * {@link TFlyService#executeBatch(List)} on the threads of a {@link ServiceBackend}.
+ *
+ * A batch is dispatched once it holds the maximum number of requests or once
+ * its first request has waited for the maximum delay, whichever comes first.
+ * The service's fixed cost is then paid once per batch rather than once per
+ * request. Each request is completed from its own item in the batch, so a
+ * failed item only fails its own request.
+ *
+ * As with {@link ExecutorServiceInvoker}, the number of outstanding requests
+ * (collected or in a running batch) is capped. Once the cap is reached, new
+ * requests fail immediately with a {@link RejectedExecutionException}
+ * instead of queueing without bound.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class BatchingServiceInvoker implements ServiceInvoker {
+    /**
+     * By default, a batch is dispatched once it holds this many requests.
+     */
+    public static final int DEFAULT_MAXIMUM_BATCH_SIZE = 64;
+
+    /**
+     * By default, a batch is dispatched once its first request has waited this long.
+     */
+    public static final long DEFAULT_MAXIMUM_DELAY_MILLIS = 2L;
+
+    /**
+     * By default, this many batches can run at once on a {@link ServiceBackend#BOUNDED_EXECUTOR}.
+     */
+    public static final int DEFAULT_THREADS = 16;
+
+    /**
+     * By default, this many requests can be collected or running at once.
+     */
+    public static final int DEFAULT_MAXIMUM_OUTSTANDING = ExecutorServiceInvoker.DEFAULT_MAXIMUM_OUTSTANDING;
+
+    private static final Logger logger = Logger.getLogger(BatchingServiceInvoker.class.getName());
+
+    private final TFlyService service;
+    private final ServiceBackend backend;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final int maximum_batch_size;
+    private final long maximum_delay_nanos;
+    private final Semaphore outstanding;
+
+    /**
+     * Guards the batch currently being collected.
+     */
+    private final Object lock = new Object();
+
+    private List<String> requests;
+    private List<ServiceCallback> callbacks;
+    private ScheduledFuture<?> timer;
+
+    private final AtomicLong batches = new AtomicLong(0L);
+    private final AtomicLong items = new AtomicLong(0L);
+
+    private BatchingServiceInvoker(TFlyService service, ServiceBackend backend, int threads, int maximum_batch_size, long maximum_delay_nanos, int maximum_outstanding) {
+        this.service = service;
+        this.backend = backend;
+        this.executor = backend.newExecutorService(threads);
+        this.maximum_batch_size = maximum_batch_size;
+        this.maximum_delay_nanos = maximum_delay_nanos;
+        this.outstanding = new Semaphore(maximum_outstanding);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "tfly-batch-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        startBatch();
+    }
+
+    /**
+     * Creates a batching invoker using the {@link ServiceBackend#preferred()} backend and default limits.
+     */
+    public static BatchingServiceInvoker create(TFlyService service) {
+        return create(service, ServiceBackend.preferred(), DEFAULT_THREADS, DEFAULT_MAXIMUM_BATCH_SIZE, DEFAULT_MAXIMUM_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a batching invoker with the default limit on outstanding requests.
+     */
+    public static BatchingServiceInvoker create(TFlyService service, ServiceBackend backend, int threads, int maximum_batch_size, long maximum_delay, TimeUnit unit) {
+        return create(service, backend, threads, maximum_batch_size, maximum_delay, unit, DEFAULT_MAXIMUM_OUTSTANDING);
+    }
+
+    /**
+     * Creates a batching invoker.
+     *
+     * If the requested backend isn't available on this JVM, it falls back to
+     * {@link ServiceBackend#BOUNDED_EXECUTOR}.
+     *
+     * @param service the service to call
+     * @param backend the threads to run batches on
+     * @param threads the number of platform threads for {@link ServiceBackend#BOUNDED_EXECUTOR}
+     * @param maximum_batch_size the most requests in a single batch
+     * @param maximum_delay the longest a request waits for its batch to fill up
+     * @param unit the unit of maximum_delay
+     * @param maximum_outstanding the number of requests that can be collected or running at once
+     */
+    public static BatchingServiceInvoker create(TFlyService service, ServiceBackend backend, int threads, int maximum_batch_size, long maximum_delay, TimeUnit unit, int maximum_outstanding) {
+        if (service == null) {
+            throw new NullPointerException("service");
+        }
+        if (backend == null) {
+            throw new NullPointerException("backend");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (maximum_batch_size <= 0) {
+            throw new IllegalArgumentException("maximum_batch_size must be positive: " + maximum_batch_size);
+        }
+        if (maximum_delay < 0L) {
+            throw new IllegalArgumentException("maximum_delay must not be negative: " + maximum_delay);
+        }
+        if (maximum_outstanding <= 0) {
+            throw new IllegalArgumentException("maximum_outstanding must be positive: " + maximum_outstanding);
+        }
+        if (!backend.isAvailable()) {
+            logger.log(Level.WARNING, "Service backend " + backend + " is not available on this JVM, falling back to " + ServiceBackend.BOUNDED_EXECUTOR);
+            backend = ServiceBackend.BOUNDED_EXECUTOR;
+        }
+        return new BatchingServiceInvoker(service, backend, threads, maximum_batch_size, unit.toNanos(maximum_delay), maximum_outstanding);
+    }
+
+    public ServiceBackend getBackend() {
+        return backend;
+    }
+
+    public int getMaximumBatchSize() {
+        return maximum_batch_size;
+    }
+
+    /**
+     * The number of batches dispatched to the service.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * The number of requests dispatched to the service.
+     */
+    public long getItems() {
+        return items.get();
+    }
+
+    /**
+     * The average number of requests per batch.
+     */
+    public double getAverageBatchSize() {
+        final long batches = this.batches.get();
+        return batches == 0L ? 0.0d : (double)items.get() / batches;
+    }
+
+    @Override
+    public void invoke(String request, ServiceCallback callback) {
+        if (!outstanding.tryAcquire()) {
+            callback.failed(new RejectedExecutionException("Too many outstanding service calls"));
+            return;
+        }
+
+        List<String> full_requests = null;
+        List<ServiceCallback> full_callbacks = null;
+
+        synchronized(lock) {
+            requests.add(request);
+            callbacks.add(callback);
+
+            if (requests.size() >= maximum_batch_size) {
+                if (timer != null) {
+                    timer.cancel(false);
+                }
+                full_requests = requests;
+                full_callbacks = callbacks;
+                startBatch();
+            } else if (requests.size() == 1) {
+                scheduleFlush();
+            }
+        }
+
+        if (full_requests != null) {
+            dispatch(full_requests, full_callbacks);
+        }
+    }
+
+    /**
+     * Stops accepting batches and waits briefly for running ones to finish.
+     */
+    public void shutdown() {
+        flush();
+        scheduler.shutdown();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10L, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Must be called while holding {@link #lock}.
+     */
+    private void startBatch() {
+        requests = new ArrayList<String>(maximum_batch_size);
+        callbacks = new ArrayList<ServiceCallback>(maximum_batch_size);
+        timer = null;
+    }
+
+    /**
+     * Must be called while holding {@link #lock}.
+     */
+    private void scheduleFlush() {
+        if (maximum_delay_nanos == 0L) {
+            timer = null;
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+            return;
+        }
+
+        try {
+            timer = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, maximum_delay_nanos, TimeUnit.NANOSECONDS);
+        } catch(RejectedExecutionException e) {
+            //Shutting down. The batch is flushed by shutdown().
+            timer = null;
+        }
+    }
+
+    /**
+     * Dispatches whatever has been collected so far.
+     */
+    private void flush() {
+        final List<String> batch_requests;
+        final List<ServiceCallback> batch_callbacks;
+        synchronized(lock) {
+            if (requests.isEmpty()) {
+                return;
+            }
+            batch_requests = requests;
+            batch_callbacks = callbacks;
+            startBatch();
+        }
+        dispatch(batch_requests, batch_callbacks);
+    }
+
+    private void dispatch(final List<String> batch_requests, final List<ServiceCallback> batch_callbacks) {
+        batches.incrementAndGet();
+        items.addAndGet(batch_requests.size());
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final List<TFlyService.BatchResult> results;
+                    try {
+                        results = service.executeBatch(batch_requests);
+                    } catch(Throwable t) {
+                        fail(batch_callbacks, t);
+                        return;
+                    }
+
+                    for(int i = 0; i < batch_callbacks.size(); ++i) {
+                        final TFlyService.BatchResult result = results.get(i);
+                        outstanding.release();
+                        if (result.isSuccess()) {
+                            batch_callbacks.get(i).completed(result.getResponse());
+                        } else {
+                            batch_callbacks.get(i).failed(result.getException());
+                        }
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            fail(batch_callbacks, e);
+        }
+    }
+
+    private void fail(List<ServiceCallback> callbacks, Throwable cause) {
+        for(ServiceCallback callback : callbacks) {
+            outstanding.release();
+            callback.failed(cause);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.ticketfly;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the number of concurrent calls to another {@link ServiceInvoker}.
+ *
+ * A call that would exceed the cap fails immediately with a
+ * {@link ServiceUnavailableException} instead of queueing, so a slow service
+ * sheds load rather than building an ever growing backlog. Share one instance
+ * among every connection to cap the calls of the whole server. See
+ * {@link TFlySimpleServer#withMaximumServiceCallsPerConnection(int)} to cap
+ * individual connections.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class BulkheadServiceInvoker implements ServiceInvoker {
+    private final ServiceInvoker delegate;
+    private final int maximum_concurrent_calls;
+    private final Semaphore permits;
+
+    private final AtomicLong rejected = new AtomicLong(0L);
+
+    private BulkheadServiceInvoker(ServiceInvoker delegate, int maximum_concurrent_calls) {
+        this.delegate = delegate;
+        this.maximum_concurrent_calls = maximum_concurrent_calls;
+        this.permits = new Semaphore(maximum_concurrent_calls);
+    }
+
+    /**
+     * Wraps an invoker.
+     *
+     * @param delegate the invoker to protect
+     * @param maximum_concurrent_calls the most calls that may be in flight at once
+     */
+    public static BulkheadServiceInvoker create(ServiceInvoker delegate, int maximum_concurrent_calls) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate");
+        }
+        if (maximum_concurrent_calls <= 0) {
+            throw new IllegalArgumentException("maximum_concurrent_calls must be positive: " + maximum_concurrent_calls);
+        }
+        return new BulkheadServiceInvoker(delegate, maximum_concurrent_calls);
+    }
+
+    public int getMaximumConcurrentCalls() {
+        return maximum_concurrent_calls;
+    }
+
+    /**
+     * The number of calls currently in flight.
+     */
+    public int getActive() {
+        return maximum_concurrent_calls - permits.availablePermits();
+    }
+
+    /**
+     * The number of calls that failed fast because the bulkhead was full.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void invoke(String request, final ServiceCallback callback) {
+        if (!permits.tryAcquire()) {
+            rejected.incrementAndGet();
+            callback.failed(new ServiceUnavailableException("Too many concurrent service calls"));
+            return;
+        }
+
+        delegate.invoke(request, new ServiceCallback() {
+            @Override
+            public void completed(String response) {
+                permits.release();
+                callback.completed(response);
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+                permits.release();
+                callback.failed(cause);
+            }
+        });
+    }
+}
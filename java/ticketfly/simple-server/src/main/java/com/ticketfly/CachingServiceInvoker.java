@@ -0,0 +1,256 @@
+package com.ticketfly;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the responses of another {@link ServiceInvoker} by request.
+ *
+ * {@link TFlyService#execute(String)} is a pure function of its input, so a
+ * response can be reused for as long as it's kept. The cache is bounded both
+ * by the number of entries and by their total weight (the number of characters
+ * in each request and response) and evicts the least recently used entries
+ * first. Entries can optionally expire after a time to live.
+ *
+ * Only successful responses are cached. A failure is passed along to the
+ * caller and the next request for the same input calls the service again.
+ *
+ * Hits complete the callback on the calling thread before
+ * {@link #invoke(String, ServiceCallback)} returns.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class CachingServiceInvoker implements ServiceInvoker {
+    /**
+     * By default, at most this many responses are cached.
+     */
+    public static final int DEFAULT_MAXIMUM_ENTRIES = 10000;
+
+    /**
+     * By default, the cached requests and responses total at most this many characters.
+     */
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 4L * 1024L * 1024L;
+
+    private final ServiceInvoker delegate;
+
+    /**
+     * Guards {@link #entries} and {@link #weight}.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Cached responses, iterated from least to most recently used.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long weight = 0L;
+
+    private volatile int maximum_entries = DEFAULT_MAXIMUM_ENTRIES;
+    private volatile long maximum_weight = DEFAULT_MAXIMUM_WEIGHT;
+    private volatile long time_to_live_nanos = 0L;
+
+    private final AtomicLong hits = new AtomicLong(0L);
+    private final AtomicLong misses = new AtomicLong(0L);
+    private final AtomicLong evictions = new AtomicLong(0L);
+    private final AtomicLong expirations = new AtomicLong(0L);
+
+    private static final class Entry {
+        final String response;
+        final long weight;
+        final long stored_nanos;
+
+        Entry(String response, long weight, long stored_nanos) {
+            this.response = response;
+            this.weight = weight;
+            this.stored_nanos = stored_nanos;
+        }
+    }
+
+    private CachingServiceInvoker(ServiceInvoker delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps an invoker using the default bounds and no time to live.
+     */
+    public static CachingServiceInvoker create(ServiceInvoker delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate");
+        }
+        return new CachingServiceInvoker(delegate);
+    }
+
+    /**
+     * Sets the most responses that will be cached.
+     */
+    public CachingServiceInvoker withMaximumEntries(int maximum_entries) {
+        if (maximum_entries <= 0) {
+            throw new IllegalArgumentException("maximum_entries must be positive: " + maximum_entries);
+        }
+        this.maximum_entries = maximum_entries;
+        synchronized(lock) {
+            evict();
+        }
+        return this;
+    }
+
+    /**
+     * Sets the most characters (requests plus responses) that will be cached.
+     */
+    public CachingServiceInvoker withMaximumWeight(long maximum_weight) {
+        if (maximum_weight <= 0L) {
+            throw new IllegalArgumentException("maximum_weight must be positive: " + maximum_weight);
+        }
+        this.maximum_weight = maximum_weight;
+        synchronized(lock) {
+            evict();
+        }
+        return this;
+    }
+
+    /**
+     * Sets how long a response may be used after it was cached. Zero keeps responses until they're evicted.
+     */
+    public CachingServiceInvoker withTimeToLive(long time_to_live, TimeUnit unit) {
+        if (time_to_live < 0L) {
+            throw new IllegalArgumentException("time_to_live must not be negative: " + time_to_live);
+        }
+        this.time_to_live_nanos = unit.toNanos(time_to_live);
+        return this;
+    }
+
+    /**
+     * The number of requests answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of requests passed along to the wrapped invoker.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The fraction of requests answered from the cache.
+     */
+    public double getHitRate() {
+        final long hits = this.hits.get();
+        final long total = hits + misses.get();
+        return total == 0L ? 0.0d : (double)hits / total;
+    }
+
+    /**
+     * The number of responses removed to stay within the bounds.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * The number of responses removed because they outlived the time to live.
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * The number of responses currently cached.
+     */
+    public int size() {
+        synchronized(lock) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * The total weight of the responses currently cached.
+     */
+    public long getWeight() {
+        synchronized(lock) {
+            return weight;
+        }
+    }
+
+    @Override
+    public void invoke(final String request, final ServiceCallback callback) {
+        final String cached = lookup(request);
+        if (cached != null) {
+            hits.incrementAndGet();
+            callback.completed(cached);
+            return;
+        }
+
+        misses.incrementAndGet();
+        delegate.invoke(request, new ServiceCallback() {
+            @Override
+            public void completed(String response) {
+                store(request, response);
+                callback.completed(response);
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+                callback.failed(cause);
+            }
+        });
+    }
+
+    private String lookup(String request) {
+        final long time_to_live = time_to_live_nanos;
+        synchronized(lock) {
+            final Entry entry = entries.get(request);
+            if (entry == null) {
+                return null;
+            }
+            if (time_to_live > 0L && System.nanoTime() - entry.stored_nanos >= time_to_live) {
+                entries.remove(request);
+                weight -= entry.weight;
+                expirations.incrementAndGet();
+                return null;
+            }
+            return entry.response;
+        }
+    }
+
+    private void store(String request, String response) {
+        if (response == null) {
+            return;
+        }
+
+        final long entry_weight = request.length() + response.length();
+        if (entry_weight > maximum_weight) {
+            return;
+        }
+
+        final Entry entry = new Entry(response, entry_weight, System.nanoTime());
+        synchronized(lock) {
+            final Entry previous = entries.put(request, entry);
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += entry_weight;
+            evict();
+        }
+    }
+
+    /**
+     * Removes the least recently used responses until the cache is within its bounds.
+     * Must be called while holding {@link #lock}.
+     */
+    private void evict() {
+        final int maximum_entries = this.maximum_entries;
+        final long maximum_weight = this.maximum_weight;
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while((entries.size() > maximum_entries || weight > maximum_weight) && it.hasNext()) {
+            weight -= it.next().getValue().weight;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.ticketfly;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops calling another {@link ServiceInvoker} once it's failing too often,
+ * so callers fail fast instead of queueing attempts that are likely to fail.
+ *
+ * While {@link State#CLOSED}, the outcomes of the most recent calls are kept
+ * in a sliding window. Once the window holds enough calls and the fraction
+ * that failed reaches the threshold, the breaker opens. While
+ * {@link State#OPEN}, every call fails immediately with a
+ * {@link ServiceUnavailableException}. After the open duration, the breaker
+ * becomes {@link State#HALF_OPEN} and lets a few probe calls through. If they
+ * all succeed, it closes again with an empty window. If any fails, it opens
+ * for another open duration.
+ *
+ * Rejections by the wrapped invoker (any {@link RejectedExecutionException})
+ * say nothing about the health of the service and aren't counted as failures.
+ *
+ * Every call is tagged with the generation of the state it was admitted in.
+ * A call that completes after the breaker has moved on is ignored, so a slow
+ * call admitted while closed can't be mistaken for a probe.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class CircuitBreakerServiceInvoker implements ServiceInvoker {
+    /**
+     * By default, the outcomes of this many recent calls are considered.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+
+    /**
+     * By default, the breaker doesn't open until the window holds at least this many calls.
+     */
+    public static final int DEFAULT_MINIMUM_CALLS = 20;
+
+    /**
+     * By default, the breaker opens once at least this fraction of calls in the window failed.
+     * {@link TFlyService} normally fails about 5% of the time.
+     */
+    public static final double DEFAULT_FAILURE_THRESHOLD = 0.5d;
+
+    /**
+     * By default, the breaker stays open this long before probing the service.
+     */
+    public static final long DEFAULT_OPEN_MILLIS = 5000L;
+
+    /**
+     * By default, this many probe calls must succeed to close the breaker.
+     */
+    public static final int DEFAULT_PROBES = 5;
+
+    public enum State {
+          CLOSED
+        , OPEN
+        , HALF_OPEN
+    }
+
+    private static final Logger logger = Logger.getLogger(CircuitBreakerServiceInvoker.class.getName());
+
+    private final ServiceInvoker delegate;
+    private final int minimum_calls;
+    private final double failure_threshold;
+    private final long open_nanos;
+    private final int probes;
+
+    /**
+     * Guards the state and the window.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Ring buffer of recent outcomes. True means the call failed.
+     */
+    private final boolean[] window;
+    private int window_next = 0;
+    private int window_count = 0;
+    private int window_failures = 0;
+
+    private volatile State state = State.CLOSED;
+    private long opened_nanos;
+    private int probes_issued;
+    private int probes_succeeded;
+
+    /**
+     * Bumped on every transition. Calls remember the generation they were admitted in.
+     */
+    private long generation = 0L;
+
+    private final AtomicLong rejected = new AtomicLong(0L);
+    private final AtomicLong opened = new AtomicLong(0L);
+
+    private CircuitBreakerServiceInvoker(ServiceInvoker delegate, int window_size, int minimum_calls, double failure_threshold, long open_nanos, int probes) {
+        this.delegate = delegate;
+        this.window = new boolean[window_size];
+        this.minimum_calls = minimum_calls;
+        this.failure_threshold = failure_threshold;
+        this.open_nanos = open_nanos;
+        this.probes = probes;
+    }
+
+    /**
+     * Wraps an invoker using the default settings.
+     */
+    public static CircuitBreakerServiceInvoker create(ServiceInvoker delegate) {
+        return create(delegate, DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_CALLS, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_PROBES);
+    }
+
+    /**
+     * Wraps an invoker.
+     *
+     * @param delegate the invoker to protect
+     * @param window_size how many recent calls are considered
+     * @param minimum_calls how many calls the window must hold before the breaker can open
+     * @param failure_threshold the fraction of failed calls in the window that opens the breaker
+     * @param open_duration how long the breaker stays open before probing
+     * @param unit the unit of open_duration
+     * @param probes how many probe calls must succeed to close the breaker
+     */
+    public static CircuitBreakerServiceInvoker create(ServiceInvoker delegate, int window_size, int minimum_calls, double failure_threshold, long open_duration, TimeUnit unit, int probes) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate");
+        }
+        if (window_size <= 0) {
+            throw new IllegalArgumentException("window_size must be positive: " + window_size);
+        }
+        if (minimum_calls <= 0 || minimum_calls > window_size) {
+            throw new IllegalArgumentException("minimum_calls must be between 1 and window_size: " + minimum_calls);
+        }
+        if (failure_threshold <= 0.0d || failure_threshold > 1.0d) {
+            throw new IllegalArgumentException("failure_threshold must be above 0 and at most 1: " + failure_threshold);
+        }
+        if (open_duration < 0L) {
+            throw new IllegalArgumentException("open_duration must not be negative: " + open_duration);
+        }
+        if (probes <= 0) {
+            throw new IllegalArgumentException("probes must be positive: " + probes);
+        }
+        return new CircuitBreakerServiceInvoker(delegate, window_size, minimum_calls, failure_threshold, unit.toNanos(open_duration), probes);
+    }
+
+    /**
+     * The breaker's state as of its last call.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * The fraction of calls in the window that failed.
+     */
+    public double getFailureRate() {
+        synchronized(lock) {
+            return window_count == 0 ? 0.0d : (double)window_failures / window_count;
+        }
+    }
+
+    /**
+     * The number of calls that failed fast because the breaker wasn't closed.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * The number of times the breaker has opened.
+     */
+    public long getTimesOpened() {
+        return opened.get();
+    }
+
+    @Override
+    public void invoke(String request, final ServiceCallback callback) {
+        final long admitted = acquirePermission();
+        if (admitted < 0L) {
+            rejected.incrementAndGet();
+            callback.failed(new ServiceUnavailableException("The circuit breaker is open"));
+            return;
+        }
+
+        delegate.invoke(request, new ServiceCallback() {
+            @Override
+            public void completed(String response) {
+                onSuccess(admitted);
+                callback.completed(response);
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+                if (cause instanceof RejectedExecutionException) {
+                    onRejected(admitted);
+                } else {
+                    onFailure(admitted);
+                }
+                callback.failed(cause);
+            }
+        });
+    }
+
+    /**
+     * Returns the generation the call is admitted in, or -1 if it's rejected.
+     * Calls admitted while {@link State#HALF_OPEN} are the probes.
+     */
+    private long acquirePermission() {
+        synchronized(lock) {
+            if (state == State.OPEN) {
+                if (System.nanoTime() - opened_nanos < open_nanos) {
+                    return -1L;
+                }
+                transition(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN) {
+                if (probes_issued >= probes) {
+                    return -1L;
+                }
+                ++probes_issued;
+            }
+            return generation;
+        }
+    }
+
+    private void onSuccess(long admitted) {
+        synchronized(lock) {
+            if (admitted != generation) {
+                return;
+            }
+            if (state == State.HALF_OPEN) {
+                if (++probes_succeeded >= probes) {
+                    transition(State.CLOSED);
+                }
+            } else if (state == State.CLOSED) {
+                record(false);
+            }
+        }
+    }
+
+    private void onFailure(long admitted) {
+        synchronized(lock) {
+            if (admitted != generation) {
+                return;
+            }
+            if (state == State.HALF_OPEN) {
+                transition(State.OPEN);
+            } else if (state == State.CLOSED) {
+                record(true);
+                if (window_count >= minimum_calls && (double)window_failures / window_count >= failure_threshold) {
+                    transition(State.OPEN);
+                }
+            }
+        }
+    }
+
+    private void onRejected(long admitted) {
+        synchronized(lock) {
+            //Give the probe back. It didn't tell us anything.
+            if (admitted == generation && state == State.HALF_OPEN && probes_issued > probes_succeeded) {
+                --probes_issued;
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding {@link #lock}.
+     */
+    private void record(boolean failed) {
+        if (window_count == window.length) {
+            if (window[window_next]) {
+                --window_failures;
+            }
+        } else {
+            ++window_count;
+        }
+        window[window_next] = failed;
+        if (failed) {
+            ++window_failures;
+        }
+        window_next = (window_next + 1) % window.length;
+    }
+
+    /**
+     * Must be called while holding {@link #lock}.
+     */
+    private void transition(State next) {
+        logger.log(next == State.OPEN ? Level.WARNING : Level.INFO, "Circuit breaker " + state + " -> " + next);
+        switch(next) {
+            case OPEN:
+                opened.incrementAndGet();
+                opened_nanos = System.nanoTime();
+                break;
+            case HALF_OPEN:
+                probes_issued = 0;
+                probes_succeeded = 0;
+                break;
+            case CLOSED:
+                window_next = 0;
+                window_count = 0;
+                window_failures = 0;
+                break;
+        }
+        ++generation;
+        state = next;
+    }
+}
@@ -0,0 +1,141 @@
+package com.ticketfly;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares a single call to another {@link ServiceInvoker} among concurrent
+ * requests for the same input.
+ *
+ * The first request for an input starts a call. Requests for the same input
+ * that arrive while that call is still in flight don't start calls of their
+ * own. They wait for the pending one and are completed with its outcome,
+ * whether that's a response or a failure. Once the call completes, the next
+ * request for that input starts a new one.
+ *
+ * Put a {@link CachingServiceInvoker} in front of this to also reuse
+ * responses after their call has completed.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class CoalescingServiceInvoker implements ServiceInvoker {
+    private final ServiceInvoker delegate;
+
+    /**
+     * Guards {@link #in_flight}.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Calls that haven't completed yet, keyed by request.
+     */
+    private final Map<String, Flight> in_flight = new HashMap<String, Flight>();
+
+    private final AtomicLong requests = new AtomicLong(0L);
+    private final AtomicLong executions = new AtomicLong(0L);
+    private final AtomicLong coalesced = new AtomicLong(0L);
+
+    /**
+     * A pending call and everyone waiting on it.
+     */
+    private final class Flight implements ServiceCallback {
+        private final String request;
+        private final List<ServiceCallback> waiters = new ArrayList<ServiceCallback>(2);
+
+        Flight(String request, ServiceCallback first) {
+            this.request = request;
+            this.waiters.add(first);
+        }
+
+        /**
+         * Stops accepting waiters and returns the ones to complete.
+         */
+        private List<ServiceCallback> land() {
+            synchronized(lock) {
+                in_flight.remove(request);
+                return waiters;
+            }
+        }
+
+        @Override
+        public void completed(String response) {
+            for(ServiceCallback waiter : land()) {
+                waiter.completed(response);
+            }
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            for(ServiceCallback waiter : land()) {
+                waiter.failed(cause);
+            }
+        }
+    }
+
+    private CoalescingServiceInvoker(ServiceInvoker delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps an invoker.
+     */
+    public static CoalescingServiceInvoker create(ServiceInvoker delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate");
+        }
+        return new CoalescingServiceInvoker(delegate);
+    }
+
+    /**
+     * The number of requests made through this invoker.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * The number of calls made on the wrapped invoker.
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * The number of requests that shared a call started by an earlier request.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * The number of distinct inputs with a call currently in flight.
+     */
+    public int getInFlight() {
+        synchronized(lock) {
+            return in_flight.size();
+        }
+    }
+
+    @Override
+    public void invoke(String request, ServiceCallback callback) {
+        requests.incrementAndGet();
+
+        final Flight flight;
+        synchronized(lock) {
+            final Flight pending = in_flight.get(request);
+            if (pending != null) {
+                pending.waiters.add(callback);
+                coalesced.incrementAndGet();
+                return;
+            }
+            flight = new Flight(request, callback);
+            in_flight.put(request, flight);
+        }
+
+        executions.incrementAndGet();
+        delegate.invoke(request, flight);
+    }
+}
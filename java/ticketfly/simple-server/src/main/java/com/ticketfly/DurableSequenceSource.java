@@ -0,0 +1,296 @@
+package com.ticketfly;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link SequenceSource} that survives server restarts and crashes.
+ *
+ * Numbers are handed out from memory exactly like {@link AtomicSequenceSource}.
+ * Durability comes from a high-water mark kept in a small memory-mapped
+ * checkpoint file: no number is ever handed out unless a mark at or above it
+ * has been written and forced to disk. Marks are reserved a range at a time,
+ * and a background thread reserves the next range once half of the current
+ * one has been used, so {@link #next()} only waits on the disk if it manages
+ * to outrun the background thread.
+ *
+ * On startup the sequence resumes at the persisted mark, which is strictly
+ * above any number that could have been handed out by a previous process.
+ * Numbers between the last one handed out and the mark are skipped.
+ *
+ * The file holds two slots that are written alternately. Each contains the
+ * mark and its complement, so a write torn by a crash is detected and the
+ * other slot is used instead.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class DurableSequenceSource implements SequenceSource, Closeable {
+    /**
+     * The default number of sequence numbers reserved per write to the checkpoint file.
+     */
+    public static final int DEFAULT_RESERVATION = 10000;
+
+    private static final int SLOT_SIZE = 16;
+    private static final int NUM_SLOTS = 2;
+
+    private static final Logger logger = Logger.getLogger(DurableSequenceSource.class.getName());
+
+    /**
+     * The last number handed out (or the last accepted override).
+     */
+    private final AtomicLong value;
+
+    /**
+     * The highest number that has been persisted and therefore may be handed out.
+     */
+    private volatile long reserved;
+
+    /**
+     * How far past the current value each write to the checkpoint file reserves.
+     */
+    private final long reservation;
+
+    /**
+     * Once fewer than this many reserved numbers remain, the next range is reserved in the background.
+     */
+    private final long low_water;
+
+    /**
+     * Guards writes to the checkpoint file.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * True while a background reservation is queued or running.
+     */
+    private final AtomicBoolean extending = new AtomicBoolean(false);
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer checkpoint;
+    private final ExecutorService writer;
+    private int next_slot;
+    private volatile boolean closed = false;
+
+    private DurableSequenceSource(File file, int reservation) throws IOException {
+        this.file = file;
+        this.reservation = reservation;
+        this.low_water = Math.max(1L, reservation / 2L);
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            this.checkpoint = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SLOT_SIZE * NUM_SLOTS);
+        } catch(IOException e) {
+            raf.close();
+            throw e;
+        }
+
+        //Resume at the highest intact mark. Nothing at or below it will be handed out again.
+        long recovered = 0L;
+        for(int slot = 0; slot < NUM_SLOTS; ++slot) {
+            final long mark = checkpoint.getLong(slot * SLOT_SIZE);
+            final long check = checkpoint.getLong(slot * SLOT_SIZE + 8);
+            if (check == ~mark && mark > recovered) {
+                recovered = mark;
+                next_slot = (slot + 1) % NUM_SLOTS;
+            }
+        }
+
+        this.value = new AtomicLong(recovered);
+        this.reserved = recovered;
+        synchronized(lock) {
+            persist(limit(recovered, reservation));
+        }
+
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "durable-sequence-" + DurableSequenceSource.this.file.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (recovered > 0L) {
+            logger.log(Level.INFO, "Resuming sequence after " + recovered + " from " + file);
+        }
+    }
+
+    /**
+     * Opens (or creates) a checkpoint file using the {@link #DEFAULT_RESERVATION}.
+     *
+     * @param file the checkpoint file.
+     * @return a {@link DurableSequenceSource} resuming wherever the file left off.
+     * @throws IOException if the file cannot be created, read, or mapped.
+     */
+    public static DurableSequenceSource open(File file) throws IOException {
+        return open(file, DEFAULT_RESERVATION);
+    }
+
+    /**
+     * Opens (or creates) a checkpoint file.
+     *
+     * @param file the checkpoint file.
+     * @param reservation how many numbers to reserve per write. Larger values mean fewer
+     *                    writes but more numbers skipped after a restart.
+     * @return a {@link DurableSequenceSource} resuming wherever the file left off.
+     * @throws IOException if the file cannot be created, read, or mapped.
+     */
+    public static DurableSequenceSource open(File file, int reservation) throws IOException {
+        if (file == null) {
+            throw new NullPointerException("file");
+        }
+        if (reservation <= 0) {
+            throw new IllegalArgumentException("reservation must be positive: " + reservation);
+        }
+        return new DurableSequenceSource(file, reservation);
+    }
+
+    @Override
+    public long next() {
+        long next = value.incrementAndGet();
+        if (next <= 0L) {
+            next = wrap();
+        }
+
+        final long limit = reserved;
+        if (next > limit - low_water) {
+            if (next > limit) {
+                //We've outrun the background writer. This is the only place
+                //the caller waits on the disk.
+                reserveThrough(next);
+            } else {
+                reserveInBackground();
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public boolean advanceTo(long requested) {
+        while(true) {
+            final long current = value.get();
+            if (requested <= current) {
+                return false;
+            }
+            if (value.compareAndSet(current, requested)) {
+                if (requested > reserved - low_water) {
+                    reserveInBackground();
+                }
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public long current() {
+        return value.get();
+    }
+
+    /**
+     * The highest number that has been persisted. After a restart, the sequence resumes above it.
+     */
+    public long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Waits for any background reservation and releases the checkpoint file.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10L, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized(lock) {
+            checkpoint.force();
+            raf.close();
+        }
+    }
+
+    private void reserveInBackground() {
+        if (closed || !extending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reserveThrough(value.get());
+                    } finally {
+                        extending.set(false);
+                    }
+                }
+            });
+        } catch(RuntimeException e) {
+            //Rejected because we're closing. next() falls back to reserving synchronously.
+            extending.set(false);
+        }
+    }
+
+    /**
+     * Ensures the persisted mark covers the provided number plus a full reservation.
+     */
+    private void reserveThrough(long number) {
+        synchronized(lock) {
+            if (number > reserved - low_water) {
+                persist(limit(number, reservation));
+            }
+        }
+    }
+
+    /**
+     * Slow path taken once the counter has overflowed past {@link #MAXIMUM}.
+     */
+    private long wrap() {
+        synchronized(lock) {
+            while(true) {
+                final long current = value.get();
+                if (current > 0L && current < MAXIMUM) {
+                    //Another thread already wrapped the sequence.
+                    final long next = current + 1L;
+                    if (value.compareAndSet(current, next)) {
+                        return next;
+                    }
+                    continue;
+                }
+                if (value.compareAndSet(current, MINIMUM)) {
+                    persist(limit(MINIMUM, reservation));
+                    return MINIMUM;
+                }
+            }
+        }
+    }
+
+    private static long limit(long number, long reservation) {
+        return number > MAXIMUM - reservation ? MAXIMUM : number + reservation;
+    }
+
+    /**
+     * Writes and forces a new mark. Must be called while holding {@link #lock}.
+     */
+    private void persist(long mark) {
+        final int offset = next_slot * SLOT_SIZE;
+        checkpoint.putLong(offset, mark);
+        checkpoint.putLong(offset + 8, ~mark);
+        checkpoint.force();
+        next_slot = (next_slot + 1) % NUM_SLOTS;
+        reserved = mark;
+    }
+}
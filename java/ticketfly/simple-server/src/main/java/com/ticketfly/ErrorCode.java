@@ -1,5 +1,9 @@
 package com.ticketfly;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
 /**
  * Encapsulates an error code and associated message.
  *
@@ -13,16 +17,22 @@ public enum ErrorCode {
       ERROR_MISSING_INPUT           (-100, "No input was provided.")
     , ERROR_INVALID_INPUT_FORMAT    (-101, "The provided input is not formatted correctly. Valid characters include: letters, numbers, and underscores.")
     , ERROR_INVALID_SEQUENCE_NUMBER (-102, "Invalid sequence number. Numbers must be a valid integer 1 or higher.")
+    , ERROR_SERVICE_FAILURE         (-103, "The service was unable to process the request.")
+    , ERROR_SERVICE_UNAVAILABLE     (-104, "The service is unavailable. Please try again later.")
+    , ERROR_TOO_MANY_CONNECTIONS    (-105, "Too many connections. Please try again later.")
+    , ERROR_RATE_LIMITED            (-106, "Too many requests. Please slow down.")
     ;
 
     private final int code;
     private final String message;
     private final String cached_output_message;
+    private final ByteBuf cached_encoded_output_message;
 
     private ErrorCode(int code, String message) {
         this.code = code;
         this.message = message;
         this.cached_output_message = String.format("%s %d\n", message, code);
+        this.cached_encoded_output_message = Unpooled.unmodifiableBuffer(Unpooled.copiedBuffer(cached_output_message, CharsetUtil.UTF_8));
     }
 
     public int getCode() {
@@ -37,6 +47,14 @@ public enum ErrorCode {
         return cached_output_message;
     }
 
+    /**
+     * The output message encoded as UTF-8. The buffer is shared and read-only;
+     * callers must not change its reader or writer index.
+     */
+    ByteBuf getEncodedOutputMessage() {
+        return cached_encoded_output_message;
+    }
+
     @Override
     public String toString() {
         return cached_output_message;
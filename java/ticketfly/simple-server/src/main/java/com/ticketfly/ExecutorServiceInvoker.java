@@ -0,0 +1,133 @@
+package com.ticketfly;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link TFlyService#execute(String)} on the threads of a {@link ServiceBackend}.
+ *
+ * The number of outstanding calls is capped. Once the cap is reached, new calls
+ * fail immediately with a {@link RejectedExecutionException} instead of queueing
+ * without bound.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class ExecutorServiceInvoker implements ServiceInvoker {
+    /**
+     * The default number of platform threads used by {@link ServiceBackend#BOUNDED_EXECUTOR}.
+     */
+    public static final int DEFAULT_THREADS = 256;
+
+    /**
+     * The default number of calls that can be queued or executing at once.
+     */
+    public static final int DEFAULT_MAXIMUM_OUTSTANDING = 10000;
+
+    private static final Logger logger = Logger.getLogger(ExecutorServiceInvoker.class.getName());
+
+    private final TFlyService service;
+    private final ServiceBackend backend;
+    private final ExecutorService executor;
+    private final Semaphore outstanding;
+
+    private ExecutorServiceInvoker(TFlyService service, ServiceBackend backend, int threads, int maximum_outstanding) {
+        this.service = service;
+        this.backend = backend;
+        this.executor = backend.newExecutorService(threads);
+        this.outstanding = new Semaphore(maximum_outstanding);
+    }
+
+    /**
+     * Creates an invoker using the {@link ServiceBackend#preferred()} backend and default limits.
+     */
+    public static ExecutorServiceInvoker create(TFlyService service) {
+        return create(service, ServiceBackend.preferred());
+    }
+
+    /**
+     * Creates an invoker using the default limits.
+     */
+    public static ExecutorServiceInvoker create(TFlyService service, ServiceBackend backend) {
+        return create(service, backend, DEFAULT_THREADS, DEFAULT_MAXIMUM_OUTSTANDING);
+    }
+
+    /**
+     * Creates an invoker.
+     *
+     * If the requested backend isn't available on this JVM, it falls back to
+     * {@link ServiceBackend#BOUNDED_EXECUTOR}.
+     *
+     * @param service the service to call
+     * @param backend the threads to call it on
+     * @param threads the number of platform threads for {@link ServiceBackend#BOUNDED_EXECUTOR}
+     * @param maximum_outstanding the number of calls that can be queued or executing at once
+     */
+    public static ExecutorServiceInvoker create(TFlyService service, ServiceBackend backend, int threads, int maximum_outstanding) {
+        if (service == null) {
+            throw new NullPointerException("service");
+        }
+        if (backend == null) {
+            throw new NullPointerException("backend");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (maximum_outstanding <= 0) {
+            throw new IllegalArgumentException("maximum_outstanding must be positive: " + maximum_outstanding);
+        }
+        if (!backend.isAvailable()) {
+            logger.log(Level.WARNING, "Service backend " + backend + " is not available on this JVM, falling back to " + ServiceBackend.BOUNDED_EXECUTOR);
+            backend = ServiceBackend.BOUNDED_EXECUTOR;
+        }
+        return new ExecutorServiceInvoker(service, backend, threads, maximum_outstanding);
+    }
+
+    public ServiceBackend getBackend() {
+        return backend;
+    }
+
+    @Override
+    public void invoke(final String request, final ServiceCallback callback) {
+        if (!outstanding.tryAcquire()) {
+            callback.failed(new RejectedExecutionException("Too many outstanding service calls"));
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final String response;
+                    try {
+                        response = service.execute(request);
+                    } catch(Throwable t) {
+                        outstanding.release();
+                        callback.failed(t);
+                        return;
+                    }
+                    outstanding.release();
+                    callback.completed(response);
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            outstanding.release();
+            callback.failed(e);
+        }
+    }
+
+    /**
+     * Stops accepting calls and waits briefly for outstanding ones to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10L, TimeUnit.SECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundByteHandler;
+import io.netty.handler.codec.DelimiterBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+/**
+ * Describes how requests and responses are delimited on the wire.
+ *
+ * {@link #NEWLINE} is the original protocol: every request is a line of
+ * text. Finding the end of a request means scanning every byte for a
+ * newline, and requests can't contain one.
+ *
+ * {@link #LENGTH_PREFIXED} puts a fixed size header in front of every
+ * request and response (see {@link TFlyBinaryCodec}). The end of a frame is
+ * known as soon as its length is read, the sequence number override travels
+ * in the header instead of being parsed out of the text, and the payload may
+ * contain anything.
+ *
+ * A server accepts either on its main port. A client asks for
+ * {@link #LENGTH_PREFIXED} by sending {@link TFlyBinaryCodec#NEGOTIATE_LENGTH_PREFIXED}
+ * as the very first byte of the connection. A server can also listen on a
+ * dedicated port that speaks {@link #LENGTH_PREFIXED} from the start (see
+ * {@link TFlySimpleServer#withLengthPrefixedPort(int)}).
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public enum Framing {
+      NEWLINE {
+        @Override
+        ChannelInboundByteHandler newFrameDecoder(int maximum_payload_size, final TFlyConnectionReaper.Activity activity) {
+            if (activity == null) {
+                return new DelimiterBasedFrameDecoder(maximum_payload_size, false, true, TFlySimpleServer.PROTOCOL_DELIMITERS);
+            }
+            return new DelimiterBasedFrameDecoder(maximum_payload_size, false, true, TFlySimpleServer.PROTOCOL_DELIMITERS) {
+                @Override
+                public void inboundBufferUpdated(ChannelHandlerContext ctx) throws Exception {
+                    final ByteBuf in = ctx.inboundByteBuffer();
+                    final int readable = in.readableBytes();
+                    super.inboundBufferUpdated(ctx);
+                    activity.read(readable, in);
+                }
+            };
+        }
+    }
+    , LENGTH_PREFIXED {
+        @Override
+        ChannelInboundByteHandler newFrameDecoder(int maximum_payload_size, final TFlyConnectionReaper.Activity activity) {
+            final int maximum_frame_length = TFlyBinaryCodec.LENGTH_FIELD_LENGTH + TFlyBinaryCodec.HEADER_LENGTH + maximum_payload_size;
+            //Strips the length field so frames start with the opcode.
+            if (activity == null) {
+                return new LengthFieldBasedFrameDecoder(maximum_frame_length, 0, TFlyBinaryCodec.LENGTH_FIELD_LENGTH, 0, TFlyBinaryCodec.LENGTH_FIELD_LENGTH);
+            }
+            return new LengthFieldBasedFrameDecoder(maximum_frame_length, 0, TFlyBinaryCodec.LENGTH_FIELD_LENGTH, 0, TFlyBinaryCodec.LENGTH_FIELD_LENGTH) {
+                @Override
+                public void inboundBufferUpdated(ChannelHandlerContext ctx) throws Exception {
+                    final ByteBuf in = ctx.inboundByteBuffer();
+                    final int readable = in.readableBytes();
+                    super.inboundBufferUpdated(ctx);
+                    activity.read(readable, in);
+                }
+            };
+        }
+    }
+    ;
+
+    /**
+     * Creates a decoder that splits inbound bytes into frames for this framing.
+     *
+     * @param maximum_payload_size the largest request or response (excluding any header) to accept
+     */
+    ChannelInboundByteHandler newFrameDecoder(int maximum_payload_size) {
+        return newFrameDecoder(maximum_payload_size, null);
+    }
+
+    /**
+     * Creates a decoder that also tells a {@link TFlyConnectionReaper} about every read.
+     *
+     * @param maximum_payload_size the largest request or response (excluding any header) to accept
+     * @param activity where to report reads, or null for nowhere
+     */
+    abstract ChannelInboundByteHandler newFrameDecoder(int maximum_payload_size, TFlyConnectionReaper.Activity activity);
+}
@@ -1,6 +1,8 @@
 package com.ticketfly;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,16 +16,154 @@ import static java.lang.System.out;
  * would be trivial to add. For now, the port number corresponds to
  * TFlySimpleServer.DEFAULT_SERVER_PORT.
  *
+ * Setting the <code>tfly.sequence.file</code> system property makes the sequence
+ * durable: it's checkpointed to the named file and resumes from there on restart.
+ *
+ * Setting the <code>tfly.service.backend</code> system property to one of the
+ * {@link ServiceBackend} names hands every request to {@link TFlyService}
+ * on that backend. Also setting <code>tfly.service.batch.size</code> collects
+ * requests into batches of up to that many (see {@link BatchingServiceInvoker}).
+ * Setting the batch size without a backend is an error.
+ *
+ * Setting the <code>tfly.length.prefixed.port</code> system property also
+ * listens on that port for clients using {@link Framing#LENGTH_PREFIXED}.
+ *
+ * Setting the <code>tfly.admin.port</code> system property serves the server's
+ * metrics in the Prometheus text format on that port (loopback only).
+ *
+ * The <code>tfly.write.buffer.low.water.mark</code> and
+ * <code>tfly.write.buffer.high.water.mark</code> system properties change when
+ * reads from a slow client are suspended and resumed, and
+ * <code>tfly.maximum.pending.outbound.bytes</code> when it's disconnected
+ * (see {@link TFlySimpleServer#withWriteBufferWaterMarks(int, int)}).
+ *
+ * The <code>tfly.maximum.connections</code> and
+ * <code>tfly.maximum.connections.per.address</code> system properties limit
+ * connections, and <code>tfly.request.rate.per.address</code> (with
+ * <code>tfly.request.burst.per.address</code>) limits each client address's
+ * requests per second (see {@link TFlySimpleServer#withRequestRateLimitPerAddress(double, int)}).
+ *
+ * The <code>tfly.idle.timeout.seconds</code> and <code>tfly.frame.timeout.seconds</code>
+ * system properties change when idle connections and connections that are
+ * slow to finish a request are closed (0 for never).
+ *
+ * Setting the <code>tfly.reuse.port</code> system property to true lets
+ * another server process listen on the same port, so a new one can be
+ * started before the old one is stopped. <code>tfly.acceptors</code>
+ * accepts connections on that many sockets at once (see
+ * {@link TFlySimpleServer#withAcceptors(int)}).
+ *
+ * Setting the <code>tfly.unix.domain.socket</code> system property to a path
+ * also listens on a Unix domain socket there for clients on the same machine.
+ *
  * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
  */
 public class Main {
 
     private static final Logger logger = Logger.getLogger(Main.class.getName());
 
+    public static final String PROPERTY_SEQUENCE_FILE = "tfly.sequence.file";
+    public static final String PROPERTY_SERVICE_BACKEND = "tfly.service.backend";
+    public static final String PROPERTY_SERVICE_BATCH_SIZE = "tfly.service.batch.size";
+    public static final String PROPERTY_LENGTH_PREFIXED_PORT = "tfly.length.prefixed.port";
+    public static final String PROPERTY_ADMIN_PORT = "tfly.admin.port";
+    public static final String PROPERTY_WRITE_BUFFER_LOW_WATER_MARK = "tfly.write.buffer.low.water.mark";
+    public static final String PROPERTY_WRITE_BUFFER_HIGH_WATER_MARK = "tfly.write.buffer.high.water.mark";
+    public static final String PROPERTY_MAXIMUM_PENDING_OUTBOUND_BYTES = "tfly.maximum.pending.outbound.bytes";
+    public static final String PROPERTY_MAXIMUM_CONNECTIONS = "tfly.maximum.connections";
+    public static final String PROPERTY_MAXIMUM_CONNECTIONS_PER_ADDRESS = "tfly.maximum.connections.per.address";
+    public static final String PROPERTY_REQUEST_RATE_PER_ADDRESS = "tfly.request.rate.per.address";
+    public static final String PROPERTY_REQUEST_BURST_PER_ADDRESS = "tfly.request.burst.per.address";
+    public static final String PROPERTY_IDLE_TIMEOUT_SECONDS = "tfly.idle.timeout.seconds";
+    public static final String PROPERTY_FRAME_TIMEOUT_SECONDS = "tfly.frame.timeout.seconds";
+    public static final String PROPERTY_REUSE_PORT = "tfly.reuse.port";
+    public static final String PROPERTY_ACCEPTORS = "tfly.acceptors";
+    public static final String PROPERTY_UNIX_DOMAIN_SOCKET = "tfly.unix.domain.socket";
+
     public static void main(String[] args) {
         logger.log(Level.INFO, "Creating the server");
         final TFlySimpleServer server = TFlySimpleServer.create(TFlySimpleServer.DEFAULT_SERVER_PORT);
 
+        DurableSequenceSource durable_sequence = null;
+        final String sequence_file = System.getProperty(PROPERTY_SEQUENCE_FILE);
+        if (sequence_file != null && !"".equals(sequence_file.trim())) {
+            try {
+                durable_sequence = DurableSequenceSource.open(new File(sequence_file.trim()));
+                server.withSequenceSource(durable_sequence);
+            } catch(IOException e) {
+                logger.log(Level.SEVERE, "Unable to open the sequence file " + sequence_file, e);
+                System.exit(1);
+            }
+        }
+
+        ExecutorServiceInvoker service = null;
+        BatchingServiceInvoker batching_service = null;
+        final String service_backend = System.getProperty(PROPERTY_SERVICE_BACKEND);
+        if (service_backend != null && !"".equals(service_backend.trim())) {
+            try {
+                final ServiceBackend backend = ServiceBackend.valueOf(service_backend.trim().toUpperCase());
+                final int batch_size = Integer.getInteger(PROPERTY_SERVICE_BATCH_SIZE, 0);
+                if (batch_size > 0) {
+                    batching_service = BatchingServiceInvoker.create(new TFlyService(), backend, BatchingServiceInvoker.DEFAULT_THREADS, batch_size, BatchingServiceInvoker.DEFAULT_MAXIMUM_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                    server.withService(batching_service);
+                    logger.log(Level.INFO, "Using the " + batching_service.getBackend() + " service backend with batches of up to " + batch_size + ".");
+                } else {
+                    service = ExecutorServiceInvoker.create(new TFlyService(), backend);
+                    server.withService(service);
+                    logger.log(Level.INFO, "Using the " + service.getBackend() + " service backend.");
+                }
+            } catch(IllegalArgumentException e) {
+                logger.log(Level.SEVERE, "Unknown service backend " + service_backend);
+                System.exit(1);
+            }
+        } else if (System.getProperty(PROPERTY_SERVICE_BATCH_SIZE) != null) {
+            logger.log(Level.SEVERE, "Batching requires a service backend. Set " + PROPERTY_SERVICE_BACKEND + " as well as " + PROPERTY_SERVICE_BATCH_SIZE + ".");
+            System.exit(1);
+        }
+
+        final int length_prefixed_port = Integer.getInteger(PROPERTY_LENGTH_PREFIXED_PORT, 0);
+        if (length_prefixed_port > 0) {
+            server.withLengthPrefixedPort(length_prefixed_port);
+            logger.log(Level.INFO, "Accepting length prefixed frames on port " + length_prefixed_port + ".");
+        }
+
+        final int admin_port = Integer.getInteger(PROPERTY_ADMIN_PORT, 0);
+        if (admin_port > 0) {
+            server.withAdminPort(admin_port);
+            logger.log(Level.INFO, "Serving metrics at http://localhost:" + admin_port + "/metrics.");
+        }
+
+        //The maximum goes first since it must be at least the high water mark.
+        server.withMaximumPendingOutboundBytes(Integer.getInteger(PROPERTY_MAXIMUM_PENDING_OUTBOUND_BYTES, TFlySimpleServer.DEFAULT_MAXIMUM_PENDING_OUTBOUND_BYTES));
+        server.withWriteBufferWaterMarks(
+            Integer.getInteger(PROPERTY_WRITE_BUFFER_LOW_WATER_MARK, TFlySimpleServer.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK),
+            Integer.getInteger(PROPERTY_WRITE_BUFFER_HIGH_WATER_MARK, TFlySimpleServer.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK)
+        );
+
+        server.withMaximumConnections(Integer.getInteger(PROPERTY_MAXIMUM_CONNECTIONS, 0));
+        server.withMaximumConnectionsPerAddress(Integer.getInteger(PROPERTY_MAXIMUM_CONNECTIONS_PER_ADDRESS, 0));
+        final double request_rate = Double.parseDouble(System.getProperty(PROPERTY_REQUEST_RATE_PER_ADDRESS, "0"));
+        if (request_rate > 0.0d) {
+            //By default, allow a second's worth of requests at once.
+            server.withRequestRateLimitPerAddress(request_rate, Integer.getInteger(PROPERTY_REQUEST_BURST_PER_ADDRESS, Math.max(1, (int)request_rate)));
+            logger.log(Level.INFO, "Limiting each client address to " + request_rate + " requests per second.");
+        }
+
+        server.withIdleTimeout(Long.getLong(PROPERTY_IDLE_TIMEOUT_SECONDS, TFlySimpleServer.DEFAULT_IDLE_TIMEOUT_SECONDS), TimeUnit.SECONDS);
+        server.withFrameTimeout(Long.getLong(PROPERTY_FRAME_TIMEOUT_SECONDS, TFlySimpleServer.DEFAULT_FRAME_TIMEOUT_SECONDS), TimeUnit.SECONDS);
+
+        server.withReusePort(Boolean.getBoolean(PROPERTY_REUSE_PORT));
+        server.withAcceptors(Integer.getInteger(PROPERTY_ACCEPTORS, 1));
+        if (server.isReusePort()) {
+            logger.log(Level.INFO, "Sharing port " + server.getPort() + " with " + server.getAcceptors() + " acceptor(s).");
+        }
+
+        final String unix_domain_socket = System.getProperty(PROPERTY_UNIX_DOMAIN_SOCKET);
+        if (unix_domain_socket != null) {
+            server.withUnixDomainSocket(unix_domain_socket);
+            logger.log(Level.INFO, "Also listening on the Unix domain socket " + unix_domain_socket + ".");
+        }
+
         logger.log(Level.INFO, "Starting the server.");
         server.start();
 
@@ -44,6 +184,22 @@ public class Main {
         logger.log(Level.INFO, "Stopping the server.");
         server.stop();
 
+        if (service != null) {
+            service.shutdown();
+        }
+
+        if (batching_service != null) {
+            batching_service.shutdown();
+        }
+
+        if (durable_sequence != null) {
+            try {
+                durable_sequence.close();
+            } catch(IOException e) {
+                logger.log(Level.WARNING, "Error closing the sequence file", e);
+            }
+        }
+
         logger.log(Level.INFO, "Server stopped.");
 
         System.exit(0);
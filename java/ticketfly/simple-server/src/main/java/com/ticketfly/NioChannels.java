@@ -0,0 +1,88 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.MessageBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link Transport#NIO} channels that read a bounded amount at a time and
+ * stop reading as soon as their reads are suspended.
+ *
+ * Netty's NIO channels read in a loop until the socket has nothing left,
+ * growing the inbound buffer as they go, and only hand what they read to the
+ * pipeline once the loop is over. A client that keeps writing can keep that
+ * loop going for megabytes, all of which lands on the heap before
+ * {@link OutboundBackpressure} gets a chance to suspend reads. The
+ * connections here end the loop after {@link #MAXIMUM_BYTES_PER_READ} so the
+ * pipeline sees what was read, and read nothing at all while suspended,
+ * leaving the rest in the socket. The AIO transport already reads a buffer
+ * at a time and checks for suspension before each read.
+ *
+ * Like {@link ReusePort}'s channels, these inherit netty's raw
+ * <code>outboundMessageBuffer()</code> override, hence the suppressed warnings.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class NioChannels {
+    /**
+     * The most a connection reads before handing it to the pipeline.
+     */
+    static final int MAXIMUM_BYTES_PER_READ = 64 * 1024;
+
+    private NioChannels() {
+    }
+
+    /**
+     * A listening channel whose accepted connections are {@link StreamChannel}s.
+     */
+    @SuppressWarnings("unchecked")
+    static class ServerChannel extends NioServerSocketChannel {
+        @Override
+        protected int doReadMessages(MessageBuf<Object> buf) throws Exception {
+            final SocketChannel ch = javaChannel().accept();
+            if (ch == null) {
+                return 0;
+            }
+            buf.add(new StreamChannel(this, ch));
+            return 1;
+        }
+    }
+
+    /**
+     * An accepted connection that reads a bounded amount at a time and
+     * nothing while its reads are suspended.
+     */
+    @SuppressWarnings("unchecked")
+    static final class StreamChannel extends NioSocketChannel {
+        /**
+         * Bytes read since the pipeline last saw them. Only used on the event loop.
+         */
+        private int bytes_read = 0;
+
+        StreamChannel(Channel parent, SocketChannel ch) {
+            super(parent, null, ch);
+        }
+
+        @Override
+        protected int doReadBytes(ByteBuf buf) throws Exception {
+            //Netty ends the loop when nothing is read, and the selector brings it back for the rest.
+            if (bytes_read >= MAXIMUM_BYTES_PER_READ) {
+                bytes_read = 0;
+                return 0;
+            }
+            //Suspending reads takes OP_READ out of the interest set.
+            final SelectionKey key = selectionKey();
+            if (key.isValid() && (key.interestOps() & SelectionKey.OP_READ) == 0) {
+                return 0;
+            }
+            final int read = super.doReadBytes(buf);
+            bytes_read = read > 0 ? bytes_read + read : 0;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.ticketfly;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Keeps a connection's outbound bytes bounded when its peer reads slowly.
+ *
+ * Every flush is counted as pending until its future reports the bytes were
+ * written to the socket. Once the pending bytes reach the high water mark,
+ * reads from the connection are suspended and the handler stops turning
+ * requests it already has into responses. Once they drain to the low water
+ * mark, reads resume and the handler is told to carry on. If a connection
+ * still manages to exceed the maximum (responses to work that was already
+ * under way, for example), it's closed.
+ *
+ * Only ever used on the connection's event loop.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class OutboundBackpressure {
+    /**
+     * The water marks and maximum for a server's connections.
+     */
+    static final class Limits {
+        static final Limits DEFAULT = new Limits(
+            TFlySimpleServer.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK,
+            TFlySimpleServer.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK,
+            TFlySimpleServer.DEFAULT_MAXIMUM_PENDING_OUTBOUND_BYTES
+        );
+
+        final int low_water_mark;
+        final int high_water_mark;
+        final int maximum_pending_bytes;
+
+        Limits(int low_water_mark, int high_water_mark, int maximum_pending_bytes) {
+            if (low_water_mark < 0 || high_water_mark <= low_water_mark) {
+                throw new IllegalArgumentException("The high water mark (" + high_water_mark + ") must be greater than the low water mark (" + low_water_mark + "), which must not be negative");
+            }
+            if (maximum_pending_bytes < high_water_mark) {
+                throw new IllegalArgumentException("The maximum pending bytes (" + maximum_pending_bytes + ") must be at least the high water mark (" + high_water_mark + ")");
+            }
+            this.low_water_mark = low_water_mark;
+            this.high_water_mark = high_water_mark;
+            this.maximum_pending_bytes = maximum_pending_bytes;
+        }
+    }
+
+    private final Limits limits;
+    private final TFlyServerMetrics metrics;
+
+    /**
+     * Told when a suspended connection has drained to its low water mark.
+     */
+    interface Listener {
+        void drained(ChannelHandlerContext ctx) throws Exception;
+    }
+
+    private final Listener listener;
+
+    private long pending_bytes = 0L;
+    private boolean suspended = false;
+    private boolean closed = false;
+
+    OutboundBackpressure(Limits limits, TFlyServerMetrics metrics, Listener listener) {
+        this.limits = limits;
+        this.metrics = metrics;
+        this.listener = listener;
+    }
+
+    /**
+     * Determines if the handler should hold off on producing more responses.
+     */
+    boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Determines if writing this many more bytes would reach the high water mark.
+     */
+    boolean reachesHighWaterMark(int unflushed_bytes) {
+        return pending_bytes + unflushed_bytes >= limits.high_water_mark;
+    }
+
+    long getPendingBytes() {
+        return pending_bytes;
+    }
+
+    /**
+     * Flushes bytes the handler has written, suspending reads if the
+     * connection is now at its high water mark. Closes the connection instead
+     * if it's past its maximum.
+     *
+     * @param bytes how many bytes were written since the last flush
+     * @return false if the connection was closed
+     */
+    boolean flush(final ChannelHandlerContext ctx, final int bytes) {
+        if (closed) {
+            return false;
+        }
+
+        pending_bytes += bytes;
+        metrics.pendingOutboundBytes(bytes);
+        if (pending_bytes > limits.maximum_pending_bytes) {
+            closed = true;
+            metrics.pendingOutboundBytes(-pending_bytes);
+            pending_bytes = 0L;
+            metrics.slowConsumerClosed();
+            ctx.close();
+            return false;
+        }
+
+        if (!suspended && pending_bytes >= limits.high_water_mark) {
+            suspended = true;
+            metrics.readSuspended();
+            ctx.readable(false);
+        }
+
+        //The future may already be done, in which case the listener runs right away.
+        ctx.flush().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                written(ctx, bytes);
+            }
+        });
+        return true;
+    }
+
+    private void written(ChannelHandlerContext ctx, int bytes) {
+        if (closed) {
+            return;
+        }
+        pending_bytes -= bytes;
+        metrics.pendingOutboundBytes(-bytes);
+        if (suspended && pending_bytes <= limits.low_water_mark) {
+            suspended = false;
+            ctx.readable(true);
+            if (ctx.channel().isActive()) {
+                try {
+                    listener.drained(ctx);
+                } catch(Throwable t) {
+                    ctx.fireExceptionCaught(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops counting the connection's bytes once it's closed.
+     */
+    void closed() {
+        if (!closed) {
+            closed = true;
+            metrics.pendingOutboundBytes(-pending_bytes);
+            pending_bytes = 0L;
+        }
+    }
+}
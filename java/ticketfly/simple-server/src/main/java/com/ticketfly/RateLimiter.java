@@ -0,0 +1,83 @@
+package com.ticketfly;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free rate limiter using the generic cell rate algorithm (GCRA).
+ *
+ * It behaves like a token bucket that refills at a steady rate and holds up
+ * to a burst of permits, but the whole state is a single number: the
+ * theoretical arrival time of the next permit if permits were spaced evenly.
+ * A permit is granted as long as that time isn't further ahead of now than
+ * the burst allows. Each grant moves it one interval forward with a single
+ * compare-and-set, so any number of threads may acquire permits at once
+ * without locking.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class RateLimiter {
+    /**
+     * The time between permits at the steady rate.
+     */
+    private final long interval_nanos;
+
+    /**
+     * How far ahead of now the theoretical arrival time may run, which allows bursts.
+     */
+    private final long tolerance_nanos;
+
+    private final AtomicLong theoretical_arrival;
+
+    /**
+     * @param permits_per_second the steady rate
+     * @param burst the most permits that may be granted at once after a quiet period
+     */
+    RateLimiter(double permits_per_second, int burst) {
+        if (permits_per_second <= 0.0d) {
+            throw new IllegalArgumentException("permits_per_second must be positive: " + permits_per_second);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1: " + burst);
+        }
+        this.interval_nanos = Math.max(1L, (long)(TimeUnit.SECONDS.toNanos(1L) / permits_per_second));
+        this.tolerance_nanos = (burst - 1) * interval_nanos;
+        this.theoretical_arrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a permit if one is available right now.
+     *
+     * @return true if the permit was granted
+     */
+    boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * Takes a permit if one is available at the given time.
+     *
+     * @param now_nanos the current time, from {@link System#nanoTime()}
+     * @return true if the permit was granted
+     */
+    boolean tryAcquire(long now_nanos) {
+        for(;;) {
+            final long arrival = theoretical_arrival.get();
+            if (arrival - tolerance_nanos - now_nanos > 0L) {
+                return false;
+            }
+            //After a quiet period, start from now rather than letting unused permits pile up.
+            final long next = (arrival - now_nanos > 0L ? arrival : now_nanos) + interval_nanos;
+            if (theoretical_arrival.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * How long until a permit becomes available, or 0 if one is available now.
+     */
+    long delayNanos(long now_nanos) {
+        return Math.max(0L, theoretical_arrival.get() - tolerance_nanos - now_nanos);
+    }
+}
@@ -0,0 +1,396 @@
+package com.ticketfly;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Wraps another {@link ServiceInvoker} with retries and hedged requests to cut
+ * tail latency.
+ *
+ * If an attempt hasn't completed within the hedge delay, a second attempt is
+ * fired and whichever succeeds first wins. If an attempt fails and nothing
+ * else is in flight, another attempt is fired right away. No call makes more
+ * than the maximum number of attempts.
+ *
+ * Every extra attempt (hedge or retry) is paid for from a retry budget. Each
+ * call deposits a fraction of a token and each extra attempt withdraws a whole
+ * one, so extra attempts can never add more than that fraction to the load on
+ * the service. A small reserve absorbs bursts. Calls rejected by the wrapped
+ * invoker (i.e. because it's overloaded) are never retried.
+ *
+ * A call's hedge timer is cancelled as soon as the call completes. Schedulers
+ * passed to {@link #create(ServiceInvoker, ScheduledExecutorService)} should
+ * remove cancelled tasks (see
+ * {@link ScheduledThreadPoolExecutor#setRemoveOnCancelPolicy(boolean)}), or
+ * every call that beats the hedge delay leaves a task queued until it's due.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class ResilientServiceInvoker implements ServiceInvoker {
+    /**
+     * By default, an extra attempt is fired once a call has taken this long.
+     * {@link TFlyService} normally responds in a little over 100 ms.
+     */
+    public static final long DEFAULT_HEDGE_DELAY_MILLIS = 150L;
+
+    /**
+     * By default, a call makes at most this many attempts.
+     */
+    public static final int DEFAULT_MAXIMUM_ATTEMPTS = 3;
+
+    /**
+     * By default, extra attempts add at most this fraction of load to the service.
+     */
+    public static final double DEFAULT_BUDGET_RATIO = 0.2d;
+
+    /**
+     * By default, this many extra attempts can be made in a burst before the budget refills.
+     */
+    public static final int DEFAULT_BUDGET_RESERVE = 100;
+
+    /**
+     * Budget tokens are tracked in thousandths so fractional deposits don't need floating point.
+     */
+    private static final long TOKEN = 1000L;
+
+    /**
+     * Fires hedges for invokers that aren't given their own scheduler.
+     */
+    private static final ScheduledExecutorService SHARED_SCHEDULER = createSharedScheduler();
+
+    private final ServiceInvoker delegate;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile long hedge_delay_nanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MILLIS);
+    private volatile int maximum_attempts = DEFAULT_MAXIMUM_ATTEMPTS;
+    private volatile long budget_deposit = (long)(DEFAULT_BUDGET_RATIO * TOKEN);
+    private volatile long budget_maximum = DEFAULT_BUDGET_RESERVE * TOKEN;
+
+    private final AtomicLong budget = new AtomicLong(DEFAULT_BUDGET_RESERVE * TOKEN);
+
+    private final AtomicLong calls = new AtomicLong(0L);
+    private final AtomicLong attempts = new AtomicLong(0L);
+    private final AtomicLong retries = new AtomicLong(0L);
+    private final AtomicLong hedges = new AtomicLong(0L);
+    private final AtomicLong hedges_won = new AtomicLong(0L);
+    private final AtomicLong budget_exhausted = new AtomicLong(0L);
+    private final AtomicLong failures = new AtomicLong(0L);
+
+    private ResilientServiceInvoker(ServiceInvoker delegate, ScheduledExecutorService scheduler) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+    }
+
+    private static ScheduledExecutorService createSharedScheduler() {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "tfly-hedge-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        //Most calls beat the hedge delay. Don't leave their timers queued.
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Wraps an invoker using the default settings.
+     */
+    public static ResilientServiceInvoker create(ServiceInvoker delegate) {
+        return create(delegate, SHARED_SCHEDULER);
+    }
+
+    /**
+     * Wraps an invoker, firing hedges from the provided scheduler.
+     */
+    public static ResilientServiceInvoker create(ServiceInvoker delegate, ScheduledExecutorService scheduler) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate");
+        }
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler");
+        }
+        return new ResilientServiceInvoker(delegate, scheduler);
+    }
+
+    /**
+     * Sets how long a call may take before a hedge is fired. Zero disables hedging,
+     * leaving only retries of failed attempts.
+     */
+    public ResilientServiceInvoker withHedgeDelay(long delay, TimeUnit unit) {
+        if (delay < 0L) {
+            throw new IllegalArgumentException("delay must not be negative: " + delay);
+        }
+        this.hedge_delay_nanos = unit.toNanos(delay);
+        return this;
+    }
+
+    /**
+     * Sets the most attempts (including the first one) a single call may make.
+     */
+    public ResilientServiceInvoker withMaximumAttempts(int maximum_attempts) {
+        if (maximum_attempts <= 0) {
+            throw new IllegalArgumentException("maximum_attempts must be positive: " + maximum_attempts);
+        }
+        this.maximum_attempts = maximum_attempts;
+        return this;
+    }
+
+    /**
+     * Sets the retry budget.
+     *
+     * @param ratio the most extra load (as a fraction of calls) hedges and retries may add
+     * @param reserve how many extra attempts may be made in a burst
+     */
+    public ResilientServiceInvoker withRetryBudget(double ratio, int reserve) {
+        if (ratio < 0.0d) {
+            throw new IllegalArgumentException("ratio must not be negative: " + ratio);
+        }
+        if (reserve < 0) {
+            throw new IllegalArgumentException("reserve must not be negative: " + reserve);
+        }
+        this.budget_deposit = (long)(ratio * TOKEN);
+        this.budget_maximum = reserve * TOKEN;
+        this.budget.set(budget_maximum);
+        return this;
+    }
+
+    /**
+     * The number of calls made through this invoker.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * The number of attempts made on the wrapped invoker, including first attempts.
+     */
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    /**
+     * The number of extra attempts fired because an attempt failed.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * The number of extra attempts fired because an attempt was slow.
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * The number of calls whose response came from a hedge.
+     */
+    public long getHedgesWon() {
+        return hedges_won.get();
+    }
+
+    /**
+     * The number of extra attempts that weren't made because the budget was empty.
+     */
+    public long getBudgetExhausted() {
+        return budget_exhausted.get();
+    }
+
+    /**
+     * The number of calls that failed after every permitted attempt.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * The fraction of the retry budget's reserve that has been used.
+     */
+    public double getBudgetUsed() {
+        final long maximum = budget_maximum;
+        return maximum == 0L ? 1.0d : 1.0d - (double)budget.get() / maximum;
+    }
+
+    @Override
+    public void invoke(String request, ServiceCallback callback) {
+        calls.incrementAndGet();
+        deposit();
+        new Call(request, callback).attempt(false);
+    }
+
+    private void deposit() {
+        final long maximum = budget_maximum;
+        while(true) {
+            final long current = budget.get();
+            if (current >= maximum) {
+                return;
+            }
+            if (budget.compareAndSet(current, Math.min(maximum, current + budget_deposit))) {
+                return;
+            }
+        }
+    }
+
+    private boolean withdraw() {
+        while(true) {
+            final long current = budget.get();
+            if (current < TOKEN) {
+                budget_exhausted.incrementAndGet();
+                return false;
+            }
+            if (budget.compareAndSet(current, current - TOKEN)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The state of a single call across all of its attempts.
+     */
+    private final class Call {
+        private final String request;
+        private final ServiceCallback callback;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private final AtomicInteger started = new AtomicInteger(0);
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+
+        /**
+         * Bumped whenever an attempt starts so only the newest attempt's timer can fire a hedge.
+         */
+        private final AtomicInteger generation = new AtomicInteger(0);
+
+        /**
+         * The newest attempt's hedge timer, cancelled once the call is done.
+         */
+        private final AtomicReference<ScheduledFuture<?>> hedge_timer = new AtomicReference<ScheduledFuture<?>>();
+
+        Call(String request, ServiceCallback callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+
+        /**
+         * Reserves one of the call's attempts. Extra attempts must also be paid for from the budget.
+         */
+        private boolean reserveAttempt(boolean extra) {
+            while(true) {
+                final int current = started.get();
+                if (current >= maximum_attempts) {
+                    return false;
+                }
+                if (extra && !withdraw()) {
+                    return false;
+                }
+                if (started.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+                if (extra) {
+                    //Return what we withdrew and try again.
+                    budget.addAndGet(TOKEN);
+                }
+            }
+        }
+
+        void attempt(final boolean hedge) {
+            if (!reserveAttempt(started.get() > 0)) {
+                return;
+            }
+            start(hedge);
+        }
+
+        private void start(final boolean hedge) {
+            attempts.incrementAndGet();
+            outstanding.incrementAndGet();
+            final int current_generation = generation.incrementAndGet();
+
+            delegate.invoke(request, new ServiceCallback() {
+                @Override
+                public void completed(String response) {
+                    outstanding.decrementAndGet();
+                    if (done.compareAndSet(false, true)) {
+                        cancelHedge();
+                        if (hedge) {
+                            hedges_won.incrementAndGet();
+                        }
+                        callback.completed(response);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable cause) {
+                    final int remaining = outstanding.decrementAndGet();
+                    if (done.get()) {
+                        return;
+                    }
+                    if (remaining > 0) {
+                        //Another attempt is still in flight. Let it finish.
+                        return;
+                    }
+                    if (!(cause instanceof RejectedExecutionException) && reserveAttempt(true)) {
+                        retries.incrementAndGet();
+                        start(false);
+                        return;
+                    }
+                    if (outstanding.get() == 0 && done.compareAndSet(false, true)) {
+                        cancelHedge();
+                        failures.incrementAndGet();
+                        callback.failed(cause);
+                    }
+                }
+            });
+
+            scheduleHedge(current_generation);
+        }
+
+        private void scheduleHedge(final int current_generation) {
+            final long delay = hedge_delay_nanos;
+            if (delay <= 0L || done.get() || started.get() >= maximum_attempts) {
+                return;
+            }
+
+            final ScheduledFuture<?> timer;
+            try {
+                timer = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!done.get() && generation.get() == current_generation && reserveAttempt(true)) {
+                            hedges.incrementAndGet();
+                            start(true);
+                        }
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            } catch(RejectedExecutionException e) {
+                //The scheduler is shutting down. Carry on without hedging.
+                return;
+            }
+
+            //Only the newest attempt's timer can fire a hedge, so an older one is of no use.
+            final ScheduledFuture<?> previous = hedge_timer.getAndSet(timer);
+            if (previous != null) {
+                previous.cancel(false);
+            }
+            if (done.get()) {
+                //The call finished while the timer was being scheduled.
+                cancelHedge();
+            }
+        }
+
+        private void cancelHedge() {
+            final ScheduledFuture<?> timer = hedge_timer.getAndSet(null);
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+    }
+}
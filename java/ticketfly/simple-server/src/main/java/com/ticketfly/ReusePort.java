@@ -0,0 +1,98 @@
+package com.ticketfly;
+
+import io.netty.channel.ChannelException;
+import io.netty.channel.socket.aio.AioEventLoopGroup;
+import io.netty.channel.socket.aio.AioServerSocketChannel;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Lets several listening sockets bind the same port with
+ * <code>SO_REUSEPORT</code>. The kernel then spreads incoming connections
+ * across them, so accepting isn't funneled through a single socket and
+ * thread, and a new server process can start listening before the old one
+ * stops.
+ *
+ * The option is only in the JDK from 9 on and only some platforms support
+ * it (Linux 3.9 and later, for one), so it's looked up at runtime. The
+ * version of netty this project is built against has no channel option for
+ * it either; the listening channels here set it on the JDK channel before
+ * it's bound.
+ *
+ * Both channels inherit netty's raw <code>outboundMessageBuffer()</code>
+ * override, hence the suppressed warnings.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class ReusePort {
+    /**
+     * The JDK's <code>SO_REUSEPORT</code>, or null if the JDK or platform doesn't have it.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookup();
+
+    private ReusePort() {
+    }
+
+    /**
+     * Indicates if listening sockets can share a port on the current platform.
+     */
+    static boolean isSupported() {
+        return SO_REUSEPORT != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookup() {
+        try {
+            final SocketOption<Boolean> option = (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            final ServerSocketChannel probe = ServerSocketChannel.open();
+            try {
+                return probe.supportedOptions().contains(option) ? option : null;
+            } finally {
+                probe.close();
+            }
+        } catch(NoSuchFieldException e) {
+            return null;
+        } catch(IllegalAccessException e) {
+            return null;
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private static void enable(NetworkChannel channel) {
+        if (SO_REUSEPORT == null) {
+            throw new ChannelException("SO_REUSEPORT is not supported on this platform");
+        }
+        try {
+            channel.setOption(SO_REUSEPORT, Boolean.TRUE);
+        } catch(IOException e) {
+            throw new ChannelException("Unable to set SO_REUSEPORT", e);
+        }
+    }
+
+    /**
+     * A {@link Transport#NIO} listening channel that shares its port.
+     * Its connections stop reading when suspended (see {@link NioChannels}).
+     */
+    @SuppressWarnings("unchecked")
+    static final class NioServerChannel extends NioChannels.ServerChannel {
+        NioServerChannel() {
+            enable(javaChannel());
+        }
+    }
+
+    /**
+     * A {@link Transport#AIO} listening channel that shares its port.
+     */
+    @SuppressWarnings("unchecked")
+    static final class AioServerChannel extends AioServerSocketChannel {
+        AioServerChannel(AioEventLoopGroup parent_group, AioEventLoopGroup child_group) {
+            super(parent_group, child_group);
+            enable(javaChannel());
+        }
+    }
+}
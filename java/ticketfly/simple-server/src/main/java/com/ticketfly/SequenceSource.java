@@ -0,0 +1,57 @@
+package com.ticketfly;
+
+/**
+ * Hands out the sequence numbers appended to server responses.
+ *
+ * Sequence numbers are positive 64-bit values. Implementations must
+ * guarantee that:
+ * <ol>
+ *     <li>No number is handed out twice (until the sequence wraps around).</li>
+ *     <li>Numbers handed out to a single thread always increase.</li>
+ *     <li>Once {@link #advanceTo(long)} has returned true for a value, every subsequent
+ *         call to {@link #next()} (on any thread) returns a number greater than that value.</li>
+ *     <li>The sequence never moves backwards as a result of {@link #advanceTo(long)}.</li>
+ * </ol>
+ *
+ * Wraparound policy: once the sequence is exhausted at {@link #MAXIMUM}, it
+ * starts over at {@link #MINIMUM}. Implementations that reserve numbers in
+ * blocks may start over up to one block early. At a million requests per
+ * second, reaching the maximum takes roughly 290,000 years.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public interface SequenceSource {
+    /**
+     * The smallest sequence number that will ever be handed out.
+     */
+    long MINIMUM = 1L;
+
+    /**
+     * The largest sequence number that will ever be handed out.
+     */
+    long MAXIMUM = Long.MAX_VALUE;
+
+    /**
+     * Hands out the next sequence number.
+     *
+     * @return a number between {@link #MINIMUM} and {@link #MAXIMUM}.
+     */
+    long next();
+
+    /**
+     * Moves the sequence forward so that subsequent numbers are greater than the
+     * provided value. Values at or below numbers that may already have been handed
+     * out are ignored.
+     *
+     * @param value the client-requested sequence number.
+     * @return true if the sequence was moved forward, false if the value was ignored.
+     */
+    boolean advanceTo(long value);
+
+    /**
+     * The largest number that may have been handed out so far, or the largest
+     * accepted override if that's larger. Intended for diagnostics; with
+     * concurrent callers it's immediately out of date.
+     */
+    long current();
+}
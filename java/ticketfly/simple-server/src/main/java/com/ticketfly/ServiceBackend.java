@@ -0,0 +1,97 @@
+package com.ticketfly;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that blocking service calls are executed on.
+ *
+ * {@link TFlyService#execute(String)} sleeps, so it must never run on an event
+ * loop. A {@link #BOUNDED_EXECUTOR} parks each in flight call on a platform
+ * thread from a fixed size pool. {@link #VIRTUAL_THREADS} gives every call its
+ * own virtual thread, so thousands of calls can be in flight at once without
+ * thousands of platform threads. Virtual threads require Java 21 or later and
+ * are located reflectively so the server still builds and runs on older JVMs.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public enum ServiceBackend {
+      BOUNDED_EXECUTOR {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        ExecutorService newExecutorService(int threads) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "tfly-service-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+    , VIRTUAL_THREADS {
+        @Override
+        public boolean isAvailable() {
+            return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+        }
+
+        @Override
+        ExecutorService newExecutorService(int threads) {
+            if (!isAvailable()) {
+                throw new UnsupportedOperationException("Virtual threads are not available on this JVM");
+            }
+            try {
+                return (ExecutorService)NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch(Exception e) {
+                throw new IllegalStateException("Unable to create a virtual thread executor", e);
+            }
+        }
+    }
+    ;
+
+    /**
+     * <code>Executors.newVirtualThreadPerTaskExecutor()</code> or null if this JVM doesn't have it.
+     */
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadFactory();
+
+    private static Method findVirtualThreadFactory() {
+        try {
+            return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch(NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Indicates if this backend can be used on the current JVM.
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * Creates an executor for service calls.
+     *
+     * @param threads the number of platform threads, if the backend uses a pool.
+     */
+    abstract ExecutorService newExecutorService(int threads);
+
+    /**
+     * The most scalable backend available on this JVM.
+     */
+    public static ServiceBackend preferred() {
+        return VIRTUAL_THREADS.isAvailable() ? VIRTUAL_THREADS : BOUNDED_EXECUTOR;
+    }
+}
@@ -0,0 +1,14 @@
+package com.ticketfly;
+
+/**
+ * Receives the outcome of an asynchronous call made through a {@link ServiceInvoker}.
+ *
+ * Exactly one of the methods is called, exactly once, on whatever thread
+ * completed the call.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public interface ServiceCallback {
+    void completed(String response);
+    void failed(Throwable cause);
+}
@@ -0,0 +1,15 @@
+package com.ticketfly;
+
+/**
+ * Calls a (potentially slow) service without blocking the calling thread.
+ *
+ * The server's event loops use this to hand requests off to {@link TFlyService}
+ * and are notified through a {@link ServiceCallback} once a response is ready.
+ * Implementations must never block in {@link #invoke(String, ServiceCallback)}.
+ * If a call cannot be accepted, the callback should fail immediately instead.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public interface ServiceInvoker {
+    void invoke(String request, ServiceCallback callback);
+}
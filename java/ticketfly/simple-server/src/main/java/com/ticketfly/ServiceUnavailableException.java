@@ -0,0 +1,21 @@
+package com.ticketfly;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Signals that a service call was refused without being attempted, e.g.
+ * because a circuit breaker is open or a bulkhead is full.
+ *
+ * Callers report it to clients as {@link ErrorCode#ERROR_SERVICE_UNAVAILABLE}.
+ * As with any {@link RejectedExecutionException}, it's never retried by a
+ * {@link ResilientServiceInvoker}.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public class ServiceUnavailableException extends RejectedExecutionException {
+    private static final long serialVersionUID = 1L;
+
+    public ServiceUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,159 @@
+package com.ticketfly;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SequenceSource} that keeps threads off each other's cache lines.
+ *
+ * Each thread (in practice, each event loop) reserves a block of numbers
+ * from a shared counter and hands them out from thread-confined state, so
+ * the shared counter is only touched once per block. Accepted overrides
+ * raise a shared floor that is read (but almost never written) on every
+ * call; a block that the floor lands inside skips past it, and any block
+ * that falls entirely at or below the floor is abandoned and a new block is
+ * reserved above it. An override is accepted as long as it's above
+ * every number actually handed out, even if it lands inside a reserved block.
+ *
+ * Every guarantee in {@link SequenceSource} holds. Since a connection is
+ * always serviced by the same event loop, the numbers a client sees still
+ * increase. What's given up is the global ordering of
+ * {@link AtomicSequenceSource}: two connections on different event loops
+ * may see numbers that are out of order with respect to real time.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class StripedSequenceSource implements SequenceSource {
+    /**
+     * The default number of sequence numbers reserved by a thread at a time.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    /**
+     * A thread's current block of numbers. Only ever written by its owning thread.
+     */
+    private static final class Block {
+        long next = MINIMUM;
+        long last = MINIMUM - 1L;
+
+        /**
+         * The last number handed out by the owning thread. Read by {@link #advanceTo(long)}.
+         */
+        final AtomicLong issued = new AtomicLong(0L);
+    }
+
+    private final int block_size;
+
+    /**
+     * The highest number reserved by any block.
+     */
+    private final AtomicLong reserved = new AtomicLong(0L);
+
+    /**
+     * The highest accepted override.
+     */
+    private final AtomicLong floor = new AtomicLong(0L);
+
+    /**
+     * Every thread's block, so overrides can be checked against what was actually handed out.
+     */
+    private final List<Block> all_blocks = new CopyOnWriteArrayList<Block>();
+
+    private final ThreadLocal<Block> blocks = new ThreadLocal<Block>() {
+        @Override
+        protected Block initialValue() {
+            final Block block = new Block();
+            all_blocks.add(block);
+            return block;
+        }
+    };
+
+    public StripedSequenceSource() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param block_size the number of sequence numbers reserved by a thread at a time.
+     */
+    public StripedSequenceSource(int block_size) {
+        if (block_size <= 0) {
+            throw new IllegalArgumentException("block_size must be positive: " + block_size);
+        }
+        this.block_size = block_size;
+    }
+
+    @Override
+    public long next() {
+        final Block block = blocks.get();
+        final long current_floor = floor.get();
+        if (block.next <= current_floor && current_floor < block.last) {
+            //The override landed inside this block. Skip past it.
+            block.next = current_floor + 1L;
+        } else if (block.next > block.last || block.next <= current_floor) {
+            reserve(block);
+        }
+        final long number = block.next++;
+        block.issued.lazySet(number);
+        return number;
+    }
+
+    /**
+     * Reserves a new block above every number reserved so far and above the floor.
+     */
+    private void reserve(Block block) {
+        while(true) {
+            final long current_floor = floor.get();
+            final long current_reserved = reserved.get();
+            final long start = Math.max(current_reserved, current_floor) + 1L;
+
+            if (start <= 0L || start > MAXIMUM - block_size + 1L) {
+                //Wrap around. Blocks handed out just before this point run to
+                //completion, everyone else starts over at the bottom.
+                if (reserved.compareAndSet(current_reserved, MINIMUM + block_size - 1L)) {
+                    floor.set(0L);
+                    block.next = MINIMUM;
+                    block.last = MINIMUM + block_size - 1L;
+                    return;
+                }
+                continue;
+            }
+
+            final long last = start + block_size - 1L;
+            if (reserved.compareAndSet(current_reserved, last)) {
+                block.next = start;
+                block.last = last;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean advanceTo(long requested) {
+        while(true) {
+            final long current_floor = floor.get();
+            if (requested <= current_floor || requested <= issued()) {
+                return false;
+            }
+            if (floor.compareAndSet(current_floor, requested)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The highest number handed out by any thread.
+     */
+    private long issued() {
+        long highest = 0L;
+        for(Block block : all_blocks) {
+            highest = Math.max(highest, block.issued.get());
+        }
+        return highest;
+    }
+
+    @Override
+    public long current() {
+        return Math.max(reserved.get(), floor.get());
+    }
+}
@@ -0,0 +1,322 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundByteHandlerAdapter;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which connections and requests a server takes on, so a flood from
+ * one client (or all of them) is turned away cheaply instead of queued.
+ *
+ * A connection is admitted as long as the server and the client's address
+ * are both under their connection limits. Otherwise it's answered with
+ * {@link ErrorCode#ERROR_TOO_MANY_CONNECTIONS} and closed before any of its
+ * requests are read. Requests from each address share a {@link RateLimiter}.
+ * Those over the limit are answered with {@link ErrorCode#ERROR_RATE_LIMITED}
+ * in their place among the responses.
+ *
+ * Admitting connections and requests never takes a lock. The server's connection count is a single
+ * atomic counter that's only touched when a connection opens or closes.
+ * Each address's count and rate limiter live in a concurrent map, so
+ * clients only ever contend with themselves. An address is forgotten once
+ * its last connection closes.
+ *
+ * The limits may be changed at any time. Connections already open keep
+ * their place, and rate limiters pick up a new rate with their next request.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class TFlyAdmissionControl {
+    private static final Logger logger = Logger.getLogger(TFlyAdmissionControl.class.getName());
+
+    /**
+     * Logs from the event loops without blocking them (see {@link TFlyLog}).
+     */
+    private static final TFlyLog log = TFlyLog.of(logger);
+
+    /**
+     * Connections without an internet address (embedded or local channels) share this one.
+     */
+    private static final Object LOCAL = new Object();
+
+    /**
+     * The limits in effect. Replaced as a whole whenever one of them changes.
+     */
+    private static final class Limits {
+        final int maximum_connections;
+        final int maximum_connections_per_address;
+        final double requests_per_second;
+        final int burst;
+
+        Limits(int maximum_connections, int maximum_connections_per_address, double requests_per_second, int burst) {
+            this.maximum_connections = maximum_connections;
+            this.maximum_connections_per_address = maximum_connections_per_address;
+            this.requests_per_second = requests_per_second;
+            this.burst = burst;
+        }
+    }
+
+    /**
+     * Everything known about one remote address.
+     */
+    private static final class Address {
+        /**
+         * The address's key in {@link #addresses}.
+         */
+        final Object key;
+
+        /**
+         * Open connections, or -1 once the address is being forgotten.
+         */
+        final AtomicInteger connections = new AtomicInteger(0);
+
+        /**
+         * The limits {@link #rate_limiter} was made for.
+         */
+        volatile Limits rate_limits;
+        volatile RateLimiter rate_limiter;
+
+        Address(Object key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * An admitted connection's hold on the server. Released when the connection closes.
+     */
+    interface Admission {
+        /**
+         * Takes a permit for a request.
+         *
+         * @return false if the request should be refused for going over the rate limit
+         */
+        boolean tryAcquireRequest();
+
+        void release();
+    }
+
+    /**
+     * Admits every request. For handlers that aren't part of a server.
+     */
+    static final Admission UNLIMITED = new Admission() {
+        @Override
+        public boolean tryAcquireRequest() {
+            return true;
+        }
+
+        @Override
+        public void release() {
+        }
+    };
+
+    private final TFlyServerMetrics metrics;
+    private final AtomicInteger connections = new AtomicInteger(0);
+    private final ConcurrentMap<Object, Address> addresses = new ConcurrentHashMap<Object, Address>();
+    private volatile Limits limits = new Limits(0, 0, 0.0d, 1);
+
+    TFlyAdmissionControl(TFlyServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    int getMaximumConnections() {
+        return limits.maximum_connections;
+    }
+
+    int getMaximumConnectionsPerAddress() {
+        return limits.maximum_connections_per_address;
+    }
+
+    double getRequestsPerSecondPerAddress() {
+        return limits.requests_per_second;
+    }
+
+    int getRequestBurstPerAddress() {
+        return limits.burst;
+    }
+
+    /**
+     * @param maximum the most connections the server keeps open at once, or 0 for no limit
+     */
+    synchronized void setMaximumConnections(int maximum) {
+        if (maximum < 0) {
+            throw new IllegalArgumentException("maximum must not be negative: " + maximum);
+        }
+        final Limits current = limits;
+        limits = new Limits(maximum, current.maximum_connections_per_address, current.requests_per_second, current.burst);
+    }
+
+    /**
+     * @param maximum the most connections a single address keeps open at once, or 0 for no limit
+     */
+    synchronized void setMaximumConnectionsPerAddress(int maximum) {
+        if (maximum < 0) {
+            throw new IllegalArgumentException("maximum must not be negative: " + maximum);
+        }
+        final Limits current = limits;
+        limits = new Limits(current.maximum_connections, maximum, current.requests_per_second, current.burst);
+    }
+
+    /**
+     * @param requests_per_second the steady rate of requests allowed from a single address, or 0 for no limit
+     * @param burst the most requests allowed at once after a quiet period
+     */
+    synchronized void setRequestRateLimitPerAddress(double requests_per_second, int burst) {
+        if (requests_per_second < 0.0d) {
+            throw new IllegalArgumentException("requests_per_second must not be negative: " + requests_per_second);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1: " + burst);
+        }
+        final Limits current = limits;
+        limits = new Limits(current.maximum_connections, current.maximum_connections_per_address, requests_per_second, burst);
+    }
+
+    /**
+     * Connections currently admitted.
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Admits a new connection if there's room for it.
+     *
+     * @return the admission, to be released when the connection closes, or null if it was refused
+     */
+    Admission admit(SocketAddress remote_address) {
+        final Limits limits = this.limits;
+
+        int current;
+        do {
+            current = connections.get();
+            if (limits.maximum_connections > 0 && current >= limits.maximum_connections) {
+                metrics.connectionRejected(false);
+                log.log(Level.INFO, TFlyLog.Category.ADMISSION, "Too many connections. Refused: {0}", remote_address);
+                return null;
+            }
+        } while(!connections.compareAndSet(current, current + 1));
+
+        final Address address = acquire(remote_address instanceof InetSocketAddress ? ((InetSocketAddress)remote_address).getAddress() : LOCAL, limits);
+        if (address == null) {
+            connections.decrementAndGet();
+            metrics.connectionRejected(true);
+            log.log(Level.INFO, TFlyLog.Category.ADMISSION, "Too many connections from the same address. Refused: {0}", remote_address);
+            return null;
+        }
+        return new AddressAdmission(address);
+    }
+
+    /**
+     * Counts a connection from an address unless it's at its limit.
+     */
+    private Address acquire(Object key, Limits limits) {
+        for(;;) {
+            Address address = addresses.get(key);
+            if (address == null) {
+                final Address created = new Address(key);
+                address = addresses.putIfAbsent(key, created);
+                if (address == null) {
+                    address = created;
+                }
+            }
+
+            final int current = address.connections.get();
+            if (current < 0) {
+                //Its last connection just closed. Make sure it's gone and start over.
+                addresses.remove(key, address);
+                continue;
+            }
+            if (limits.maximum_connections_per_address > 0 && current >= limits.maximum_connections_per_address) {
+                return null;
+            }
+            if (address.connections.compareAndSet(current, current + 1)) {
+                return address;
+            }
+        }
+    }
+
+    private final class AddressAdmission implements Admission {
+        private final Address address;
+        private boolean released = false;
+
+        AddressAdmission(Address address) {
+            this.address = address;
+        }
+
+        @Override
+        public boolean tryAcquireRequest() {
+            final Limits limits = TFlyAdmissionControl.this.limits;
+            if (limits.requests_per_second <= 0.0d) {
+                return true;
+            }
+
+            RateLimiter rate_limiter = address.rate_limiter;
+            final Limits rate_limits = address.rate_limits;
+            if (rate_limiter == null || rate_limits == null || rate_limits.requests_per_second != limits.requests_per_second || rate_limits.burst != limits.burst) {
+                //Racing connections from the same address may each start a new one, which only costs the loser's permits.
+                rate_limiter = new RateLimiter(limits.requests_per_second, limits.burst);
+                address.rate_limiter = rate_limiter;
+                address.rate_limits = limits;
+            }
+            return rate_limiter.tryAcquire();
+        }
+
+        /**
+         * Only ever called once, from the connection's close future.
+         */
+        @Override
+        public void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            connections.decrementAndGet();
+            //A new connection from the address may slip in before the count is marked, in which case it stays.
+            if (address.connections.decrementAndGet() == 0 && address.connections.compareAndSet(0, -1)) {
+                addresses.remove(address.key, address);
+            }
+        }
+    }
+
+    /**
+     * Stands in for the whole pipeline of a refused connection. Tells the
+     * client why, discards anything it sends, and closes the connection.
+     */
+    static final class Refusal extends ChannelInboundByteHandlerAdapter {
+        private final Framing framing;
+
+        Refusal(Framing framing) {
+            this.framing = framing;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            final ByteBuf out = ctx.nextOutboundByteBuffer();
+            if (framing == Framing.LENGTH_PREFIXED) {
+                TFlyBinaryCodec.encodeError(out, ErrorCode.ERROR_TOO_MANY_CONNECTIONS);
+            } else {
+                TFlyResponseEncoder.encodeError(out, ErrorCode.ERROR_TOO_MANY_CONNECTIONS);
+            }
+            ctx.flush().addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void inboundBufferUpdated(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+            in.clear();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.close();
+        }
+    }
+}
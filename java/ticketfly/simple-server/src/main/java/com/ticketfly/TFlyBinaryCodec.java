@@ -0,0 +1,236 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.util.CharsetUtil;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Reads and writes frames for {@link Framing#LENGTH_PREFIXED}.
+ *
+ * Every frame, in either direction, is laid out as follows (big-endian):
+ * <ol>
+ *     <li>length (4 bytes): the number of bytes that follow</li>
+ *     <li>opcode (1 byte): {@link #OPCODE_REQUEST}, {@link #OPCODE_CLOSE},
+ *         {@link #OPCODE_RESPONSE}, or {@link #OPCODE_ERROR}</li>
+ *     <li>sequence number (8 bytes): for a request, the sequence number
+ *         override or {@link #NO_SEQUENCE_NUMBER}; for a response, the
+ *         sequence number assigned to it; for an error, its {@link ErrorCode#getCode()}</li>
+ *     <li>payload (up to {@link TFlySimpleServer#DEFAULT_MAX_REQUEST_SIZE} bytes of UTF-8):
+ *         the request text, the reversed request text, or the error message</li>
+ * </ol>
+ *
+ * The frame decoder strips the length, so the frames handed to the methods
+ * here start at the opcode. Unlike {@link TFlyRequestParser}, nothing
+ * restricts what the payload contains; it's reversed character by character.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class TFlyBinaryCodec {
+    /**
+     * Sent as the first byte of a connection to switch it to {@link Framing#LENGTH_PREFIXED}.
+     * It never appears in UTF-8 text, nor at the start of a length.
+     */
+    static final byte NEGOTIATE_LENGTH_PREFIXED = (byte)0xFE;
+
+    /**
+     * Size of the length in front of every frame.
+     */
+    static final int LENGTH_FIELD_LENGTH = 4;
+
+    /**
+     * Size of the opcode and sequence number that follow the length.
+     */
+    static final int HEADER_LENGTH = 1 + 8;
+
+    static final byte OPCODE_REQUEST = 1;
+    static final byte OPCODE_CLOSE = 2;
+    static final byte OPCODE_RESPONSE = 3;
+    static final byte OPCODE_ERROR = 4;
+
+    /**
+     * The sequence number of a request that doesn't override it.
+     */
+    static final long NO_SEQUENCE_NUMBER = 0L;
+
+    /**
+     * Turns response frames back into the lines a {@link Framing#NEWLINE} server
+     * would have sent, so clients handle both framings the same way. Shared among clients.
+     */
+    static final ResponseDecoder RESPONSE_DECODER = new ResponseDecoder();
+
+    /**
+     * Every error as a complete frame. The buffers are shared and read-only.
+     */
+    private static final Map<ErrorCode, ByteBuf> ENCODED_ERRORS = new EnumMap<ErrorCode, ByteBuf>(ErrorCode.class);
+
+    static {
+        for(ErrorCode error : ErrorCode.values()) {
+            final byte[] message = error.getMessage().getBytes(CharsetUtil.UTF_8);
+            final ByteBuf frame = Unpooled.buffer(LENGTH_FIELD_LENGTH + HEADER_LENGTH + message.length);
+            frame.writeInt(HEADER_LENGTH + message.length);
+            frame.writeByte(OPCODE_ERROR);
+            frame.writeLong(error.getCode());
+            frame.writeBytes(message);
+            ENCODED_ERRORS.put(error, Unpooled.unmodifiableBuffer(frame));
+        }
+    }
+
+    private TFlyBinaryCodec() {
+    }
+
+    /**
+     * Determines if a frame asks for the connection to be closed.
+     */
+    static boolean isClose(ByteBuf frame) {
+        return frame.readable() && frame.getByte(frame.readerIndex()) == OPCODE_CLOSE;
+    }
+
+    /**
+     * Validates a request frame.
+     *
+     * @return null if the frame is a valid request, otherwise the {@link ErrorCode} describing the problem.
+     */
+    static ErrorCode validate(ByteBuf frame) {
+        if (frame.readableBytes() < HEADER_LENGTH || frame.getByte(frame.readerIndex()) != OPCODE_REQUEST) {
+            return ErrorCode.ERROR_INVALID_INPUT_FORMAT;
+        }
+        if (sequenceNumber(frame) < 0L) {
+            return ErrorCode.ERROR_INVALID_SEQUENCE_NUMBER;
+        }
+        if (frame.readableBytes() == HEADER_LENGTH) {
+            return ErrorCode.ERROR_MISSING_INPUT;
+        }
+        return null;
+    }
+
+    /**
+     * The sequence number override of a valid request, or {@link #NO_SEQUENCE_NUMBER}.
+     */
+    static long sequenceNumber(ByteBuf frame) {
+        return frame.getLong(frame.readerIndex() + 1);
+    }
+
+    /**
+     * The request text of a valid request.
+     */
+    static String payload(ByteBuf frame) {
+        return frame.toString(frame.readerIndex() + HEADER_LENGTH, frame.readableBytes() - HEADER_LENGTH, CharsetUtil.UTF_8);
+    }
+
+    /**
+     * Writes the response for a valid request: its payload reversed. Multi-byte
+     * characters are kept intact so the response is still valid UTF-8.
+     *
+     * @param out the buffer to write the response to
+     * @param frame the request frame
+     * @param sequence_number the sequence number assigned to this response
+     */
+    static void encodeResponse(ByteBuf out, ByteBuf frame, long sequence_number) {
+        final int start = frame.readerIndex() + HEADER_LENGTH;
+        final int length = frame.writerIndex() - start;
+        out.ensureWritableBytes(LENGTH_FIELD_LENGTH + HEADER_LENGTH + length);
+        out.writeInt(HEADER_LENGTH + length);
+        out.writeByte(OPCODE_RESPONSE);
+        out.writeLong(sequence_number);
+
+        int index = out.writerIndex();
+        int end = frame.writerIndex();
+        while(end > start) {
+            //Back up to the first byte of the character (continuation bytes are 10xxxxxx).
+            int begin = end - 1;
+            while(begin > start && (frame.getByte(begin) & 0xC0) == 0x80) {
+                --begin;
+            }
+            for(int i = begin; i < end; ++i) {
+                out.setByte(index++, frame.getByte(i));
+            }
+            end = begin;
+        }
+        out.writerIndex(index);
+    }
+
+    /**
+     * Writes the response a service produced for a request.
+     *
+     * @param out the buffer to write the response to
+     * @param service_response what the service produced for the request text
+     * @param sequence_number the sequence number assigned to this response
+     */
+    static void encodeServiceResponse(ByteBuf out, String service_response, long sequence_number) {
+        encode(out, OPCODE_RESPONSE, sequence_number, service_response.getBytes(CharsetUtil.UTF_8));
+    }
+
+    /**
+     * Writes the pre-encoded frame for an error.
+     *
+     * @param out the buffer to write the response to
+     * @param error the error to report
+     */
+    static void encodeError(ByteBuf out, ErrorCode error) {
+        final ByteBuf frame = ENCODED_ERRORS.get(error);
+        out.writeBytes(frame, frame.readerIndex(), frame.readableBytes());
+    }
+
+    /**
+     * Writes a request.
+     *
+     * @param out the buffer to write the request to
+     * @param payload the request text as UTF-8
+     * @param sequence_number the sequence number override, or {@link #NO_SEQUENCE_NUMBER}
+     */
+    static void encodeRequest(ByteBuf out, byte[] payload, long sequence_number) {
+        encode(out, OPCODE_REQUEST, sequence_number, payload);
+    }
+
+    /**
+     * Writes a request to close the connection.
+     */
+    static void encodeClose(ByteBuf out) {
+        out.writeInt(HEADER_LENGTH);
+        out.writeByte(OPCODE_CLOSE);
+        out.writeLong(NO_SEQUENCE_NUMBER);
+    }
+
+    private static void encode(ByteBuf out, byte opcode, long sequence_number, byte[] payload) {
+        out.ensureWritableBytes(LENGTH_FIELD_LENGTH + HEADER_LENGTH + payload.length);
+        out.writeInt(HEADER_LENGTH + payload.length);
+        out.writeByte(opcode);
+        out.writeLong(sequence_number);
+        out.writeBytes(payload);
+    }
+
+    /**
+     * Decodes a response or error frame into the payload, a space, the
+     * sequence number (or error code), and a newline. That's exactly the line
+     * {@link Framing#NEWLINE} carries for the same response.
+     */
+    @ChannelHandler.Sharable
+    static final class ResponseDecoder extends MessageToMessageDecoder<ByteBuf, String> {
+        @Override
+        public boolean isDecodable(Object msg) throws Exception {
+            return msg instanceof ByteBuf;
+        }
+
+        @Override
+        public String decode(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+            if (frame.readableBytes() < HEADER_LENGTH) {
+                throw new CorruptedFrameException("Frame is shorter than its header: " + frame.readableBytes() + " bytes");
+            }
+            final byte opcode = frame.readByte();
+            if (opcode != OPCODE_RESPONSE && opcode != OPCODE_ERROR) {
+                throw new CorruptedFrameException("Unexpected opcode: " + opcode);
+            }
+            final long sequence_number = frame.readLong();
+            final String payload = frame.toString(CharsetUtil.UTF_8);
+            frame.skipBytes(frame.readableBytes());
+            return payload + " " + sequence_number + TFlySimpleServer.PROTOCOL_NEWLINE;
+        }
+    }
+}
@@ -0,0 +1,676 @@
+package com.ticketfly;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a warm set of connections to one or more {@link TFlySimpleServer}
+ * servers and spreads requests across them.
+ *
+ * Each endpoint gets a fixed number of {@link TFlySimpleClient} connections,
+ * all serviced by a single event loop group. Each request goes to the
+ * connected connection with the fewest outstanding requests. If a connection
+ * drops (or can't be established), it's reconnected after an exponential
+ * backoff with jitter, so a restarted server isn't hit by every client at once.
+ *
+ * A request made while no connection is up waits for one, up to its timeout.
+ * Time spent waiting is reported by {@link #getConnectionWaitTime(TimeUnit)}.
+ *
+ * It provides a fluent interface like {@link TFlySimpleServer}. Options must
+ * be configured before the pool is started.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class TFlyClientPool {
+    /**
+     * By default, each endpoint gets this many connections.
+     */
+    public static final int DEFAULT_CONNECTIONS_PER_ENDPOINT = 4;
+
+    /**
+     * By default, the first reconnect attempt waits about this long.
+     */
+    public static final long DEFAULT_MINIMUM_BACKOFF_MILLIS = 50L;
+
+    /**
+     * By default, reconnect attempts never wait longer than this.
+     */
+    public static final long DEFAULT_MAXIMUM_BACKOFF_MILLIS = 5000L;
+
+    /**
+     * By default, at most this many requests may wait for a connection.
+     */
+    public static final int DEFAULT_MAXIMUM_WAITING = 10000;
+
+    private static final Logger logger = Logger.getLogger(TFlyClientPool.class.getName());
+
+    /**
+     * Runs reconnect attempts. Connecting blocks until the new channel is
+     * registered with an event loop, so it must never happen on one.
+     */
+    private static final ScheduledExecutorService RECONNECT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "tfly-pool-reconnect");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A single pooled connection.
+     */
+    private final class Connection extends TFlySimpleClient.Callback {
+        final TFlySimpleClient client;
+
+        /**
+         * Failed attempts since the connection was last up. Drives the backoff.
+         */
+        final AtomicInteger failures = new AtomicInteger(0);
+
+        /**
+         * Set while a reconnect is scheduled so only one is ever pending.
+         */
+        final AtomicBoolean reconnect_pending = new AtomicBoolean(false);
+
+        Connection(String host, int port) {
+            this.client = TFlySimpleClient.create(host, port, this)
+                .withTransport(transport)
+                .withFraming(framing)
+                .withEventLoopGroup(group)
+                .withMaximumOutstandingRequests(maximum_outstanding_requests)
+                .withRequestTimeout(request_timeout_nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void connected(TFlySimpleClient client, ChannelHandlerContext context) {
+            failures.set(0);
+            dispatchWaiting();
+        }
+
+        @Override
+        public void disconnected(TFlySimpleClient client, ChannelHandlerContext context) {
+            scheduleReconnect(this);
+        }
+    }
+
+    /**
+     * A request waiting for a connection.
+     */
+    private static final class Waiter {
+        final String message;
+        final CompletableFuture<String> future;
+        final long timeout_nanos;
+        final long started_nanos;
+
+        ScheduledFuture<?> timer;
+
+        Waiter(String message, CompletableFuture<String> future, long timeout_nanos) {
+            this.message = message;
+            this.future = future;
+            this.timeout_nanos = timeout_nanos;
+            this.started_nanos = System.nanoTime();
+        }
+    }
+
+    private final List<String> hosts = new ArrayList<String>();
+    private final List<Integer> ports = new ArrayList<Integer>();
+
+    private Transport transport = Transport.NIO;
+    private Framing framing = Framing.NEWLINE;
+    private EventLoopGroup group;
+    private boolean owns_group;
+    private int threads = 0;
+    private int connections_per_endpoint = DEFAULT_CONNECTIONS_PER_ENDPOINT;
+    private int maximum_outstanding_requests = TFlySimpleClient.DEFAULT_MAXIMUM_OUTSTANDING_REQUESTS;
+    private long request_timeout_nanos = TimeUnit.MILLISECONDS.toNanos(TFlySimpleClient.DEFAULT_REQUEST_TIMEOUT_MILLIS);
+    private long minimum_backoff_nanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MINIMUM_BACKOFF_MILLIS);
+    private long maximum_backoff_nanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAXIMUM_BACKOFF_MILLIS);
+    private int maximum_waiting = DEFAULT_MAXIMUM_WAITING;
+
+    /**
+     * Guards starting, stopping, and the requests waiting for a connection.
+     */
+    private final Object lock = new Object();
+
+    private volatile boolean running = false;
+    private volatile Connection[] connections = new Connection[0];
+    private final Queue<Waiter> waiting = new ArrayDeque<Waiter>();
+
+    /**
+     * Rotates where the search for the least loaded connection starts, so ties are spread around.
+     */
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final Random random = new Random();
+
+    private final AtomicLong reconnects = new AtomicLong(0L);
+    private final AtomicLong connection_waits = new AtomicLong(0L);
+    private final AtomicLong connection_wait_nanos = new AtomicLong(0L);
+
+    private TFlyClientPool() {
+    }
+
+    /**
+     * Creates a pool for a single endpoint. The pool isn't connected until {@link #start()} is called.
+     *
+     * @param host the host name of the server to connect to
+     * @param port the port the server is listening on
+     * @return a newly initialized instance of {@link TFlyClientPool}
+     */
+    public static TFlyClientPool create(String host, int port) {
+        return new TFlyClientPool().withEndpoint(host, port);
+    }
+
+    /**
+     * Adds another server to spread requests across.
+     */
+    public TFlyClientPool withEndpoint(String host, int port) {
+        if (host == null) {
+            throw new NullPointerException("host");
+        }
+        synchronized(lock) {
+            checkNotRunning();
+            hosts.add(host);
+            ports.add(port);
+        }
+        return this;
+    }
+
+    /**
+     * Selects the transport used to connect. Falls back to {@link Transport#NIO} if it isn't available.
+     */
+    public TFlyClientPool withTransport(Transport transport) {
+        if (transport == null) {
+            throw new NullPointerException("transport");
+        }
+        synchronized(lock) {
+            checkNotRunning();
+            this.transport = transport.isAvailable() ? transport : Transport.NIO;
+        }
+        return this;
+    }
+
+    /**
+     * See {@link TFlySimpleClient#withFraming(Framing)}.
+     */
+    public TFlyClientPool withFraming(Framing framing) {
+        if (framing == null) {
+            throw new NullPointerException("framing");
+        }
+        synchronized(lock) {
+            checkNotRunning();
+            this.framing = framing;
+        }
+        return this;
+    }
+
+    /**
+     * Services every connection with the provided group, which can be shared
+     * with other pools and clients. It must have been created by
+     * {@link Transport#newEventLoopGroup(int)} for this pool's transport and
+     * isn't shut down when the pool stops.
+     *
+     * Without one, the pool creates its own group when it starts and shuts it down when it stops.
+     */
+    public TFlyClientPool withEventLoopGroup(EventLoopGroup group) {
+        synchronized(lock) {
+            checkNotRunning();
+            this.group = group;
+        }
+        return this;
+    }
+
+    /**
+     * The number of event loops in the group the pool creates for itself, or 0 for netty's default.
+     */
+    public TFlyClientPool withThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads must not be negative: " + threads);
+        }
+        synchronized(lock) {
+            checkNotRunning();
+            this.threads = threads;
+        }
+        return this;
+    }
+
+    public TFlyClientPool withConnectionsPerEndpoint(int connections_per_endpoint) {
+        if (connections_per_endpoint <= 0) {
+            throw new IllegalArgumentException("connections_per_endpoint must be positive: " + connections_per_endpoint);
+        }
+        synchronized(lock) {
+            checkNotRunning();
+            this.connections_per_endpoint = connections_per_endpoint;
+        }
+        return this;
+    }
+
+    /**
+     * See {@link TFlySimpleClient#withMaximumOutstandingRequests(int)}.
+     */
+    public TFlyClientPool withMaximumOutstandingRequestsPerConnection(int maximum_outstanding_requests) {
+        if (maximum_outstanding_requests <= 0) {
+            throw new IllegalArgumentException("maximum_outstanding_requests must be positive: " + maximum_outstanding_requests);
+        }
+        synchronized(lock) {
+            checkNotRunning();
+            this.maximum_outstanding_requests = maximum_outstanding_requests;
+        }
+        return this;
+    }
+
+    /**
+     * How long a request may take, including any time spent waiting for a connection.
+     */
+    public TFlyClientPool withRequestTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0L) {
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        }
+        synchronized(lock) {
+            checkNotRunning();
+            this.request_timeout_nanos = unit.toNanos(timeout);
+        }
+        return this;
+    }
+
+    /**
+     * Reconnect attempts wait about the minimum at first and double with
+     * every failure, up to the maximum.
+     */
+    public TFlyClientPool withReconnectBackoff(long minimum, long maximum, TimeUnit unit) {
+        if (minimum <= 0L || maximum < minimum) {
+            throw new IllegalArgumentException("The backoff must be positive and the maximum at least the minimum");
+        }
+        synchronized(lock) {
+            checkNotRunning();
+            this.minimum_backoff_nanos = unit.toNanos(minimum);
+            this.maximum_backoff_nanos = unit.toNanos(maximum);
+        }
+        return this;
+    }
+
+    /**
+     * Caps how many requests may wait for a connection. Beyond that they fail
+     * immediately with a {@link RejectedExecutionException}.
+     */
+    public TFlyClientPool withMaximumWaiting(int maximum_waiting) {
+        if (maximum_waiting < 0) {
+            throw new IllegalArgumentException("maximum_waiting must not be negative: " + maximum_waiting);
+        }
+        synchronized(lock) {
+            checkNotRunning();
+            this.maximum_waiting = maximum_waiting;
+        }
+        return this;
+    }
+
+    private void checkNotRunning() {
+        if (running) {
+            throw new IllegalStateException("The pool cannot be changed while it's running");
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Starts connecting every connection. Returns right away. Requests made
+     * before a connection is up wait for one.
+     *
+     * @return the current {@link TFlyClientPool} instance
+     */
+    public TFlyClientPool start() {
+        final Connection[] connections;
+        synchronized(lock) {
+            if (running) {
+                return this;
+            }
+
+            owns_group = group == null;
+            if (owns_group) {
+                group = threads > 0 ? transport.newEventLoopGroup(threads) : transport.newEventLoopGroup();
+            }
+
+            connections = new Connection[hosts.size() * connections_per_endpoint];
+            for(int i = 0; i < connections.length; ++i) {
+                connections[i] = new Connection(hosts.get(i / connections_per_endpoint), ports.get(i / connections_per_endpoint));
+            }
+            this.connections = connections;
+            running = true;
+        }
+
+        //Not while holding the lock: connecting waits on the event loops, which take the lock when a connection comes up.
+        for(Connection connection : connections) {
+            connect(connection);
+        }
+        return this;
+    }
+
+    /**
+     * Disconnects every connection and fails any request waiting for one.
+     *
+     * @return the current {@link TFlyClientPool} instance
+     */
+    public TFlyClientPool stop() {
+        final List<Waiter> failed;
+        synchronized(lock) {
+            if (!running) {
+                return this;
+            }
+            running = false;
+
+            for(Connection connection : connections) {
+                connection.client.disconnect();
+            }
+            failed = new ArrayList<Waiter>(waiting);
+            waiting.clear();
+
+            if (owns_group) {
+                group.shutdown();
+                group = null;
+            }
+        }
+
+        for(Waiter waiter : failed) {
+            if (waiter.timer != null) {
+                waiter.timer.cancel(false);
+            }
+            waiter.future.completeExceptionally(new ClosedChannelException());
+        }
+        return this;
+    }
+
+    /**
+     * Sends a message to the least loaded connection and returns its response.
+     * See {@link TFlySimpleClient#request(String, long, TimeUnit)}.
+     */
+    public CompletableFuture<String> request(String message) {
+        return request(message, request_timeout_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends a message to the least loaded connection and returns its response.
+     *
+     * @param message a string that will come back from the server reversed
+     * @param timeout how long to wait for a connection and then the response, or 0 to wait forever
+     * @param unit the unit of timeout
+     * @return a future completed with the server's response
+     */
+    public CompletableFuture<String> request(String message, long timeout, TimeUnit unit) {
+        final Connection connection = leastLoaded();
+        if (connection != null) {
+            return connection.client.request(message, timeout, unit);
+        }
+
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        final Waiter waiter = new Waiter(message, future, unit.toNanos(timeout));
+        synchronized(lock) {
+            if (!running) {
+                future.completeExceptionally(new ClosedChannelException());
+                return future;
+            }
+
+            //A connection may have come up since we looked. If so, it has already dispatched the waiting requests.
+            final Connection connected = leastLoaded();
+            if (connected == null) {
+                if (waiting.size() >= maximum_waiting) {
+                    future.completeExceptionally(new RejectedExecutionException("Too many requests waiting for a connection"));
+                    return future;
+                }
+                waiting.add(waiter);
+                if (waiter.timeout_nanos > 0L) {
+                    waiter.timer = group.next().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized(lock) {
+                                if (!waiting.remove(waiter)) {
+                                    return;
+                                }
+                            }
+                            recordWait(waiter);
+                            future.completeExceptionally(new TimeoutException("No connection within " + TimeUnit.NANOSECONDS.toMillis(waiter.timeout_nanos) + " ms"));
+                        }
+                    }, waiter.timeout_nanos, TimeUnit.NANOSECONDS);
+                }
+                return future;
+            }
+        }
+        return request(message, timeout, unit);
+    }
+
+    /**
+     * Finds the connected connection with the fewest outstanding requests, or null if none is connected.
+     */
+    private Connection leastLoaded() {
+        final Connection[] connections = this.connections;
+        final int count = connections.length;
+        if (count == 0) {
+            return null;
+        }
+
+        final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % count;
+        Connection best = null;
+        int best_outstanding = Integer.MAX_VALUE;
+        for(int i = 0; i < count; ++i) {
+            final Connection connection = connections[(start + i) % count];
+            if (!connection.client.isConnected()) {
+                continue;
+            }
+            final int outstanding = connection.client.getOutstandingRequests();
+            if (outstanding < best_outstanding) {
+                best = connection;
+                best_outstanding = outstanding;
+                if (outstanding == 0) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Hands requests waiting for a connection to whichever connections are up.
+     */
+    private void dispatchWaiting() {
+        final List<Waiter> ready;
+        synchronized(lock) {
+            if (waiting.isEmpty()) {
+                return;
+            }
+            ready = new ArrayList<Waiter>(waiting);
+            waiting.clear();
+        }
+
+        for(final Waiter waiter : ready) {
+            if (waiter.timer != null) {
+                waiter.timer.cancel(false);
+            }
+            final long waited = recordWait(waiter);
+            final Connection connection = leastLoaded();
+            if (connection == null) {
+                waiter.future.completeExceptionally(new ClosedChannelException());
+                continue;
+            }
+
+            final long remaining = waiter.timeout_nanos == 0L ? 0L : Math.max(1L, waiter.timeout_nanos - waited);
+            connection.client.request(waiter.message, remaining, TimeUnit.NANOSECONDS).whenComplete(new BiConsumer<String, Throwable>() {
+                @Override
+                public void accept(String response, Throwable cause) {
+                    if (cause != null) {
+                        waiter.future.completeExceptionally(cause);
+                    } else {
+                        waiter.future.complete(response);
+                    }
+                }
+            });
+        }
+    }
+
+    private long recordWait(Waiter waiter) {
+        final long waited = System.nanoTime() - waiter.started_nanos;
+        connection_waits.incrementAndGet();
+        connection_wait_nanos.addAndGet(waited);
+        return waited;
+    }
+
+    private void connect(final Connection connection) {
+        if (!running) {
+            return;
+        }
+        try {
+            connection.client.connect().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        if (logger.isLoggable(Level.FINE)) {
+                            logger.log(Level.FINE, "Unable to connect to " + connection.client.getHost() + ":" + connection.client.getPort(), future.cause());
+                        }
+                        scheduleReconnect(connection);
+                    }
+                }
+            });
+        } catch(RuntimeException e) {
+            //Typically the group was shut down while we were stopping.
+            if (running) {
+                logger.log(Level.WARNING, "Unable to connect to " + connection.client.getHost() + ":" + connection.client.getPort(), e);
+                scheduleReconnect(connection);
+            }
+        }
+    }
+
+    private void scheduleReconnect(final Connection connection) {
+        if (!running || !connection.reconnect_pending.compareAndSet(false, true)) {
+            return;
+        }
+
+        reconnects.incrementAndGet();
+        final long delay = backoff(connection.failures.getAndIncrement());
+        try {
+            RECONNECT_SCHEDULER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connection.reconnect_pending.set(false);
+                    connect(connection);
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        } catch(RejectedExecutionException e) {
+            connection.reconnect_pending.set(false);
+        }
+    }
+
+    /**
+     * Doubles the minimum backoff with every failure, caps it at the maximum,
+     * and picks somewhere in the upper half of that at random.
+     */
+    private long backoff(int failures) {
+        long delay = minimum_backoff_nanos;
+        for(int i = 0; i < failures && delay < maximum_backoff_nanos; ++i) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, maximum_backoff_nanos);
+        synchronized(random) {
+            return delay / 2L + (long)(random.nextDouble() * (delay / 2L));
+        }
+    }
+
+    /**
+     * The number of connections in the pool, whether or not they're up.
+     */
+    public int getConnections() {
+        return connections.length;
+    }
+
+    /**
+     * The number of connections that are currently up.
+     */
+    public int getConnectedConnections() {
+        int connected = 0;
+        for(Connection connection : connections) {
+            if (connection.client.isConnected()) {
+                ++connected;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * The number of requests waiting for a response across every connection.
+     */
+    public int getOutstandingRequests() {
+        int outstanding = 0;
+        for(Connection connection : connections) {
+            outstanding += connection.client.getOutstandingRequests();
+        }
+        return outstanding;
+    }
+
+    /**
+     * The fraction of the connected connections' request capacity (see
+     * {@link #withMaximumOutstandingRequestsPerConnection(int)}) that's in use.
+     */
+    public double getUtilization() {
+        int connected = 0;
+        int outstanding = 0;
+        for(Connection connection : connections) {
+            if (connection.client.isConnected()) {
+                ++connected;
+                outstanding += connection.client.getOutstandingRequests();
+            }
+        }
+        return connected == 0 ? 0.0d : (double)outstanding / ((long)connected * maximum_outstanding_requests);
+    }
+
+    /**
+     * The number of requests currently waiting for a connection.
+     */
+    public int getWaiting() {
+        synchronized(lock) {
+            return waiting.size();
+        }
+    }
+
+    /**
+     * The number of requests that had to wait for a connection.
+     */
+    public long getConnectionWaits() {
+        return connection_waits.get();
+    }
+
+    /**
+     * The total time requests spent waiting for a connection.
+     */
+    public long getConnectionWaitTime(TimeUnit unit) {
+        return unit.convert(connection_wait_nanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The number of reconnect attempts scheduled.
+     */
+    public long getReconnects() {
+        return reconnects.get();
+    }
+}
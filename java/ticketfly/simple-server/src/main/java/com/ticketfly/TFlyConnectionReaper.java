@@ -0,0 +1,204 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Closes connections that have gone quiet or are sending a request too
+ * slowly to be worth waiting on.
+ *
+ * A connection is idle once nothing has been read from it for the idle
+ * timeout. A connection is slow once part of a request has been sitting in
+ * its frame decoder for the frame timeout, which keeps a client from holding
+ * on to a request sized buffer forever by never finishing its request.
+ *
+ * Every connection of a server shares one {@link HashedWheelTimer}, so
+ * there's a single thread and no per connection scheduling on the event
+ * loops. Each connection has one timeout on the wheel at a time. Reads
+ * don't touch the wheel; the frame decoder just notes the time of the read
+ * and whether it left part of a frame behind. When a connection's timeout
+ * comes up, it's closed if it's overdue and otherwise put back on the wheel
+ * for whichever deadline is next. Since a partial frame can turn up between
+ * checks, a connection is checked at least every half frame timeout, so a
+ * slow one is closed between one and one and a half frame timeouts after
+ * its partial frame arrived.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class TFlyConnectionReaper {
+    private static final Logger logger = Logger.getLogger(TFlyConnectionReaper.class.getName());
+
+    /**
+     * Logs from the timer without blocking it (see {@link TFlyLog}).
+     */
+    private static final TFlyLog log = TFlyLog.of(logger);
+
+    /**
+     * How precisely the wheel keeps time.
+     */
+    private static final long TICK_MILLISECONDS = 100L;
+
+    /**
+     * Slots on the wheel. Timeouts further out than a full turn simply wait for more turns.
+     */
+    private static final int TICKS_PER_WHEEL = 512;
+
+    /**
+     * Why a connection was closed.
+     */
+    enum Reason {
+          IDLE
+        , SLOW_FRAME
+    }
+
+    private final long idle_timeout_nanos;
+    private final long frame_timeout_nanos;
+    private final TFlyServerMetrics metrics;
+    private final HashedWheelTimer timer;
+
+    /**
+     * @param idle_timeout_nanos how long a connection may go without a read, or 0 for no limit
+     * @param frame_timeout_nanos how long part of a request may wait for the rest, or 0 for no limit
+     */
+    TFlyConnectionReaper(long idle_timeout_nanos, long frame_timeout_nanos, TFlyServerMetrics metrics) {
+        if (idle_timeout_nanos < 0L || frame_timeout_nanos < 0L) {
+            throw new IllegalArgumentException("Timeouts must not be negative");
+        }
+        this.idle_timeout_nanos = idle_timeout_nanos;
+        this.frame_timeout_nanos = frame_timeout_nanos;
+        this.metrics = metrics;
+        this.timer = new HashedWheelTimer(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "tfly-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, TICK_MILLISECONDS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+    }
+
+    /**
+     * Starts watching a new connection.
+     *
+     * @return the activity its frame decoder must report to (see {@link Framing#newFrameDecoder(int, Activity)})
+     */
+    Activity watch(Channel channel) {
+        final Activity activity = new Activity(channel);
+        if (idle_timeout_nanos == 0L && frame_timeout_nanos == 0L) {
+            return activity;
+        }
+        activity.schedule(System.nanoTime());
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                activity.cancel();
+            }
+        });
+        return activity;
+    }
+
+    /**
+     * Stops the timer. Connections still open are no longer watched.
+     */
+    void stop() {
+        timer.stop();
+    }
+
+    /**
+     * What a connection has been up to. Written by its event loop and read by the timer.
+     */
+    final class Activity implements TimerTask {
+        private final Channel channel;
+        private volatile long last_read_nanos = System.nanoTime();
+
+        /**
+         * When the partial frame in the decoder arrived, or 0 if there isn't one.
+         */
+        private volatile long partial_frame_nanos = 0L;
+
+        private volatile Timeout timeout;
+
+        private Activity(Channel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Called by the frame decoder after decoding what was just read.
+         *
+         * @param readable_before the bytes in the decoder before decoding, including those just read
+         * @param in the decoder's buffer after decoding
+         */
+        void read(int readable_before, ByteBuf in) {
+            final long now = System.nanoTime();
+            last_read_nanos = now;
+            if (!in.readable()) {
+                partial_frame_nanos = 0L;
+            } else if (partial_frame_nanos == 0L || in.readableBytes() < readable_before) {
+                //Either the partial frame is new or earlier frames were decoded ahead of it.
+                partial_frame_nanos = now;
+            }
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            if (!channel.isOpen()) {
+                return;
+            }
+
+            final long now = System.nanoTime();
+            final long partial_frame = partial_frame_nanos;
+            if (idle_timeout_nanos > 0L && now - last_read_nanos >= idle_timeout_nanos) {
+                reap(Reason.IDLE);
+            } else if (frame_timeout_nanos > 0L && partial_frame != 0L && now - partial_frame >= frame_timeout_nanos) {
+                reap(Reason.SLOW_FRAME);
+            } else {
+                schedule(now);
+            }
+        }
+
+        private void reap(Reason reason) {
+            log.log(Level.INFO, TFlyLog.Category.CLOSE, "Closing a connection for {0}: {1}", reason, channel);
+            metrics.connectionReaped(reason);
+            channel.close();
+        }
+
+        /**
+         * Puts the connection back on the wheel for its next deadline.
+         */
+        private void schedule(long now) {
+            long delay = Long.MAX_VALUE;
+            if (idle_timeout_nanos > 0L) {
+                delay = last_read_nanos + idle_timeout_nanos - now;
+            }
+            if (frame_timeout_nanos > 0L) {
+                final long partial_frame = partial_frame_nanos;
+                delay = Math.min(delay, partial_frame != 0L ? partial_frame + frame_timeout_nanos - now : frame_timeout_nanos / 2L);
+            }
+            try {
+                timeout = timer.newTimeout(this, Math.max(0L, delay), TimeUnit.NANOSECONDS);
+            } catch(IllegalStateException e) {
+                //The timer was stopped along with the server.
+            }
+            if (!channel.isOpen()) {
+                cancel();
+            }
+        }
+
+        private void cancel() {
+            final Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * Picks the {@link Framing} of a connection from its first byte and then
+ * gets out of the way.
+ *
+ * If the first byte is {@link TFlyBinaryCodec#NEGOTIATE_LENGTH_PREFIXED}, it's
+ * consumed and the connection uses {@link Framing#LENGTH_PREFIXED}. Otherwise
+ * the connection keeps the port's default framing and the byte is left for
+ * the frame decoder. Either way, the frame decoder for the chosen framing
+ * takes this handler's place in the pipeline along with anything already
+ * read, so every later byte goes straight to it.
+ *
+ * The request handler is created with the port's default framing when the
+ * channel is initialized. It's only replaced if the client asks for something else.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+abstract class TFlyFramingNegotiator extends ByteToMessageDecoder<Object> {
+    /**
+     * Name of the frame decoder in the pipeline.
+     */
+    static final String FRAMER = "framer";
+
+    /**
+     * Name of the request handler in the pipeline.
+     */
+    static final String HANDLER = "handler";
+
+    private final Framing default_framing;
+    private final int maximum_request_size;
+    private final TFlyConnectionReaper.Activity activity;
+    private boolean negotiated = false;
+
+    /**
+     * @param activity where the frame decoder reports reads, or null for nowhere
+     */
+    TFlyFramingNegotiator(Framing default_framing, int maximum_request_size, TFlyConnectionReaper.Activity activity) {
+        this.default_framing = default_framing;
+        this.maximum_request_size = maximum_request_size;
+        this.activity = activity;
+    }
+
+    /**
+     * Creates the request handler for a connection using the given framing.
+     */
+    protected abstract ChannelHandler newHandler(Framing framing);
+
+    @Override
+    public Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        if (negotiated || !in.readable()) {
+            return null;
+        }
+        negotiated = true;
+
+        Framing framing = default_framing;
+        if (in.getByte(in.readerIndex()) == TFlyBinaryCodec.NEGOTIATE_LENGTH_PREFIXED) {
+            in.skipBytes(1);
+            framing = Framing.LENGTH_PREFIXED;
+        }
+
+        if (framing != default_framing) {
+            ctx.pipeline().replace(HANDLER, HANDLER, newHandler(framing));
+        }
+        replace(FRAMER, framing.newFrameDecoder(maximum_request_size, activity));
+        return null;
+    }
+}
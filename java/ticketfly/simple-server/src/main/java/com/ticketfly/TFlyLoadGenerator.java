@@ -0,0 +1,548 @@
+package com.ticketfly;
+
+import io.netty.channel.ChannelFuture;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives a server at a fixed request rate and measures the latency it delivers.
+ *
+ * Requests are sent open loop: request <code>i</code> is scheduled for
+ * <code>start + i / rate</code> no matter how long earlier requests take,
+ * and requests are spread round robin over several {@link TFlySimpleClient}
+ * connections. A closed loop (send, wait, send again) slows down whenever
+ * the server does and so never measures the requests that would have
+ * arrived during a stall. That's coordinated omission.
+ *
+ * To correct for it, latency is measured from when a request was scheduled
+ * rather than when it was actually sent. If the sender falls behind, the
+ * time it spent catching up counts against the server. Latency measured
+ * from the actual send is kept too for comparison; a large gap between the
+ * two means the generator itself (or the connection) was the bottleneck.
+ * Only successful responses are recorded. Rejections and timeouts are counted as errors.
+ *
+ * {@link #sweep(double, double, double)} runs one rate after another until
+ * the server can no longer keep up, which finds its saturation point.
+ *
+ * Run from the command line with {@link #main(String[])}, configured through
+ * <code>tfly.load.*</code> system properties:
+ * <pre>
+ *     java -Dtfly.load.rate=20000 -cp target/TflyServer.jar com.ticketfly.TFlyLoadGenerator
+ *     java -Dtfly.load.rate=10000 -Dtfly.load.sweep.maximum.rate=200000 -cp target/TflyServer.jar com.ticketfly.TFlyLoadGenerator
+ * </pre>
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class TFlyLoadGenerator {
+    public static final int DEFAULT_CONNECTIONS = 4;
+    public static final int DEFAULT_PAYLOAD_SIZE = 16;
+    public static final long DEFAULT_WARMUP_SECONDS = 2L;
+    public static final long DEFAULT_DURATION_SECONDS = 10L;
+
+    /**
+     * A run keeps up if it achieves at least this fraction of its target rate...
+     */
+    public static final double DEFAULT_SATURATION_THRESHOLD = 0.95d;
+
+    /**
+     * ...and no more than this fraction of its requests fail.
+     */
+    public static final double DEFAULT_MAXIMUM_ERROR_RATE = 0.001d;
+
+    public static final String PROPERTY_HOST = "tfly.load.host";
+    public static final String PROPERTY_PORT = "tfly.load.port";
+    public static final String PROPERTY_RATE = "tfly.load.rate";
+    public static final String PROPERTY_CONNECTIONS = "tfly.load.connections";
+    public static final String PROPERTY_PAYLOAD_SIZE = "tfly.load.payload.size";
+    public static final String PROPERTY_FRAMING = "tfly.load.framing";
+    public static final String PROPERTY_WARMUP_SECONDS = "tfly.load.warmup.seconds";
+    public static final String PROPERTY_DURATION_SECONDS = "tfly.load.duration.seconds";
+    public static final String PROPERTY_SWEEP_MAXIMUM_RATE = "tfly.load.sweep.maximum.rate";
+    public static final String PROPERTY_SWEEP_STEP = "tfly.load.sweep.step";
+
+    private static final Logger logger = Logger.getLogger(TFlyLoadGenerator.class.getName());
+
+    /**
+     * Latencies are recorded in nanoseconds with this many significant digits.
+     */
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private static final double NANOS_PER_MILLI = 1000.0d * 1000.0d;
+
+    /**
+     * How long to wait for a connection to come up.
+     */
+    private static final long CONNECT_TIMEOUT_MILLIS = 10L * 1000L;
+
+    private final String host;
+    private final int port;
+
+    private volatile int connections = DEFAULT_CONNECTIONS;
+    private volatile int payload_size = DEFAULT_PAYLOAD_SIZE;
+    private volatile Framing framing = Framing.NEWLINE;
+    private volatile Transport transport = Transport.NIO;
+    private volatile int maximum_outstanding_requests = TFlySimpleClient.DEFAULT_MAXIMUM_OUTSTANDING_REQUESTS;
+    private volatile long request_timeout_nanos = TimeUnit.MILLISECONDS.toNanos(TFlySimpleClient.DEFAULT_REQUEST_TIMEOUT_MILLIS);
+    private volatile long warmup_nanos = TimeUnit.SECONDS.toNanos(DEFAULT_WARMUP_SECONDS);
+    private volatile long duration_nanos = TimeUnit.SECONDS.toNanos(DEFAULT_DURATION_SECONDS);
+    private volatile double saturation_threshold = DEFAULT_SATURATION_THRESHOLD;
+    private volatile double maximum_error_rate = DEFAULT_MAXIMUM_ERROR_RATE;
+
+    private TFlyLoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Creates a load generator for the server at the given host and port.
+     */
+    public static TFlyLoadGenerator create(String host, int port) {
+        return new TFlyLoadGenerator(host, port);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets how many connections requests are spread across.
+     */
+    public TFlyLoadGenerator withConnections(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("There must be at least one connection");
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Sets the length of every request.
+     */
+    public TFlyLoadGenerator withPayloadSize(int payload_size) {
+        if (payload_size < 1 || payload_size > TFlySimpleServer.DEFAULT_MAX_REQUEST_SIZE) {
+            throw new IllegalArgumentException("Payloads must be between 1 and " + TFlySimpleServer.DEFAULT_MAX_REQUEST_SIZE + " characters");
+        }
+        this.payload_size = payload_size;
+        return this;
+    }
+
+    public int getPayloadSize() {
+        return payload_size;
+    }
+
+    public TFlyLoadGenerator withFraming(Framing framing) {
+        this.framing = framing;
+        return this;
+    }
+
+    public Framing getFraming() {
+        return framing;
+    }
+
+    public TFlyLoadGenerator withTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the most requests each connection may have waiting for a response
+     * (see {@link TFlySimpleClient#withMaximumOutstandingRequests(int)}).
+     * Requests beyond it are rejected and counted as errors.
+     */
+    public TFlyLoadGenerator withMaximumOutstandingRequestsPerConnection(int maximum_outstanding_requests) {
+        if (maximum_outstanding_requests < 1) {
+            throw new IllegalArgumentException("The maximum outstanding requests must be at least 1");
+        }
+        this.maximum_outstanding_requests = maximum_outstanding_requests;
+        return this;
+    }
+
+    public int getMaximumOutstandingRequestsPerConnection() {
+        return maximum_outstanding_requests;
+    }
+
+    /**
+     * Sets how long a request waits for its response before it's counted as an error.
+     */
+    public TFlyLoadGenerator withRequestTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0L) {
+            throw new IllegalArgumentException("The request timeout must be greater than 0");
+        }
+        this.request_timeout_nanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    public long getRequestTimeout(TimeUnit unit) {
+        return unit.convert(request_timeout_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how long each run sends requests before it starts measuring.
+     */
+    public TFlyLoadGenerator withWarmup(long warmup, TimeUnit unit) {
+        if (warmup < 0L) {
+            throw new IllegalArgumentException("The warmup must not be negative");
+        }
+        this.warmup_nanos = unit.toNanos(warmup);
+        return this;
+    }
+
+    public long getWarmup(TimeUnit unit) {
+        return unit.convert(warmup_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how long each run measures after its warmup.
+     */
+    public TFlyLoadGenerator withDuration(long duration, TimeUnit unit) {
+        if (duration <= 0L) {
+            throw new IllegalArgumentException("The duration must be greater than 0");
+        }
+        this.duration_nanos = unit.toNanos(duration);
+        return this;
+    }
+
+    public long getDuration(TimeUnit unit) {
+        return unit.convert(duration_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets when a run is considered to have saturated the server.
+     *
+     * @param saturation_threshold the fraction of the target rate a run must achieve
+     * @param maximum_error_rate the largest fraction of requests that may fail
+     */
+    public TFlyLoadGenerator withSaturationCriteria(double saturation_threshold, double maximum_error_rate) {
+        if (saturation_threshold <= 0.0d || saturation_threshold > 1.0d) {
+            throw new IllegalArgumentException("The saturation threshold must be greater than 0 and at most 1");
+        }
+        if (maximum_error_rate < 0.0d || maximum_error_rate > 1.0d) {
+            throw new IllegalArgumentException("The maximum error rate must be between 0 and 1");
+        }
+        this.saturation_threshold = saturation_threshold;
+        this.maximum_error_rate = maximum_error_rate;
+        return this;
+    }
+
+    public double getSaturationThreshold() {
+        return saturation_threshold;
+    }
+
+    public double getMaximumErrorRate() {
+        return maximum_error_rate;
+    }
+
+    /**
+     * Sends requests at the given rate for the warmup and then the duration,
+     * waits for the last responses, and reports what was measured after the warmup.
+     *
+     * @param rate the target rate in requests per second
+     */
+    public Result run(double rate) throws InterruptedException {
+        if (rate <= 0.0d) {
+            throw new IllegalArgumentException("The rate must be greater than 0");
+        }
+
+        final List<TFlySimpleClient> clients = connect();
+        try {
+            return run(clients, rate);
+        } finally {
+            for(TFlySimpleClient client : clients) {
+                client.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Runs each rate from <code>start</code> to <code>maximum</code> in increments
+     * of <code>step</code>, stopping after the first one that saturates the server.
+     *
+     * @return the results of every run, in order
+     * @see #saturationPoint(List)
+     */
+    public List<Result> sweep(double start, double step, double maximum) throws InterruptedException {
+        if (start <= 0.0d || step <= 0.0d || maximum < start) {
+            throw new IllegalArgumentException("The sweep must start above 0 and step up to a maximum no less than its start");
+        }
+
+        final List<Result> results = new ArrayList<Result>();
+        for(double rate = start; rate <= maximum; rate += step) {
+            final Result result = run(rate);
+            logger.log(Level.INFO, result.summary());
+            results.add(result);
+            if (result.isSaturated()) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The highest rate a sweep kept up with, or 0 if it never did.
+     */
+    public static double saturationPoint(List<Result> results) {
+        double rate = 0.0d;
+        for(Result result : results) {
+            if (!result.isSaturated()) {
+                rate = Math.max(rate, result.getTargetRate());
+            }
+        }
+        return rate;
+    }
+
+    private List<TFlySimpleClient> connect() {
+        final List<TFlySimpleClient> clients = new ArrayList<TFlySimpleClient>(connections);
+        try {
+            for(int i = 0; i < connections; ++i) {
+                final TFlySimpleClient client = TFlySimpleClient.create(host, port, new TFlySimpleClient.Callback())
+                    .withFraming(framing)
+                    .withTransport(transport)
+                    .withMaximumOutstandingRequests(maximum_outstanding_requests)
+                    .withRequestTimeout(request_timeout_nanos, TimeUnit.NANOSECONDS)
+                ;
+                clients.add(client);
+                final ChannelFuture connected = client.connect();
+                if (!connected.awaitUninterruptibly(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) || !connected.isSuccess()) {
+                    throw new IllegalStateException("Unable to connect to " + host + ":" + port);
+                }
+            }
+        } catch(RuntimeException e) {
+            for(TFlySimpleClient client : clients) {
+                client.disconnect();
+            }
+            throw e;
+        }
+        return clients;
+    }
+
+    private Result run(List<TFlySimpleClient> clients, double rate) throws InterruptedException {
+        final char[] chars = new char[payload_size];
+        Arrays.fill(chars, 'x');
+        final String payload = new String(chars);
+
+        final Recorder corrected = new Recorder(SIGNIFICANT_DIGITS);
+        final Recorder uncorrected = new Recorder(SIGNIFICANT_DIGITS);
+        final AtomicLong completed = new AtomicLong(0L);
+        final AtomicLong errors = new AtomicLong(0L);
+        final AtomicLong last_response = new AtomicLong(0L);
+
+        final double interval_nanos = TimeUnit.SECONDS.toNanos(1L) / rate;
+        final long start = System.nanoTime();
+        final long measure_start = start + warmup_nanos;
+        final long end = measure_start + duration_nanos;
+
+        long sent = 0L;
+        for(long i = 0L; ; ++i) {
+            final long scheduled = start + (long)(i * interval_nanos);
+            if (scheduled - end >= 0L) {
+                break;
+            }
+
+            //Never skip a request when behind; send it right away and let its latency show it.
+            long now;
+            while((now = System.nanoTime()) - scheduled < 0L) {
+                LockSupport.parkNanos(scheduled - now);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            final boolean measured = scheduled - measure_start >= 0L;
+            final long sent_at = now;
+            clients.get((int)(i % clients.size())).request(payload).whenComplete(new BiConsumer<String, Throwable>() {
+                @Override
+                public void accept(String response, Throwable cause) {
+                    if (!measured) {
+                        return;
+                    }
+                    if (cause != null) {
+                        errors.incrementAndGet();
+                        return;
+                    }
+                    final long received = System.nanoTime();
+                    corrected.recordValue(received - scheduled);
+                    uncorrected.recordValue(received - sent_at);
+                    completed.incrementAndGet();
+                    advance(last_response, received);
+                }
+            });
+            if (measured) {
+                ++sent;
+            }
+        }
+
+        //Every request either gets its response or times out.
+        final long deadline = System.nanoTime() + request_timeout_nanos + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MILLIS);
+        while(completed.get() + errors.get() < sent && System.nanoTime() - deadline < 0L) {
+            Thread.sleep(10L);
+        }
+
+        final long finished = Math.max(end, last_response.get());
+        final double achieved_rate = completed.get() / ((finished - measure_start) / (double)TimeUnit.SECONDS.toNanos(1L));
+        return new Result(rate, achieved_rate, sent, completed.get(), errors.get(),
+            corrected.getIntervalHistogram(), uncorrected.getIntervalHistogram(), saturation_threshold, maximum_error_rate);
+    }
+
+    private static void advance(AtomicLong latest, long value) {
+        long current;
+        while((current = latest.get()) == 0L || value - current > 0L) {
+            if (latest.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * What a single run at one target rate measured.
+     */
+    public static final class Result {
+        private final double target_rate;
+        private final double achieved_rate;
+        private final long sent;
+        private final long completed;
+        private final long errors;
+        private final Histogram corrected;
+        private final Histogram uncorrected;
+        private final boolean saturated;
+
+        Result(double target_rate, double achieved_rate, long sent, long completed, long errors, Histogram corrected, Histogram uncorrected, double saturation_threshold, double maximum_error_rate) {
+            this.target_rate = target_rate;
+            this.achieved_rate = achieved_rate;
+            this.sent = sent;
+            this.completed = completed;
+            this.errors = errors;
+            this.corrected = corrected;
+            this.uncorrected = uncorrected;
+            this.saturated = achieved_rate < target_rate * saturation_threshold || errors > sent * maximum_error_rate;
+        }
+
+        /**
+         * The rate requests were scheduled at, in requests per second.
+         */
+        public double getTargetRate() {
+            return target_rate;
+        }
+
+        /**
+         * The rate responses actually arrived at, in requests per second.
+         */
+        public double getAchievedRate() {
+            return achieved_rate;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Latency in nanoseconds from when each request was scheduled to be sent.
+         */
+        public Histogram getLatency() {
+            return corrected;
+        }
+
+        /**
+         * Latency in nanoseconds from when each request was actually sent.
+         * This understates latency whenever the sender fell behind.
+         */
+        public Histogram getUncorrectedLatency() {
+            return uncorrected;
+        }
+
+        /**
+         * Determines if the server failed to keep up with the target rate.
+         */
+        public boolean isSaturated() {
+            return saturated;
+        }
+
+        /**
+         * Prints a one line summary followed by the full latency distribution in milliseconds.
+         */
+        public void print(PrintStream out) {
+            out.println(summary());
+            out.println("Uncorrected: " + percentiles(uncorrected));
+            out.println("Latency distribution (ms), corrected for coordinated omission:");
+            corrected.outputPercentileDistribution(out, NANOS_PER_MILLI);
+        }
+
+        /**
+         * The target and achieved rate, errors, and the usual percentiles in milliseconds.
+         */
+        public String summary() {
+            return String.format("target %.0f req/s, achieved %.0f req/s, %d sent, %d errors%s: %s",
+                target_rate, achieved_rate, sent, errors, saturated ? " (saturated)" : "", percentiles(corrected));
+        }
+
+        private static String percentiles(Histogram histogram) {
+            return String.format("p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, p99.99 %.3f ms, max %.3f ms",
+                histogram.getValueAtPercentile(50.0d) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(90.0d) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(99.0d) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(99.9d) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(99.99d) / NANOS_PER_MILLI,
+                histogram.getMaxValue() / NANOS_PER_MILLI
+            );
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final TFlyLoadGenerator generator = TFlyLoadGenerator.create(
+                System.getProperty(PROPERTY_HOST, "localhost"),
+                Integer.getInteger(PROPERTY_PORT, TFlySimpleServer.DEFAULT_SERVER_PORT)
+            )
+            .withConnections(Integer.getInteger(PROPERTY_CONNECTIONS, DEFAULT_CONNECTIONS))
+            .withPayloadSize(Integer.getInteger(PROPERTY_PAYLOAD_SIZE, DEFAULT_PAYLOAD_SIZE))
+            .withFraming(Framing.valueOf(System.getProperty(PROPERTY_FRAMING, Framing.NEWLINE.name()).trim().toUpperCase()))
+            .withWarmup(Long.getLong(PROPERTY_WARMUP_SECONDS, DEFAULT_WARMUP_SECONDS), TimeUnit.SECONDS)
+            .withDuration(Long.getLong(PROPERTY_DURATION_SECONDS, DEFAULT_DURATION_SECONDS), TimeUnit.SECONDS)
+        ;
+
+        final double rate = Double.parseDouble(System.getProperty(PROPERTY_RATE, "1000"));
+        final double sweep_maximum_rate = Double.parseDouble(System.getProperty(PROPERTY_SWEEP_MAXIMUM_RATE, "0"));
+
+        if (sweep_maximum_rate > 0.0d) {
+            final double step = Double.parseDouble(System.getProperty(PROPERTY_SWEEP_STEP, Double.toString(rate)));
+            final List<Result> results = generator.sweep(rate, step, sweep_maximum_rate);
+            for(Result result : results) {
+                System.out.println(result.summary());
+            }
+            System.out.println(String.format("Saturation point: %.0f req/s", saturationPoint(results)));
+        } else {
+            generator.run(rate).print(System.out);
+        }
+
+        System.exit(0);
+    }
+}
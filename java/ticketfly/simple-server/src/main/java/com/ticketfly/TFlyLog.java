@@ -0,0 +1,373 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logs from the event loops without letting a misbehaving client turn
+ * logging into the bottleneck.
+ *
+ * Every message belongs to a {@link Category}. A message is dropped before
+ * any work is done unless its logger is enabled for its level, it's picked
+ * by the category's sampling, and the category's {@link RateLimiter} has a
+ * permit. Dropped messages are counted. Once a second, each category that
+ * dropped something logs a single summary of how many it dropped.
+ *
+ * Messages that make it through are queued on a lock-free ring buffer and
+ * published through {@link java.util.logging} by a single background
+ * thread, so the event loops never wait on a handler's I/O. Messages use
+ * {@link java.text.MessageFormat} patterns (<code>{0}</code>, <code>{1}</code>)
+ * and the parameters are only formatted by that thread. {@link ByteBuf}
+ * parameters are decoded up front since the buffer won't outlive the call.
+ * If the ring buffer is full, the message is dropped and counted like any other.
+ * The thread sleeps until there's something to publish or summarize, and is
+ * woken by whoever queues a message or drops the first one since a summary.
+ *
+ * Messages still queued when the process exits may be lost.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class TFlyLog {
+    /**
+     * Groups of messages that are rate limited together.
+     */
+    enum Category {
+          CONNECTION        (100.0d, 100, 1)
+        , CLOSE             (100.0d, 100, 1)
+        , INVALID_INPUT     ( 10.0d,  10, 1)
+        , SEQUENCE_NUMBER   ( 10.0d,  10, 1)
+        , SERVICE           ( 10.0d,  10, 1)
+        , BACKPRESSURE      ( 10.0d,  10, 1)
+        , ADMISSION         ( 10.0d,  10, 1)
+        , UNEXPECTED        ( 10.0d,  10, 1)
+        ;
+
+        private volatile Limits limits;
+        private final AtomicLong suppressed = new AtomicLong(0L);
+
+        private Category(double permits_per_second, int burst, int sample_every) {
+            configure(permits_per_second, burst, sample_every);
+        }
+
+        /**
+         * Changes how many of this category's messages get through.
+         *
+         * @param permits_per_second the most messages logged per second
+         * @param burst the most messages logged at once after a quiet period
+         * @param sample_every only one in this many messages is considered at all (1 for every message)
+         */
+        void configure(double permits_per_second, int burst, int sample_every) {
+            if (sample_every < 1) {
+                throw new IllegalArgumentException("sample_every must be at least 1: " + sample_every);
+            }
+            this.limits = new Limits(new RateLimiter(permits_per_second, burst), sample_every);
+        }
+
+        private boolean admit() {
+            final Limits limits = this.limits;
+            if (limits.sample_every > 1 && limits.sampled.getAndIncrement() % limits.sample_every != 0L) {
+                return false;
+            }
+            return limits.rate_limiter.tryAcquire();
+        }
+
+        /**
+         * Messages dropped since the last summary.
+         */
+        long getSuppressed() {
+            return suppressed.get();
+        }
+    }
+
+    private static final class Limits {
+        final RateLimiter rate_limiter;
+        final int sample_every;
+        final AtomicLong sampled = new AtomicLong(0L);
+
+        Limits(RateLimiter rate_limiter, int sample_every) {
+            this.rate_limiter = rate_limiter;
+            this.sample_every = sample_every;
+        }
+    }
+
+    /**
+     * A message waiting to be published.
+     */
+    private static final class Entry {
+        final Logger logger;
+        final Level level;
+        final String message;
+        final Object[] parameters;
+        final Throwable thrown;
+        final Instant instant = Instant.now();
+
+        Entry(Logger logger, Level level, String message, Object[] parameters, Throwable thrown) {
+            this.logger = logger;
+            this.level = level;
+            this.message = message;
+            this.parameters = parameters;
+            this.thrown = thrown;
+        }
+    }
+
+    /**
+     * A bounded multiple-producer, single-consumer queue.
+     *
+     * Producers claim a slot by moving the tail forward with a compare-and-set
+     * and then fill it. The consumer takes filled slots in order from the head
+     * and empties them. A claimed slot that hasn't been filled yet looks empty
+     * to the consumer, which simply tries again later.
+     */
+    static final class RingBuffer<T> {
+        private final AtomicReferenceArray<T> slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong(0L);
+        private final AtomicLong tail = new AtomicLong(0L);
+
+        /**
+         * @param capacity a power of two
+         */
+        RingBuffer(int capacity) {
+            if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+            }
+            this.slots = new AtomicReferenceArray<T>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        /**
+         * Adds an element unless the buffer is full. Safe to call from any thread.
+         */
+        boolean offer(T element) {
+            long claimed;
+            do {
+                claimed = tail.get();
+                if (claimed - head.get() >= slots.length()) {
+                    return false;
+                }
+            } while(!tail.compareAndSet(claimed, claimed + 1L));
+            slots.lazySet((int)claimed & mask, element);
+            return true;
+        }
+
+        /**
+         * Removes the oldest element, or returns null if there's nothing ready.
+         * Must only be called from one thread.
+         */
+        T poll() {
+            final long current = head.get();
+            final int index = (int)current & mask;
+            final T element = slots.get(index);
+            if (element == null) {
+                return null;
+            }
+            slots.lazySet(index, null);
+            head.lazySet(current + 1L);
+            return element;
+        }
+
+        /**
+         * Indicates if no slot has been claimed since the last element was
+         * removed. Must only be called from the consuming thread.
+         */
+        boolean isEmpty() {
+            return tail.get() == head.get();
+        }
+    }
+
+    /**
+     * The most messages that may be waiting to be published.
+     */
+    private static final int CAPACITY = 8192;
+
+    /**
+     * How often suppressed messages are summarized.
+     */
+    private static final long SUMMARY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+    /**
+     * How long the publishing thread waits for a claimed slot to be filled.
+     */
+    private static final long FILL_NANOS = TimeUnit.MICROSECONDS.toNanos(50L);
+
+    private static final Logger logger = Logger.getLogger(TFlyLog.class.getName());
+
+    private static final RingBuffer<Entry> QUEUE = new RingBuffer<Entry>(CAPACITY);
+
+    /**
+     * Reports records that a handler failed to publish.
+     */
+    private static final ErrorManager ERRORS = new ErrorManager();
+
+    private static final Thread PUBLISHER = new Thread(new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    }, "tfly-log");
+
+    /**
+     * Set while the publishing thread is (about to be) asleep.
+     */
+    private static volatile boolean parked = false;
+
+    static {
+        PUBLISHER.setDaemon(true);
+        PUBLISHER.start();
+    }
+
+    private final Logger target;
+
+    private TFlyLog(Logger target) {
+        this.target = target;
+    }
+
+    /**
+     * Logs asynchronously to the given logger.
+     */
+    static TFlyLog of(Logger target) {
+        return new TFlyLog(target);
+    }
+
+    void log(Level level, Category category, String message) {
+        if (target.isLoggable(level)) {
+            enqueue(level, category, message, null, null);
+        }
+    }
+
+    void log(Level level, Category category, String message, Object parameter) {
+        if (target.isLoggable(level)) {
+            enqueue(level, category, message, new Object[] { parameter }, null);
+        }
+    }
+
+    void log(Level level, Category category, String message, Object parameter_1, Object parameter_2) {
+        if (target.isLoggable(level)) {
+            enqueue(level, category, message, new Object[] { parameter_1, parameter_2 }, null);
+        }
+    }
+
+    void log(Level level, Category category, String message, Throwable thrown) {
+        if (target.isLoggable(level)) {
+            enqueue(level, category, message, null, thrown);
+        }
+    }
+
+    private void enqueue(Level level, Category category, String message, Object[] parameters, Throwable thrown) {
+        if (!category.admit()) {
+            suppress(category);
+            return;
+        }
+        if (parameters != null) {
+            for(int i = 0; i < parameters.length; ++i) {
+                if (parameters[i] instanceof ByteBuf) {
+                    parameters[i] = ((ByteBuf)parameters[i]).toString(CharsetUtil.UTF_8);
+                }
+            }
+        }
+        if (!QUEUE.offer(new Entry(target, level, message, parameters, thrown))) {
+            suppress(category);
+            return;
+        }
+        wake();
+    }
+
+    private static void suppress(Category category) {
+        //Only the first drop since a summary needs the publishing thread to notice.
+        if (category.suppressed.incrementAndGet() == 1L) {
+            wake();
+        }
+    }
+
+    private static void wake() {
+        if (parked) {
+            parked = false;
+            LockSupport.unpark(PUBLISHER);
+        }
+    }
+
+    /**
+     * Runs on the publishing thread for the life of the process.
+     */
+    private static void publish() {
+        long next_summary = System.nanoTime() + SUMMARY_INTERVAL_NANOS;
+        for(;;) {
+            try {
+                final Entry entry = QUEUE.poll();
+                if (entry != null) {
+                    final LogRecord record = new LogRecord(entry.level, entry.message);
+                    record.setLoggerName(entry.logger.getName());
+                    //Otherwise the record would name this thread's caller as its source.
+                    record.setSourceClassName(entry.logger.getName());
+                    record.setSourceMethodName(null);
+                    record.setParameters(entry.parameters);
+                    record.setThrown(entry.thrown);
+                    record.setInstant(entry.instant);
+                    entry.logger.log(record);
+                }
+
+                final long now = System.nanoTime();
+                if (now - next_summary >= 0L) {
+                    summarize();
+                    next_summary = now + SUMMARY_INTERVAL_NANOS;
+                }
+
+                if (entry == null) {
+                    idle(next_summary - now);
+                }
+            } catch(Throwable t) {
+                //Never let a broken handler stop the publishing thread.
+                ERRORS.error("Unable to publish a log record", t instanceof Exception ? (Exception)t : new RuntimeException(t), ErrorManager.GENERIC_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Sleeps until a message is queued, or until the next summary if there's
+     * anything to summarize. Producers check {@link #parked} after queueing,
+     * so one of the two always sees the other.
+     */
+    private static void idle(long until_summary_nanos) {
+        parked = true;
+        try {
+            if (!QUEUE.isEmpty()) {
+                //A producer claimed a slot but hasn't filled it yet.
+                LockSupport.parkNanos(FILL_NANOS);
+            } else if (hasSuppressed()) {
+                LockSupport.parkNanos(Math.max(until_summary_nanos, 1L));
+            } else {
+                LockSupport.park();
+            }
+        } finally {
+            parked = false;
+        }
+    }
+
+    private static boolean hasSuppressed() {
+        for(Category category : Category.values()) {
+            if (category.suppressed.get() > 0L) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void summarize() {
+        for(Category category : Category.values()) {
+            final long suppressed = category.suppressed.getAndSet(0L);
+            if (suppressed > 0L) {
+                logger.log(Level.WARNING, "Suppressed {0} {1} messages", new Object[] { suppressed, category });
+            }
+        }
+    }
+}
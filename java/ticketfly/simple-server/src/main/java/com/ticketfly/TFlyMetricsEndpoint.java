@@ -0,0 +1,150 @@
+package com.ticketfly;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.netty.util.CharsetUtil;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves a server's {@link TFlyServerMetrics} in the Prometheus text format
+ * at <code>/metrics</code>, using the HTTP server built into the JDK.
+ *
+ * It only listens on the loopback interface and handles one scrape at a
+ * time on its own thread, well away from the event loops.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class TFlyMetricsEndpoint {
+    static final String PATH = "/metrics";
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Upper bounds (in seconds) of the request-to-flush histogram buckets.
+     */
+    private static final double[] LATENCY_BUCKETS = new double[] {
+        0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0
+    };
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1L);
+
+    private final HttpServer http_server;
+
+    private TFlyMetricsEndpoint(HttpServer http_server) {
+        this.http_server = http_server;
+    }
+
+    /**
+     * Starts serving metrics on the given port of the loopback interface.
+     *
+     * @param admin_port the port to listen on
+     * @param metrics the metrics to serve
+     * @param server_port labels every metric, to tell servers in the same process apart
+     */
+    static TFlyMetricsEndpoint start(int admin_port, final TFlyServerMetrics metrics, final int server_port) throws IOException {
+        final HttpServer http_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), admin_port), 0);
+        http_server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!"GET".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1L);
+                        return;
+                    }
+                    final byte[] body = format(metrics, server_port).getBytes(CharsetUtil.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+                    final OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        http_server.start();
+        return new TFlyMetricsEndpoint(http_server);
+    }
+
+    /**
+     * The port the endpoint is listening on.
+     */
+    int getPort() {
+        return http_server.getAddress().getPort();
+    }
+
+    void stop() {
+        http_server.stop(0);
+    }
+
+    /**
+     * Renders the metrics in the Prometheus text exposition format.
+     */
+    static String format(TFlyServerMetrics metrics, int server_port) {
+        final String port = "port=\"" + server_port + "\"";
+        final StringBuilder out = new StringBuilder(4096);
+
+        metric(out, "tfly_connections", "gauge", "Connections currently open.");
+        sample(out, "tfly_connections", port, metrics.getConnections());
+        metric(out, "tfly_connections_opened_total", "counter", "Connections accepted.");
+        sample(out, "tfly_connections_opened_total", port, metrics.getConnectionsOpened());
+        metric(out, "tfly_connections_rejected_total", "counter", "Connections refused, by the limit they went over.");
+        sample(out, "tfly_connections_rejected_total", port + ",limit=\"server\"", metrics.getConnectionsRejectedForServer());
+        sample(out, "tfly_connections_rejected_total", port + ",limit=\"address\"", metrics.getConnectionsRejectedForAddress());
+        metric(out, "tfly_connections_reaped_total", "counter", "Connections closed for being idle or too slow to finish a request, by reason.");
+        for(TFlyConnectionReaper.Reason reason : TFlyConnectionReaper.Reason.values()) {
+            sample(out, "tfly_connections_reaped_total", port + ",reason=\"" + reason.name().toLowerCase() + "\"", metrics.getConnectionsReaped(reason));
+        }
+
+        metric(out, "tfly_requests_total", "counter", "Requests answered, by outcome.");
+        sample(out, "tfly_requests_total", port + ",outcome=\"success\"", metrics.getSuccessfulRequests());
+        for(Map.Entry<String, Long> entry : metrics.getFailedRequestsByError().entrySet()) {
+            sample(out, "tfly_requests_total", port + ",outcome=\"" + entry.getKey().toLowerCase() + "\"", entry.getValue());
+        }
+
+        metric(out, "tfly_sequence_overrides_total", "counter", "Sequence number overrides, by whether they moved the sequence forward.");
+        sample(out, "tfly_sequence_overrides_total", port + ",result=\"accepted\"", metrics.getSequenceOverridesAccepted());
+        sample(out, "tfly_sequence_overrides_total", port + ",result=\"ignored\"", metrics.getSequenceOverridesIgnored());
+
+        metric(out, "tfly_received_bytes_total", "counter", "Bytes of request frames received.");
+        sample(out, "tfly_received_bytes_total", port, metrics.getBytesReceived());
+        metric(out, "tfly_sent_bytes_total", "counter", "Bytes of responses sent.");
+        sample(out, "tfly_sent_bytes_total", port, metrics.getBytesSent());
+        metric(out, "tfly_pending_outbound_bytes", "gauge", "Bytes of responses flushed but not yet written to their sockets.");
+        sample(out, "tfly_pending_outbound_bytes", port, metrics.getPendingOutboundBytes());
+
+        metric(out, "tfly_read_suspensions_total", "counter", "Times reads from a connection were suspended for unwritten responses.");
+        sample(out, "tfly_read_suspensions_total", port, metrics.getReadSuspensions());
+        metric(out, "tfly_slow_consumers_closed_total", "counter", "Connections closed for having too many unwritten responses.");
+        sample(out, "tfly_slow_consumers_closed_total", port, metrics.getSlowConsumersClosed());
+
+        final Histogram latency = metrics.getRequestToFlushLatency();
+        metric(out, "tfly_request_to_flush_seconds", "histogram", "Time from a request's arrival until its response was flushed.");
+        for(double bucket : LATENCY_BUCKETS) {
+            sample(out, "tfly_request_to_flush_seconds_bucket", port + ",le=\"" + bucket + "\"", latency.getCountBetweenValues(0L, (long)(bucket * NANOS_PER_SECOND)));
+        }
+        sample(out, "tfly_request_to_flush_seconds_bucket", port + ",le=\"+Inf\"", latency.getTotalCount());
+        out.append("tfly_request_to_flush_seconds_sum{").append(port).append("} ")
+            .append(metrics.getRequestToFlushLatencyTotal(TimeUnit.NANOSECONDS) / NANOS_PER_SECOND).append('\n');
+        sample(out, "tfly_request_to_flush_seconds_count", port, latency.getTotalCount());
+
+        return out.toString();
+    }
+
+    private static void metric(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,177 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Validates and dissects a single request frame in one pass over its bytes.
+ *
+ * A request is either:
+ * <ol>
+ *     <li><code>[a-zA-Z0-9_]+[\r\n]+</code> (e.g. "ticketfly"), or</li>
+ *     <li><code>[a-zA-Z0-9_ ]+ [0-9]+[\r\n]+</code> (e.g. "is_rad 789") where the digits
+ *         following the last space are a sequence number override.</li>
+ * </ol>
+ *
+ * Parsing works directly on the frame's bytes. No strings are created and the
+ * frame's reader and writer indices are not modified. Instead, the parser
+ * records where the request text and its terminating newline(s) are located
+ * so that the response can be produced from the original bytes.
+ *
+ * Instances are not thread safe and are intended to be reused by a single
+ * channel handler.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class TFlyRequestParser {
+    /**
+     * The largest sequence number a client may provide.
+     */
+    static final long MAXIMUM_SEQUENCE_NUMBER = SequenceSource.MAXIMUM;
+
+    private int request_start;
+    private int request_end;
+    private int terminator_start;
+    private int terminator_end;
+    private boolean has_sequence_number;
+    private long sequence_number;
+
+    /**
+     * Determines if a frame consists solely of whitespace and/or control characters
+     * (i.e. everything that {@link String#trim()} would remove).
+     *
+     * @return true if there's nothing but whitespace in the frame.
+     */
+    static boolean isBlank(ByteBuf frame) {
+        for(int i = frame.readerIndex(), end = frame.writerIndex(); i < end; ++i) {
+            if ((frame.getByte(i) & 0xFF) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the readable bytes of a frame.
+     *
+     * @return null if the frame is a valid request, otherwise the {@link ErrorCode} describing the problem.
+     */
+    ErrorCode parse(ByteBuf frame) {
+        final int start = frame.readerIndex();
+        final int end = frame.writerIndex();
+
+        int last_space = -1;
+        int digits_since_space = 0;
+        boolean only_digits_since_space = false;
+        boolean overflow = false;
+        long value = 0L;
+
+        int i = start;
+
+        //The request text.
+        for(; i < end; ++i) {
+            final byte b = frame.getByte(i);
+            if (b >= '0' && b <= '9') {
+                if (only_digits_since_space) {
+                    ++digits_since_space;
+                    final int digit = b - '0';
+                    if (value > (MAXIMUM_SEQUENCE_NUMBER - digit) / 10L) {
+                        overflow = true;
+                    } else {
+                        value = value * 10L + digit;
+                    }
+                }
+            } else if (b == ' ') {
+                last_space = i;
+                digits_since_space = 0;
+                only_digits_since_space = true;
+                overflow = false;
+                value = 0L;
+            } else if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_') {
+                only_digits_since_space = false;
+            } else if (b == '\r' || b == '\n') {
+                break;
+            } else {
+                return ErrorCode.ERROR_INVALID_INPUT_FORMAT;
+            }
+        }
+
+        //The terminating newline(s). Nothing may follow them.
+        final int terminator = i;
+        for(; i < end; ++i) {
+            final byte b = frame.getByte(i);
+            if (b != '\r' && b != '\n') {
+                return ErrorCode.ERROR_INVALID_INPUT_FORMAT;
+            }
+        }
+
+        if (terminator == start || terminator == end) {
+            return ErrorCode.ERROR_INVALID_INPUT_FORMAT;
+        }
+
+        if (last_space < 0) {
+            //We have the following scenario:
+            //    ticketfly
+            has_sequence_number = false;
+            request_end = terminator;
+        } else if (last_space > start && only_digits_since_space && digits_since_space > 0) {
+            //We have the following scenario:
+            //    is_rad 789
+            if (overflow) {
+                return ErrorCode.ERROR_INVALID_SEQUENCE_NUMBER;
+            }
+            has_sequence_number = true;
+            request_end = last_space;
+        } else {
+            return ErrorCode.ERROR_INVALID_INPUT_FORMAT;
+        }
+
+        sequence_number = value;
+        request_start = start;
+        terminator_start = terminator;
+        terminator_end = end;
+        return null;
+    }
+
+    /**
+     * Index of the first byte of the request text (inclusive).
+     */
+    int requestStart() {
+        return request_start;
+    }
+
+    /**
+     * Index of the last byte of the request text (exclusive). Does not include the sequence number.
+     */
+    int requestEnd() {
+        return request_end;
+    }
+
+    /**
+     * Index of the first newline character terminating the request (inclusive).
+     */
+    int terminatorStart() {
+        return terminator_start;
+    }
+
+    /**
+     * Index of the last newline character terminating the request (exclusive).
+     */
+    int terminatorEnd() {
+        return terminator_end;
+    }
+
+    /**
+     * Indicates if the last successfully parsed request included a sequence number override.
+     */
+    boolean hasSequenceNumber() {
+        return has_sequence_number;
+    }
+
+    /**
+     * The sequence number override for the last successfully parsed request.
+     * Only meaningful if {@link #hasSequenceNumber()} is true.
+     */
+    long sequenceNumber() {
+        return sequence_number;
+    }
+}
@@ -0,0 +1,122 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Writes responses directly into an outbound {@link ByteBuf}.
+ *
+ * The server hands us the channel's own outbound byte buffer, which netty
+ * allocates once per connection and compacts after every write to the
+ * socket. Writing into it directly means a response never exists as a
+ * {@link String}, {@link StringBuilder}, or char[] and nothing is
+ * allocated per response.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class TFlyResponseEncoder {
+    /**
+     * {@link TFlySimpleServer#PROTOCOL_NEWLINE} as bytes.
+     */
+    private static final byte[] PROTOCOL_NEWLINE = TFlySimpleServer.PROTOCOL_NEWLINE.getBytes(CharsetUtil.US_ASCII);
+
+    /**
+     * Largest number of digits in a non-negative long.
+     */
+    private static final int MAXIMUM_DIGITS = 19;
+
+    private TFlyResponseEncoder() {
+    }
+
+    /**
+     * Writes the response for a successfully parsed request: the request text (and its
+     * newline(s)) reversed, a space, the sequence number, and two newlines.
+     *
+     * @param out the buffer to write the response to
+     * @param frame the request frame the parser was given
+     * @param request the parser describing the frame
+     * @param sequence_number the sequence number assigned to this response
+     */
+    static void encodeResponse(ByteBuf out, ByteBuf frame, TFlyRequestParser request, long sequence_number) {
+        final int terminator_length = request.terminatorEnd() - request.terminatorStart();
+        final int request_length = request.requestEnd() - request.requestStart();
+        out.ensureWritableBytes(terminator_length + request_length + 1 + MAXIMUM_DIGITS + 2 * PROTOCOL_NEWLINE.length);
+
+        int index = out.writerIndex();
+        for(int i = request.terminatorEnd() - 1; i >= request.terminatorStart(); --i) {
+            out.setByte(index++, frame.getByte(i));
+        }
+        for(int i = request.requestEnd() - 1; i >= request.requestStart(); --i) {
+            out.setByte(index++, frame.getByte(i));
+        }
+        out.writerIndex(index);
+
+        out.writeByte(' ');
+        writeDecimal(out, sequence_number);
+        out.writeBytes(PROTOCOL_NEWLINE);
+        out.writeBytes(PROTOCOL_NEWLINE);
+    }
+
+    /**
+     * Writes the response for a request that was processed by a service: the request's
+     * newline(s) reversed, the service's response, a space, the sequence number, and two
+     * newlines. The output is identical to {@link #encodeResponse(ByteBuf, ByteBuf, TFlyRequestParser, long)}
+     * when the service reverses the request text.
+     *
+     * @param out the buffer to write the response to
+     * @param frame the request frame
+     * @param terminator_start index of the first newline character terminating the request
+     * @param terminator_end index of the last newline character terminating the request (exclusive)
+     * @param service_response what the service produced for the request text
+     * @param sequence_number the sequence number assigned to this response
+     */
+    static void encodeServiceResponse(ByteBuf out, ByteBuf frame, int terminator_start, int terminator_end, String service_response, long sequence_number) {
+        final byte[] response = service_response.getBytes(CharsetUtil.UTF_8);
+        out.ensureWritableBytes(terminator_end - terminator_start + response.length + 1 + MAXIMUM_DIGITS + 2 * PROTOCOL_NEWLINE.length);
+
+        int index = out.writerIndex();
+        for(int i = terminator_end - 1; i >= terminator_start; --i) {
+            out.setByte(index++, frame.getByte(i));
+        }
+        out.writerIndex(index);
+
+        out.writeBytes(response);
+        out.writeByte(' ');
+        writeDecimal(out, sequence_number);
+        out.writeBytes(PROTOCOL_NEWLINE);
+        out.writeBytes(PROTOCOL_NEWLINE);
+    }
+
+    /**
+     * Writes the pre-encoded message for an error.
+     *
+     * @param out the buffer to write the response to
+     * @param error the error to report
+     */
+    static void encodeError(ByteBuf out, ErrorCode error) {
+        final ByteBuf message = error.getEncodedOutputMessage();
+        out.writeBytes(message, message.readerIndex(), message.readableBytes());
+    }
+
+    /**
+     * Writes the ASCII digits of a non-negative number.
+     */
+    static void writeDecimal(ByteBuf out, long value) {
+        if (value < 0L) {
+            throw new IllegalArgumentException("value must be non-negative: " + value);
+        }
+
+        int digits = 1;
+        for(long remaining = value / 10L; remaining != 0L; remaining /= 10L) {
+            ++digits;
+        }
+
+        out.ensureWritableBytes(digits);
+        final int start = out.writerIndex();
+        for(int index = start + digits - 1; index >= start; --index) {
+            out.setByte(index, (int)('0' + value % 10L));
+            value /= 10L;
+        }
+        out.writerIndex(start + digits);
+    }
+}
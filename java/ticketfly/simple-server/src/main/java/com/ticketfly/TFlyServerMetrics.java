@@ -0,0 +1,293 @@
+package com.ticketfly;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what a {@link TFlySimpleServer} does: connections, requests by
+ * outcome, sequence number overrides, bytes, and how long requests wait for
+ * their responses to be flushed.
+ *
+ * Every handler of a server updates the same instance from its own event
+ * loop, so the counters are {@link LongAdder}s: an update touches a cell
+ * that's usually private to the updating thread and never contends with the
+ * other event loops. Reads sum the cells and may be a moment behind.
+ * Latencies go into an HdrHistogram {@link Recorder}, which is also safe to
+ * record into from many threads without locking. Reads drain it into a
+ * cumulative histogram.
+ *
+ * The metrics are published over JMX (see {@link TFlyServerMetricsMXBean})
+ * and, given an admin port, as Prometheus text (see {@link TFlyMetricsEndpoint}).
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public final class TFlyServerMetrics implements TFlyServerMetricsMXBean {
+    /**
+     * Latencies are recorded in nanoseconds with this many significant digits.
+     */
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private static final double NANOS_PER_MICRO = 1000.0d;
+
+    private final LongAdder connections_opened = new LongAdder();
+    private final LongAdder connections_closed = new LongAdder();
+    private final LongAdder connections_rejected_for_server = new LongAdder();
+    private final LongAdder connections_rejected_for_address = new LongAdder();
+    private final Map<TFlyConnectionReaper.Reason, LongAdder> connections_reaped = new EnumMap<TFlyConnectionReaper.Reason, LongAdder>(TFlyConnectionReaper.Reason.class);
+    private final LongAdder successful_requests = new LongAdder();
+    private final Map<ErrorCode, LongAdder> failed_requests = new EnumMap<ErrorCode, LongAdder>(ErrorCode.class);
+    private final LongAdder sequence_overrides_accepted = new LongAdder();
+    private final LongAdder sequence_overrides_ignored = new LongAdder();
+    private final LongAdder bytes_received = new LongAdder();
+    private final LongAdder bytes_sent = new LongAdder();
+    private final LongAdder pending_outbound_bytes = new LongAdder();
+    private final LongAdder read_suspensions = new LongAdder();
+    private final LongAdder slow_consumers_closed = new LongAdder();
+
+    private final Recorder request_to_flush = new Recorder(SIGNIFICANT_DIGITS);
+    private final LongAdder request_to_flush_total_nanos = new LongAdder();
+
+    /**
+     * Everything drained from {@link #request_to_flush} so far. Guarded by itself.
+     */
+    private final Histogram request_to_flush_total = new Histogram(SIGNIFICANT_DIGITS);
+    private Histogram request_to_flush_interval = null;
+
+    public TFlyServerMetrics() {
+        //Filled in up front so the map is never modified while handlers read it.
+        for(ErrorCode error : ErrorCode.values()) {
+            failed_requests.put(error, new LongAdder());
+        }
+        for(TFlyConnectionReaper.Reason reason : TFlyConnectionReaper.Reason.values()) {
+            connections_reaped.put(reason, new LongAdder());
+        }
+    }
+
+    void connectionOpened() {
+        connections_opened.increment();
+    }
+
+    void connectionClosed() {
+        connections_closed.increment();
+    }
+
+    /**
+     * @param for_address true if the client's address was at its limit, false if the whole server was
+     */
+    void connectionRejected(boolean for_address) {
+        (for_address ? connections_rejected_for_address : connections_rejected_for_server).increment();
+    }
+
+    void connectionReaped(TFlyConnectionReaper.Reason reason) {
+        connections_reaped.get(reason).increment();
+    }
+
+    void requestSucceeded() {
+        successful_requests.increment();
+    }
+
+    void requestFailed(ErrorCode error) {
+        failed_requests.get(error).increment();
+    }
+
+    void sequenceOverride(boolean accepted) {
+        (accepted ? sequence_overrides_accepted : sequence_overrides_ignored).increment();
+    }
+
+    void bytesReceived(int bytes) {
+        bytes_received.add(bytes);
+    }
+
+    void bytesSent(int bytes) {
+        bytes_sent.add(bytes);
+    }
+
+    /**
+     * Adjusts the bytes of responses flushed but not yet written to their sockets.
+     */
+    void pendingOutboundBytes(long bytes) {
+        pending_outbound_bytes.add(bytes);
+    }
+
+    void readSuspended() {
+        read_suspensions.increment();
+    }
+
+    void slowConsumerClosed() {
+        slow_consumers_closed.increment();
+    }
+
+    /**
+     * Records that responses to several requests that arrived at the same time were just flushed.
+     *
+     * @param received_nanos when the requests arrived, from {@link System#nanoTime()}
+     * @param requests how many responses were flushed
+     */
+    void flushed(long received_nanos, int requests) {
+        final long latency = Math.max(0L, System.nanoTime() - received_nanos);
+        request_to_flush.recordValueWithCount(latency, requests);
+        request_to_flush_total_nanos.add(latency * requests);
+    }
+
+    @Override
+    public long getConnections() {
+        //Read closed first so a connection opened in between can't make this negative.
+        final long closed = connections_closed.sum();
+        return connections_opened.sum() - closed;
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connections_opened.sum();
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        return connections_rejected_for_server.sum() + connections_rejected_for_address.sum();
+    }
+
+    /**
+     * Connections refused because the whole server was at its limit.
+     */
+    public long getConnectionsRejectedForServer() {
+        return connections_rejected_for_server.sum();
+    }
+
+    /**
+     * Connections refused because their address was at its limit.
+     */
+    public long getConnectionsRejectedForAddress() {
+        return connections_rejected_for_address.sum();
+    }
+
+    @Override
+    public long getConnectionsReaped() {
+        long reaped = 0L;
+        for(LongAdder count : connections_reaped.values()) {
+            reaped += count.sum();
+        }
+        return reaped;
+    }
+
+    /**
+     * Connections closed for the given reason by the server's {@link TFlyConnectionReaper}.
+     */
+    long getConnectionsReaped(TFlyConnectionReaper.Reason reason) {
+        return connections_reaped.get(reason).sum();
+    }
+
+    @Override
+    public long getRequests() {
+        return getSuccessfulRequests() + getFailedRequests();
+    }
+
+    @Override
+    public long getSuccessfulRequests() {
+        return successful_requests.sum();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        long failed = 0L;
+        for(LongAdder count : failed_requests.values()) {
+            failed += count.sum();
+        }
+        return failed;
+    }
+
+    /**
+     * The number of requests that failed with the given error.
+     */
+    public long getFailedRequests(ErrorCode error) {
+        return failed_requests.get(error).sum();
+    }
+
+    @Override
+    public Map<String, Long> getFailedRequestsByError() {
+        final Map<String, Long> failed = new LinkedHashMap<String, Long>();
+        for(Map.Entry<ErrorCode, LongAdder> entry : failed_requests.entrySet()) {
+            failed.put(entry.getKey().name(), entry.getValue().sum());
+        }
+        return Collections.unmodifiableMap(failed);
+    }
+
+    @Override
+    public long getSequenceOverridesAccepted() {
+        return sequence_overrides_accepted.sum();
+    }
+
+    @Override
+    public long getSequenceOverridesIgnored() {
+        return sequence_overrides_ignored.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytes_received.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytes_sent.sum();
+    }
+
+    @Override
+    public long getPendingOutboundBytes() {
+        return pending_outbound_bytes.sum();
+    }
+
+    @Override
+    public long getReadSuspensions() {
+        return read_suspensions.sum();
+    }
+
+    @Override
+    public long getSlowConsumersClosed() {
+        return slow_consumers_closed.sum();
+    }
+
+    /**
+     * The sum of every recorded request-to-flush latency.
+     */
+    public long getRequestToFlushLatencyTotal(TimeUnit unit) {
+        return unit.convert(request_to_flush_total_nanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A copy of every request-to-flush latency recorded so far, in nanoseconds.
+     */
+    public Histogram getRequestToFlushLatency() {
+        synchronized(request_to_flush_total) {
+            request_to_flush_interval = request_to_flush.getIntervalHistogram(request_to_flush_interval);
+            request_to_flush_total.add(request_to_flush_interval);
+            return request_to_flush_total.copy();
+        }
+    }
+
+    @Override
+    public double getRequestToFlushLatencyMicrosP50() {
+        return getRequestToFlushLatency().getValueAtPercentile(50.0d) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getRequestToFlushLatencyMicrosP99() {
+        return getRequestToFlushLatency().getValueAtPercentile(99.0d) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getRequestToFlushLatencyMicrosP999() {
+        return getRequestToFlushLatency().getValueAtPercentile(99.9d) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getRequestToFlushLatencyMicrosMax() {
+        return getRequestToFlushLatency().getMaxValue() / NANOS_PER_MICRO;
+    }
+}
@@ -0,0 +1,88 @@
+package com.ticketfly;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link TFlyServerMetrics}. Every count is cumulative since
+ * the server was created; rates come from sampling them over time.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public interface TFlyServerMetricsMXBean {
+    /**
+     * Connections currently open.
+     */
+    long getConnections();
+
+    long getConnectionsOpened();
+
+    /**
+     * Connections refused for going over a connection limit. They aren't counted as opened.
+     */
+    long getConnectionsRejected();
+
+    /**
+     * Connections closed for being idle or too slow to finish a request.
+     */
+    long getConnectionsReaped();
+
+    /**
+     * Requests answered, successfully or with an error.
+     */
+    long getRequests();
+
+    long getSuccessfulRequests();
+
+    long getFailedRequests();
+
+    /**
+     * Failed requests by the name of their {@link ErrorCode}.
+     */
+    Map<String, Long> getFailedRequestsByError();
+
+    /**
+     * Sequence number overrides that moved the sequence forward.
+     */
+    long getSequenceOverridesAccepted();
+
+    /**
+     * Sequence number overrides that were ignored because the sequence was already past them.
+     */
+    long getSequenceOverridesIgnored();
+
+    /**
+     * Bytes of request frames received.
+     */
+    long getBytesReceived();
+
+    /**
+     * Bytes of responses sent.
+     */
+    long getBytesSent();
+
+    /**
+     * Bytes of responses flushed but not yet written to their sockets, across every connection.
+     */
+    long getPendingOutboundBytes();
+
+    /**
+     * Times reads from a connection were suspended because it had too many unwritten responses.
+     */
+    long getReadSuspensions();
+
+    /**
+     * Connections closed because they had more unwritten responses than allowed.
+     */
+    long getSlowConsumersClosed();
+
+    /**
+     * Time from a request's arrival until its response was flushed, at several percentiles.
+     */
+    double getRequestToFlushLatencyMicrosP50();
+
+    double getRequestToFlushLatencyMicrosP99();
+
+    double getRequestToFlushLatencyMicrosP999();
+
+    double getRequestToFlushLatencyMicrosMax();
+}
@@ -1,11 +1,16 @@
 package com.ticketfly;
 
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This is a mock service. It sleeps for 100 millis to simulate 
  * computation then reverses its input. It will throw a TFlyServiceException
  * for about 5% of the executions.
  * 
+ * executeBatch pays the 100 millis once for the whole batch. Each item 
+ * still fails about 5% of the time, independently of the others.
+ * 
  * @author andy
  *
  */
@@ -41,5 +46,58 @@ public final class TFlyService {
 		
 		return new String(reversed);
 	}
+	
+	/**
+	 * The outcome of one item in a batch. Either the response or the 
+	 * exception is set, never both.
+	 */
+	public final static class BatchResult {
+		private final String response;
+		private final TFlyServiceException exception;
+		
+		BatchResult(String response, TFlyServiceException exception){
+			this.response = response;
+			this.exception = exception;
+		}
+		
+		public boolean isSuccess(){
+			return exception == null;
+		}
+		
+		public String getResponse(){
+			return response;
+		}
+		
+		public TFlyServiceException getException(){
+			return exception;
+		}
+	}
+	
+	public final List<BatchResult> executeBatch(final List<String> strings){
+		try{
+			// simulate computation once for the whole batch
+			Thread.sleep(100);
+		} catch (InterruptedException e){
+			// continue without error.
+		}
+		
+		List<BatchResult> results = new ArrayList<BatchResult>(strings.size());
+		for(String string : strings){
+			// reverse the string
+			char[] reversed = new char[string.length()];
+			int i = string.length() - 1;
+			for(char c :string.toCharArray()){
+				reversed[i--] = c;
+			}
+			
+			// fail 5% of items without failing the rest of the batch
+			if(Math.random() > 0.95d)
+				results.add(new BatchResult(null, new TFlyServiceException("Service Error")));
+			else
+				results.add(new BatchResult(new String(reversed), null));
+		}
+		
+		return results;
+	}
 
 }
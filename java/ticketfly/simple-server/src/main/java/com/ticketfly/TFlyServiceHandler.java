@@ -0,0 +1,417 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundMessageHandlerAdapter;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes incoming requests by handing them off to a service through a
+ * {@link ServiceInvoker} rather than computing responses on the event loop.
+ *
+ * Requests on a connection may complete in any order, but responses are
+ * always written in the order the requests arrived. Every request (including
+ * invalid ones) takes a slot in a per-connection queue. Completed slots at the
+ * head of the queue are written out, and sequence numbers are assigned as
+ * they're written so they increase in the order the client sees them.
+ *
+ * The queue is only ever touched on the channel's event loop. Service
+ * callbacks hop back onto it before completing a slot.
+ *
+ * A connection can be limited in how many service calls it has in flight.
+ * Requests beyond the limit are answered with
+ * {@link ErrorCode#ERROR_SERVICE_UNAVAILABLE} without calling the service,
+ * as are requests the service refuses (any {@link RejectedExecutionException}).
+ * Requests over the client's rate limit are answered with
+ * {@link ErrorCode#ERROR_RATE_LIMITED} (see {@link TFlyAdmissionControl}).
+ *
+ * Frames are either lines ({@link Framing#NEWLINE}) or length-prefixed
+ * ({@link Framing#LENGTH_PREFIXED}), as chosen when the connection was made.
+ *
+ * Reads are suspended while the client is slow to read its responses (see
+ * {@link OutboundBackpressure}). Calls already in flight still complete and
+ * are written, so a connection that runs past the maximum pending bytes is closed.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public class TFlyServiceHandler extends ChannelInboundMessageHandlerAdapter<ByteBuf> {
+    private static final Logger logger = Logger.getLogger(TFlyServiceHandler.class.getName());
+
+    /**
+     * Logs from the event loops without blocking them (see {@link TFlyLog}).
+     */
+    private static final TFlyLog log = TFlyLog.of(logger);
+
+    /**
+     * Hands out sequence numbers. Typically shared with other handlers.
+     */
+    private final SequenceSource sequence_source;
+
+    /**
+     * Executes requests off the event loop.
+     */
+    private final ServiceInvoker service;
+
+    /**
+     * How this handler's frames are delimited.
+     */
+    private final Framing framing;
+
+    /**
+     * Parses request frames for this handler's channel.
+     */
+    private final TFlyRequestParser parser = new TFlyRequestParser();
+
+    /**
+     * Responses that haven't been written yet, in the order their requests arrived.
+     */
+    private final Queue<PendingResponse> pending = new ArrayDeque<PendingResponse>();
+
+    /**
+     * Set once the client has asked to close the connection. The connection is
+     * closed as soon as every earlier response has been written.
+     */
+    private boolean close_when_drained = false;
+
+    /**
+     * The most service calls this connection may have in flight, or 0 for no limit.
+     */
+    private final int maximum_in_flight;
+
+    /**
+     * Service calls this connection currently has in flight.
+     */
+    private int in_flight = 0;
+
+    /**
+     * Counts requests refused because their connection had too many calls in flight. Shared with other handlers.
+     */
+    private final AtomicLong rejected;
+
+    /**
+     * The server's metrics. Shared with other handlers.
+     */
+    private final TFlyServerMetrics metrics;
+
+    /**
+     * Suspends reads while the client is slow to read its responses.
+     */
+    private final OutboundBackpressure backpressure;
+
+    /**
+     * Rate limits this connection's requests.
+     */
+    private final TFlyAdmissionControl.Admission admission;
+
+    public TFlyServiceHandler(SequenceSource sequence_source, ServiceInvoker service) {
+        this(sequence_source, service, 0, new AtomicLong(0L));
+    }
+
+    public TFlyServiceHandler(SequenceSource sequence_source, ServiceInvoker service, int maximum_in_flight, AtomicLong rejected) {
+        this(sequence_source, service, Framing.NEWLINE, maximum_in_flight, rejected);
+    }
+
+    public TFlyServiceHandler(SequenceSource sequence_source, ServiceInvoker service, Framing framing, int maximum_in_flight, AtomicLong rejected) {
+        this(sequence_source, service, framing, maximum_in_flight, rejected, new TFlyServerMetrics());
+    }
+
+    public TFlyServiceHandler(SequenceSource sequence_source, ServiceInvoker service, Framing framing, int maximum_in_flight, AtomicLong rejected, TFlyServerMetrics metrics) {
+        this(sequence_source, service, framing, maximum_in_flight, rejected, metrics, OutboundBackpressure.Limits.DEFAULT, TFlyAdmissionControl.UNLIMITED);
+    }
+
+    TFlyServiceHandler(SequenceSource sequence_source, ServiceInvoker service, Framing framing, int maximum_in_flight, AtomicLong rejected, TFlyServerMetrics metrics, OutboundBackpressure.Limits backpressure_limits, TFlyAdmissionControl.Admission admission) {
+        this.sequence_source = sequence_source;
+        this.service = service;
+        this.framing = framing;
+        this.maximum_in_flight = maximum_in_flight;
+        this.rejected = rejected;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.backpressure = new OutboundBackpressure(backpressure_limits, metrics, new OutboundBackpressure.Listener() {
+            @Override
+            public void drained(ChannelHandlerContext ctx) {
+                //Reads have resumed and completed responses are never held back, so there's nothing to catch up on.
+            }
+        });
+    }
+
+    /**
+     * A slot for a single response.
+     */
+    private static final class PendingResponse {
+        final ByteBuf frame;
+        final int terminator_start;
+        final int terminator_end;
+        final boolean has_sequence_number;
+        final long sequence_number;
+        final long received_nanos = System.nanoTime();
+
+        boolean done;
+        String response;
+        ErrorCode error;
+
+        PendingResponse(ErrorCode error) {
+            this.frame = null;
+            this.terminator_start = 0;
+            this.terminator_end = 0;
+            this.has_sequence_number = false;
+            this.sequence_number = 0L;
+            this.done = true;
+            this.error = error;
+        }
+
+        PendingResponse(boolean has_sequence_number, long sequence_number) {
+            this.frame = null;
+            this.terminator_start = 0;
+            this.terminator_end = 0;
+            this.has_sequence_number = has_sequence_number;
+            this.sequence_number = sequence_number;
+        }
+
+        PendingResponse(ByteBuf frame, TFlyRequestParser request) {
+            this.frame = frame;
+            this.terminator_start = request.terminatorStart();
+            this.terminator_end = request.terminatorEnd();
+            this.has_sequence_number = request.hasSequenceNumber();
+            this.sequence_number = request.sequenceNumber();
+        }
+    }
+
+    /**
+     * Executed upon client connect.
+     */
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        TFlySimpleServerHandler.connected(log, ctx);
+    }
+
+    /**
+     * Executed upon client disconnect.
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        pending.clear();
+        TFlySimpleServerHandler.disconnected(log, ctx, backpressure);
+    }
+
+    /**
+     * Asynchronously handles any exception thrown by netty.
+     */
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        TFlySimpleServerHandler.unexpected(logger, log, ctx, cause);
+    }
+
+    /**
+     * Executed when a request frame has been received from a client.
+     */
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+        if (close_when_drained) {
+            return;
+        }
+        metrics.bytesReceived((framing == Framing.LENGTH_PREFIXED ? TFlyBinaryCodec.LENGTH_FIELD_LENGTH : 0) + frame.readableBytes());
+
+        if (framing == Framing.LENGTH_PREFIXED) {
+            lengthPrefixedMessageReceived(ctx, frame);
+        } else if (!frame.readable()) {
+            log.log(Level.INFO, TFlyLog.Category.INVALID_INPUT, "Received zero length input from client: {0}", ctx.channel());
+            pending.add(new PendingResponse(ErrorCode.ERROR_MISSING_INPUT));
+        } else if (TFlyRequestParser.isBlank(frame)) {
+            log.log(Level.INFO, TFlyLog.Category.CLOSE, "Received empty line. Closing connection for : {0}", ctx.channel());
+            close_when_drained = true;
+        } else if (!admission.tryAcquireRequest()) {
+            rateLimited(ctx);
+        } else {
+            final ErrorCode error = parser.parse(frame);
+            if (error != null) {
+                log.log(Level.WARNING, TFlyLog.Category.INVALID_INPUT, "Invalid input: {0}", frame);
+                pending.add(new PendingResponse(error));
+            } else {
+                dispatch(ctx, frame);
+            }
+        }
+
+        drain(ctx);
+    }
+
+    /**
+     * Handles a single {@link Framing#LENGTH_PREFIXED} frame.
+     */
+    private void lengthPrefixedMessageReceived(ChannelHandlerContext ctx, ByteBuf frame) {
+        if (TFlyBinaryCodec.isClose(frame)) {
+            log.log(Level.INFO, TFlyLog.Category.CLOSE, "Received close request. Closing connection for : {0}", ctx.channel());
+            close_when_drained = true;
+            return;
+        }
+
+        if (!admission.tryAcquireRequest()) {
+            rateLimited(ctx);
+            return;
+        }
+
+        final ErrorCode error = TFlyBinaryCodec.validate(frame);
+        if (error != null) {
+            log.log(Level.WARNING, TFlyLog.Category.INVALID_INPUT, "Invalid frame from {0}: {1}", ctx.channel(), error.getMessage());
+            pending.add(new PendingResponse(error));
+            return;
+        }
+
+        final long sequence_number = TFlyBinaryCodec.sequenceNumber(frame);
+        if (admit()) {
+            invoke(ctx, new PendingResponse(sequence_number != TFlyBinaryCodec.NO_SEQUENCE_NUMBER, sequence_number), TFlyBinaryCodec.payload(frame));
+        }
+    }
+
+    private void rateLimited(ChannelHandlerContext ctx) {
+        log.log(Level.INFO, TFlyLog.Category.ADMISSION, "Rate limited a request from {0}", ctx.channel());
+        pending.add(new PendingResponse(ErrorCode.ERROR_RATE_LIMITED));
+    }
+
+    /**
+     * Queues a slot for a valid request and hands the request text to the service.
+     */
+    private void dispatch(ChannelHandlerContext ctx, ByteBuf frame) {
+        if (admit()) {
+            invoke(ctx, new PendingResponse(frame, parser), frame.toString(parser.requestStart(), parser.requestEnd() - parser.requestStart(), CharsetUtil.UTF_8));
+        }
+    }
+
+    /**
+     * Takes a service call for this connection, or queues an unavailable response if it has too many in flight.
+     *
+     * @return true if the request may be handed to the service
+     */
+    private boolean admit() {
+        if (maximum_in_flight > 0 && in_flight >= maximum_in_flight) {
+            rejected.incrementAndGet();
+            pending.add(new PendingResponse(ErrorCode.ERROR_SERVICE_UNAVAILABLE));
+            return false;
+        }
+        ++in_flight;
+        return true;
+    }
+
+    /**
+     * Queues a slot and hands its request text to the service.
+     */
+    private void invoke(final ChannelHandlerContext ctx, final PendingResponse slot, String request) {
+        pending.add(slot);
+
+        service.invoke(request, new ServiceCallback() {
+            @Override
+            public void completed(String response) {
+                complete(ctx, slot, response, null);
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+                if (cause instanceof RejectedExecutionException) {
+                    log.log(Level.FINE, TFlyLog.Category.SERVICE, "Service unavailable: {0}", cause.getMessage());
+                    complete(ctx, slot, null, ErrorCode.ERROR_SERVICE_UNAVAILABLE);
+                    return;
+                }
+                if (cause instanceof TFlyService.TFlyServiceException) {
+                    log.log(Level.INFO, TFlyLog.Category.SERVICE, "Service failed: {0}", cause.getMessage());
+                } else {
+                    log.log(Level.WARNING, TFlyLog.Category.SERVICE, "Unable to call the service", cause);
+                }
+                complete(ctx, slot, null, ErrorCode.ERROR_SERVICE_FAILURE);
+            }
+        });
+    }
+
+    /**
+     * Completes a slot on the channel's event loop and writes whatever is ready.
+     * If the event loop has already shut down, the connection is gone with it
+     * and the response is dropped.
+     */
+    private void complete(final ChannelHandlerContext ctx, final PendingResponse slot, final String response, final ErrorCode error) {
+        if (ctx.executor().inEventLoop()) {
+            --in_flight;
+            slot.response = response;
+            slot.error = error;
+            slot.done = true;
+            drain(ctx);
+            return;
+        }
+
+        try {
+            ctx.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    complete(ctx, slot, response, error);
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            //The server stopped while the service was working on the request.
+            log.log(Level.FINE, TFlyLog.Category.SERVICE, "Dropped a response for a connection whose event loop has shut down: {0}", ctx.channel());
+        }
+    }
+
+    /**
+     * Writes every completed response at the head of the queue with a single flush.
+     */
+    private void drain(ChannelHandlerContext ctx) {
+        if (!ctx.channel().isActive()) {
+            pending.clear();
+            return;
+        }
+
+        final ByteBuf out = ctx.nextOutboundByteBuffer();
+        final int start = out.writerIndex();
+        boolean wrote = false;
+        PendingResponse head;
+        while((head = pending.peek()) != null && head.done) {
+            pending.poll();
+            write(out, head);
+            //The flush follows right away.
+            metrics.flushed(head.received_nanos, 1);
+            wrote = true;
+        }
+
+        if (wrote) {
+            final int bytes = out.writerIndex() - start;
+            metrics.bytesSent(bytes);
+            if (!backpressure.flush(ctx, bytes)) {
+                log.log(Level.WARNING, TFlyLog.Category.BACKPRESSURE, "Closed a connection that wasn''t reading its responses: {0}", ctx.channel());
+                pending.clear();
+                return;
+            }
+        }
+
+        if (close_when_drained && pending.isEmpty()) {
+            ctx.close();
+        }
+    }
+
+    private void write(ByteBuf out, PendingResponse slot) {
+        final boolean length_prefixed = framing == Framing.LENGTH_PREFIXED;
+        if (slot.error != null) {
+            metrics.requestFailed(slot.error);
+            if (length_prefixed) {
+                TFlyBinaryCodec.encodeError(out, slot.error);
+            } else {
+                TFlyResponseEncoder.encodeError(out, slot.error);
+            }
+            return;
+        }
+
+        if (slot.has_sequence_number) {
+            metrics.sequenceOverride(TFlySimpleServerHandler.applySequenceNumber(sequence_source, slot.sequence_number));
+        }
+        metrics.requestSucceeded();
+        if (length_prefixed) {
+            TFlyBinaryCodec.encodeServiceResponse(out, slot.response, sequence_source.next());
+        } else {
+            TFlyResponseEncoder.encodeServiceResponse(out, slot.frame, slot.terminator_start, slot.terminator_end, slot.response, sequence_source.next());
+        }
+    }
+}
@@ -1,20 +1,49 @@
 package com.ticketfly;
 
 import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
 
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class used to connect to a {@link TFlySimpleServer} on the network.
  *
+ * Messages can be sent two ways. {@link #write(String)} sends a message and
+ * leaves it up to the {@link ClientCallback} to make sense of whatever comes
+ * back. {@link #request(String)} returns a future that's completed with the
+ * message's response, so many requests can be pipelined on one connection
+ * without the caller matching up responses. Don't mix the two on the same
+ * connection: responses are matched to requests purely by their order.
+ *
+ * By default every message is flushed to the network as soon as it's
+ * written. With {@link #withWriteCoalescing(int, int, long, TimeUnit)},
+ * messages are gathered and flushed together, so many messages share one
+ * syscall and TCP segment. {@link #writeAll(Iterable)} writes many messages
+ * with a single flush either way.
+ *
+ * Messages are sent as lines by default. With {@link #withFraming(Framing)}
+ * they can be sent as {@link Framing#LENGTH_PREFIXED} frames instead, which
+ * the server doesn't have to scan for newlines and whose payload may contain
+ * anything. Responses look the same either way.
+ *
+ * Clients on the same machine as the server can connect over a Unix domain
+ * socket with {@link #createUnixDomain(String, ClientCallback)}, given the
+ * server listens on one (see {@link TFlySimpleServer#withUnixDomainSocket(String)}).
+ *
  * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
  */
 public final class TFlySimpleClient {
@@ -24,36 +53,51 @@ public final class TFlySimpleClient {
     public static final int DEFAULT_SERVER_PORT = TFlySimpleServer.DEFAULT_SERVER_PORT;
 
     /**
-     * The default for the maximum size (in bytes) of an entire server response.
+     * The default for the maximum size (in bytes) of an entire server response:
+     * the largest request plus room for a space and the sequence number.
      */
-    private static final int DEFAULT_MAX_RESPONSE_SIZE = TFlySimpleServer.DEFAULT_MAX_REQUEST_SIZE;
+    private static final int DEFAULT_MAX_RESPONSE_SIZE = TFlySimpleServer.DEFAULT_MAX_REQUEST_SIZE + 1 + 20;
 
     /**
-     * The delimiter(s) used to mark the end of a request/response.
+     * Provides an instance of a {@link io.netty.handler.codec.string.StringDecoder} that will be shared among instances of this class.
      */
-    private static final ByteBuf[] PROTOCOL_DELIMITERS = TFlySimpleServer.PROTOCOL_DELIMITERS;
+    private static final StringDecoder STRING_DECODER = TFlySimpleServer.STRING_DECODER;
 
     /**
-     * The style of newline used by this protocol. Note that is explicitly
-     * NOT System.getProperty("line.separator") because our protocol should
-     * behave identically across platforms.
+     * Provides an instance of a {@link io.netty.handler.codec.string.StringEncoder} that will be shared among instances of this class.
      */
-    private static final String PROTOCOL_NEWLINE = TFlySimpleServer.PROTOCOL_NEWLINE;
+    private static final StringEncoder STRING_ENCODER = TFlySimpleServer.STRING_ENCODER;
 
     /**
-     * Provides an instance of a {@link io.netty.handler.codec.string.StringDecoder} that will be shared among instances of this class.
+     * Handles threading for all clients, one group per {@link Transport}. Groups
+     * are created the first time a client connects using that transport.
      */
-    private static final StringDecoder STRING_DECODER = TFlySimpleServer.STRING_DECODER;
+    private static final Map<Transport, EventLoopGroup> EVENT_GROUPS = new EnumMap<Transport, EventLoopGroup>(Transport.class);
 
     /**
-     * Provides an instance of a {@link io.netty.handler.codec.string.StringEncoder} that will be shared among instances of this class.
+     * By default, at most this many requests may be waiting for a response.
      */
-    private static final StringEncoder STRING_ENCODER = TFlySimpleServer.STRING_ENCODER;
+    public static final int DEFAULT_MAXIMUM_OUTSTANDING_REQUESTS = 1024;
+
+    /**
+     * By default, a request fails if its response hasn't arrived within this long.
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 10L * 1000L;
+
+    /**
+     * By default, coalesced writes are flushed once this many bytes are waiting.
+     */
+    public static final int DEFAULT_COALESCING_MAXIMUM_BYTES = 16 * 1024;
+
+    /**
+     * By default, coalesced writes are flushed once this many messages are waiting.
+     */
+    public static final int DEFAULT_COALESCING_MAXIMUM_MESSAGES = 128;
 
     /**
-     * Handles threading for all clients.
+     * By default, a coalesced write waits at most this long to be flushed.
      */
-    private static final NioEventLoopGroup EVENT_GROUP = new NioEventLoopGroup();
+    public static final long DEFAULT_COALESCING_LINGER_MICROS = 200L;
 
     /**
      * The port number to connect to the server on.
@@ -65,13 +109,19 @@ public final class TFlySimpleClient {
      */
     private final String host;
 
+    /**
+     * The path of the server's Unix domain socket, or null to connect over TCP.
+     */
+    private final String unix_domain_socket_path;
+
     /**
      * Flag used to hold the current connected status for this client.
      */
-    private boolean connected = false;
+    private volatile boolean connected = false;
 
     /**
-     * Holds a reference to the connected {@link ChannelFuture}.
+     * Holds a reference to the connected {@link ChannelFuture}. It's completed
+     * once the client is marked connected, not when the socket connects.
      */
     private volatile ChannelFuture connected_future = null;
 
@@ -81,10 +131,26 @@ public final class TFlySimpleClient {
     private final Object lock = new Object();
 
     /**
-     * Holds a cached {@link InetSocketAddress} instance for use when
+     * The transport used for the next call to {@link #connect()}.
+     */
+    private volatile Transport transport = Transport.NIO;
+
+    /**
+     * The event loop group used for the next call to {@link #connect()}, or
+     * null to use the group shared by every client using the same transport.
+     */
+    private volatile EventLoopGroup event_group = null;
+
+    /**
+     * The framing used for the next call to {@link #connect()}.
+     */
+    private volatile Framing framing = Framing.NEWLINE;
+
+    /**
+     * Holds a cached {@link SocketAddress} instance for use when
      * establishing a connection with the server.
      */
-    private final InetSocketAddress remote_address;
+    private final SocketAddress remote_address;
 
     /**
      * Holds a reusable {@link ChannelHandler} instance for when client
@@ -104,26 +170,65 @@ public final class TFlySimpleClient {
      */
     private Bootstrap client_bootstrap;
 
+    /**
+     * The most requests that may be waiting for a response.
+     */
+    private volatile int maximum_outstanding_requests = DEFAULT_MAXIMUM_OUTSTANDING_REQUESTS;
+
+    /**
+     * How long a request waits for its response, or 0 to wait forever.
+     */
+    private volatile long request_timeout_nanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_REQUEST_TIMEOUT_MILLIS);
+
+    /**
+     * Requests written (or about to be) whose response hasn't arrived yet.
+     */
+    private final AtomicInteger outstanding_requests = new AtomicInteger(0);
+
+    private final AtomicLong request_timeouts = new AtomicLong(0L);
+    private final AtomicLong rejected_requests = new AtomicLong(0L);
+
+    /**
+     * Write coalescing settings. Coalescing is off unless write_coalescing is set.
+     */
+    private volatile boolean write_coalescing = false;
+    private volatile int coalescing_maximum_bytes = DEFAULT_COALESCING_MAXIMUM_BYTES;
+    private volatile int coalescing_maximum_messages = DEFAULT_COALESCING_MAXIMUM_MESSAGES;
+    private volatile long coalescing_linger_nanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_COALESCING_LINGER_MICROS);
+
+    private final AtomicLong messages_written = new AtomicLong(0L);
+    private final AtomicLong flushes = new AtomicLong(0L);
+
     /**
      * Private constructor to prevent instantiation outside the static create methods.
      */
     private TFlySimpleClient(String host, int port, final ClientCallback<TFlySimpleClient, String> callback) {
+        this(host, port, null, new InetSocketAddress(host, port), callback);
+    }
+
+    private TFlySimpleClient(String host, int port, String unix_domain_socket_path, SocketAddress remote_address, final ClientCallback<TFlySimpleClient, String> callback) {
         this.host = host;
         this.port = port;
-        this.remote_address = new InetSocketAddress(host, port);
-        this.channel_handler = new ChannelInitializer<SocketChannel>() {
+        this.unix_domain_socket_path = unix_domain_socket_path;
+        this.remote_address = remote_address;
+        this.channel_handler = new ChannelInitializer<Channel>() {
             @Override
-            public void initChannel(SocketChannel ch) throws Exception {
+            public void initChannel(Channel ch) throws Exception {
+                final Framing framing = TFlySimpleClient.this.framing;
                 ChannelPipeline pipeline = ch.pipeline();
                 pipeline
-                    .addLast("framer", new DelimiterBasedFrameDecoder(DEFAULT_MAX_RESPONSE_SIZE, false, true, PROTOCOL_DELIMITERS))
-                    .addLast("decoder", STRING_DECODER)
+                    .addLast("framer", framing.newFrameDecoder(DEFAULT_MAX_RESPONSE_SIZE))
+                    .addLast("decoder", framing == Framing.LENGTH_PREFIXED ? TFlyBinaryCodec.RESPONSE_DECODER : STRING_DECODER)
                     .addLast("encoder", STRING_ENCODER)
-                    .addLast("handler", new TFlySimplyClientHandler(TFlySimpleClient.this, callback,
+                    .addLast("handler", new TFlySimplyClientHandler(TFlySimpleClient.this, framing, callback,
                         new CrossCallback() {
                             @Override
                             public void callback() {
                                 connected = true;
+                                final ChannelFuture future = connected_future;
+                                if (future != null) {
+                                    future.setSuccess();
+                                }
                             }
                         },
                         new CrossCallback() {
@@ -171,6 +276,22 @@ public final class TFlySimpleClient {
         return new TFlySimpleClient(host, port, callback);
     }
 
+    /**
+     * Creates a newly initialized client ready to be connected to a server on
+     * the same machine over its Unix domain socket. The client has no host or
+     * port, and always uses {@link Transport#NIO}.
+     *
+     * @param path the path of the server's socket file (see {@link TFlySimpleServer#withUnixDomainSocket(String)})
+     * @return a newly initialized instance of {@link TFlySimpleClient}
+     * @throws ChannelException if the JDK doesn't support Unix domain sockets
+     */
+    public static TFlySimpleClient createUnixDomain(String path, ClientCallback<TFlySimpleClient, String> callback) {
+        if (path == null) {
+            throw new NullPointerException("path");
+        }
+        return new TFlySimpleClient(null, 0, path, UnixDomainSocket.address(path), callback);
+    }
+
     /**
      * The port number the client is or will connect on.
      *
@@ -189,6 +310,246 @@ public final class TFlySimpleClient {
         return host;
     }
 
+    /**
+     * The path of the server's Unix domain socket.
+     *
+     * @return the path or null if the client connects over TCP.
+     */
+    public String getUnixDomainSocket() {
+        return unix_domain_socket_path;
+    }
+
+    /**
+     * The transport the client is or will be using to connect.
+     *
+     * @return the {@link Transport} for this client.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Selects the transport used to connect to the server. Takes effect on the
+     * next call to {@link #connect()}.
+     *
+     * If the requested transport isn't available on this platform, the client
+     * falls back to {@link Transport#NIO}.
+     *
+     * @param transport the requested {@link Transport}
+     * @return the current {@link TFlySimpleClient} instance
+     */
+    public TFlySimpleClient withTransport(Transport transport) {
+        if (transport == null) {
+            throw new NullPointerException("transport");
+        }
+        this.transport = transport.isAvailable() ? transport : Transport.NIO;
+        return this;
+    }
+
+    /**
+     * Services this client's connections with the provided group instead of
+     * the group shared by every client using the same transport. Takes effect
+     * on the next call to {@link #connect()}.
+     *
+     * The group must have been created by {@link Transport#newEventLoopGroup(int)}
+     * for this client's transport. The client never shuts it down.
+     *
+     * @param event_group the group to use, or null to use the shared group
+     * @return the current {@link TFlySimpleClient} instance
+     */
+    public TFlySimpleClient withEventLoopGroup(EventLoopGroup event_group) {
+        this.event_group = event_group;
+        return this;
+    }
+
+    /**
+     * The framing the client is or will be using.
+     *
+     * @return the {@link Framing} for this client.
+     */
+    public Framing getFraming() {
+        return framing;
+    }
+
+    /**
+     * Selects how messages are delimited on the wire. Takes effect on the next
+     * call to {@link #connect()}.
+     *
+     * With {@link Framing#LENGTH_PREFIXED}, the client negotiates it with the
+     * first byte it sends, so it works against a server's main port as well as
+     * its length prefixed port (see {@link TFlySimpleServer#withLengthPrefixedPort(int)}).
+     * A message is then always a single request, even if it contains newlines,
+     * and a sequence number override must be given separately (e.g. with
+     * {@link #request(String, long)}) rather than as part of the message.
+     *
+     * @param framing the {@link Framing} to use
+     * @return the current {@link TFlySimpleClient} instance
+     */
+    public TFlySimpleClient withFraming(Framing framing) {
+        if (framing == null) {
+            throw new NullPointerException("framing");
+        }
+        this.framing = framing;
+        return this;
+    }
+
+    /**
+     * Caps how many requests made with {@link #request(String)} may be waiting
+     * for a response. Requests beyond the cap fail immediately with a
+     * {@link RejectedExecutionException}.
+     *
+     * @param maximum_outstanding_requests the most requests that may be outstanding
+     * @return the current {@link TFlySimpleClient} instance
+     */
+    public TFlySimpleClient withMaximumOutstandingRequests(int maximum_outstanding_requests) {
+        if (maximum_outstanding_requests <= 0) {
+            throw new IllegalArgumentException("maximum_outstanding_requests must be positive: " + maximum_outstanding_requests);
+        }
+        this.maximum_outstanding_requests = maximum_outstanding_requests;
+        return this;
+    }
+
+    public int getMaximumOutstandingRequests() {
+        return maximum_outstanding_requests;
+    }
+
+    /**
+     * Sets how long requests made with {@link #request(String)} wait for
+     * their response before failing with a {@link java.util.concurrent.TimeoutException}.
+     *
+     * @param timeout the timeout, or 0 to wait forever
+     * @param unit the unit of timeout
+     * @return the current {@link TFlySimpleClient} instance
+     */
+    public TFlySimpleClient withRequestTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0L) {
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        }
+        this.request_timeout_nanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    public long getRequestTimeout(TimeUnit unit) {
+        return unit.convert(request_timeout_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The number of requests waiting for a response. A request that timed
+     * out is still counted until its response arrives or the connection closes.
+     */
+    public int getOutstandingRequests() {
+        return outstanding_requests.get();
+    }
+
+    /**
+     * The number of requests that failed because their response didn't arrive in time.
+     */
+    public long getRequestTimeouts() {
+        return request_timeouts.get();
+    }
+
+    /**
+     * The number of requests that failed immediately because too many were outstanding.
+     */
+    public long getRejectedRequests() {
+        return rejected_requests.get();
+    }
+
+    /**
+     * Gathers writes and flushes them together using the default thresholds.
+     *
+     * @return the current {@link TFlySimpleClient} instance
+     */
+    public TFlySimpleClient withWriteCoalescing() {
+        return withWriteCoalescing(DEFAULT_COALESCING_MAXIMUM_BYTES, DEFAULT_COALESCING_MAXIMUM_MESSAGES, DEFAULT_COALESCING_LINGER_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Gathers writes and flushes them together. Waiting writes are flushed
+     * once enough bytes or messages are waiting, once the first of them has
+     * lingered for the given time, or when {@link #flush()} is called,
+     * whichever comes first. Applies to {@link #write(String)} and
+     * {@link #request(String)} alike.
+     *
+     * @param maximum_bytes flush once at least this many bytes are waiting
+     * @param maximum_messages flush once this many messages are waiting
+     * @param linger the longest a write waits to be flushed
+     * @param unit the unit of linger
+     * @return the current {@link TFlySimpleClient} instance
+     */
+    public TFlySimpleClient withWriteCoalescing(int maximum_bytes, int maximum_messages, long linger, TimeUnit unit) {
+        if (maximum_bytes <= 0) {
+            throw new IllegalArgumentException("maximum_bytes must be positive: " + maximum_bytes);
+        }
+        if (maximum_messages <= 0) {
+            throw new IllegalArgumentException("maximum_messages must be positive: " + maximum_messages);
+        }
+        if (linger < 0L) {
+            throw new IllegalArgumentException("linger must not be negative: " + linger);
+        }
+        this.coalescing_maximum_bytes = maximum_bytes;
+        this.coalescing_maximum_messages = maximum_messages;
+        this.coalescing_linger_nanos = unit.toNanos(linger);
+        this.write_coalescing = true;
+        return this;
+    }
+
+    /**
+     * Flushes every write as soon as it's made. This is the default.
+     *
+     * @return the current {@link TFlySimpleClient} instance
+     */
+    public TFlySimpleClient withoutWriteCoalescing() {
+        this.write_coalescing = false;
+        flush();
+        return this;
+    }
+
+    public boolean isWriteCoalescing() {
+        return write_coalescing;
+    }
+
+    public int getCoalescingMaximumBytes() {
+        return coalescing_maximum_bytes;
+    }
+
+    public int getCoalescingMaximumMessages() {
+        return coalescing_maximum_messages;
+    }
+
+    public long getCoalescingLinger(TimeUnit unit) {
+        return unit.convert(coalescing_linger_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The number of messages (including requests) flushed to the network.
+     */
+    public long getMessagesWritten() {
+        return messages_written.get();
+    }
+
+    /**
+     * The number of flushes. Each flush is typically a single write syscall,
+     * so messages per flush shows how well writes are being coalesced.
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * Retrieves the shared event loop group for the provided transport, creating it if necessary.
+     */
+    private static EventLoopGroup eventGroup(Transport transport) {
+        synchronized (EVENT_GROUPS) {
+            EventLoopGroup group = EVENT_GROUPS.get(transport);
+            if (group == null) {
+                group = transport.newEventLoopGroup();
+                EVENT_GROUPS.put(transport, group);
+            }
+            return group;
+        }
+    }
+
     /**
      * Describes if the client is currently connected to a server.
      *
@@ -202,21 +563,34 @@ public final class TFlySimpleClient {
      * Opens a connection to a {@link TFlySimpleServer} server.
      *
      * @return an instance of {@link ChannelFuture} that allows interested parties
-     *         to cancel or modify the action.
+     *         to cancel or modify the action. It succeeds once {@link #isConnected()}
+     *         is true.
      */
     public ChannelFuture connect() {
         synchronized (lock) {
             if (isConnected())
                 return connected_future;
 
+            //Unix domain sockets only come in NIO.
+            final EventLoopGroup group = event_group != null ? event_group : eventGroup(unix_domain_socket_path != null ? Transport.NIO : transport);
             this.client_bootstrap = new Bootstrap()
-                .group(EVENT_GROUP)
+                .group(group)
                 .handler(channel_handler)
                 .remoteAddress(remote_address)
-                .channel(channel = new NioSocketChannel())
+                .channel(channel = unix_domain_socket_path != null ? new UnixDomainSocket.StreamChannel(unix_domain_socket_path) : transport.newChannel(group))
             ;
 
-            return (connected_future = client_bootstrap.connect());
+            //Published before connecting, since the client may be marked connected right away.
+            final ChannelFuture ready = connected_future = channel.newFuture();
+            client_bootstrap.connect().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        ready.setFailure(future.cause() != null ? future.cause() : new ChannelException("The connection attempt was cancelled"));
+                    }
+                }
+            });
+            return ready;
         }
     }
 
@@ -227,7 +601,8 @@ public final class TFlySimpleClient {
         synchronized (lock) {
             if (!isConnected() || client_bootstrap == null)
                 return;
-            channel.write(PROTOCOL_NEWLINE).addListener(ChannelFutureListener.CLOSE);
+            //An empty message is a blank line or a close frame, depending on the framing.
+            send(Collections.singletonList("")).addListener(ChannelFutureListener.CLOSE);
         }
     }
 
@@ -238,9 +613,7 @@ public final class TFlySimpleClient {
      *         to cancel or modify the action.
      */
     public ChannelFuture write(String message) {
-        ChannelFuture future = channel.write(message + PROTOCOL_NEWLINE);
-        channel.flush();
-        return  future;
+        return send(message, TFlyBinaryCodec.NO_SEQUENCE_NUMBER);
     }
 
     /**
@@ -252,15 +625,167 @@ public final class TFlySimpleClient {
      * @return an instance of {@link ChannelFuture} that allows interested parties
      *         to cancel or modify the action.
      */
-    public ChannelFuture write(String message, int sequence_number) {
-        if (sequence_number <= 0) {
+    public ChannelFuture write(String message, long sequence_number) {
+        if (sequence_number <= 0L) {
+            throw new IllegalArgumentException("Sequence numbers must be greater than 0");
+        }
+        return send(message, sequence_number);
+    }
+
+    /**
+     * Writes several messages according to established protocol to the server
+     * and flushes them all at once.
+     *
+     * @param messages strings that will come back from the server reversed
+     * @return an instance of {@link ChannelFuture} that's completed once every
+     *         message has been flushed
+     */
+    public ChannelFuture writeAll(Iterable<String> messages) {
+        final List<String> list = new ArrayList<String>();
+        for(String message : messages) {
+            list.add(message);
+        }
+        return send(list);
+    }
+
+    /**
+     * Flushes any writes that are being held back by write coalescing.
+     */
+    public void flush() {
+        final Channel channel = this.channel;
+        final TFlySimplyClientHandler handler = handler(channel);
+        if (handler != null) {
+            handler.flush(channel);
+        }
+    }
+
+    private ChannelFuture send(String message, long sequence_number) {
+        final Channel channel = this.channel;
+        final ChannelFuture future = channel.newFuture();
+        final TFlySimplyClientHandler handler = handler(channel);
+        if (handler == null) {
+            future.setFailure(new ClosedChannelException());
+        } else {
+            handler.write(channel, message, sequence_number, future);
+        }
+        return future;
+    }
+
+    private ChannelFuture send(List<String> messages) {
+        final Channel channel = this.channel;
+        final ChannelFuture future = channel.newFuture();
+        final TFlySimplyClientHandler handler = handler(channel);
+        if (handler == null) {
+            future.setFailure(new ClosedChannelException());
+        } else {
+            handler.writeAndFlush(channel, messages, future);
+        }
+        return future;
+    }
+
+    private static TFlySimplyClientHandler handler(Channel channel) {
+        return channel == null ? null : channel.pipeline().get(TFlySimplyClientHandler.class);
+    }
+
+    /**
+     * Sends a message to the server and returns its response.
+     *
+     * @param message a string that will come back from the server reversed
+     * @return a future completed with the server's response (without the
+     *         trailing newline) on the channel's event loop
+     */
+    public CompletableFuture<String> request(String message) {
+        return request(message, request_timeout_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends a message to the server and returns its response.
+     *
+     * @param message a string that will come back from the server reversed
+     * @param sequence_number a number to attempt to override the sequence number
+     *                        on the server. This may be ignored if it's less than
+     *                        the server's current sequence number.
+     * @return a future completed with the server's response
+     */
+    public CompletableFuture<String> request(String message, long sequence_number) {
+        if (sequence_number <= 0L) {
             throw new IllegalArgumentException("Sequence numbers must be greater than 0");
         }
-        ChannelFuture future = channel.write(message + " " + sequence_number + PROTOCOL_NEWLINE);
-        channel.flush();
+        return request(message, sequence_number, request_timeout_nanos);
+    }
+
+    /**
+     * Sends a message to the server and returns its response.
+     *
+     * The future is completed on the channel's event loop. Dependent stages
+     * that block or do real work should use the async variants of
+     * {@link CompletableFuture}'s methods. The future fails with a
+     * {@link RejectedExecutionException} if too many requests are
+     * outstanding, with a {@link java.util.concurrent.TimeoutException} if the
+     * response doesn't arrive in time, and with a {@link ClosedChannelException}
+     * if the client isn't connected or the connection closes first.
+     *
+     * @param message a string that will come back from the server reversed
+     * @param timeout how long to wait for the response, or 0 to wait forever
+     * @param unit the unit of timeout
+     * @return a future completed with the server's response
+     */
+    public CompletableFuture<String> request(String message, long timeout, TimeUnit unit) {
+        return request(message, TFlyBinaryCodec.NO_SEQUENCE_NUMBER, unit.toNanos(timeout));
+    }
+
+    private CompletableFuture<String> request(String message, long sequence_number, long timeout_nanos) {
+        final Channel channel = this.channel;
+        final TFlySimplyClientHandler handler = handler(channel);
+
+        //Anything that doesn't get exactly one response would throw off the order.
+        if ((handler != null ? handler.getFraming() : framing) == Framing.LENGTH_PREFIXED) {
+            if ("".equals(message)) {
+                throw new IllegalArgumentException("Requests must not be empty");
+            }
+        } else if ("".equals(message.trim()) || message.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Requests must be a single non-blank line");
+        }
+
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        if (handler == null) {
+            future.completeExceptionally(new ClosedChannelException());
+            return future;
+        }
+
+        if (outstanding_requests.incrementAndGet() > maximum_outstanding_requests) {
+            outstanding_requests.decrementAndGet();
+            rejected_requests.incrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException("Too many outstanding requests"));
+            return future;
+        }
+
+        handler.request(channel, new TFlySimplyClientHandler.PendingRequest(message, sequence_number, future, timeout_nanos));
         return future;
     }
 
+    /**
+     * Called by the handler once a request has left its queue.
+     */
+    void requestFinished() {
+        outstanding_requests.decrementAndGet();
+    }
+
+    /**
+     * Called by the handler each time it flushes.
+     */
+    void flushed(int messages) {
+        flushes.incrementAndGet();
+        messages_written.addAndGet(messages);
+    }
+
+    /**
+     * Called by the handler when a request times out.
+     */
+    void requestTimedOut() {
+        request_timeouts.incrementAndGet();
+    }
+
     public static class Callback implements ClientCallback<TFlySimpleClient, String> {
         @Override
         public void connected(TFlySimpleClient tFlySimpleClient, ChannelHandlerContext context) throws InterruptedException {
@@ -3,19 +3,32 @@ package com.ticketfly;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,16 +43,40 @@ import java.util.logging.Logger;
  *     <li>Requests end with a newline ('\n').</li>
  *     <li>The maximum size of an entire request, including the sequence number cannot exceed 10,240 bytes. This is to prevent too much memory consumption.</li>
  *     <li>The server will listen on all available interfaces.</li>
- *     <li>Based on the provided examples, the server maintains an open connection until a client explicitly closes it.</li>
+ *     <li>Based on the provided examples, the server maintains an open connection until a client explicitly closes it,
+ *         unless the connection has sent nothing for the idle timeout (5 minutes by default) or part of a
+ *         request has waited for the rest for the frame timeout (30 seconds by default). Either timeout can be
+ *         changed or disabled (see {@link #withIdleTimeout(long, TimeUnit)} and {@link #withFrameTimeout(long, TimeUnit)}).</li>
  *     <li>A client can close a connection by sending an empty newline ('\n').</li>
  *     <li>The sequence number is shared among clients.</li>
- *     <li>The sequence number is shared among instances of this class.</li>
+ *     <li>The sequence number is shared among instances of this class unless a {@link SequenceSource} is provided.</li>
  *     <li>The sequence number is persisted between client connections.</li>
- *     <li>The sequence number is not persisted or shared between server processes or machines.</li>
- *     <li>The sequence number does not wrap around if it has reached its maximum. Behavior is undefined at that point.</li>
+ *     <li>The sequence number is not persisted between server processes unless a {@link DurableSequenceSource} is provided.</li>
+ *     <li>The sequence number is not shared between server processes or machines.</li>
+ *     <li>The sequence number is a 64-bit value. It wraps around to 1 once it has reached its maximum (see {@link SequenceSource}).</li>
  *     <li>Requests can have digits in them, apart from the sequence number.</li>
+ *     <li>Clients may use {@link Framing#LENGTH_PREFIXED} instead of newlines, either by sending
+ *         {@link TFlyBinaryCodec#NEGOTIATE_LENGTH_PREFIXED} first or by connecting to the
+ *         port given to {@link #withLengthPrefixedPort(int)}.</li>
+ *     <li>Clients on the same machine may connect over a Unix domain socket instead of TCP
+ *         (see {@link #withUnixDomainSocket(String)}).</li>
  * </ol>
  *
+ * While running, the server's {@link TFlyServerMetrics} are registered with
+ * the platform MBean server as <code>com.ticketfly:type=TFlySimpleServer,port=&lt;port&gt;</code>
+ * and, given an admin port ({@link #withAdminPort(int)}), served as Prometheus
+ * text at <code>http://localhost:&lt;admin port&gt;/metrics</code>.
+ *
+ * Several servers, in this process or others, may listen on the same port
+ * when they all ask for it with {@link #withReusePort(boolean)}. The kernel
+ * spreads new connections across them, which lets a replacement process
+ * start before the old one stops. A single server can likewise accept on
+ * several sockets at once, each on its own event loop (see
+ * {@link #withAcceptors(int)}).
+ *
+ * Options such as the {@link Transport} must be configured before the server
+ * is started and take effect on the next call to {@link #start()}.
+ *
  * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
  */
 public final class TFlySimpleServer {
@@ -53,6 +90,47 @@ public final class TFlySimpleServer {
      */
     static final int DEFAULT_MAX_REQUEST_SIZE = 10240;
 
+    /**
+     * By default, responses to a burst of pipelined requests are flushed early
+     * once this many bytes are waiting.
+     */
+    public static final int DEFAULT_MAXIMUM_UNFLUSHED_BYTES = 64 * 1024;
+
+    /**
+     * By default, reads from a connection resume once its unwritten responses drain to this many bytes.
+     */
+    public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+
+    /**
+     * By default, reads from a connection are suspended once this many bytes of its responses are unwritten.
+     */
+    public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+
+    /**
+     * By default, a connection is closed once this many bytes of its responses are unwritten.
+     */
+    public static final int DEFAULT_MAXIMUM_PENDING_OUTBOUND_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * By default, connections are closed after this long without a read.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_SECONDS = 300L;
+
+    /**
+     * By default, connections are closed once part of a request has waited this long for the rest.
+     */
+    public static final long DEFAULT_FRAME_TIMEOUT_SECONDS = 30L;
+
+    /**
+     * Connections waiting to be accepted beyond this many are refused.
+     */
+    private static final int BACKLOG = 100;
+
+    /**
+     * The longest {@link #stop()} waits for the listening socket to be released.
+     */
+    private static final long STOP_TIMEOUT_SECONDS = 5L;
+
     /**
      * The style of newline used by this protocol. Note that is explicitly
      * NOT System.getProperty("line.separator") because our protocol should
@@ -77,6 +155,11 @@ public final class TFlySimpleServer {
      */
     static final StringEncoder STRING_ENCODER = new StringEncoder(Charset.forName("UTF-8"));
 
+    /**
+     * The sequence numbers shared among instances of this class.
+     */
+    static final SequenceSource SHARED_SEQUENCE_SOURCE = new AtomicSequenceSource();
+
     /**
      * {@link Logger} instance.
      */
@@ -98,6 +181,106 @@ public final class TFlySimpleServer {
      */
     private final Object lock = new Object();
 
+    /**
+     * The transport used to accept and service connections.
+     */
+    private Transport transport = Transport.NIO;
+
+    /**
+     * Hands out the sequence numbers for responses.
+     */
+    private SequenceSource sequence_source = SHARED_SEQUENCE_SOURCE;
+
+    /**
+     * Processes requests off the event loops. If null, responses are computed on the event loops.
+     */
+    private ServiceInvoker service;
+
+    /**
+     * The most service calls a single connection may have in flight, or 0 for no limit.
+     */
+    private int maximum_service_calls_per_connection = 0;
+
+    /**
+     * Requests refused because their connection had too many service calls in flight.
+     */
+    private final AtomicLong connection_service_rejections = new AtomicLong(0L);
+
+    /**
+     * Responses are flushed early once a connection has this many unflushed bytes.
+     */
+    private int maximum_unflushed_bytes = DEFAULT_MAXIMUM_UNFLUSHED_BYTES;
+
+    /**
+     * When reads from a connection are suspended and resumed, and when it's closed for not reading.
+     */
+    private OutboundBackpressure.Limits backpressure_limits = OutboundBackpressure.Limits.DEFAULT;
+
+    /**
+     * Flushes of responses computed on the event loops.
+     */
+    private final AtomicLong response_flushes = new AtomicLong(0L);
+
+    /**
+     * Everything the server counts, shared by all of its handlers.
+     */
+    private final TFlyServerMetrics metrics = new TFlyServerMetrics();
+
+    /**
+     * Decides which connections and requests are taken on. Its limits may change while running.
+     */
+    private final TFlyAdmissionControl admission_control = new TFlyAdmissionControl(metrics);
+
+    /**
+     * How long a connection may go without a read, or 0 for no limit.
+     */
+    private long idle_timeout_nanos = TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_SECONDS);
+
+    /**
+     * How long part of a request may wait for the rest, or 0 for no limit.
+     */
+    private long frame_timeout_nanos = TimeUnit.SECONDS.toNanos(DEFAULT_FRAME_TIMEOUT_SECONDS);
+
+    /**
+     * Closes idle and slow connections while running.
+     */
+    private TFlyConnectionReaper reaper;
+
+    /**
+     * The loopback port metrics are served on, or 0 for none.
+     */
+    private int admin_port = 0;
+
+    /**
+     * Serves metrics while running, if there's an admin port.
+     */
+    private TFlyMetricsEndpoint metrics_endpoint;
+
+    /**
+     * The name the metrics are registered under with JMX while running.
+     */
+    private ObjectName metrics_name;
+
+    /**
+     * The port that speaks {@link Framing#LENGTH_PREFIXED} from the first byte, or 0 for none.
+     */
+    private int length_prefixed_port = 0;
+
+    /**
+     * The path of the Unix domain socket to also listen on, or null for none.
+     */
+    private String unix_domain_socket_path = null;
+
+    /**
+     * Whether the listening sockets let others bind the same port (see {@link ReusePort}).
+     */
+    private boolean reuse_port = false;
+
+    /**
+     * Listening sockets on the main port, each accepting on its own event loop.
+     */
+    private int acceptors = 1;
+
     /**
      * Indicates whether the server is currently running or not.
      */
@@ -109,6 +292,28 @@ public final class TFlySimpleServer {
      */
     private ServerBootstrap server_bootstrap;
 
+    /**
+     * The event loops accepting connections while running.
+     */
+    private EventLoopGroup parent_group;
+
+    /**
+     * The channels the server is listening on while running, one per acceptor.
+     */
+    private final List<Channel> server_channels = new ArrayList<Channel>();
+
+    /**
+     * The channel the server is listening on for {@link Framing#LENGTH_PREFIXED}
+     * connections while running, if there's a port for them.
+     */
+    private Channel length_prefixed_channel;
+
+    /**
+     * The channel the server is listening on for Unix domain socket
+     * connections while running, if there's a path for them.
+     */
+    private Channel unix_domain_socket_channel;
+
     /**
      * Private constructor to prevent instantiation outside the class.
      *
@@ -120,26 +325,81 @@ public final class TFlySimpleServer {
     private TFlySimpleServer(int port, int maximum_request_size) {
         this.port = port;
         this.maximum_request_size = maximum_request_size;
-        this.server_bootstrap = new ServerBootstrap()
-            .group(new NioEventLoopGroup(), new NioEventLoopGroup())
-            .channel(new NioServerSocketChannel())
-            .localAddress(port)
-            .option(ChannelOption.SO_BACKLOG, 100)
-            .childOption(ChannelOption.TCP_NODELAY, true)
+    }
+
+    /**
+     * Creates a Netty {@link ServerBootstrap} for one listening socket using the currently configured options.
+     *
+     * @param local_address the address to listen on
+     * @param framing the framing connections use unless they negotiate another
+     * @param server_channel the unbound listening channel
+     */
+    private ServerBootstrap createServerBootstrap(SocketAddress local_address, final Framing framing, EventLoopGroup parent_group, EventLoopGroup child_group, ServerChannel server_channel) {
+        final SequenceSource sequence_source = this.sequence_source;
+        final ServiceInvoker service = this.service;
+        final int maximum_request_size = this.maximum_request_size;
+        final int maximum_service_calls_per_connection = this.maximum_service_calls_per_connection;
+        final int maximum_unflushed_bytes = this.maximum_unflushed_bytes;
+        final OutboundBackpressure.Limits backpressure_limits = this.backpressure_limits;
+        final TFlyServerMetrics metrics = this.metrics;
+        final TFlyAdmissionControl admission_control = this.admission_control;
+        final TFlyConnectionReaper reaper = this.reaper;
+        final ChannelFutureListener connection_closed = new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                metrics.connectionClosed();
+            }
+        };
+        final ServerBootstrap server_bootstrap = new ServerBootstrap()
+            .group(parent_group, child_group)
+            .channel(server_channel)
+            .localAddress(local_address)
             .handler(new LoggingHandler(LogLevel.INFO))
-            .childHandler(new ChannelInitializer<SocketChannel>() {
+            .childHandler(new ChannelInitializer<Channel>() {
+                private ChannelHandler createHandler(Framing framing, TFlyAdmissionControl.Admission admission) {
+                    return service == null
+                        ? new TFlySimpleServerHandler(sequence_source, framing, maximum_unflushed_bytes, response_flushes, metrics, backpressure_limits, admission)
+                        : new TFlyServiceHandler(sequence_source, service, framing, maximum_service_calls_per_connection, connection_service_rejections, metrics, backpressure_limits, admission);
+                }
+
                 @Override
-                public void initChannel(SocketChannel ch) throws Exception {
+                public void initChannel(Channel ch) throws Exception {
+                    final TFlyAdmissionControl.Admission admission = admission_control.admit(ch.remoteAddress());
+                    if (admission == null) {
+                        ch.pipeline().addLast("refusal", new TFlyAdmissionControl.Refusal(framing));
+                        return;
+                    }
+
+                    metrics.connectionOpened();
+                    //Released before the close is counted, so the connection's place is free by the time it looks closed.
+                    ch.closeFuture().addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            admission.release();
+                        }
+                    });
+                    ch.closeFuture().addListener(connection_closed);
+
                     ChannelPipeline pipeline = ch.pipeline();
                     pipeline
-                        .addLast("framer", new DelimiterBasedFrameDecoder(DEFAULT_MAX_REQUEST_SIZE, false, true, PROTOCOL_DELIMITERS))
-                        .addLast("decoder", STRING_DECODER)
-                        .addLast("encoder", STRING_ENCODER)
-                        .addLast("handler", new TFlySimpleServerHandler())
+                        .addLast("negotiator", new TFlyFramingNegotiator(framing, maximum_request_size, reaper.watch(ch)) {
+                            @Override
+                            protected ChannelHandler newHandler(Framing framing) {
+                                return createHandler(framing, admission);
+                            }
+                        })
+                        .addLast(TFlyFramingNegotiator.HANDLER, createHandler(framing, admission))
                     ;
                 }
             })
         ;
+        if (server_channel instanceof ServerSocketChannel) {
+            server_bootstrap
+                .option(ChannelOption.SO_BACKLOG, BACKLOG)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+            ;
+        }
+        return server_bootstrap;
     }
 
     /**
@@ -183,6 +443,571 @@ public final class TFlySimpleServer {
         return maximum_request_size;
     }
 
+    /**
+     * The transport the server is or will be using to accept connections.
+     *
+     * @return the {@link Transport} for this server.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Selects the transport used to accept and service connections. Must be
+     * called before {@link #start()}.
+     *
+     * If the requested transport isn't available on this platform, the server
+     * falls back to {@link Transport#NIO}.
+     *
+     * @param transport the requested {@link Transport}
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withTransport(Transport transport) {
+        if (transport == null) {
+            throw new NullPointerException("transport");
+        }
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The transport cannot be changed while the server is running");
+            }
+            if (!transport.isAvailable()) {
+                logger.log(Level.WARNING, "Transport " + transport + " is not available on this platform, falling back to " + Transport.NIO);
+                transport = Transport.NIO;
+            }
+            this.transport = transport;
+        }
+        return this;
+    }
+
+    /**
+     * The source of sequence numbers the server is or will be using.
+     *
+     * @return the {@link SequenceSource} for this server.
+     */
+    public SequenceSource getSequenceSource() {
+        return sequence_source;
+    }
+
+    /**
+     * Selects where sequence numbers come from. Must be called before {@link #start()}.
+     * By default, all servers in the process share the same sequence.
+     *
+     * @param sequence_source the {@link SequenceSource} to use, for example an
+     *                        {@link AtomicSequenceSource}, a {@link StripedSequenceSource}, or
+     *                        a {@link DurableSequenceSource} to survive restarts.
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withSequenceSource(SequenceSource sequence_source) {
+        if (sequence_source == null) {
+            throw new NullPointerException("sequence_source");
+        }
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The sequence source cannot be changed while the server is running");
+            }
+            this.sequence_source = sequence_source;
+        }
+        return this;
+    }
+
+    /**
+     * The service requests are handed to, if any.
+     *
+     * @return the {@link ServiceInvoker} for this server or null if responses are computed on the event loops.
+     */
+    public ServiceInvoker getService() {
+        return service;
+    }
+
+    /**
+     * Hands every request to a service instead of computing the response on the
+     * event loop. Must be called before {@link #start()}.
+     *
+     * Responses have the same format and per-connection order as without a
+     * service. If the service fails, the client receives
+     * {@link ErrorCode#ERROR_SERVICE_FAILURE} for that request.
+     *
+     * @param service the {@link ServiceInvoker} to use (e.g. an {@link ExecutorServiceInvoker}),
+     *                or null to compute responses on the event loops
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withService(ServiceInvoker service) {
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The service cannot be changed while the server is running");
+            }
+            this.service = service;
+        }
+        return this;
+    }
+
+    /**
+     * The most service calls a single connection may have in flight.
+     *
+     * @return the limit or 0 if there is none.
+     */
+    public int getMaximumServiceCallsPerConnection() {
+        return maximum_service_calls_per_connection;
+    }
+
+    /**
+     * Limits how many service calls a single connection may have in flight, so
+     * one busy client can't take every call the service can handle. Requests
+     * beyond the limit are answered with {@link ErrorCode#ERROR_SERVICE_UNAVAILABLE}.
+     * Must be called before {@link #start()}.
+     *
+     * To limit the calls of the whole server, wrap the service in a {@link BulkheadServiceInvoker}.
+     *
+     * @param maximum the limit, or 0 for no limit
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withMaximumServiceCallsPerConnection(int maximum) {
+        if (maximum < 0) {
+            throw new IllegalArgumentException("maximum must not be negative: " + maximum);
+        }
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The per connection limit cannot be changed while the server is running");
+            }
+            this.maximum_service_calls_per_connection = maximum;
+        }
+        return this;
+    }
+
+    /**
+     * The number of requests refused because their connection had too many service calls in flight.
+     */
+    public long getConnectionServiceRejections() {
+        return connection_service_rejections.get();
+    }
+
+    /**
+     * The most response bytes a connection holds back before flushing.
+     */
+    public int getMaximumUnflushedBytes() {
+        return maximum_unflushed_bytes;
+    }
+
+    /**
+     * Responses to every request in a single read are flushed together once
+     * they've all been written. This caps how many bytes may be held back
+     * before a flush is forced part way through. Must be called before {@link #start()}.
+     *
+     * @param maximum_unflushed_bytes the cap, or 1 to flush after every response
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withMaximumUnflushedBytes(int maximum_unflushed_bytes) {
+        if (maximum_unflushed_bytes <= 0) {
+            throw new IllegalArgumentException("maximum_unflushed_bytes must be positive: " + maximum_unflushed_bytes);
+        }
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The maximum unflushed bytes cannot be changed while the server is running");
+            }
+            this.maximum_unflushed_bytes = maximum_unflushed_bytes;
+        }
+        return this;
+    }
+
+    /**
+     * Reads from a connection resume once its unwritten responses drain to this many bytes.
+     */
+    public int getWriteBufferLowWaterMark() {
+        return backpressure_limits.low_water_mark;
+    }
+
+    /**
+     * Reads from a connection are suspended once this many bytes of its responses are unwritten.
+     */
+    public int getWriteBufferHighWaterMark() {
+        return backpressure_limits.high_water_mark;
+    }
+
+    /**
+     * Keeps a client that sends requests faster than it reads their responses
+     * from filling the server's memory. Once a connection has at least the
+     * high water mark of responses that haven't been written to its socket
+     * yet, the server stops reading from it and stops answering requests it
+     * has already read. Both start again once the backlog drains to the low
+     * water mark. Must be called before {@link #start()}.
+     *
+     * @param low_water_mark the bytes at or below which reads resume
+     * @param high_water_mark the bytes at or above which reads are suspended
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withWriteBufferWaterMarks(int low_water_mark, int high_water_mark) {
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The write buffer water marks cannot be changed while the server is running");
+            }
+            this.backpressure_limits = new OutboundBackpressure.Limits(low_water_mark, high_water_mark, backpressure_limits.maximum_pending_bytes);
+        }
+        return this;
+    }
+
+    /**
+     * A connection is closed once this many bytes of its responses are unwritten.
+     */
+    public int getMaximumPendingOutboundBytes() {
+        return backpressure_limits.maximum_pending_bytes;
+    }
+
+    /**
+     * Caps the responses a single connection may have waiting to be written.
+     * Suspending reads at the high water mark normally keeps a connection well
+     * under this, but responses to work already under way (such as service
+     * calls) are still written. A connection that goes over is closed. Must
+     * be called before {@link #start()}.
+     *
+     * @param maximum the cap, at least the high water mark
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withMaximumPendingOutboundBytes(int maximum) {
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The maximum pending outbound bytes cannot be changed while the server is running");
+            }
+            this.backpressure_limits = new OutboundBackpressure.Limits(backpressure_limits.low_water_mark, backpressure_limits.high_water_mark, maximum);
+        }
+        return this;
+    }
+
+    /**
+     * The most connections the server keeps open at once.
+     *
+     * @return the limit, or 0 if there is none
+     */
+    public int getMaximumConnections() {
+        return admission_control.getMaximumConnections();
+    }
+
+    /**
+     * Limits how many connections the server keeps open at once. Connections
+     * beyond the limit are answered with {@link ErrorCode#ERROR_TOO_MANY_CONNECTIONS}
+     * and closed. May be called while the server is running, in which case
+     * connections already open are left alone.
+     *
+     * @param maximum the limit, or 0 for no limit
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withMaximumConnections(int maximum) {
+        admission_control.setMaximumConnections(maximum);
+        return this;
+    }
+
+    /**
+     * The most connections a single client address keeps open at once.
+     *
+     * @return the limit, or 0 if there is none
+     */
+    public int getMaximumConnectionsPerAddress() {
+        return admission_control.getMaximumConnectionsPerAddress();
+    }
+
+    /**
+     * Limits how many connections a single client address keeps open at once,
+     * so one client can't take every connection the server allows. Connections
+     * beyond the limit are answered with {@link ErrorCode#ERROR_TOO_MANY_CONNECTIONS}
+     * and closed. May be called while the server is running.
+     *
+     * @param maximum the limit, or 0 for no limit
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withMaximumConnectionsPerAddress(int maximum) {
+        admission_control.setMaximumConnectionsPerAddress(maximum);
+        return this;
+    }
+
+    /**
+     * The steady rate of requests allowed from a single client address.
+     *
+     * @return requests per second, or 0 if there is no limit
+     */
+    public double getRequestRateLimitPerAddress() {
+        return admission_control.getRequestsPerSecondPerAddress();
+    }
+
+    /**
+     * Limits the rate of requests from a single client address across all of
+     * its connections. The limit is a token bucket that refills at the given
+     * rate and holds up to the given burst. Requests beyond it are answered
+     * with {@link ErrorCode#ERROR_RATE_LIMITED} rather than queued. May be
+     * called while the server is running.
+     *
+     * @param requests_per_second the steady rate, or 0 for no limit
+     * @param burst the most requests allowed at once after a quiet period
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withRequestRateLimitPerAddress(double requests_per_second, int burst) {
+        admission_control.setRequestRateLimitPerAddress(requests_per_second, burst);
+        return this;
+    }
+
+    /**
+     * How long a connection may go without a read.
+     *
+     * @return the timeout, or 0 if there is none
+     */
+    public long getIdleTimeout(TimeUnit unit) {
+        return unit.convert(idle_timeout_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Closes connections that haven't sent anything for the given time.
+     * Must be called before {@link #start()}.
+     *
+     * @param timeout the timeout, or 0 for no limit
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withIdleTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0L) {
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        }
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The idle timeout cannot be changed while the server is running");
+            }
+            this.idle_timeout_nanos = unit.toNanos(timeout);
+        }
+        return this;
+    }
+
+    /**
+     * How long part of a request may wait for the rest.
+     *
+     * @return the timeout, or 0 if there is none
+     */
+    public long getFrameTimeout(TimeUnit unit) {
+        return unit.convert(frame_timeout_nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Closes connections that have sent part of a request but not the rest
+     * within the given time, so a client can't hold on to a request buffer
+     * by never finishing its request. Must be called before {@link #start()}.
+     *
+     * Connections are checked on a timer shared by the whole server (see
+     * {@link TFlyConnectionReaper}), so they're closed somewhat after their
+     * timeout rather than right at it.
+     *
+     * @param timeout the timeout, or 0 for no limit
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withFrameTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0L) {
+            throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        }
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The frame timeout cannot be changed while the server is running");
+            }
+            this.frame_timeout_nanos = unit.toNanos(timeout);
+        }
+        return this;
+    }
+
+    /**
+     * The number of times responses computed on the event loops were flushed.
+     * Each flush is typically a single write syscall.
+     */
+    public long getResponseFlushes() {
+        return response_flushes.get();
+    }
+
+    /**
+     * Everything the server counts. The counts carry on across restarts.
+     *
+     * @return the {@link TFlyServerMetrics} for this server.
+     */
+    public TFlyServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The loopback port metrics are served on.
+     *
+     * @return the port or 0 if there is none.
+     */
+    public int getAdminPort() {
+        return admin_port;
+    }
+
+    /**
+     * Serves the server's metrics in the Prometheus text format at
+     * <code>/metrics</code> on the given port. Only the loopback interface
+     * listens, so the metrics aren't exposed beyond this machine. Must be
+     * called before {@link #start()}.
+     *
+     * @param port the port, or 0 for none
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withAdminPort(int port) {
+        if (port < 0) {
+            throw new IllegalArgumentException("port must not be negative: " + port);
+        }
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The admin port cannot be changed while the server is running");
+            }
+            this.admin_port = port;
+        }
+        return this;
+    }
+
+    /**
+     * The port that speaks {@link Framing#LENGTH_PREFIXED} from the first byte.
+     *
+     * @return the port or 0 if there is none.
+     */
+    public int getLengthPrefixedPort() {
+        return length_prefixed_port;
+    }
+
+    /**
+     * Also listens on a second port where every connection uses
+     * {@link Framing#LENGTH_PREFIXED}, so clients don't have to negotiate it.
+     * Sending {@link TFlyBinaryCodec#NEGOTIATE_LENGTH_PREFIXED} first is
+     * harmless there. Both ports share the same event loops and options.
+     * Must be called before {@link #start()}.
+     *
+     * @param port the port, or 0 for none
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withLengthPrefixedPort(int port) {
+        if (port < 0) {
+            throw new IllegalArgumentException("port must not be negative: " + port);
+        }
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The length prefixed port cannot be changed while the server is running");
+            }
+            this.length_prefixed_port = port;
+        }
+        return this;
+    }
+
+    /**
+     * The path of the Unix domain socket the server also listens on.
+     *
+     * @return the path or null if there is none.
+     */
+    public String getUnixDomainSocket() {
+        return unix_domain_socket_path;
+    }
+
+    /**
+     * Also listens on a Unix domain socket at the given path, so clients on
+     * the same machine can skip the TCP loopback stack (see
+     * {@link TFlySimpleClient#createUnixDomain(String, ClientCallback)}).
+     * Connections over it are served exactly like those over TCP, with the
+     * same event loops, limits, and options. A socket file left behind by a
+     * server that's gone is replaced, and the socket file is removed when the
+     * server stops. Must be called before {@link #start()}.
+     *
+     * Unix domain sockets are only available from Java 16 on (see
+     * {@link #isUnixDomainSocketSupported()}) and only with
+     * {@link Transport#NIO}. Without them, the server won't start.
+     *
+     * @param path the path of the socket file, or null for none
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withUnixDomainSocket(String path) {
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The Unix domain socket cannot be changed while the server is running");
+            }
+            this.unix_domain_socket_path = path;
+        }
+        return this;
+    }
+
+    /**
+     * Indicates if servers can listen on a Unix domain socket (see {@link #withUnixDomainSocket(String)}).
+     *
+     * @return true if the JDK supports Unix domain sockets.
+     */
+    public static boolean isUnixDomainSocketSupported() {
+        return UnixDomainSocket.isSupported();
+    }
+
+    /**
+     * Indicates if the server's listening sockets let others bind the same port.
+     *
+     * @return true if the port may be shared.
+     */
+    public boolean isReusePort() {
+        return reuse_port || acceptors > 1;
+    }
+
+    /**
+     * Lets other servers, in this process or another, listen on the same
+     * port as long as they ask for it too. New connections are spread across
+     * all of them by the kernel, so a new server process can be started
+     * alongside the old one and the old one stopped once it's taking
+     * connections, without refusing any in between. The
+     * {@link #withLengthPrefixedPort(int) length prefixed port} is shared
+     * the same way. Must be called before {@link #start()}.
+     *
+     * Sharing a port needs <code>SO_REUSEPORT</code>, which is only available
+     * from Java 9 on and only on some platforms (see {@link #isReusePortSupported()}).
+     * Without it, the server won't start.
+     *
+     * @param reuse_port true to share the port
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withReusePort(boolean reuse_port) {
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("Reusing the port cannot be changed while the server is running");
+            }
+            this.reuse_port = reuse_port;
+        }
+        return this;
+    }
+
+    /**
+     * Indicates if servers can share a port on this platform (see {@link #withReusePort(boolean)}).
+     *
+     * @return true if <code>SO_REUSEPORT</code> is available.
+     */
+    public static boolean isReusePortSupported() {
+        return ReusePort.isSupported();
+    }
+
+    /**
+     * The number of sockets the server is or will be accepting connections on.
+     *
+     * @return the number of acceptors.
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Accepts connections on several listening sockets bound to the same
+     * port, each with its own event loop, instead of funneling every new
+     * connection through one. Worth it when connections are opened faster
+     * than a single loop can accept them. More than one acceptor implies
+     * {@link #withReusePort(boolean)}. The
+     * {@link #withLengthPrefixedPort(int) length prefixed port} keeps a single
+     * acceptor. Must be called before {@link #start()}.
+     *
+     * @param acceptors the number of listening sockets, 1 by default
+     * @return the current {@link TFlySimpleServer} instance
+     */
+    public TFlySimpleServer withAcceptors(int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("acceptors must be at least 1: " + acceptors);
+        }
+        synchronized(lock) {
+            if (running) {
+                throw new IllegalStateException("The acceptors cannot be changed while the server is running");
+            }
+            this.acceptors = acceptors;
+        }
+        return this;
+    }
+
     /**
      * Indicates if the server has been started successfully.
      *
@@ -202,16 +1027,86 @@ public final class TFlySimpleServer {
     public TFlySimpleServer start() {
         try {
             synchronized(lock) {
-                server_bootstrap.bind().sync();
+                if (running) {
+                    return this;
+                }
+                final boolean reuse_port = isReusePort();
+                if (reuse_port && !ReusePort.isSupported()) {
+                    throw new IllegalStateException("Reusing the port is not supported on this platform");
+                }
+                if (unix_domain_socket_path != null && (transport != Transport.NIO || !UnixDomainSocket.isSupported())) {
+                    throw new IllegalStateException("Unix domain sockets are not supported by this JDK or transport");
+                }
+                reaper = new TFlyConnectionReaper(idle_timeout_nanos, frame_timeout_nanos, metrics);
+                //Channels are handed the group's loops in turn, so a loop per acceptor gives each its own.
+                parent_group = acceptors > 1 ? transport.newEventLoopGroup(acceptors + (length_prefixed_port > 0 ? 1 : 0) + (unix_domain_socket_path != null ? 1 : 0)) : transport.newEventLoopGroup();
+                final EventLoopGroup child_group = transport.newEventLoopGroup();
+                server_bootstrap = createServerBootstrap(new InetSocketAddress(port), Framing.NEWLINE, parent_group, child_group, transport.newServerChannel(parent_group, child_group, reuse_port));
+                server_channels.add(server_bootstrap.bind().sync().channel());
+                //The rest share the groups, so shutting down the main bootstrap takes care of them all.
+                for(int i = 1; i < acceptors; ++i) {
+                    server_channels.add(createServerBootstrap(new InetSocketAddress(port), Framing.NEWLINE, parent_group, child_group, transport.newServerChannel(parent_group, child_group, true)).bind().sync().channel());
+                }
+                if (length_prefixed_port > 0) {
+                    length_prefixed_channel = createServerBootstrap(new InetSocketAddress(length_prefixed_port), Framing.LENGTH_PREFIXED, parent_group, child_group, transport.newServerChannel(parent_group, child_group, reuse_port)).bind().sync().channel();
+                }
+                if (unix_domain_socket_path != null) {
+                    unix_domain_socket_channel = createServerBootstrap(UnixDomainSocket.address(unix_domain_socket_path), Framing.NEWLINE, parent_group, child_group, new UnixDomainSocket.ServerChannel(unix_domain_socket_path, BACKLOG)).bind().sync().channel();
+                }
+                if (admin_port > 0) {
+                    metrics_endpoint = TFlyMetricsEndpoint.start(admin_port, metrics, port);
+                }
+                registerMetrics();
                 running = true;
             }
         } catch(Throwable t) {
             logger.log(Level.WARNING, "Error starting the server: " + t.getMessage());
-            server_bootstrap.shutdown();
+            closeServerChannels();
+            if (server_bootstrap != null) {
+                server_bootstrap.shutdown();
+                server_bootstrap = null;
+            }
+            if (parent_group != null) {
+                parent_group.shutdown();
+                parent_group = null;
+            }
+            if (reaper != null) {
+                reaper.stop();
+                reaper = null;
+            }
         }
         return this;
     }
 
+    /**
+     * Registers the metrics with the platform MBean server. Failing to do so
+     * isn't worth refusing to start over.
+     */
+    private void registerMetrics() {
+        try {
+            final ObjectName name = new ObjectName("com.ticketfly:type=TFlySimpleServer,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metrics_name = name;
+        } catch(JMException e) {
+            logger.log(Level.WARNING, "Unable to register the server's metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metrics_name == null) {
+            return;
+        }
+        try {
+            final MBeanServer mbean_server = ManagementFactory.getPlatformMBeanServer();
+            if (mbean_server.isRegistered(metrics_name)) {
+                mbean_server.unregisterMBean(metrics_name);
+            }
+        } catch(JMException e) {
+            logger.log(Level.WARNING, "Unable to unregister the server's metrics from JMX: " + e.getMessage());
+        }
+        metrics_name = null;
+    }
+
     /**
      * Closes the socket the server is listening on.
      *
@@ -221,7 +1116,21 @@ public final class TFlySimpleServer {
         synchronized(lock) {
             if (running) {
                 try {
+                    unregisterMetrics();
+                    if (metrics_endpoint != null) {
+                        metrics_endpoint.stop();
+                        metrics_endpoint = null;
+                    }
+                    //Close the listening socket before returning so the port
+                    //can be reused immediately.
+                    closeServerChannels();
                     server_bootstrap.shutdown();
+                    server_bootstrap = null;
+                    //The JDK only releases a listening socket once its selector lets go of it.
+                    awaitTermination(parent_group);
+                    parent_group = null;
+                    reaper.stop();
+                    reaper = null;
                     running = false;
                 } catch(Throwable t) {
                     logger.log(Level.WARNING, "Error stopping the server", t);
@@ -230,4 +1139,29 @@ public final class TFlySimpleServer {
         }
         return this;
     }
+
+    private void closeServerChannels() {
+        for(Channel server_channel : server_channels) {
+            server_channel.close().awaitUninterruptibly();
+        }
+        server_channels.clear();
+        if (length_prefixed_channel != null) {
+            length_prefixed_channel.close().awaitUninterruptibly();
+            length_prefixed_channel = null;
+        }
+        if (unix_domain_socket_channel != null) {
+            unix_domain_socket_channel.close().awaitUninterruptibly();
+            unix_domain_socket_channel = null;
+        }
+    }
+
+    private static void awaitTermination(EventLoopGroup group) {
+        try {
+            if (!group.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.log(Level.WARNING, "The server's event loops did not stop within " + STOP_TIMEOUT_SECONDS + " seconds");
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
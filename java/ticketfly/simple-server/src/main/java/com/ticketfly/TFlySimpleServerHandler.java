@@ -1,34 +1,140 @@
 package com.ticketfly;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.MessageBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundMessageHandlerAdapter;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInboundMessageHandler;
 
 import java.net.BindException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Process incoming requests and is responsible for the behavior defined
  * <a href="https://github.com/Ticketfly/Platform-Engineer-Coding-Exercise">here</a>.
  *
+ * The frame decoder hands over every frame from a read at once. Responses to
+ * all of them are written out together with a single flush at the end of the
+ * burst, so a client pipelining many requests gets them back in as few
+ * writes as possible while a lone request is still answered right away. If
+ * a burst produces more than the maximum unflushed bytes, what's written so
+ * far is flushed early to keep the outbound buffer small.
+ *
+ * A client that sends requests faster than it reads the responses gets its
+ * reads suspended (see {@link OutboundBackpressure}). Frames that were
+ * already read are left in the inbound buffer until the responses drain, so
+ * neither side of the connection grows while the client isn't reading.
+ *
+ * Requests over the client's rate limit are answered with
+ * {@link ErrorCode#ERROR_RATE_LIMITED} (see {@link TFlyAdmissionControl}).
+ *
+ * Frames are either lines ({@link Framing#NEWLINE}) or length-prefixed
+ * ({@link Framing#LENGTH_PREFIXED}), as chosen when the connection was made.
+ *
  * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
  */
-public class TFlySimpleServerHandler extends ChannelInboundMessageHandlerAdapter<String> {
-    private static final Pattern REGEX_MATCH_REQUEST_AND_SEQ_NUMBER = Pattern.compile("([a-zA-Z0-9_\\ ]+)\\ ([0-9]+)([\\r\\n]+)");
-    private static final Pattern REGEX_MATCH_REQUEST_ONLY = Pattern.compile("[a-zA-Z0-9_]+[\\r\\n]+");
-
+public class TFlySimpleServerHandler extends ChannelInboundHandlerAdapter implements ChannelInboundMessageHandler<ByteBuf> {
     private static final Logger logger = Logger.getLogger(TFlySimpleServerHandler.class.getName());
-    private static final AtomicInteger current_sequence_number = new AtomicInteger(0);
+
+    /**
+     * Logs from the event loops without blocking them (see {@link TFlyLog}).
+     */
+    private static final TFlyLog log = TFlyLog.of(logger);
+
+    /**
+     * Hands out sequence numbers. Typically shared with other handlers.
+     */
+    private final SequenceSource sequence_source;
+
+    /**
+     * How this handler's frames are delimited.
+     */
+    private final Framing framing;
+
+    /**
+     * Parses request frames for this handler's channel.
+     */
+    private final TFlyRequestParser parser = new TFlyRequestParser();
+
+    /**
+     * Responses are flushed early once a burst has written at least this many bytes.
+     */
+    private final int maximum_unflushed_bytes;
+
+    /**
+     * Counts flushes. Shared with other handlers.
+     */
+    private final AtomicLong flushes;
+
+    /**
+     * The server's metrics. Shared with other handlers.
+     */
+    private final TFlyServerMetrics metrics;
+
+    /**
+     * Suspends reads while the client is slow to read its responses.
+     */
+    private final OutboundBackpressure backpressure;
+
+    /**
+     * Rate limits this connection's requests.
+     */
+    private final TFlyAdmissionControl.Admission admission;
+
+    /**
+     * Set while frames are being handled, so frames aren't handled again from
+     * within a flush that drained right away.
+     */
+    private boolean processing = false;
+
+    public TFlySimpleServerHandler(SequenceSource sequence_source) {
+        this(sequence_source, TFlySimpleServer.DEFAULT_MAXIMUM_UNFLUSHED_BYTES, new AtomicLong(0L));
+    }
+
+    public TFlySimpleServerHandler(SequenceSource sequence_source, int maximum_unflushed_bytes, AtomicLong flushes) {
+        this(sequence_source, Framing.NEWLINE, maximum_unflushed_bytes, flushes);
+    }
+
+    public TFlySimpleServerHandler(SequenceSource sequence_source, Framing framing, int maximum_unflushed_bytes, AtomicLong flushes) {
+        this(sequence_source, framing, maximum_unflushed_bytes, flushes, new TFlyServerMetrics());
+    }
+
+    public TFlySimpleServerHandler(SequenceSource sequence_source, Framing framing, int maximum_unflushed_bytes, AtomicLong flushes, TFlyServerMetrics metrics) {
+        this(sequence_source, framing, maximum_unflushed_bytes, flushes, metrics, OutboundBackpressure.Limits.DEFAULT, TFlyAdmissionControl.UNLIMITED);
+    }
+
+    TFlySimpleServerHandler(SequenceSource sequence_source, Framing framing, int maximum_unflushed_bytes, AtomicLong flushes, TFlyServerMetrics metrics, OutboundBackpressure.Limits backpressure_limits, TFlyAdmissionControl.Admission admission) {
+        this.sequence_source = sequence_source;
+        this.framing = framing;
+        this.maximum_unflushed_bytes = maximum_unflushed_bytes;
+        this.flushes = flushes;
+        this.metrics = metrics;
+        this.admission = admission;
+        this.backpressure = new OutboundBackpressure(backpressure_limits, metrics, new OutboundBackpressure.Listener() {
+            @Override
+            public void drained(ChannelHandlerContext ctx) throws Exception {
+                if (!processing) {
+                    //Catch up on the frames left behind when reads were suspended.
+                    inboundBufferUpdated(ctx);
+                }
+            }
+        });
+    }
+
+    @Override
+    public MessageBuf<ByteBuf> newInboundBuffer(ChannelHandlerContext ctx) throws Exception {
+        return Unpooled.messageBuffer();
+    }
 
     /**
      * Executed upon client connect.
      */
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        logger.log(Level.INFO, "Client connected: " + ctx.channel());
+        connected(log, ctx);
     }
 
     /**
@@ -36,7 +142,8 @@ public class TFlySimpleServerHandler extends ChannelInboundMessageHandlerAdapter
      */
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        logger.log(Level.INFO, "Client disconnected: " + ctx.channel());
+        ctx.inboundMessageBuffer().clear();
+        disconnected(log, ctx, backpressure);
     }
 
     /**
@@ -44,44 +151,171 @@ public class TFlySimpleServerHandler extends ChannelInboundMessageHandlerAdapter
      */
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        if (cause instanceof BindException) {
-            logger.log(Level.SEVERE, "Unable to bind to the port and start the server.");
-            return;
+        unexpected(logger, log, ctx, cause);
+    }
+
+    /**
+     * Executed when one or more request frames have been received from a client.
+     */
+    @Override
+    public void inboundBufferUpdated(ChannelHandlerContext ctx) throws Exception {
+        processing = true;
+        try {
+            handleFrames(ctx);
+        } finally {
+            processing = false;
         }
+    }
 
-        logger.log(Level.WARNING, "Unexpected exception: ", cause);
-        ctx.close();
+    private void handleFrames(ChannelHandlerContext ctx) {
+        final MessageBuf<ByteBuf> in = ctx.inboundMessageBuffer();
+        final ByteBuf out = ctx.nextOutboundByteBuffer();
+        //Every frame in the buffer arrived with the same read.
+        final long received_nanos = System.nanoTime();
+        final int frame_overhead = framing == Framing.LENGTH_PREFIXED ? TFlyBinaryCodec.LENGTH_FIELD_LENGTH : 0;
+        int unflushed_bytes = 0;
+        int unflushed_responses = 0;
+
+        ByteBuf frame;
+        //Once suspended, the rest of the frames wait for the responses to drain.
+        while(!backpressure.isSuspended() && (frame = in.poll()) != null) {
+            metrics.bytesReceived(frame_overhead + frame.readableBytes());
+            final int start = out.writerIndex();
+            final boolean close;
+            try {
+                close = !messageReceived(ctx, frame, out);
+            } catch(Throwable t) {
+                ctx.fireExceptionCaught(t);
+                continue;
+            }
+            //Flushing may compact the buffer, so count what each frame wrote rather than comparing indexes across flushes.
+            if (out.writerIndex() > start) {
+                unflushed_bytes += out.writerIndex() - start;
+                ++unflushed_responses;
+            }
+
+            if (close) {
+                //Anything after the empty line is ignored.
+                in.clear();
+                if (unflushed_bytes > 0) {
+                    flush(ctx, received_nanos, unflushed_bytes, unflushed_responses);
+                }
+                ctx.close();
+                return;
+            }
+
+            if (unflushed_bytes >= maximum_unflushed_bytes || backpressure.reachesHighWaterMark(unflushed_bytes)) {
+                if (!flush(ctx, received_nanos, unflushed_bytes, unflushed_responses)) {
+                    return;
+                }
+                unflushed_bytes = 0;
+                unflushed_responses = 0;
+            }
+        }
+
+        if (unflushed_bytes > 0) {
+            flush(ctx, received_nanos, unflushed_bytes, unflushed_responses);
+        }
     }
 
     /**
-     * Executed when input has been received from a client.
+     * @return false if the connection was closed for not reading its responses
      */
-    @Override
-    public void messageReceived(ChannelHandlerContext ctx, String input) throws Exception {
-        if (input.length() <= 0) {
-            logger.log(Level.INFO, "Received zero length input from client: " + ctx.channel());
-            ctx.write(ErrorCode.ERROR_MISSING_INPUT);
-            return;
+    private boolean flush(ChannelHandlerContext ctx, long received_nanos, int bytes, int responses) {
+        flushes.incrementAndGet();
+        metrics.bytesSent(bytes);
+        metrics.flushed(received_nanos, responses);
+        if (!backpressure.flush(ctx, bytes)) {
+            log.log(Level.WARNING, TFlyLog.Category.BACKPRESSURE, "Closed a connection that wasn''t reading its responses: {0}", ctx.channel());
+            ctx.inboundMessageBuffer().clear();
+            return false;
         }
+        return true;
+    }
 
-        if ("".equals(input.trim())) {
-            logger.log(Level.INFO, "Received empty line. Closing connection for : " + ctx.channel());
-            ctx.close();
-            return;
+    /**
+     * Handles a single request frame, writing the response into the provided buffer.
+     *
+     * @return false if the client asked to close the connection
+     */
+    private boolean messageReceived(ChannelHandlerContext ctx, ByteBuf frame, ByteBuf out) {
+        if (framing == Framing.LENGTH_PREFIXED) {
+            return lengthPrefixedMessageReceived(ctx, frame, out);
+        }
+
+        if (!frame.readable()) {
+            log.log(Level.INFO, TFlyLog.Category.INVALID_INPUT, "Received zero length input from client: {0}", ctx.channel());
+            metrics.requestFailed(ErrorCode.ERROR_MISSING_INPUT);
+            TFlyResponseEncoder.encodeError(out, ErrorCode.ERROR_MISSING_INPUT);
+            return true;
         }
 
-        ctx.write(processInput(input));
+        if (TFlyRequestParser.isBlank(frame)) {
+            log.log(Level.INFO, TFlyLog.Category.CLOSE, "Received empty line. Closing connection for : {0}", ctx.channel());
+            return false;
+        }
+
+        if (!admission.tryAcquireRequest()) {
+            rateLimited(ctx, out);
+            return true;
+        }
+
+        processInput(frame, out);
+        return true;
+    }
+
+    private void rateLimited(ChannelHandlerContext ctx, ByteBuf out) {
+        log.log(Level.INFO, TFlyLog.Category.ADMISSION, "Rate limited a request from {0}", ctx.channel());
+        metrics.requestFailed(ErrorCode.ERROR_RATE_LIMITED);
+        if (framing == Framing.LENGTH_PREFIXED) {
+            TFlyBinaryCodec.encodeError(out, ErrorCode.ERROR_RATE_LIMITED);
+        } else {
+            TFlyResponseEncoder.encodeError(out, ErrorCode.ERROR_RATE_LIMITED);
+        }
     }
 
     /**
-     * Please see the comments for {@link TFlySimpleServer} and {@link TFlySimpleServerHandler}
-     * for details on approach and assumptions.
+     * Handles a single {@link Framing#LENGTH_PREFIXED} frame. The request text
+     * and sequence number override are already separated by the header, so
+     * there's nothing to parse.
      *
-     * @return a string representing the output we want to relay to the client
+     * @return false if the client asked to close the connection
      */
-    private String processInput(String input) {
-        Matcher matcher;
+    private boolean lengthPrefixedMessageReceived(ChannelHandlerContext ctx, ByteBuf frame, ByteBuf out) {
+        if (TFlyBinaryCodec.isClose(frame)) {
+            log.log(Level.INFO, TFlyLog.Category.CLOSE, "Received close request. Closing connection for : {0}", ctx.channel());
+            return false;
+        }
+
+        if (!admission.tryAcquireRequest()) {
+            rateLimited(ctx, out);
+            return true;
+        }
+
+        final ErrorCode error = TFlyBinaryCodec.validate(frame);
+        if (error != null) {
+            log.log(Level.WARNING, TFlyLog.Category.INVALID_INPUT, "Invalid frame from {0}: {1}", ctx.channel(), error.getMessage());
+            metrics.requestFailed(error);
+            TFlyBinaryCodec.encodeError(out, error);
+            return true;
+        }
+
+        final long sequence_number = TFlyBinaryCodec.sequenceNumber(frame);
+        if (sequence_number != TFlyBinaryCodec.NO_SEQUENCE_NUMBER) {
+            metrics.sequenceOverride(applySequenceNumber(sequence_source, sequence_number));
+        }
+        metrics.requestSucceeded();
+        TFlyBinaryCodec.encodeResponse(out, frame, sequence_source.next());
+        return true;
+    }
 
+    /**
+     * Please see the comments for {@link TFlySimpleServer}, {@link TFlySimpleServerHandler},
+     * and {@link TFlyRequestParser} for details on approach and assumptions.
+     *
+     * Writes the output we want to relay to the client into the provided buffer.
+     */
+    private void processInput(ByteBuf frame, ByteBuf out) {
         //Examples of possible input:
         //
         //    ticketfly   [output: ylftekcit 12]
@@ -89,60 +323,77 @@ public class TFlySimpleServerHandler extends ChannelInboundMessageHandlerAdapter
         //
         //A string, a space, and a number.
         //
-        //We use regular expression pattern matching (pre-compiled) in
-        //order to validate client input (request and sequence number).
+        //The parser validates client input (request and sequence number) in
+        //a single pass over the frame without decoding it.
 
-        if ((matcher = REGEX_MATCH_REQUEST_AND_SEQ_NUMBER.matcher(input)) != null && matcher.matches() && matcher.groupCount() == 3) {
-            //We have the following scenario:
-            //    is_rad 789
-            //We need to extract the integer on the end.
+        final ErrorCode error = parser.parse(frame);
+        if (error != null) {
+            log.log(Level.WARNING, TFlyLog.Category.INVALID_INPUT, "Invalid input: {0}", frame);
+            metrics.requestFailed(error);
+            TFlyResponseEncoder.encodeError(out, error);
+            return;
+        }
 
-            int new_sequence_number;
-            input = matcher.group(1) /*request*/ + matcher.group(3) /*newline*/;
-            try {
-                new_sequence_number = Integer.parseInt(matcher.group(2));
-            } catch(Throwable t) {
-                logger.log(Level.WARNING, "Invalid input: " + input);
-                return ErrorCode.ERROR_INVALID_SEQUENCE_NUMBER.toString();
-            }
+        if (parser.hasSequenceNumber()) {
+            metrics.sequenceOverride(applySequenceNumber(sequence_source, parser.sequenceNumber()));
+        }
 
-            //Double check the validity of our sequence number.
-            //It must be > 0 and greater than our current sequence number.
-            //If it's not, we simply ignore it.
-            if (new_sequence_number > 0 && new_sequence_number > current_sequence_number.get()) {
-                current_sequence_number.set(new_sequence_number);
-            } else {
-                //If we receive an invalid sequence number, we log it and then ignore any
-                //intended side effects.
-                logger.log(Level.INFO, "Received a sequence number that wasn't applicable: " + new_sequence_number);
-            }
+        //At this point, the parser knows where the request text and its
+        //newline(s) are and the sequence has either been moved forward at the
+        //client's request or remains the same from the last invocation.
 
-        } else if ((matcher = REGEX_MATCH_REQUEST_ONLY.matcher(input)) != null && matcher.matches()) {
+        //We now proceed to reverse the request (including its newlines),
+        //append a space, append the sequence number, and then a couple of new
+        //lines in order to mimic the example telnet session output.
+        metrics.requestSucceeded();
+        TFlyResponseEncoder.encodeResponse(out, frame, parser, sequence_source.next());
+    }
 
-            //We have the following scenario:
-            //    ticketfly
-            input = matcher.group();
+    /**
+     * Moves the sequence forward at a client's request.
+     *
+     * @return true if the sequence moved forward, false if the request was ignored
+     */
+    static boolean applySequenceNumber(SequenceSource sequence_source, long new_sequence_number) {
+        //Double check the validity of our sequence number.
+        //It must be > 0 and greater than our current sequence number.
+        //If it's not, we simply ignore it.
+        if (new_sequence_number <= 0L || !sequence_source.advanceTo(new_sequence_number)) {
+            //If we receive an invalid sequence number, we log it and then ignore any
+            //intended side effects.
+            log.log(Level.INFO, TFlyLog.Category.SEQUENCE_NUMBER, "Received a sequence number that wasn''t applicable: {0,number,#}", new_sequence_number);
+            return false;
+        }
+        return true;
+    }
 
-        } else {
+    /**
+     * Logs a client connecting. Shared with {@link TFlyServiceHandler}.
+     */
+    static void connected(TFlyLog log, ChannelHandlerContext ctx) {
+        log.log(Level.INFO, TFlyLog.Category.CONNECTION, "Client connected: {0}", ctx.channel());
+    }
 
-            logger.log(Level.WARNING, "Invalid input: " + input);
-            return ErrorCode.ERROR_INVALID_INPUT_FORMAT.toString();
+    /**
+     * Logs a client disconnecting and releases what its backpressure was holding.
+     * Shared with {@link TFlyServiceHandler}.
+     */
+    static void disconnected(TFlyLog log, ChannelHandlerContext ctx, OutboundBackpressure backpressure) {
+        log.log(Level.INFO, TFlyLog.Category.CONNECTION, "Client disconnected: {0}", ctx.channel());
+        backpressure.closed();
+    }
 
+    /**
+     * Logs an exception thrown by netty and closes the connection it came from.
+     * Shared with {@link TFlyServiceHandler}.
+     */
+    static void unexpected(Logger logger, TFlyLog log, ChannelHandlerContext ctx, Throwable cause) {
+        if (cause instanceof BindException) {
+            logger.log(Level.SEVERE, "Unable to bind to the port and start the server.");
+            return;
         }
 
-        //At this point, input contains just the request text and
-        //current_sequence_number has either been updated at the client's
-        //request or remains the same from the last invocation.
-
-        //We now proceed to reverse the request, append a space, append
-        //the sequence number, and then a couple of new lines in order
-        //to mimic the example telnet session output.
-        StringBuilder output = new StringBuilder(input).reverse();
-        output.append(' ');
-        output.append(current_sequence_number.incrementAndGet());
-        output.append(TFlySimpleServer.PROTOCOL_NEWLINE);
-        output.append(TFlySimpleServer.PROTOCOL_NEWLINE);
-
-        return output.toString();
+        log.log(Level.WARNING, TFlyLog.Category.UNEXPECTED, "Unexpected exception: ", cause);
+        ctx.close();
     }
 }
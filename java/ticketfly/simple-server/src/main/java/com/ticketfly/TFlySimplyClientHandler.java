@@ -1,11 +1,44 @@
 package com.ticketfly;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundMessageHandlerAdapter;
+import io.netty.util.CharsetUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Handles data processing from/to a {@link TFlySimpleServer} server.
  *
+ * Also correlates requests made with {@link TFlySimpleClient#request(String)}
+ * with their responses. The server answers every request on a connection
+ * with exactly one non-blank line, in the order the requests arrived, so
+ * each non-blank line completes the oldest outstanding request. The queue of
+ * outstanding requests is only ever touched on the channel's event loop.
+ *
+ * Every outgoing message is written here, on the event loop, straight into the
+ * channel's outbound buffer. Whether it's flushed right away or held until
+ * more messages have been written is decided by the client's write coalescing
+ * settings. See {@link TFlySimpleClient#withWriteCoalescing(int, int, long, TimeUnit)}.
+ *
+ * Messages are encoded for the connection's {@link Framing}. With
+ * {@link Framing#LENGTH_PREFIXED}, the negotiation byte goes out with the
+ * first flush, and responses arrive already decoded into the same lines a
+ * {@link Framing#NEWLINE} server would send. An empty message asks the server
+ * to close the connection either way.
+ *
  * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
  */
 public class TFlySimplyClientHandler extends ChannelInboundMessageHandlerAdapter<String> {
@@ -13,8 +46,63 @@ public class TFlySimplyClientHandler extends ChannelInboundMessageHandlerAdapter
     private CrossCallback on_connect, on_disconnect;
     private ClientCallback<TFlySimpleClient, String> callback;
 
+    /**
+     * How messages are delimited on this connection.
+     */
+    private final Framing framing;
+
+    /**
+     * Requests that haven't been answered yet, in the order they were written.
+     */
+    private final Queue<PendingRequest> pending = new ArrayDeque<PendingRequest>();
+
+    /**
+     * The context of this handler once the channel is active.
+     */
+    private ChannelHandlerContext ctx;
+
+    /**
+     * Messages written to the outbound buffer but not yet flushed.
+     */
+    private int unflushed_messages = 0;
+    private int unflushed_bytes = 0;
+
+    /**
+     * The futures of unflushed writes. They're completed once their flush is.
+     */
+    private List<ChannelFuture> unflushed_futures = new ArrayList<ChannelFuture>();
+
+    /**
+     * Flushes whatever is unflushed once the linger expires.
+     */
+    private ScheduledFuture<?> linger_timer;
+
+    /**
+     * A request waiting for its response.
+     */
+    static final class PendingRequest {
+        final String message;
+        final long sequence_number;
+        final CompletableFuture<String> future;
+        final long timeout_nanos;
+
+        ScheduledFuture<?> timer;
+
+        PendingRequest(String message, long sequence_number, CompletableFuture<String> future, long timeout_nanos) {
+            this.message = message;
+            this.sequence_number = sequence_number;
+            this.future = future;
+            this.timeout_nanos = timeout_nanos;
+        }
+    }
+
     public TFlySimplyClientHandler(TFlySimpleClient client, ClientCallback<TFlySimpleClient, String> callback, CrossCallback on_connect, CrossCallback on_disconnect) {
+        this(client, Framing.NEWLINE, callback, on_connect, on_disconnect);
+    }
+
+    public TFlySimplyClientHandler(TFlySimpleClient client, Framing framing, ClientCallback<TFlySimpleClient, String> callback, CrossCallback on_connect, CrossCallback on_disconnect) {
         this.client = client;
+        this.framing = framing;
         this.callback = callback;
         this.on_connect = on_connect;
         this.on_disconnect = on_disconnect;
@@ -22,6 +110,10 @@ public class TFlySimplyClientHandler extends ChannelInboundMessageHandlerAdapter
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        if (framing == Framing.LENGTH_PREFIXED) {
+            ctx.nextOutboundByteBuffer().writeByte(TFlyBinaryCodec.NEGOTIATE_LENGTH_PREFIXED);
+        }
         on_connect.callback();
         if (callback != null) {
             callback.connected(client, ctx);
@@ -31,6 +123,18 @@ public class TFlySimplyClientHandler extends ChannelInboundMessageHandlerAdapter
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         on_disconnect.callback();
+        if (linger_timer != null) {
+            linger_timer.cancel(false);
+            linger_timer = null;
+        }
+        for(ChannelFuture future : unflushed_futures) {
+            future.setFailure(new ClosedChannelException());
+        }
+        unflushed_futures.clear();
+        PendingRequest request;
+        while((request = pending.poll()) != null) {
+            finish(request, null, new ClosedChannelException());
+        }
         if (callback != null) {
             callback.disconnected(client, ctx);
         }
@@ -41,5 +145,237 @@ public class TFlySimplyClientHandler extends ChannelInboundMessageHandlerAdapter
         if (callback != null) {
             callback.dataReceived(client, msg);
         }
+
+        if (pending.isEmpty() || "".equals(msg.trim())) {
+            return;
+        }
+        final String response = msg.endsWith(TFlySimpleServer.PROTOCOL_NEWLINE)
+            ? msg.substring(0, msg.length() - TFlySimpleServer.PROTOCOL_NEWLINE.length())
+            : msg;
+        finish(pending.poll(), response, null);
+    }
+
+    /**
+     * Queues a request and writes it to the channel. May be called from any thread.
+     */
+    void request(final Channel channel, final PendingRequest request) {
+        if (!channel.eventLoop().inEventLoop()) {
+            try {
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        request(channel, request);
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                finish(request, null, new ClosedChannelException());
+            }
+            return;
+        }
+
+        if (!isWritable(channel)) {
+            finish(request, null, new ClosedChannelException());
+            return;
+        }
+
+        //The request keeps its place in the queue even if it times out, since its response is still on the way.
+        pending.add(request);
+        if (request.timeout_nanos > 0L) {
+            request.timer = channel.eventLoop().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    //Only the event loop completes the future, so it can't be completed in between. Counting first means the count is up to date once the caller sees the timeout.
+                    if (!request.future.isDone()) {
+                        client.requestTimedOut();
+                        request.future.completeExceptionally(new TimeoutException("No response within " + TimeUnit.NANOSECONDS.toMillis(request.timeout_nanos) + " ms"));
+                    }
+                }
+            }, request.timeout_nanos, TimeUnit.NANOSECONDS);
+        }
+
+        //If the write fails, responses can no longer be matched up. Closing fails every outstanding request.
+        final ChannelFuture future = channel.newFuture();
+        future.addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        send(request.message, request.sequence_number, future);
+    }
+
+    /**
+     * Writes a message, flushing according to the client's coalescing settings. May be called from any thread.
+     *
+     * @param sequence_number the sequence number override, or {@link TFlyBinaryCodec#NO_SEQUENCE_NUMBER}
+     */
+    void write(final Channel channel, final String message, final long sequence_number, final ChannelFuture future) {
+        if (!channel.eventLoop().inEventLoop()) {
+            try {
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(channel, message, sequence_number, future);
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                future.setFailure(new ClosedChannelException());
+            }
+            return;
+        }
+
+        if (!isWritable(channel)) {
+            future.setFailure(new ClosedChannelException());
+            return;
+        }
+        send(message, sequence_number, future);
+    }
+
+    /**
+     * Writes several messages and flushes them (along with anything else unflushed)
+     * at once. The future is completed by the flush. May be called from any thread.
+     */
+    void writeAndFlush(final Channel channel, final List<String> messages, final ChannelFuture future) {
+        if (!channel.eventLoop().inEventLoop()) {
+            try {
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeAndFlush(channel, messages, future);
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                future.setFailure(new ClosedChannelException());
+            }
+            return;
+        }
+
+        if (!isWritable(channel)) {
+            future.setFailure(new ClosedChannelException());
+            return;
+        }
+        for(int i = 0; i < messages.size(); ++i) {
+            buffer(messages.get(i), TFlyBinaryCodec.NO_SEQUENCE_NUMBER, i == messages.size() - 1 ? future : null);
+        }
+        flush();
+    }
+
+    /**
+     * Flushes anything unflushed. May be called from any thread.
+     */
+    void flush(final Channel channel) {
+        if (!channel.eventLoop().inEventLoop()) {
+            try {
+                channel.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(channel);
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                //Closed. There's nothing left to flush.
+            }
+            return;
+        }
+
+        if (isWritable(channel)) {
+            flush();
+        }
+    }
+
+    Framing getFraming() {
+        return framing;
+    }
+
+    private boolean isWritable(Channel channel) {
+        return ctx != null && channel.isActive();
+    }
+
+    /**
+     * Writes a message and decides whether to flush now or later.
+     */
+    private void send(String message, long sequence_number, ChannelFuture future) {
+        buffer(message, sequence_number, future);
+        if (!client.isWriteCoalescing()
+            || unflushed_messages >= client.getCoalescingMaximumMessages()
+            || unflushed_bytes >= client.getCoalescingMaximumBytes()) {
+            flush();
+        } else if (linger_timer == null) {
+            linger_timer = ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    linger_timer = null;
+                    if (ctx.channel().isActive()) {
+                        flush();
+                    }
+                }
+            }, client.getCoalescingLinger(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Encodes a message into the outbound buffer without flushing it.
+     */
+    private void buffer(String message, long sequence_number, ChannelFuture future) {
+        final ByteBuf out = ctx.nextOutboundByteBuffer();
+        final int start = out.writerIndex();
+        if (framing == Framing.LENGTH_PREFIXED) {
+            if ("".equals(message)) {
+                TFlyBinaryCodec.encodeClose(out);
+            } else {
+                TFlyBinaryCodec.encodeRequest(out, message.getBytes(CharsetUtil.UTF_8), sequence_number);
+            }
+        } else {
+            final String line = sequence_number == TFlyBinaryCodec.NO_SEQUENCE_NUMBER
+                ? message + TFlySimpleServer.PROTOCOL_NEWLINE
+                : message + " " + sequence_number + TFlySimpleServer.PROTOCOL_NEWLINE;
+            out.writeBytes(line.getBytes(CharsetUtil.UTF_8));
+        }
+        ++unflushed_messages;
+        unflushed_bytes += out.writerIndex() - start;
+        if (future != null) {
+            unflushed_futures.add(future);
+        }
+    }
+
+    private void flush() {
+        if (linger_timer != null) {
+            linger_timer.cancel(false);
+            linger_timer = null;
+        }
+        if (unflushed_messages == 0) {
+            return;
+        }
+
+        client.flushed(unflushed_messages);
+        unflushed_messages = 0;
+        unflushed_bytes = 0;
+
+        if (unflushed_futures.size() == 1) {
+            ctx.flush(unflushed_futures.remove(0));
+            return;
+        }
+
+        final List<ChannelFuture> futures = unflushed_futures;
+        unflushed_futures = new ArrayList<ChannelFuture>();
+        ctx.flush().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture flushed) throws Exception {
+                for(ChannelFuture future : futures) {
+                    if (flushed.isSuccess()) {
+                        future.setSuccess();
+                    } else {
+                        future.setFailure(flushed.cause());
+                    }
+                }
+            }
+        });
+    }
+
+    private void finish(PendingRequest request, String response, Throwable cause) {
+        if (request.timer != null) {
+            request.timer.cancel(false);
+        }
+        client.requestFinished();
+        if (cause != null) {
+            request.future.completeExceptionally(cause);
+        } else {
+            request.future.complete(response);
+        }
     }
 }
@@ -0,0 +1,150 @@
+package com.ticketfly;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.socket.aio.AioEventLoopGroup;
+import io.netty.channel.socket.aio.AioServerSocketChannel;
+import io.netty.channel.socket.aio.AioSocketChannel;
+import io.netty.channel.socket.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.nio.channels.spi.AsynchronousChannelProvider;
+
+/**
+ * Describes the transport layer used by {@link TFlySimpleServer} and
+ * {@link TFlySimpleClient} to move bytes on and off the network.
+ *
+ * The version of netty this project is built against does not ship a
+ * native (JNI) epoll transport. The closest equivalent is {@link #AIO},
+ * which is built on the JDK's asynchronous channels. On Linux the JDK
+ * drives those from a single epoll port shared by the whole event loop
+ * group instead of one selector per event loop, which is why it's the
+ * preferred transport there. Everywhere else we fall back to {@link #NIO}.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+public enum Transport {
+      NIO {
+        @Override
+        EventLoopGroup newEventLoopGroup() {
+            return new NioEventLoopGroup();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        ServerChannel newServerChannel(EventLoopGroup parent_group, EventLoopGroup child_group, boolean reuse_port) {
+            return reuse_port ? new ReusePort.NioServerChannel() : new NioChannels.ServerChannel();
+        }
+
+        @Override
+        Channel newChannel(EventLoopGroup group) {
+            return new NioSocketChannel();
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+    }
+    , AIO {
+        @Override
+        EventLoopGroup newEventLoopGroup() {
+            return new AioEventLoopGroup();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new AioEventLoopGroup(threads);
+        }
+
+        @Override
+        ServerChannel newServerChannel(EventLoopGroup parent_group, EventLoopGroup child_group, boolean reuse_port) {
+            return reuse_port
+                ? new ReusePort.AioServerChannel((AioEventLoopGroup)parent_group, (AioEventLoopGroup)child_group)
+                : new AioServerSocketChannel((AioEventLoopGroup)parent_group, (AioEventLoopGroup)child_group);
+        }
+
+        @Override
+        Channel newChannel(EventLoopGroup group) {
+            return new AioSocketChannel((AioEventLoopGroup)group);
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return AIO_AVAILABLE;
+        }
+    }
+    ;
+
+    /**
+     * True if the JDK's asynchronous channel provider is the epoll-backed
+     * Linux implementation.
+     */
+    private static final boolean AIO_AVAILABLE = isEpollBackedAsynchronousChannelProvider();
+
+    /**
+     * Creates a new group of event loops that can service channels for this transport.
+     */
+    abstract EventLoopGroup newEventLoopGroup();
+
+    /**
+     * Creates a new group of event loops with the given number of threads.
+     * The group can be shared by any number of clients (see
+     * {@link TFlySimpleClient#withEventLoopGroup(EventLoopGroup)} and
+     * {@link TFlyClientPool#withEventLoopGroup(EventLoopGroup)}) and must be
+     * shut down by whoever created it.
+     *
+     * @param threads the number of event loops in the group
+     * @return a new {@link EventLoopGroup} for this transport
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    /**
+     * Creates a new listening channel. The provided groups must have been created
+     * by {@link #newEventLoopGroup()} on the same transport.
+     */
+    ServerChannel newServerChannel(EventLoopGroup parent_group, EventLoopGroup child_group) {
+        return newServerChannel(parent_group, child_group, false);
+    }
+
+    /**
+     * Creates a new listening channel, optionally one that shares its port
+     * with other listening sockets (see {@link ReusePort}).
+     */
+    abstract ServerChannel newServerChannel(EventLoopGroup parent_group, EventLoopGroup child_group, boolean reuse_port);
+
+    /**
+     * Creates a new (unconnected) client channel. The provided group must have
+     * been created by {@link #newEventLoopGroup()} on the same transport.
+     */
+    abstract Channel newChannel(EventLoopGroup group);
+
+    /**
+     * Indicates if this transport can be used on the current platform.
+     *
+     * @return true if channels for this transport can be created.
+     */
+    public abstract boolean isAvailable();
+
+    /**
+     * The best transport available on the current platform.
+     *
+     * @return {@link #AIO} if it's available, otherwise {@link #NIO}.
+     */
+    public static Transport preferred() {
+        return AIO.isAvailable() ? AIO : NIO;
+    }
+
+    private static boolean isEpollBackedAsynchronousChannelProvider() {
+        try {
+            return AsynchronousChannelProvider.provider().getClass().getName().startsWith("sun.nio.ch.Linux");
+        } catch(Throwable t) {
+            return false;
+        }
+    }
+}
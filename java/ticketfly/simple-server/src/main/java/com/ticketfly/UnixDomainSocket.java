@@ -0,0 +1,516 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ChannelBufType;
+import io.netty.buffer.MessageBuf;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelMetadata;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultChannelConfig;
+import io.netty.channel.socket.nio.AbstractNioChannel;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.BindException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Netty channels for Unix domain sockets, so clients on the same machine
+ * as the server can skip the TCP loopback stack entirely.
+ *
+ * The JDK only has Unix domain sockets from 16 on, so they're looked up at
+ * runtime. The version of netty this project is built against doesn't have
+ * them at all, and its NIO socket channels insist on a {@link java.net.Socket}
+ * underneath, which Unix domain socket channels don't have. The channels
+ * here are the same as netty's NIO channels otherwise and run on the same
+ * {@link Transport#NIO} event loops. Like {@link NioChannels}, connections
+ * read a bounded amount at a time and nothing while their reads are
+ * suspended, so {@link OutboundBackpressure} holds back slow clients here too.
+ *
+ * Neither end of a Unix domain socket connection has an internet address,
+ * so their {@link io.netty.channel.Channel#localAddress()} and
+ * {@link io.netty.channel.Channel#remoteAddress()} are always null.
+ *
+ * Netty's {@link io.netty.channel.AbstractChannel} implements the generic
+ * <code>outboundMessageBuffer()</code> of {@link io.netty.channel.Channel}
+ * with a raw override that can't be replaced, hence the suppressed warnings.
+ *
+ * @author David Hoyt &lt;dhoyt@hoytsoft.org&gt;
+ */
+final class UnixDomainSocket {
+    /**
+     * <code>StandardProtocolFamily.UNIX</code>, or null if the JDK doesn't have it.
+     */
+    private static final ProtocolFamily UNIX = lookupFamily();
+
+    private static final Method ADDRESS_OF = lookup("java.net.UnixDomainSocketAddress", "of", String.class);
+    private static final Method OPEN_SERVER = lookup(ServerSocketChannel.class.getName(), "open", ProtocolFamily.class);
+    private static final Method OPEN = lookup(SocketChannel.class.getName(), "open", ProtocolFamily.class);
+
+    /**
+     * The file type bits of a <code>unix:mode</code> attribute, and their value for a socket.
+     */
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private UnixDomainSocket() {
+    }
+
+    /**
+     * Indicates if the JDK supports Unix domain sockets.
+     */
+    static boolean isSupported() {
+        return UNIX != null && ADDRESS_OF != null && OPEN_SERVER != null && OPEN != null;
+    }
+
+    private static ProtocolFamily lookupFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch(IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static Method lookup(String class_name, String method_name, Class<?> parameter_type) {
+        try {
+            return Class.forName(class_name).getMethod(method_name, parameter_type);
+        } catch(ClassNotFoundException e) {
+            return null;
+        } catch(NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object argument) throws IOException {
+        if (!isSupported()) {
+            throw new ChannelException("Unix domain sockets are not supported by this JDK");
+        }
+        try {
+            return method.invoke(null, argument);
+        } catch(IllegalAccessException e) {
+            throw new ChannelException(e);
+        } catch(InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new ChannelException(e.getCause());
+        }
+    }
+
+    /**
+     * The address of the socket file at the given path.
+     */
+    static SocketAddress address(String path) {
+        try {
+            return (SocketAddress)invoke(ADDRESS_OF, path);
+        } catch(IOException e) {
+            throw new ChannelException(e);
+        }
+    }
+
+    /**
+     * Indicates if the file at the given path is a socket file. Where the
+     * file system doesn't say, anything that isn't a regular file, directory
+     * or link is taken to be one.
+     */
+    static boolean isSocketFile(Path path) throws IOException {
+        try {
+            final int mode = (Integer)Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        } catch(UnsupportedOperationException e) {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        } catch(IllegalArgumentException e) {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    /**
+     * A listening Unix domain socket. Binding it replaces a socket file
+     * left behind by a server that's gone, but not one that's still accepting
+     * connections, and never anything that isn't a socket file. The socket
+     * file is removed when it's closed.
+     */
+    @SuppressWarnings("unchecked")
+    static final class ServerChannel extends AbstractNioChannel implements io.netty.channel.ServerChannel {
+        private static final ChannelMetadata METADATA = new ChannelMetadata(ChannelBufType.MESSAGE, false);
+
+        private final ChannelConfig config = new DefaultChannelConfig();
+        private final String path;
+        private final int backlog;
+        private volatile boolean bound = false;
+
+        ServerChannel(String path, int backlog) {
+            super(null, null, openServer(), SelectionKey.OP_ACCEPT);
+            this.path = path;
+            this.backlog = backlog;
+        }
+
+        private static ServerSocketChannel openServer() {
+            try {
+                return (ServerSocketChannel)invoke(OPEN_SERVER, UNIX);
+            } catch(IOException e) {
+                throw new ChannelException("Failed to open a server socket.", e);
+            }
+        }
+
+        @Override
+        public ChannelMetadata metadata() {
+            return METADATA;
+        }
+
+        @Override
+        public ChannelConfig config() {
+            return config;
+        }
+
+        @Override
+        public boolean isActive() {
+            return bound && isOpen();
+        }
+
+        @Override
+        protected ServerSocketChannel javaChannel() {
+            return (ServerSocketChannel)super.javaChannel();
+        }
+
+        @Override
+        protected SocketAddress localAddress0() {
+            return null;
+        }
+
+        @Override
+        protected SocketAddress remoteAddress0() {
+            return null;
+        }
+
+        @Override
+        protected void doBind(SocketAddress local_address) throws Exception {
+            final Path file = Paths.get(path);
+            if (Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+                if (!isSocketFile(file)) {
+                    throw new BindException("Not a socket file: " + path);
+                }
+                boolean in_use;
+                final SocketChannel probe = (SocketChannel)invoke(OPEN, UNIX);
+                try {
+                    in_use = probe.connect(local_address);
+                } catch(IOException e) {
+                    in_use = false;
+                } finally {
+                    probe.close();
+                }
+                if (in_use) {
+                    throw new BindException("Address already in use: " + path);
+                }
+                //Nothing is listening on it anymore.
+                Files.deleteIfExists(file);
+            }
+            javaChannel().bind(local_address, backlog);
+            bound = true;
+            final SelectionKey selection_key = selectionKey();
+            selection_key.interestOps(selection_key.interestOps() | SelectionKey.OP_ACCEPT);
+        }
+
+        @Override
+        protected void doClose() throws Exception {
+            javaChannel().close();
+            if (bound) {
+                Files.deleteIfExists(Paths.get(path));
+            }
+        }
+
+        @Override
+        protected void doDisconnect() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected boolean doConnect(SocketAddress remote_address, SocketAddress local_address) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void doFinishConnect() throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected AbstractNioUnsafe newUnsafe() {
+            return new ServerUnsafe();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[id: 0x%08x, unix:%s]", id(), path);
+        }
+
+        private final class ServerUnsafe extends AbstractNioUnsafe {
+            @Override
+            public void read() {
+                final ChannelPipeline pipeline = pipeline();
+                final MessageBuf<Object> accepted = pipeline.inboundMessageBuffer();
+                boolean read = false;
+                try {
+                    SocketChannel ch;
+                    while((ch = javaChannel().accept()) != null) {
+                        accepted.add(new StreamChannel(ServerChannel.this, ch, path));
+                        read = true;
+                    }
+                } catch(Throwable t) {
+                    //Running out of file descriptors, for one, shouldn't stop the server from listening.
+                    pipeline.fireExceptionCaught(t);
+                } finally {
+                    if (read) {
+                        pipeline.fireInboundBufferUpdated();
+                    }
+                }
+            }
+
+            @Override
+            public void suspendRead() {
+                selectionKey().interestOps(selectionKey().interestOps() & ~SelectionKey.OP_ACCEPT);
+            }
+
+            @Override
+            public void resumeRead() {
+                selectionKey().interestOps(selectionKey().interestOps() | SelectionKey.OP_ACCEPT);
+            }
+        }
+    }
+
+    /**
+     * A connected Unix domain socket, either accepted by a {@link ServerChannel}
+     * or connected to one by a client.
+     */
+    @SuppressWarnings("unchecked")
+    static final class StreamChannel extends AbstractNioChannel {
+        private static final ChannelMetadata METADATA = new ChannelMetadata(ChannelBufType.BYTE, false);
+
+        /**
+         * How much the inbound buffer grows by when a read fills it.
+         */
+        private static final int READ_BUFFER_INCREMENT = 4096;
+
+        private final ChannelConfig config = new DefaultChannelConfig();
+        private final String path;
+
+        /**
+         * A client's end of a connection to the socket file at the given path.
+         */
+        StreamChannel(String path) {
+            super(null, null, open(), SelectionKey.OP_READ);
+            this.path = path;
+        }
+
+        private StreamChannel(ServerChannel parent, SocketChannel ch, String path) {
+            super(parent, null, ch, SelectionKey.OP_READ);
+            this.path = path;
+        }
+
+        private static SocketChannel open() {
+            try {
+                return (SocketChannel)invoke(OPEN, UNIX);
+            } catch(IOException e) {
+                throw new ChannelException("Failed to open a socket.", e);
+            }
+        }
+
+        @Override
+        public ChannelMetadata metadata() {
+            return METADATA;
+        }
+
+        @Override
+        public ChannelConfig config() {
+            return config;
+        }
+
+        @Override
+        public boolean isActive() {
+            final SocketChannel ch = javaChannel();
+            return ch.isOpen() && ch.isConnected();
+        }
+
+        @Override
+        protected SocketChannel javaChannel() {
+            return (SocketChannel)super.javaChannel();
+        }
+
+        @Override
+        protected SocketAddress localAddress0() {
+            return null;
+        }
+
+        @Override
+        protected SocketAddress remoteAddress0() {
+            return null;
+        }
+
+        @Override
+        protected void doBind(SocketAddress local_address) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected boolean doConnect(SocketAddress remote_address, SocketAddress local_address) throws Exception {
+            boolean success = false;
+            try {
+                final boolean connected = javaChannel().connect(remote_address);
+                selectionKey().interestOps(connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+                success = true;
+                return connected;
+            } finally {
+                if (!success) {
+                    doClose();
+                }
+            }
+        }
+
+        @Override
+        protected void doFinishConnect() throws Exception {
+            if (!javaChannel().finishConnect()) {
+                throw new IllegalStateException("Not connected: " + path);
+            }
+            selectionKey().interestOps(SelectionKey.OP_READ);
+        }
+
+        @Override
+        protected void doDisconnect() throws Exception {
+            doClose();
+        }
+
+        @Override
+        protected void doClose() throws Exception {
+            javaChannel().close();
+        }
+
+        @Override
+        protected void doFlushByteBuffer(ByteBuf buf) throws Exception {
+            if (!buf.readable()) {
+                buf.clear();
+                return;
+            }
+            for(int i = config.getWriteSpinCount() - 1; i >= 0; --i) {
+                if (doWriteBytes(buf, i == 0) > 0) {
+                    break;
+                }
+                if (!buf.readable()) {
+                    buf.clear();
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Writes what it can without blocking and waits to be told the
+         * socket is writable again if that wasn't everything.
+         */
+        private int doWriteBytes(ByteBuf buf, boolean last_spin) throws Exception {
+            final int expected = buf.readableBytes();
+            final int written = buf.readBytes(javaChannel(), expected);
+            final SelectionKey selection_key = selectionKey();
+            final int interest_ops = selection_key.interestOps();
+            if (written >= expected) {
+                if ((interest_ops & SelectionKey.OP_WRITE) != 0) {
+                    selection_key.interestOps(interest_ops & ~SelectionKey.OP_WRITE);
+                }
+            } else if ((written > 0 || last_spin) && (interest_ops & SelectionKey.OP_WRITE) == 0) {
+                selection_key.interestOps(interest_ops | SelectionKey.OP_WRITE);
+            }
+            return written;
+        }
+
+        @Override
+        protected AbstractNioUnsafe newUnsafe() {
+            return new StreamUnsafe();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[id: 0x%08x, unix:%s]", id(), path);
+        }
+
+        private final class StreamUnsafe extends AbstractNioUnsafe {
+            /**
+             * Reads until the socket is drained, reads are suspended or
+             * {@link NioChannels#MAXIMUM_BYTES_PER_READ} have been read,
+             * handing the pipeline what it has whenever the inbound buffer
+             * can't grow any more. The selector brings it back for the rest.
+             */
+            @Override
+            public void read() {
+                final ChannelPipeline pipeline = pipeline();
+                final ByteBuf in = pipeline.inboundByteBuffer();
+                boolean closed = false;
+                boolean read = false;
+                int bytes_read = 0;
+                try {
+                    while(bytes_read < NioChannels.MAXIMUM_BYTES_PER_READ) {
+                        //Suspending reads takes OP_READ out of the interest set.
+                        final SelectionKey key = selectionKey();
+                        if (key.isValid() && (key.interestOps() & SelectionKey.OP_READ) == 0) {
+                            break;
+                        }
+                        if (!in.writable()) {
+                            if (in.capacity() < in.maxCapacity()) {
+                                in.ensureWritableBytes(Math.min(READ_BUFFER_INCREMENT, in.maxCapacity() - in.capacity()));
+                            } else if (read) {
+                                read = false;
+                                pipeline.fireInboundBufferUpdated();
+                                if (!in.writable()) {
+                                    throw new IllegalStateException("an inbound handler whose buffer is full must consume at least one byte.");
+                                }
+                            }
+                        }
+                        final int amount = in.writeBytes(javaChannel(), in.writableBytes());
+                        if (amount > 0) {
+                            read = true;
+                            bytes_read += amount;
+                        } else {
+                            closed = amount < 0;
+                            break;
+                        }
+                    }
+                } catch(Throwable t) {
+                    if (read) {
+                        read = false;
+                        pipeline.fireInboundBufferUpdated();
+                    }
+                    pipeline.fireExceptionCaught(t);
+                    if (t instanceof IOException) {
+                        close(voidFuture());
+                    }
+                } finally {
+                    if (read) {
+                        pipeline.fireInboundBufferUpdated();
+                    }
+                    if (closed && isOpen()) {
+                        close(voidFuture());
+                    }
+                }
+            }
+
+            @Override
+            public void suspendRead() {
+                selectionKey().interestOps(selectionKey().interestOps() & ~SelectionKey.OP_READ);
+            }
+
+            @Override
+            public void resumeRead() {
+                selectionKey().interestOps(selectionKey().interestOps() | SelectionKey.OP_READ);
+            }
+        }
+    }
+}
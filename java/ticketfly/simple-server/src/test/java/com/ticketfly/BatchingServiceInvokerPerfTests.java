@@ -0,0 +1,77 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures throughput and latency against the real {@link TFlyService} for
+ * various batch sizes. The number of threads is deliberately small so the
+ * effect of amortizing the service's fixed cost is visible.
+ */
+public class BatchingServiceInvokerPerfTests {
+    private static final Logger logger = Logger.getLogger(BatchingServiceInvokerPerfTests.class.getName());
+
+    private static final int NUM_CALLS = 2000;
+    private static final int MAXIMUM_IN_FLIGHT = 1000;
+    private static final int THREADS = 16;
+
+    private static String measure(final ServiceInvoker invoker, String name) throws InterruptedException {
+        final long[] latencies = new long[NUM_CALLS];
+        final Semaphore in_flight = new Semaphore(MAXIMUM_IN_FLIGHT);
+        final CountDownLatch done = new CountDownLatch(NUM_CALLS);
+
+        final long start = System.nanoTime();
+        for(int i = 0; i < NUM_CALLS; ++i) {
+            in_flight.acquire();
+            final int index = i;
+            final long started = System.nanoTime();
+            invoker.invoke("test_" + i, new ServiceCallback() {
+                @Override
+                public void completed(String response) {
+                    latencies[index] = System.nanoTime() - started;
+                    in_flight.release();
+                    done.countDown();
+                }
+
+                @Override
+                public void failed(Throwable cause) {
+                    completed(null);
+                }
+            });
+        }
+        assertTrue(done.await(120L, TimeUnit.SECONDS));
+        final double throughput = NUM_CALLS / ((System.nanoTime() - start) / 1e9d);
+
+        Arrays.sort(latencies);
+        return String.format("%-22s %8.0f calls/sec  p50 %5d ms  p99 %5d ms", name, throughput,
+            TimeUnit.NANOSECONDS.toMillis(latencies[NUM_CALLS / 2]), TimeUnit.NANOSECONDS.toMillis(latencies[NUM_CALLS * 99 / 100]));
+    }
+
+    @Test
+    public void testLatencyByBatchSize() throws InterruptedException {
+        final ExecutorServiceInvoker unbatched = ExecutorServiceInvoker.create(new TFlyService(), ServiceBackend.BOUNDED_EXECUTOR, THREADS, MAXIMUM_IN_FLIGHT);
+        try {
+            logger.log(Level.INFO, measure(unbatched, "unbatched"));
+        } finally {
+            unbatched.shutdown();
+        }
+
+        for(int batch_size : new int[] { 4, 16, 64, 256 }) {
+            final BatchingServiceInvoker batching = BatchingServiceInvoker.create(new TFlyService(), ServiceBackend.BOUNDED_EXECUTOR, THREADS, batch_size, BatchingServiceInvoker.DEFAULT_MAXIMUM_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            try {
+                final String result = measure(batching, "batches of " + batch_size);
+                logger.log(Level.INFO, String.format("%s  %5.1f avg batch", result, batching.getAverageBatchSize()));
+            } finally {
+                batching.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates when {@link BatchingServiceInvoker} dispatches batches and how it completes their items.
+ */
+public class BatchingServiceInvokerTests {
+    /**
+     * Counts outcomes and checks that successful responses are the reversed request.
+     */
+    private static final class Recorder implements ServiceCallback {
+        final String request;
+        final CountDownLatch latch;
+        final AtomicInteger outcomes;
+
+        Recorder(String request, CountDownLatch latch, AtomicInteger outcomes) {
+            this.request = request;
+            this.latch = latch;
+            this.outcomes = outcomes;
+        }
+
+        @Override
+        public void completed(String response) {
+            assertEquals(new StringBuilder(request).reverse().toString(), response);
+            outcomes.incrementAndGet();
+            latch.countDown();
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            assertTrue(cause instanceof TFlyService.TFlyServiceException);
+            outcomes.incrementAndGet();
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void testDispatchesFullBatches() throws InterruptedException {
+        final BatchingServiceInvoker invoker = BatchingServiceInvoker.create(new TFlyService(), ServiceBackend.BOUNDED_EXECUTOR, 4, 10, 10L, TimeUnit.SECONDS);
+        try {
+            final CountDownLatch latch = new CountDownLatch(30);
+            final AtomicInteger outcomes = new AtomicInteger(0);
+            for(int i = 0; i < 30; ++i) {
+                invoker.invoke("request_" + i, new Recorder("request_" + i, latch, outcomes));
+            }
+
+            //Full batches don't wait for the (very long) delay.
+            assertTrue(latch.await(5L, TimeUnit.SECONDS));
+            assertEquals(30, outcomes.get());
+            assertEquals(3L, invoker.getBatches());
+            assertEquals(10.0d, invoker.getAverageBatchSize(), 0.0001d);
+        } finally {
+            invoker.shutdown();
+        }
+    }
+
+    @Test
+    public void testDispatchesAfterDelay() throws InterruptedException {
+        final BatchingServiceInvoker invoker = BatchingServiceInvoker.create(new TFlyService(), ServiceBackend.BOUNDED_EXECUTOR, 4, 1000, 20L, TimeUnit.MILLISECONDS);
+        try {
+            final CountDownLatch latch = new CountDownLatch(3);
+            final AtomicInteger outcomes = new AtomicInteger(0);
+            for(int i = 0; i < 3; ++i) {
+                invoker.invoke("request_" + i, new Recorder("request_" + i, latch, outcomes));
+            }
+
+            assertTrue(latch.await(5L, TimeUnit.SECONDS));
+            assertEquals(3, outcomes.get());
+            assertEquals(1L, invoker.getBatches());
+        } finally {
+            invoker.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownFlushesPendingRequests() throws InterruptedException {
+        final BatchingServiceInvoker invoker = BatchingServiceInvoker.create(new TFlyService(), ServiceBackend.BOUNDED_EXECUTOR, 4, 1000, 10L, TimeUnit.SECONDS);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger outcomes = new AtomicInteger(0);
+        invoker.invoke("request", new Recorder("request", latch, outcomes));
+        invoker.shutdown();
+        assertTrue(latch.await(5L, TimeUnit.SECONDS));
+        assertEquals(1, outcomes.get());
+    }
+
+    @Test
+    public void testRejectsBeyondMaximumOutstanding() throws InterruptedException {
+        final BatchingServiceInvoker invoker = BatchingServiceInvoker.create(new TFlyService(), ServiceBackend.BOUNDED_EXECUTOR, 4, 1000, 20L, TimeUnit.MILLISECONDS, 2);
+        try {
+            final CountDownLatch latch = new CountDownLatch(2);
+            final AtomicInteger outcomes = new AtomicInteger(0);
+            invoker.invoke("request_0", new Recorder("request_0", latch, outcomes));
+            invoker.invoke("request_1", new Recorder("request_1", latch, outcomes));
+
+            //Both permits are held by the batch being collected.
+            final AtomicReference<Throwable> rejected = new AtomicReference<Throwable>();
+            invoker.invoke("request_2", new ServiceCallback() {
+                @Override
+                public void completed(String response) {
+                }
+
+                @Override
+                public void failed(Throwable cause) {
+                    rejected.set(cause);
+                }
+            });
+            assertTrue(rejected.get() instanceof RejectedExecutionException);
+            assertTrue(latch.await(5L, TimeUnit.SECONDS));
+            assertEquals(2L, invoker.getItems());
+
+            //Completed items give their permits back.
+            final CountDownLatch next = new CountDownLatch(2);
+            invoker.invoke("request_3", new Recorder("request_3", next, outcomes));
+            invoker.invoke("request_4", new Recorder("request_4", next, outcomes));
+            assertTrue(next.await(5L, TimeUnit.SECONDS));
+            assertEquals(4, outcomes.get());
+        } finally {
+            invoker.shutdown();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates that {@link BulkheadServiceInvoker} caps concurrent calls.
+ */
+public class BulkheadServiceInvokerTests {
+    @Test
+    public void testCapsConcurrentCalls() {
+        final List<ServiceCallback> pending = new ArrayList<ServiceCallback>();
+        final BulkheadServiceInvoker bulkhead = BulkheadServiceInvoker.create(new ServiceInvoker() {
+            @Override
+            public void invoke(String request, ServiceCallback callback) {
+                pending.add(callback);
+            }
+        }, 2);
+
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicInteger unavailable = new AtomicInteger(0);
+        final ServiceCallback callback = new ServiceCallback() {
+            @Override
+            public void completed(String response) {
+                completed.incrementAndGet();
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+                assertTrue(cause instanceof ServiceUnavailableException);
+                unavailable.incrementAndGet();
+            }
+        };
+
+        for(int i = 0; i < 5; ++i) {
+            bulkhead.invoke("a", callback);
+        }
+        assertEquals(2, pending.size());
+        assertEquals(2, bulkhead.getActive());
+        assertEquals(3, unavailable.get());
+        assertEquals(3L, bulkhead.getRejected());
+
+        //Completing a call frees its permit.
+        pending.get(0).completed("a");
+        assertEquals(1, bulkhead.getActive());
+        bulkhead.invoke("a", callback);
+        assertEquals(3, pending.size());
+        assertEquals(1, completed.get());
+    }
+}
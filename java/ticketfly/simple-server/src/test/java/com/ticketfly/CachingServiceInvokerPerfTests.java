@@ -0,0 +1,97 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures throughput against the real {@link TFlyService} when request
+ * payloads follow a skewed (Zipfian) distribution, with and without a
+ * {@link CachingServiceInvoker} of various sizes in front of it.
+ */
+public class CachingServiceInvokerPerfTests {
+    private static final Logger logger = Logger.getLogger(CachingServiceInvokerPerfTests.class.getName());
+
+    private static final int NUM_KEYS = 10000;
+    private static final int NUM_CALLS = 10000;
+    private static final int MAXIMUM_IN_FLIGHT = 500;
+
+    /**
+     * Draws keys where the k-th most popular key is chosen with probability proportional to 1/k^exponent.
+     */
+    private static final class Zipf {
+        private final double[] cumulative;
+        private final Random random;
+
+        Zipf(int num_keys, double exponent, long seed) {
+            cumulative = new double[num_keys];
+            double sum = 0.0d;
+            for(int k = 0; k < num_keys; ++k) {
+                sum += 1.0d / Math.pow(k + 1, exponent);
+                cumulative[k] = sum;
+            }
+            for(int k = 0; k < num_keys; ++k) {
+                cumulative[k] /= sum;
+            }
+            random = new Random(seed);
+        }
+
+        int next() {
+            final int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+        }
+    }
+
+    private static double measure(ServiceInvoker invoker, double exponent) throws InterruptedException {
+        final Zipf zipf = new Zipf(NUM_KEYS, exponent, 42L);
+        final Semaphore in_flight = new Semaphore(MAXIMUM_IN_FLIGHT);
+        final CountDownLatch done = new CountDownLatch(NUM_CALLS);
+        final ServiceCallback callback = new ServiceCallback() {
+            @Override
+            public void completed(String response) {
+                in_flight.release();
+                done.countDown();
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+                in_flight.release();
+                done.countDown();
+            }
+        };
+
+        final long start = System.nanoTime();
+        for(int i = 0; i < NUM_CALLS; ++i) {
+            in_flight.acquire();
+            invoker.invoke("key_" + zipf.next(), callback);
+        }
+        assertTrue(done.await(120L, TimeUnit.SECONDS));
+        return NUM_CALLS / ((System.nanoTime() - start) / 1e9d);
+    }
+
+    @Test
+    public void testZipfianThroughput() throws InterruptedException {
+        final ExecutorServiceInvoker service = ExecutorServiceInvoker.create(new TFlyService(), ServiceBackend.preferred(), MAXIMUM_IN_FLIGHT, MAXIMUM_IN_FLIGHT);
+        try {
+            for(double exponent : new double[] { 0.8d, 1.2d }) {
+                logger.log(Level.INFO, String.format("zipf %.1f  no cache          %8.0f calls/sec", exponent, measure(service, exponent)));
+                for(int entries : new int[] { 100, 1000 }) {
+                    final CachingServiceInvoker cache = CachingServiceInvoker.create(service).withMaximumEntries(entries);
+                    final double throughput = measure(cache, exponent);
+                    logger.log(Level.INFO, String.format("zipf %.1f  %5d entries     %8.0f calls/sec  %5.1f%% hits  %6d evictions",
+                        exponent, entries, throughput, 100.0d * cache.getHitRate(), cache.getEvictions()));
+                }
+            }
+        } finally {
+            service.shutdown();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates the bounds, expiry, and failure policy of {@link CachingServiceInvoker}.
+ */
+public class CachingServiceInvokerTests {
+    /**
+     * Reverses its input synchronously, failing any request that starts with "fail".
+     */
+    private static final class CountingInvoker implements ServiceInvoker {
+        final AtomicInteger calls = new AtomicInteger(0);
+
+        @Override
+        public void invoke(String request, ServiceCallback callback) {
+            calls.incrementAndGet();
+            if (request.startsWith("fail")) {
+                callback.failed(new TFlyService.TFlyServiceException("Service Error"));
+            } else {
+                callback.completed(new StringBuilder(request).reverse().toString());
+            }
+        }
+    }
+
+    private static String call(ServiceInvoker invoker, String request) {
+        final AtomicReference<String> result = new AtomicReference<String>();
+        invoker.invoke(request, new ServiceCallback() {
+            @Override
+            public void completed(String response) {
+                result.set(response);
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+                result.set("failed");
+            }
+        });
+        return result.get();
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        final CountingInvoker service = new CountingInvoker();
+        final CachingServiceInvoker cache = CachingServiceInvoker.create(service);
+
+        assertEquals("cba", call(cache, "abc"));
+        assertEquals("cba", call(cache, "abc"));
+        assertEquals("fed", call(cache, "def"));
+        assertEquals("cba", call(cache, "abc"));
+
+        assertEquals(2, service.calls.get());
+        assertEquals(2L, cache.getHits());
+        assertEquals(2L, cache.getMisses());
+        assertEquals(0.5d, cache.getHitRate(), 0.0001d);
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        final CountingInvoker service = new CountingInvoker();
+        final CachingServiceInvoker cache = CachingServiceInvoker.create(service);
+
+        assertEquals("failed", call(cache, "fail"));
+        assertEquals("failed", call(cache, "fail"));
+        assertEquals(2, service.calls.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        final CountingInvoker service = new CountingInvoker();
+        final CachingServiceInvoker cache = CachingServiceInvoker.create(service).withMaximumEntries(2);
+
+        call(cache, "a");
+        call(cache, "b");
+        call(cache, "a");
+        call(cache, "c");
+        assertEquals(2, cache.size());
+        assertEquals(1L, cache.getEvictions());
+
+        //"b" was the least recently used, so it's the one that's gone.
+        final int calls = service.calls.get();
+        call(cache, "a");
+        call(cache, "c");
+        assertEquals(calls, service.calls.get());
+        call(cache, "b");
+        assertEquals(calls + 1, service.calls.get());
+    }
+
+    @Test
+    public void testWeightBound() {
+        final CountingInvoker service = new CountingInvoker();
+        final CachingServiceInvoker cache = CachingServiceInvoker.create(service).withMaximumWeight(20L);
+
+        call(cache, "aaaa");
+        call(cache, "bbbb");
+        assertEquals(16L, cache.getWeight());
+        call(cache, "cccc");
+        assertEquals(16L, cache.getWeight());
+        assertEquals(2, cache.size());
+
+        //Anything heavier than the whole cache is never stored.
+        call(cache, "dddddddddddddddddddd");
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testTimeToLive() throws InterruptedException {
+        final CountingInvoker service = new CountingInvoker();
+        final CachingServiceInvoker cache = CachingServiceInvoker.create(service).withTimeToLive(50L, TimeUnit.MILLISECONDS);
+
+        call(cache, "abc");
+        call(cache, "abc");
+        assertEquals(1, service.calls.get());
+
+        Thread.sleep(100L);
+        call(cache, "abc");
+        assertEquals(2, service.calls.get());
+        assertEquals(1L, cache.getExpirations());
+    }
+}
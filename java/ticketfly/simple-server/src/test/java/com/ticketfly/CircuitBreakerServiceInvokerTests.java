@@ -0,0 +1,166 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates the state transitions of {@link CircuitBreakerServiceInvoker}.
+ */
+public class CircuitBreakerServiceInvokerTests {
+    /**
+     * Completes synchronously, failing while {@link #failing} is set.
+     */
+    private static final class SwitchableInvoker implements ServiceInvoker {
+        final AtomicBoolean failing = new AtomicBoolean(false);
+        final AtomicInteger calls = new AtomicInteger(0);
+
+        @Override
+        public void invoke(String request, ServiceCallback callback) {
+            calls.incrementAndGet();
+            if (failing.get()) {
+                callback.failed(new TFlyService.TFlyServiceException("Service Error"));
+            } else {
+                callback.completed(request);
+            }
+        }
+    }
+
+    /**
+     * Holds on to every callback until the test completes it.
+     */
+    private static final class DeferredInvoker implements ServiceInvoker {
+        final List<ServiceCallback> pending = new ArrayList<ServiceCallback>();
+
+        @Override
+        public void invoke(String request, ServiceCallback callback) {
+            pending.add(callback);
+        }
+
+        ServiceCallback take() {
+            return pending.remove(0);
+        }
+    }
+
+    private static Throwable call(ServiceInvoker invoker) {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        invoker.invoke("a", new ServiceCallback() {
+            @Override
+            public void completed(String response) {
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+                failure.set(cause);
+            }
+        });
+        return failure.get();
+    }
+
+    @Test
+    public void testOpensAndFailsFast() {
+        final SwitchableInvoker service = new SwitchableInvoker();
+        final CircuitBreakerServiceInvoker breaker = CircuitBreakerServiceInvoker.create(service, 10, 5, 0.5d, 1L, TimeUnit.HOURS, 2);
+
+        //A few failures among successes aren't enough.
+        for(int i = 0; i < 10; ++i) {
+            service.failing.set(i % 4 == 0);
+            call(breaker);
+        }
+        assertEquals(CircuitBreakerServiceInvoker.State.CLOSED, breaker.getState());
+
+        service.failing.set(true);
+        for(int i = 0; i < 10 && breaker.getState() == CircuitBreakerServiceInvoker.State.CLOSED; ++i) {
+            call(breaker);
+        }
+        assertEquals(CircuitBreakerServiceInvoker.State.OPEN, breaker.getState());
+        assertEquals(1L, breaker.getTimesOpened());
+
+        final int calls = service.calls.get();
+        assertTrue(call(breaker) instanceof ServiceUnavailableException);
+        assertEquals(calls, service.calls.get());
+        assertEquals(1L, breaker.getRejected());
+    }
+
+    @Test
+    public void testHalfOpenProbes() throws InterruptedException {
+        final SwitchableInvoker service = new SwitchableInvoker();
+        final CircuitBreakerServiceInvoker breaker = CircuitBreakerServiceInvoker.create(service, 4, 4, 1.0d, 20L, TimeUnit.MILLISECONDS, 2);
+
+        service.failing.set(true);
+        for(int i = 0; i < 4; ++i) {
+            call(breaker);
+        }
+        assertEquals(CircuitBreakerServiceInvoker.State.OPEN, breaker.getState());
+
+        //A failed probe opens the breaker again.
+        Thread.sleep(40L);
+        assertNotNull(call(breaker));
+        assertEquals(CircuitBreakerServiceInvoker.State.OPEN, breaker.getState());
+        assertEquals(2L, breaker.getTimesOpened());
+
+        //Successful probes close it.
+        Thread.sleep(40L);
+        service.failing.set(false);
+        assertNull(call(breaker));
+        assertEquals(CircuitBreakerServiceInvoker.State.HALF_OPEN, breaker.getState());
+        assertNull(call(breaker));
+        assertEquals(CircuitBreakerServiceInvoker.State.CLOSED, breaker.getState());
+        assertEquals(0.0d, breaker.getFailureRate(), 0.0001d);
+    }
+
+    @Test
+    public void testRejectionsAreNotFailures() {
+        final CircuitBreakerServiceInvoker breaker = CircuitBreakerServiceInvoker.create(new ServiceInvoker() {
+            @Override
+            public void invoke(String request, ServiceCallback callback) {
+                callback.failed(new RejectedExecutionException("Too many outstanding service calls"));
+            }
+        }, 4, 4, 0.5d, 1L, TimeUnit.HOURS, 1);
+
+        for(int i = 0; i < 10; ++i) {
+            call(breaker);
+        }
+        assertEquals(CircuitBreakerServiceInvoker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testStaleOutcomesAreNotProbes() throws InterruptedException {
+        final DeferredInvoker service = new DeferredInvoker();
+        final CircuitBreakerServiceInvoker breaker = CircuitBreakerServiceInvoker.create(service, 2, 2, 1.0d, 20L, TimeUnit.MILLISECONDS, 1);
+
+        //Two slow calls are admitted while closed, then two more trip the breaker.
+        call(breaker);
+        call(breaker);
+        final ServiceCallback stale_success = service.take();
+        final ServiceCallback stale_failure = service.take();
+        call(breaker);
+        call(breaker);
+        service.take().failed(new TFlyService.TFlyServiceException("Service Error"));
+        service.take().failed(new TFlyService.TFlyServiceException("Service Error"));
+        assertEquals(CircuitBreakerServiceInvoker.State.OPEN, breaker.getState());
+
+        //Admit the one probe.
+        Thread.sleep(40L);
+        call(breaker);
+        assertEquals(CircuitBreakerServiceInvoker.State.HALF_OPEN, breaker.getState());
+
+        //Neither slow call says anything about the probe.
+        stale_success.completed("a");
+        assertEquals(CircuitBreakerServiceInvoker.State.HALF_OPEN, breaker.getState());
+        stale_failure.failed(new TFlyService.TFlyServiceException("Service Error"));
+        assertEquals(CircuitBreakerServiceInvoker.State.HALF_OPEN, breaker.getState());
+        assertEquals(1L, breaker.getTimesOpened());
+
+        service.take().completed("a");
+        assertEquals(CircuitBreakerServiceInvoker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,71 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.ticketfly.TFlySimpleServerTestUtil.*;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Many connections send the same payload at once to a server backed by the
+ * real {@link TFlyService}. Compares the number of calls that reach the
+ * service with and without a {@link CoalescingServiceInvoker}.
+ */
+public class CoalescingServiceInvokerPerfTests {
+    private static final Logger logger = Logger.getLogger(CoalescingServiceInvokerPerfTests.class.getName());
+
+    private static final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 2;
+    private static final int NUM_CLIENTS = 500;
+    private static final int NUM_MSGS_PER_CLIENT = 4;
+
+    /**
+     * Counts the calls that reach the service.
+     */
+    private static final class CountingInvoker implements ServiceInvoker {
+        final AtomicLong calls = new AtomicLong(0L);
+        final ServiceInvoker delegate;
+
+        CountingInvoker(ServiceInvoker delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void invoke(String request, ServiceCallback callback) {
+            calls.incrementAndGet();
+            delegate.invoke(request, callback);
+        }
+    }
+
+    private static long measure(String name, CountingInvoker backend, ServiceInvoker invoker) throws InterruptedException {
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT).withService(invoker).start();
+        assertTrue(server.isRunning());
+        try {
+            final RoundTripResults results = measureRoundTrips(server, Transport.NIO, NUM_CLIENTS, NUM_MSGS_PER_CLIENT);
+            logger.log(Level.INFO, String.format("%-10s %6d service calls  %s", name, backend.calls.get(), results));
+            return backend.calls.get();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDuplicatePayloads() throws InterruptedException {
+        final ExecutorServiceInvoker service = ExecutorServiceInvoker.create(new TFlyService(), ServiceBackend.preferred(), NUM_CLIENTS, NUM_CLIENTS * NUM_MSGS_PER_CLIENT);
+        try {
+            final CountingInvoker direct = new CountingInvoker(service);
+            final long direct_calls = measure("direct", direct, direct);
+
+            final CountingInvoker coalesced = new CountingInvoker(service);
+            final CoalescingServiceInvoker coalescing = CoalescingServiceInvoker.create(coalesced);
+            final long coalesced_calls = measure("coalesced", coalesced, coalescing);
+            logger.log(Level.INFO, String.format("coalesced  %d of %d requests shared a pending call", coalescing.getCoalesced(), coalescing.getRequests()));
+
+            assertTrue(coalesced_calls < direct_calls);
+        } finally {
+            service.shutdown();
+        }
+    }
+}
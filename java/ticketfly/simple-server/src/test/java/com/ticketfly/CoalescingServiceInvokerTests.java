@@ -0,0 +1,105 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates that {@link CoalescingServiceInvoker} shares pending calls, including their failures.
+ */
+public class CoalescingServiceInvokerTests {
+    /**
+     * Holds on to every call until the test completes it.
+     */
+    private static final class ManualInvoker implements ServiceInvoker {
+        final List<String> requests = new ArrayList<String>();
+        final List<ServiceCallback> callbacks = new ArrayList<ServiceCallback>();
+
+        @Override
+        public synchronized void invoke(String request, ServiceCallback callback) {
+            requests.add(request);
+            callbacks.add(callback);
+        }
+    }
+
+    /**
+     * Records how each waiter was completed.
+     */
+    private static final class Recorder implements ServiceCallback {
+        final List<String> outcomes = new ArrayList<String>();
+
+        @Override
+        public synchronized void completed(String response) {
+            outcomes.add(response);
+        }
+
+        @Override
+        public synchronized void failed(Throwable cause) {
+            outcomes.add("failed: " + cause.getMessage());
+        }
+    }
+
+    @Test
+    public void testSharesPendingCalls() {
+        final ManualInvoker service = new ManualInvoker();
+        final CoalescingServiceInvoker invoker = CoalescingServiceInvoker.create(service);
+        final Recorder recorder = new Recorder();
+
+        invoker.invoke("abc", recorder);
+        invoker.invoke("abc", recorder);
+        invoker.invoke("def", recorder);
+        invoker.invoke("abc", recorder);
+
+        assertEquals(2, service.requests.size());
+        assertEquals(2, invoker.getInFlight());
+        assertEquals(2L, invoker.getCoalesced());
+
+        service.callbacks.get(0).completed("cba");
+        assertEquals(3, recorder.outcomes.size());
+        for(String outcome : recorder.outcomes) {
+            assertEquals("cba", outcome);
+        }
+
+        //Once the call lands, the next request starts a new one.
+        invoker.invoke("abc", recorder);
+        assertEquals(3, service.requests.size());
+        assertEquals(3L, invoker.getExecutions());
+        assertEquals(5L, invoker.getRequests());
+    }
+
+    @Test
+    public void testSharesFailures() {
+        final ManualInvoker service = new ManualInvoker();
+        final CoalescingServiceInvoker invoker = CoalescingServiceInvoker.create(service);
+        final Recorder recorder = new Recorder();
+
+        invoker.invoke("abc", recorder);
+        invoker.invoke("abc", recorder);
+        service.callbacks.get(0).failed(new TFlyService.TFlyServiceException("Service Error"));
+
+        assertEquals(2, recorder.outcomes.size());
+        assertEquals("failed: Service Error", recorder.outcomes.get(0));
+        assertEquals("failed: Service Error", recorder.outcomes.get(1));
+        assertEquals(0, invoker.getInFlight());
+    }
+
+    @Test
+    public void testSynchronousCompletion() {
+        final CoalescingServiceInvoker invoker = CoalescingServiceInvoker.create(new ServiceInvoker() {
+            @Override
+            public void invoke(String request, ServiceCallback callback) {
+                callback.completed(request);
+            }
+        });
+        final Recorder recorder = new Recorder();
+
+        invoker.invoke("abc", recorder);
+        invoker.invoke("abc", recorder);
+        assertEquals(2, recorder.outcomes.size());
+        assertEquals(2L, invoker.getExecutions());
+        assertEquals(0, invoker.getInFlight());
+    }
+}
@@ -0,0 +1,104 @@
+package com.ticketfly;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates that {@link DurableSequenceSource} resumes above anything it may have handed out.
+ */
+public class DurableSequenceSourceTests {
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("sequence", ".dat");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testResumesAfterClose() throws IOException {
+        final DurableSequenceSource first = DurableSequenceSource.open(file, 10);
+        long last = 0L;
+        for(int i = 0; i < 25; ++i) {
+            last = first.next();
+        }
+        first.close();
+
+        final DurableSequenceSource second = DurableSequenceSource.open(file, 10);
+        try {
+            assertTrue(second.next() > last);
+        } finally {
+            second.close();
+        }
+    }
+
+    /**
+     * Abandons an instance without closing it, as if the process had crashed.
+     */
+    @Test
+    public void testResumesAfterCrash() throws IOException {
+        final DurableSequenceSource crashed = DurableSequenceSource.open(file, 100);
+        long last = 0L;
+        for(int i = 0; i < 1234; ++i) {
+            last = crashed.next();
+            assertTrue(crashed.getReserved() >= last);
+        }
+        assertTrue(crashed.advanceTo(last + 5000L));
+        last = crashed.next();
+
+        final DurableSequenceSource recovered = DurableSequenceSource.open(file, 100);
+        try {
+            final long next = recovered.next();
+            assertTrue(next + " must be above " + last, next > last);
+            //Only the unused part of a reservation is skipped.
+            assertTrue(next <= last + 2L * 100L + 1L);
+        } finally {
+            recovered.close();
+        }
+    }
+
+    /**
+     * A write torn by a crash only ever affects the slot being written. Nothing above
+     * the mark in the other slot has been handed out yet, so that's where we resume.
+     */
+    @Test
+    public void testIgnoresTornSlot() throws IOException {
+        final DurableSequenceSource source = DurableSequenceSource.open(file, 10);
+        for(int i = 0; i < 50; ++i) {
+            source.next();
+        }
+        source.close();
+
+        final long intact;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long first = raf.readLong();
+            raf.seek(16);
+            final long second = raf.readLong();
+            intact = Math.min(first, second);
+            raf.seek(first > second ? 8 : 24);
+            raf.writeLong(0L);
+        } finally {
+            raf.close();
+        }
+
+        final DurableSequenceSource recovered = DurableSequenceSource.open(file, 10);
+        try {
+            assertEquals(intact + 1L, recovered.next());
+        } finally {
+            recovered.close();
+        }
+    }
+}
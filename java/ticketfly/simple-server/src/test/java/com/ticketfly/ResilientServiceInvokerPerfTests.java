@@ -0,0 +1,85 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the latency distribution of calls to the real {@link TFlyService}
+ * with and without a {@link ResilientServiceInvoker} in front of it.
+ *
+ * Calls are issued at a fixed rate regardless of how quickly earlier calls
+ * complete. A call's latency runs until it succeeds or finally fails, so the
+ * 100 ms a failed attempt costs shows up in the tail.
+ */
+public class ResilientServiceInvokerPerfTests {
+    private static final Logger logger = Logger.getLogger(ResilientServiceInvokerPerfTests.class.getName());
+
+    private static final int NUM_CALLS = 2000;
+    private static final int CALLS_PER_SECOND = 1000;
+
+    private static String measure(String name, ServiceInvoker invoker) throws InterruptedException {
+        final long[] latencies = new long[NUM_CALLS];
+        final AtomicInteger failures = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(NUM_CALLS);
+        final long interval = TimeUnit.SECONDS.toNanos(1L) / CALLS_PER_SECOND;
+        final long start = System.nanoTime();
+
+        for(int i = 0; i < NUM_CALLS; ++i) {
+            final int index = i;
+            final long scheduled = start + i * interval;
+            while(System.nanoTime() < scheduled) {
+                Thread.sleep(0L, 100000);
+            }
+            invoker.invoke("test", new ServiceCallback() {
+                @Override
+                public void completed(String response) {
+                    latencies[index] = System.nanoTime() - scheduled;
+                    done.countDown();
+                }
+
+                @Override
+                public void failed(Throwable cause) {
+                    latencies[index] = System.nanoTime() - scheduled;
+                    failures.incrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(60L, TimeUnit.SECONDS));
+        Arrays.sort(latencies);
+        return String.format("%-10s %5d calls %4d failed  p50 %5d ms  p99 %5d ms  p99.9 %5d ms  max %5d ms",
+            name, NUM_CALLS, failures.get(), percentileMillis(latencies, 50.0d), percentileMillis(latencies, 99.0d),
+            percentileMillis(latencies, 99.9d), percentileMillis(latencies, 100.0d));
+    }
+
+    private static long percentileMillis(long[] sorted, double percentile) {
+        final int index = (int)Math.ceil(percentile / 100.0d * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+    }
+
+    @Test
+    public void testTailLatency() throws InterruptedException {
+        final ExecutorServiceInvoker direct = ExecutorServiceInvoker.create(new TFlyService(), ServiceBackend.preferred(), 1000, 10000);
+        try {
+            logger.log(Level.INFO, measure("direct", direct));
+
+            final ResilientServiceInvoker resilient = ResilientServiceInvoker.create(direct);
+            logger.log(Level.INFO, measure("resilient", resilient));
+            logger.log(Level.INFO, String.format("resilient  %d attempts  %d retries  %d hedges (%d won)  %d over budget  %.0f%% of budget used",
+                resilient.getAttempts(), resilient.getRetries(), resilient.getHedges(), resilient.getHedgesWon(),
+                resilient.getBudgetExhausted(), 100.0d * resilient.getBudgetUsed()));
+            assertTrue(resilient.getAttempts() <= NUM_CALLS * (1.0d + ResilientServiceInvoker.DEFAULT_BUDGET_RATIO) + ResilientServiceInvoker.DEFAULT_BUDGET_RESERVE);
+        } finally {
+            direct.shutdown();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.ticketfly;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates retries, hedging, and the retry budget of {@link ResilientServiceInvoker}.
+ */
+public class ResilientServiceInvokerTests {
+    private static final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+
+    @AfterClass
+    public static void afterClass() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Records the outcome of a single call.
+     */
+    private static final class Outcome implements ServiceCallback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> response = new AtomicReference<String>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger callbacks = new AtomicInteger(0);
+
+        @Override
+        public void completed(String response) {
+            callbacks.incrementAndGet();
+            this.response.set(response);
+            latch.countDown();
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            callbacks.incrementAndGet();
+            this.failure.set(cause);
+            latch.countDown();
+        }
+
+        Outcome await() throws InterruptedException {
+            assertTrue(latch.await(10L, TimeUnit.SECONDS));
+            return this;
+        }
+    }
+
+    /**
+     * Fails the first few attempts, then succeeds.
+     */
+    private static ServiceInvoker failingFirst(final int failures, final AtomicInteger attempts) {
+        return new ServiceInvoker() {
+            @Override
+            public void invoke(final String request, final ServiceCallback callback) {
+                final int attempt = attempts.incrementAndGet();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (attempt <= failures) {
+                            callback.failed(new TFlyService.TFlyServiceException("Service Error"));
+                        } else {
+                            callback.completed(request + attempt);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    @Test
+    public void testRetriesFailures() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger(0);
+        final ResilientServiceInvoker invoker = ResilientServiceInvoker.create(failingFirst(1, attempts), executor).withHedgeDelay(0L, TimeUnit.MILLISECONDS);
+
+        final Outcome outcome = new Outcome();
+        invoker.invoke("a", outcome);
+        assertEquals("a2", outcome.await().response.get());
+        assertEquals(1, outcome.callbacks.get());
+        assertEquals(1L, invoker.getRetries());
+        assertEquals(2L, invoker.getAttempts());
+    }
+
+    @Test
+    public void testGivesUpAfterMaximumAttempts() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger(0);
+        final ResilientServiceInvoker invoker = ResilientServiceInvoker.create(failingFirst(Integer.MAX_VALUE, attempts), executor).withMaximumAttempts(3);
+
+        final Outcome outcome = new Outcome();
+        invoker.invoke("a", outcome);
+        assertTrue(outcome.await().failure.get() instanceof TFlyService.TFlyServiceException);
+        assertEquals(3, attempts.get());
+        assertEquals(1L, invoker.getFailures());
+    }
+
+    @Test
+    public void testHedgesSlowAttempts() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger(0);
+        final ResilientServiceInvoker invoker = ResilientServiceInvoker.create(new ServiceInvoker() {
+            @Override
+            public void invoke(final String request, final ServiceCallback callback) {
+                //The first attempt is stuck. The hedge responds right away.
+                final int attempt = attempts.incrementAndGet();
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.completed(request + attempt);
+                    }
+                }, attempt == 1 ? 5000L : 0L, TimeUnit.MILLISECONDS);
+            }
+        }, executor).withHedgeDelay(20L, TimeUnit.MILLISECONDS).withMaximumAttempts(2);
+
+        final Outcome outcome = new Outcome();
+        final long start = System.nanoTime();
+        invoker.invoke("a", outcome);
+        assertEquals("a2", outcome.await().response.get());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000L);
+        assertEquals(1L, invoker.getHedges());
+        assertEquals(1L, invoker.getHedgesWon());
+    }
+
+    @Test
+    public void testBudgetLimitsExtraAttempts() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger(0);
+        final ResilientServiceInvoker invoker = ResilientServiceInvoker.create(failingFirst(Integer.MAX_VALUE, attempts), executor)
+            .withHedgeDelay(0L, TimeUnit.MILLISECONDS)
+            .withRetryBudget(0.1d, 2);
+
+        for(int i = 0; i < 20; ++i) {
+            final Outcome outcome = new Outcome();
+            invoker.invoke("a", outcome);
+            assertNotNull(outcome.await().failure.get());
+        }
+
+        //The reserve of 2 plus 10% of 20 calls.
+        assertTrue(invoker.getRetries() <= 2L + 2L);
+        assertEquals(20L + invoker.getRetries(), attempts.get());
+        assertTrue(invoker.getBudgetExhausted() > 0L);
+    }
+
+    @Test
+    public void testRejectionsAreNotRetried() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger(0);
+        final ResilientServiceInvoker invoker = ResilientServiceInvoker.create(new ServiceInvoker() {
+            @Override
+            public void invoke(String request, ServiceCallback callback) {
+                attempts.incrementAndGet();
+                callback.failed(new RejectedExecutionException("Too many outstanding service calls"));
+            }
+        }, executor);
+
+        final Outcome outcome = new Outcome();
+        invoker.invoke("a", outcome);
+        assertTrue(outcome.await().failure.get() instanceof RejectedExecutionException);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testFastCallsCancelTheirHedges() throws InterruptedException {
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        scheduler.setRemoveOnCancelPolicy(true);
+        try {
+            final ResilientServiceInvoker invoker = ResilientServiceInvoker.create(new ServiceInvoker() {
+                @Override
+                public void invoke(final String request, final ServiceCallback callback) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.completed(request);
+                        }
+                    });
+                }
+            }, scheduler).withHedgeDelay(1L, TimeUnit.HOURS);
+
+            for(int i = 0; i < 1000; ++i) {
+                final Outcome outcome = new Outcome();
+                invoker.invoke("a", outcome);
+                assertEquals("a", outcome.await().response.get());
+            }
+            assertEquals(0, scheduler.getQueue().size());
+            assertEquals(0L, invoker.getHedges());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
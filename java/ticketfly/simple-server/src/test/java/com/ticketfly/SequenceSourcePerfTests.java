@@ -0,0 +1,105 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Contention microbenchmark for the {@link SequenceSource} strategies.
+ *
+ * Every thread hammers {@link SequenceSource#next()} with the occasional
+ * {@link SequenceSource#advanceTo(long)}, which is roughly what a busy set
+ * of event loops does to the sequence.
+ */
+public class SequenceSourcePerfTests {
+    private static final Logger logger = Logger.getLogger(SequenceSourcePerfTests.class.getName());
+
+    private static final int NUM_OPERATIONS_PER_THREAD = 2000000;
+
+    /**
+     * Creates a source. Only the durable source uses the file it's given.
+     */
+    private interface Factory {
+        SequenceSource create(File file) throws IOException;
+    }
+
+    private static final String[] NAMES = { "atomic", "striped", "durable" };
+    private static final Factory[] FACTORIES = {
+          new Factory() { public SequenceSource create(File file) { return new AtomicSequenceSource(); } }
+        , new Factory() { public SequenceSource create(File file) { return new StripedSequenceSource(); } }
+        , new Factory() { public SequenceSource create(File file) throws IOException { return DurableSequenceSource.open(file); } }
+    };
+
+    /**
+     * Measures a fresh source, closing it and deleting its file afterwards.
+     */
+    private static double measure(Factory factory, int num_threads) throws InterruptedException, IOException {
+        final File file = File.createTempFile("sequence-perf", ".dat");
+        try {
+            final SequenceSource source = factory.create(file);
+            try {
+                return measure(source, num_threads);
+            } finally {
+                if (source instanceof Closeable) {
+                    ((Closeable)source).close();
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static double measure(final SequenceSource source, int num_threads) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(num_threads);
+        for(int t = 0; t < num_threads; ++t) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long sink = 0L;
+                        for(int i = 1; i <= NUM_OPERATIONS_PER_THREAD; ++i) {
+                            if ((i & 0xFFFF) == 0) {
+                                source.advanceTo(sink + 1000L);
+                            }
+                            sink = source.next();
+                        }
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        final long started = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - started;
+        return (double)NUM_OPERATIONS_PER_THREAD * num_threads / (elapsed / 1e9d);
+    }
+
+    @Test
+    public void testContention() throws InterruptedException, IOException {
+        final int max_threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        for(int num_threads = 1; num_threads <= max_threads; num_threads *= 2) {
+            for(int i = 0; i < FACTORIES.length; ++i) {
+                //Warm up before measuring.
+                measure(FACTORIES[i], num_threads);
+                final double ops_per_second = measure(FACTORIES[i], num_threads);
+                assertTrue(ops_per_second > 0.0d);
+                logger.log(Level.INFO, String.format("%-8s %3d threads %14.0f ops/sec", NAMES[i], num_threads, ops_per_second));
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.ticketfly;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates the guarantees described by {@link SequenceSource} for each implementation.
+ */
+public class SequenceSourceTests {
+    private final List<DurableSequenceSource> durables = new ArrayList<DurableSequenceSource>();
+    private final List<File> files = new ArrayList<File>();
+
+    @After
+    public void closeDurables() throws IOException {
+        for(DurableSequenceSource durable : durables) {
+            durable.close();
+        }
+        for(File file : files) {
+            file.delete();
+        }
+    }
+
+    private SequenceSource[] sources() {
+        return new SequenceSource[] {
+              new AtomicSequenceSource()
+            , new StripedSequenceSource()
+            , new StripedSequenceSource(7)
+            , durable(DurableSequenceSource.DEFAULT_RESERVATION)
+            , durable(3)
+        };
+    }
+
+    private DurableSequenceSource durable(int reservation) {
+        try {
+            final File file = File.createTempFile("sequence", ".dat");
+            files.add(file);
+            final DurableSequenceSource durable = DurableSequenceSource.open(file, reservation);
+            durables.add(durable);
+            return durable;
+        } catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSequential() {
+        for(SequenceSource source : sources()) {
+            assertEquals(1L, source.next());
+            assertEquals(2L, source.next());
+
+            //Overrides above anything that may have been handed out are always accepted.
+            final long requested = source.current() + 100L;
+            assertTrue(source.advanceTo(requested));
+            assertEquals(requested + 1L, source.next());
+            assertFalse(source.advanceTo(requested));
+            assertTrue(source.next() > requested + 1L);
+        }
+
+        //The atomic source accepts anything above the last number handed out.
+        final AtomicSequenceSource atomic = new AtomicSequenceSource();
+        atomic.next();
+        assertTrue(atomic.advanceTo(2L));
+        assertEquals(3L, atomic.next());
+    }
+
+    @Test
+    public void testStripedOverrideInsideReservedBlock() {
+        //The first call reserves 1 through 1024, but only 1 and 2 are handed out.
+        final StripedSequenceSource striped = new StripedSequenceSource();
+        striped.next();
+        striped.next();
+        assertTrue(striped.current() >= StripedSequenceSource.DEFAULT_BLOCK_SIZE);
+
+        assertFalse(striped.advanceTo(2L));
+        assertTrue(striped.advanceTo(500L));
+        assertEquals(501L, striped.next());
+        assertFalse(striped.advanceTo(500L));
+    }
+
+    @Test
+    public void testWrapAround() {
+        final AtomicSequenceSource atomic = new AtomicSequenceSource(SequenceSource.MAXIMUM - 1L);
+        assertEquals(SequenceSource.MAXIMUM, atomic.next());
+        assertEquals(SequenceSource.MINIMUM, atomic.next());
+        assertEquals(SequenceSource.MINIMUM + 1L, atomic.next());
+
+        final StripedSequenceSource striped = new StripedSequenceSource(4);
+        assertTrue(striped.advanceTo(SequenceSource.MAXIMUM - 10L));
+        long previous = striped.next();
+        boolean wrapped = false;
+        for(int i = 0; i < 20; ++i) {
+            final long next = striped.next();
+            assertTrue(next > 0L);
+            if (next < previous) {
+                assertEquals(SequenceSource.MINIMUM, next);
+                wrapped = true;
+            }
+            previous = next;
+        }
+        assertTrue(wrapped);
+    }
+
+    /**
+     * Many threads concurrently hand out numbers and apply overrides. Numbers must be
+     * unique, increase per thread, and always exceed every override accepted before
+     * they were handed out.
+     */
+    @Test
+    public void testConcurrentGuarantees() throws InterruptedException {
+        final int NUM_THREADS = 8;
+        final int NUM_NUMBERS_PER_THREAD = 50000;
+
+        for(final SequenceSource source : sources()) {
+            final long[][] numbers = new long[NUM_THREADS][NUM_NUMBERS_PER_THREAD];
+            final AtomicLong highest_accepted = new AtomicLong(0L);
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(NUM_THREADS);
+            final AtomicLong failures = new AtomicLong(0L);
+
+            for(int t = 0; t < NUM_THREADS; ++t) {
+                final long[] mine = numbers[t];
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            for(int i = 0; i < mine.length; ++i) {
+                                if (i % 1000 == 0) {
+                                    final long requested = source.current() + 500L;
+                                    if (source.advanceTo(requested)) {
+                                        while(true) {
+                                            final long current = highest_accepted.get();
+                                            if (requested <= current || highest_accepted.compareAndSet(current, requested)) {
+                                                break;
+                                            }
+                                        }
+                                    }
+                                }
+                                final long floor = highest_accepted.get();
+                                mine[i] = source.next();
+                                if (mine[i] <= floor || (i > 0 && mine[i] <= mine[i - 1])) {
+                                    failures.incrementAndGet();
+                                }
+                            }
+                        } catch(InterruptedException e) {
+                            failures.incrementAndGet();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+
+            start.countDown();
+            done.await();
+            assertEquals(source.getClass().getSimpleName(), 0L, failures.get());
+
+            final Set<Long> unique = new HashSet<Long>(NUM_THREADS * NUM_NUMBERS_PER_THREAD * 2);
+            for(long[] mine : numbers) {
+                for(long number : mine) {
+                    assertTrue(source.getClass().getSimpleName() + " handed out " + number + " twice", unique.add(number));
+                }
+            }
+        }
+    }
+
+    /**
+     * Concurrent overrides must never move the sequence backwards.
+     */
+    @Test
+    public void testConcurrentOverridesNeverMoveBackwards() throws InterruptedException {
+        final int NUM_THREADS = 8;
+
+        for(final SequenceSource source : sources()) {
+            final CountDownLatch done = new CountDownLatch(NUM_THREADS);
+            for(int t = 0; t < NUM_THREADS; ++t) {
+                final long offset = t;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for(long i = 1; i <= 20000L; ++i) {
+                            source.advanceTo(i * NUM_THREADS + offset);
+                        }
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+            assertTrue(source.current() >= 20000L * NUM_THREADS + NUM_THREADS - 1L);
+            assertTrue(source.next() > 20000L * NUM_THREADS + NUM_THREADS - 1L);
+        }
+    }
+}
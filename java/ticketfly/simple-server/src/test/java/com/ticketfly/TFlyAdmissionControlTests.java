@@ -0,0 +1,125 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates {@link TFlyAdmissionControl}.
+ */
+public class TFlyAdmissionControlTests {
+    private static final int PORT_001 = TFlySimpleServer.DEFAULT_SERVER_PORT + 23;
+
+    private static final InetSocketAddress CLIENT_001 = new InetSocketAddress("10.0.0.1", 50001);
+    private static final InetSocketAddress CLIENT_002 = new InetSocketAddress("10.0.0.2", 50002);
+
+    @Test
+    public void testConnectionLimits() {
+        final TFlyServerMetrics metrics = new TFlyServerMetrics();
+        final TFlyAdmissionControl admission_control = new TFlyAdmissionControl(metrics);
+        admission_control.setMaximumConnections(3);
+        admission_control.setMaximumConnectionsPerAddress(2);
+
+        final TFlyAdmissionControl.Admission admission_001 = admission_control.admit(CLIENT_001);
+        final TFlyAdmissionControl.Admission admission_002 = admission_control.admit(CLIENT_001);
+        assertNotNull(admission_001);
+        assertNotNull(admission_002);
+        assertNull(admission_control.admit(CLIENT_001));
+        assertEquals(1L, metrics.getConnectionsRejectedForAddress());
+
+        assertNotNull(admission_control.admit(CLIENT_002));
+        assertNull(admission_control.admit(CLIENT_002));
+        assertEquals(1L, metrics.getConnectionsRejectedForServer());
+        assertEquals(3, admission_control.getConnections());
+
+        //Releasing twice only gives back one connection.
+        admission_001.release();
+        admission_001.release();
+        assertEquals(2, admission_control.getConnections());
+        assertNotNull(admission_control.admit(CLIENT_001));
+
+        //Raising the limit while running lets more in.
+        admission_control.setMaximumConnections(0);
+        assertNotNull(admission_control.admit(CLIENT_002));
+        assertEquals(2L, metrics.getConnectionsRejected());
+    }
+
+    /**
+     * Connections from the same address share a rate limit, which can be changed while they're open.
+     */
+    @Test
+    public void testRequestRateLimit() {
+        final TFlyAdmissionControl admission_control = new TFlyAdmissionControl(new TFlyServerMetrics());
+        final TFlyAdmissionControl.Admission admission_001 = admission_control.admit(CLIENT_001);
+        final TFlyAdmissionControl.Admission admission_002 = admission_control.admit(CLIENT_001);
+        final TFlyAdmissionControl.Admission admission_003 = admission_control.admit(CLIENT_002);
+        for(int i = 0; i < 1000; ++i) {
+            assertTrue(admission_001.tryAcquireRequest());
+        }
+
+        admission_control.setRequestRateLimitPerAddress(0.001d, 3);
+        assertTrue(admission_001.tryAcquireRequest());
+        assertTrue(admission_002.tryAcquireRequest());
+        assertTrue(admission_001.tryAcquireRequest());
+        assertFalse(admission_002.tryAcquireRequest());
+        assertFalse(admission_001.tryAcquireRequest());
+        assertTrue(admission_003.tryAcquireRequest());
+
+        admission_control.setRequestRateLimitPerAddress(0.0d, 1);
+        assertTrue(admission_002.tryAcquireRequest());
+    }
+
+    /**
+     * Connections over the limit and requests over the rate limit are answered with their errors.
+     */
+    @Test
+    public void testServerLimits() throws Exception {
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT_001)
+            .withSequenceSource(new AtomicSequenceSource())
+            .withMaximumConnectionsPerAddress(1)
+            .withRequestRateLimitPerAddress(0.001d, 2)
+            .start();
+        final Socket socket = new Socket();
+        try {
+            socket.setSoTimeout(30 * 1000);
+            socket.connect(new InetSocketAddress("localhost", PORT_001));
+            final OutputStream out = socket.getOutputStream();
+            out.write("one\ntwo\nthree\n".getBytes("UTF-8"));
+            out.flush();
+
+            final InputStream in = socket.getInputStream();
+            final StringBuilder received = new StringBuilder();
+            final String expected = "\neno 1\n\n\nowt 2\n\n" + ErrorCode.ERROR_RATE_LIMITED.getOutputMessage();
+            while(received.length() < expected.length()) {
+                final int read = in.read();
+                assertTrue(read >= 0);
+                received.append((char)read);
+            }
+            assertEquals(expected, received.toString());
+
+            //The first connection is still open, so a second from the same address is refused.
+            assertEquals(ErrorCode.ERROR_TOO_MANY_CONNECTIONS.getOutputMessage(), TFlyServiceHandlerTests.exchange(PORT_001, "four"));
+            assertEquals(1L, server.getMetrics().getConnectionsRejectedForAddress());
+            assertEquals(1L, server.getMetrics().getFailedRequests(ErrorCode.ERROR_RATE_LIMITED));
+
+            //Once it closes, the address may connect again.
+            socket.close();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+            while(server.getMetrics().getConnections() > 0L) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(10L);
+            }
+            server.withRequestRateLimitPerAddress(0.0d, 1);
+            assertEquals("\nruof 3\n\n", TFlyServiceHandlerTests.exchange(PORT_001, "four\n"));
+        } finally {
+            socket.close();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates {@link TFlyBinaryCodec}.
+ */
+public class TFlyBinaryCodecTests {
+    /**
+     * Encodes a request and strips its length, the way the frame decoder would.
+     */
+    private static ByteBuf request(String payload, long sequence_number) {
+        final ByteBuf out = Unpooled.buffer();
+        TFlyBinaryCodec.encodeRequest(out, payload.getBytes(CharsetUtil.UTF_8), sequence_number);
+        assertEquals(out.readableBytes() - TFlyBinaryCodec.LENGTH_FIELD_LENGTH, out.readInt());
+        return out;
+    }
+
+    /**
+     * Decodes a response frame (including its length) the way a client would.
+     */
+    private static String decode(ByteBuf out) throws Exception {
+        assertEquals(out.readableBytes() - TFlyBinaryCodec.LENGTH_FIELD_LENGTH, out.readInt());
+        return TFlyBinaryCodec.RESPONSE_DECODER.decode(null, out);
+    }
+
+    private static String respond(String payload, long sequence_number) throws Exception {
+        final ByteBuf frame = request(payload, TFlyBinaryCodec.NO_SEQUENCE_NUMBER);
+        assertNull(TFlyBinaryCodec.validate(frame));
+
+        final ByteBuf out = Unpooled.buffer(4);
+        TFlyBinaryCodec.encodeResponse(out, frame, sequence_number);
+        return decode(out);
+    }
+
+    @Test
+    public void testEncodeResponse() throws Exception {
+        assertEquals("ylftekcit 12\n", respond("ticketfly", 12L));
+        assertEquals("987 dar_si 790\n", respond("is_rad 789", 790L));
+        assertEquals("c\nb\n\ra 1\n", respond("a\r\nb\nc", 1L));
+        assertEquals("x " + Long.MAX_VALUE + "\n", respond("x", Long.MAX_VALUE));
+
+        //Multi-byte characters stay intact.
+        assertEquals("\u20acb\u00e9a 3\n", respond("a\u00e9b\u20ac", 3L));
+    }
+
+    @Test
+    public void testValidate() {
+        final ByteBuf request = request("is_rad", 789L);
+        assertNull(TFlyBinaryCodec.validate(request));
+        assertFalse(TFlyBinaryCodec.isClose(request));
+        assertEquals(789L, TFlyBinaryCodec.sequenceNumber(request));
+        assertEquals("is_rad", TFlyBinaryCodec.payload(request));
+
+        assertEquals(ErrorCode.ERROR_MISSING_INPUT, TFlyBinaryCodec.validate(request("", TFlyBinaryCodec.NO_SEQUENCE_NUMBER)));
+        assertEquals(ErrorCode.ERROR_INVALID_SEQUENCE_NUMBER, TFlyBinaryCodec.validate(request("x", -1L)));
+        assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT, TFlyBinaryCodec.validate(Unpooled.wrappedBuffer(new byte[] { TFlyBinaryCodec.OPCODE_REQUEST, 0, 0 })));
+
+        final ByteBuf response = Unpooled.buffer();
+        response.writeByte(TFlyBinaryCodec.OPCODE_RESPONSE);
+        response.writeLong(1L);
+        response.writeByte('x');
+        assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT, TFlyBinaryCodec.validate(response));
+
+        final ByteBuf close = Unpooled.buffer();
+        TFlyBinaryCodec.encodeClose(close);
+        close.skipBytes(TFlyBinaryCodec.LENGTH_FIELD_LENGTH);
+        assertTrue(TFlyBinaryCodec.isClose(close));
+    }
+
+    /**
+     * Errors decode to the same line the newline protocol sends, and the
+     * pre-encoded frames are shared and must survive being written repeatedly.
+     */
+    @Test
+    public void testEncodeError() throws Exception {
+        for(ErrorCode error : ErrorCode.values()) {
+            for(int i = 0; i < 3; ++i) {
+                final ByteBuf out = Unpooled.buffer();
+                TFlyBinaryCodec.encodeError(out, error);
+                assertEquals(error.getOutputMessage(), decode(out));
+            }
+        }
+    }
+
+    @Test
+    public void testEncodeServiceResponse() throws Exception {
+        final ByteBuf out = Unpooled.buffer();
+        TFlyBinaryCodec.encodeServiceResponse(out, "kao", 5L);
+        assertEquals("kao 5\n", decode(out));
+    }
+}
@@ -0,0 +1,69 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Keeps a window of requests in flight through pools of different sizes and
+ * reports throughput and utilization for each.
+ */
+public class TFlyClientPoolPerfTests {
+    private static final Logger logger = Logger.getLogger(TFlyClientPoolPerfTests.class.getName());
+
+    private static final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 1;
+    private static final int NUM_REQUESTS = 40000;
+    private static final int WINDOW = 2000;
+
+    @Test
+    public void testPoolSizes() throws Exception {
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT).start();
+        assertTrue(server.isRunning());
+        try {
+            //The first run warms up the JIT.
+            for(int connections : new int[] { 1, 1, 4, 16 }) {
+                final TFlyClientPool pool = TFlyClientPool.create("localhost", PORT)
+                    .withConnectionsPerEndpoint(connections)
+                    .withMaximumOutstandingRequestsPerConnection(WINDOW)
+                    .withThreads(Math.min(connections, Runtime.getRuntime().availableProcessors()))
+                    .start();
+                try {
+                    //Measure the pool once it's warm.
+                    while(pool.getConnectedConnections() < connections) {
+                        Thread.sleep(10L);
+                    }
+
+                    final List<CompletableFuture<String>> window = new ArrayList<CompletableFuture<String>>(WINDOW);
+                    double utilization = 0.0d;
+                    final long start = System.nanoTime();
+                    for(int i = 0; i < NUM_REQUESTS; i += WINDOW) {
+                        for(int j = 0; j < WINDOW; ++j) {
+                            window.add(pool.request("test"));
+                        }
+                        utilization = Math.max(utilization, pool.getUtilization());
+                        for(CompletableFuture<String> response : window) {
+                            assertTrue(response.get(10L, TimeUnit.SECONDS).startsWith("tset"));
+                        }
+                        window.clear();
+                    }
+                    final long elapsed = System.nanoTime() - start;
+
+                    logger.log(Level.INFO, String.format("%3d connections %8d requests %10.0f requests/sec  peak utilization %5.3f  %5d waits %6d ms waiting",
+                        connections, NUM_REQUESTS, NUM_REQUESTS / (elapsed / 1e9d), utilization,
+                        pool.getConnectionWaits(), pool.getConnectionWaitTime(TimeUnit.MILLISECONDS)));
+                } finally {
+                    pool.stop();
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
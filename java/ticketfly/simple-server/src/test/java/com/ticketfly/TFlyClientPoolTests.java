@@ -0,0 +1,114 @@
+package com.ticketfly;
+
+import io.netty.channel.EventLoopGroup;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates {@link TFlyClientPool}.
+ */
+public class TFlyClientPoolTests {
+    private static final int PORT_001 = TFlySimpleServer.DEFAULT_SERVER_PORT + 13;
+    private static final int PORT_002 = TFlySimpleServer.DEFAULT_SERVER_PORT + 14;
+
+    private static void awaitConnected(TFlyClientPool pool, int connections) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+        while(pool.getConnectedConnections() < connections) {
+            assertTrue("Only " + pool.getConnectedConnections() + " connections are up", System.nanoTime() < deadline);
+            Thread.sleep(10L);
+        }
+    }
+
+    /**
+     * Spreads requests across two servers that share one event loop group with the pool.
+     */
+    @Test
+    public void testRequestsAcrossEndpoints() throws Exception {
+        final EventLoopGroup group = Transport.NIO.newEventLoopGroup(2);
+        final TFlySimpleServer server_001 = TFlySimpleServer.create(PORT_001).withSequenceSource(new AtomicSequenceSource()).start();
+        final TFlySimpleServer server_002 = TFlySimpleServer.create(PORT_002).withSequenceSource(new AtomicSequenceSource()).start();
+        final TFlyClientPool pool = TFlyClientPool.create("localhost", PORT_001)
+            .withEndpoint("localhost", PORT_002)
+            .withEventLoopGroup(group)
+            .withConnectionsPerEndpoint(2)
+            .start();
+        try {
+            awaitConnected(pool, 4);
+            assertEquals(4, pool.getConnections());
+
+            final List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>();
+            for(int i = 0; i < 1000; ++i) {
+                responses.add(pool.request("pool_" + i));
+            }
+            assertTrue(pool.getUtilization() <= 1.0d);
+            for(int i = 0; i < responses.size(); ++i) {
+                assertTrue(responses.get(i).get(10L, TimeUnit.SECONDS).startsWith(new StringBuilder("pool_" + i).reverse() + " "));
+            }
+
+            assertEquals(0, pool.getOutstandingRequests());
+            assertTrue(server_001.getResponseFlushes() > 0L);
+            assertTrue(server_002.getResponseFlushes() > 0L);
+        } finally {
+            pool.stop();
+            server_001.stop();
+            server_002.stop();
+            group.shutdown();
+        }
+    }
+
+    /**
+     * Requests wait for a connection, and dropped connections come back once the server does.
+     */
+    @Test
+    public void testWaitsAndReconnects() throws Exception {
+        final TFlyClientPool pool = TFlyClientPool.create("localhost", PORT_001)
+            .withConnectionsPerEndpoint(2)
+            .withReconnectBackoff(10L, 100L, TimeUnit.MILLISECONDS)
+            .start();
+        TFlySimpleServer server_001 = null;
+        try {
+            //Nothing is listening yet.
+            try {
+                pool.request("early", 50L, TimeUnit.MILLISECONDS).get(10L, TimeUnit.SECONDS);
+                fail("The request should have timed out");
+            } catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+
+            final CompletableFuture<String> waiting = pool.request("waiting");
+            assertFalse(waiting.isDone());
+            assertEquals(1, pool.getWaiting());
+            assertTrue(pool.getReconnects() > 0L);
+
+            server_001 = TFlySimpleServer.create(PORT_001).start();
+            assertTrue(waiting.get(10L, TimeUnit.SECONDS).startsWith("gnitiaw "));
+            assertEquals(2L, pool.getConnectionWaits());
+            assertTrue(pool.getConnectionWaitTime(TimeUnit.NANOSECONDS) > 0L);
+            awaitConnected(pool, 2);
+
+            //Drop every connection and bring the server back.
+            server_001.stop();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+            while(pool.getConnectedConnections() > 0) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(10L);
+            }
+            server_001.start();
+            awaitConnected(pool, 2);
+            assertTrue(pool.request("again").get(10L, TimeUnit.SECONDS).startsWith("niaga "));
+        } finally {
+            pool.stop();
+            if (server_001 != null) {
+                server_001.stop();
+            }
+        }
+    }
+}
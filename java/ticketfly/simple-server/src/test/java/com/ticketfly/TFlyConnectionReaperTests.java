@@ -0,0 +1,118 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates {@link TFlyConnectionReaper}.
+ */
+public class TFlyConnectionReaperTests {
+    private static final int PORT_001 = TFlySimpleServer.DEFAULT_SERVER_PORT + 24;
+
+    /**
+     * Reads until the server closes the connection.
+     *
+     * @return how long that took in milliseconds
+     */
+    private static long awaitClose(Socket socket) throws IOException {
+        final long start = System.nanoTime();
+        final InputStream in = socket.getInputStream();
+        while(in.read() >= 0) {
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT_001)
+            .withIdleTimeout(500L, TimeUnit.MILLISECONDS)
+            .withFrameTimeout(0L, TimeUnit.MILLISECONDS)
+            .start();
+        final Socket quiet = new Socket("localhost", PORT_001);
+        final Socket busy = new Socket("localhost", PORT_001);
+        try {
+            quiet.setSoTimeout(10 * 1000);
+            busy.setSoTimeout(10 * 1000);
+
+            //Requests more often than the timeout keep a connection open well past it.
+            final OutputStream out = busy.getOutputStream();
+            for(int i = 0; i < 10; ++i) {
+                out.write("busy\n".getBytes("UTF-8"));
+                out.flush();
+                Thread.sleep(150L);
+            }
+            assertTrue(busy.getInputStream().available() > 0);
+
+            final long elapsed = awaitClose(quiet);
+            assertTrue("Closed after " + elapsed + "ms", elapsed < 5000L);
+            assertEquals(1L, server.getMetrics().getConnectionsReaped(TFlyConnectionReaper.Reason.IDLE));
+
+            //The busy connection goes quiet as well.
+            awaitClose(busy);
+            assertEquals(2L, server.getMetrics().getConnectionsReaped());
+        } finally {
+            quiet.close();
+            busy.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * A request that's never finished doesn't hold the connection open, but a
+     * request sent in pieces that are each soon after the last is answered.
+     */
+    @Test
+    public void testFrameTimeout() throws Exception {
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT_001)
+            .withSequenceSource(new AtomicSequenceSource())
+            .withIdleTimeout(0L, TimeUnit.MILLISECONDS)
+            .withFrameTimeout(500L, TimeUnit.MILLISECONDS)
+            .start();
+        final Socket slow = new Socket("localhost", PORT_001);
+        final Socket steady = new Socket("localhost", PORT_001);
+        try {
+            slow.setSoTimeout(10 * 1000);
+            steady.setSoTimeout(10 * 1000);
+            slow.getOutputStream().write("never_finish".getBytes("UTF-8"));
+            slow.getOutputStream().flush();
+
+            final OutputStream out = steady.getOutputStream();
+            for(String piece : new String[] { "st", "ea", "dy\n" }) {
+                out.write(piece.getBytes("UTF-8"));
+                out.flush();
+                Thread.sleep(100L);
+            }
+
+            final long elapsed = awaitClose(slow);
+            assertTrue("Closed after " + elapsed + "ms", elapsed < 5000L);
+            assertEquals(1L, server.getMetrics().getConnectionsReaped(TFlyConnectionReaper.Reason.SLOW_FRAME));
+
+            //Idle connections without a partial request are left alone.
+            Thread.sleep(1000L);
+            out.write("again\n".getBytes("UTF-8"));
+            out.flush();
+            final byte[] expected = "\nydaets 1\n\n\nniaga 2\n\n".getBytes("UTF-8");
+            final byte[] received = new byte[expected.length];
+            int read = 0;
+            while(read < received.length) {
+                final int count = steady.getInputStream().read(received, read, received.length - read);
+                assertTrue(count > 0);
+                read += count;
+            }
+            assertEquals(new String(expected, "UTF-8"), new String(received, "UTF-8"));
+            assertEquals(0L, server.getMetrics().getConnectionsReaped(TFlyConnectionReaper.Reason.IDLE));
+            assertEquals(1L, server.getMetrics().getConnectionsReaped());
+        } finally {
+            slow.close();
+            steady.close();
+            server.stop();
+        }
+    }
+}
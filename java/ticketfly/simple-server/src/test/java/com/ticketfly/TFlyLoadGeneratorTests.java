@@ -0,0 +1,93 @@
+package com.ticketfly;
+
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates {@link TFlyLoadGenerator}.
+ */
+public class TFlyLoadGeneratorTests {
+    private static final Logger logger = Logger.getLogger(TFlyLoadGeneratorTests.class.getName());
+
+    private static final int PORT_001 = TFlySimpleServer.DEFAULT_SERVER_PORT + 19;
+
+    private static TFlyLoadGenerator.Result result(double target_rate, double achieved_rate, long errors) {
+        return new TFlyLoadGenerator.Result(target_rate, achieved_rate, 1000L, 1000L - errors, errors,
+            new Histogram(3), new Histogram(3), TFlyLoadGenerator.DEFAULT_SATURATION_THRESHOLD, TFlyLoadGenerator.DEFAULT_MAXIMUM_ERROR_RATE);
+    }
+
+    /**
+     * A lightly loaded server answers every request at the target rate, and
+     * latency measured from the schedule is never less than from the actual send.
+     */
+    @Test
+    public void testFixedRate() throws Exception {
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT_001).start();
+        try {
+            final TFlyLoadGenerator.Result result = TFlyLoadGenerator.create("localhost", PORT_001)
+                .withConnections(2)
+                .withWarmup(200L, TimeUnit.MILLISECONDS)
+                .withDuration(1L, TimeUnit.SECONDS)
+                .run(2000.0d);
+            logger.log(Level.INFO, result.summary());
+
+            assertTrue("Sent " + result.getSent(), result.getSent() >= 1990L && result.getSent() <= 2010L);
+            assertEquals(0L, result.getErrors());
+            assertEquals(result.getSent(), result.getCompleted());
+            assertEquals(result.getCompleted(), result.getLatency().getTotalCount());
+            assertEquals(result.getCompleted(), result.getUncorrectedLatency().getTotalCount());
+            assertTrue(result.getLatency().getValueAtPercentile(99.0d) >= result.getUncorrectedLatency().getValueAtPercentile(99.0d));
+            assertFalse(result.summary(), result.isSaturated());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * A single connection allowed one request at a time can't keep up with a
+     * high rate, so the sweep stops at its first step.
+     */
+    @Test
+    public void testSweepStopsAtSaturation() throws Exception {
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT_001).start();
+        try {
+            final List<TFlyLoadGenerator.Result> results = TFlyLoadGenerator.create("localhost", PORT_001)
+                .withConnections(1)
+                .withMaximumOutstandingRequestsPerConnection(1)
+                .withWarmup(0L, TimeUnit.MILLISECONDS)
+                .withDuration(200L, TimeUnit.MILLISECONDS)
+                .sweep(100000.0d, 100000.0d, 300000.0d);
+
+            assertEquals(1, results.size());
+            assertTrue(results.get(0).isSaturated());
+            assertTrue(results.get(0).getErrors() > 0L);
+            assertEquals(0.0d, TFlyLoadGenerator.saturationPoint(results), 0.0d);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSaturationPoint() {
+        assertFalse(result(1000.0d, 999.0d, 0L).isSaturated());
+        assertTrue(result(1000.0d, 900.0d, 0L).isSaturated());
+        assertTrue(result(1000.0d, 1000.0d, 2L).isSaturated());
+
+        assertEquals(2000.0d, TFlyLoadGenerator.saturationPoint(Arrays.asList(
+            result(1000.0d, 1000.0d, 0L), result(2000.0d, 1980.0d, 1L), result(3000.0d, 2500.0d, 0L)
+        )), 0.0d);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNothingListening() throws Exception {
+        TFlyLoadGenerator.create("localhost", PORT_001).withDuration(100L, TimeUnit.MILLISECONDS).run(100.0d);
+    }
+}
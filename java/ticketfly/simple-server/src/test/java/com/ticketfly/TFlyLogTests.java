@@ -0,0 +1,247 @@
+package com.ticketfly;
+
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates {@link TFlyLog} and the {@link RateLimiter} behind it.
+ */
+public class TFlyLogTests {
+    /**
+     * Collects every record published to the logger it's attached to.
+     */
+    private static final class CapturingHandler extends Handler {
+        final BlockingQueue<LogRecord> records = new LinkedBlockingQueue<LogRecord>();
+
+        @Override
+        public void publish(LogRecord record) {
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static Logger capture(String name, CapturingHandler handler) {
+        final Logger logger = Logger.getLogger(name);
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.ALL);
+        logger.addHandler(handler);
+        return logger;
+    }
+
+    @Test
+    public void testRateLimiter() {
+        final RateLimiter limiter = new RateLimiter(10.0d, 3);
+        final long start = System.nanoTime();
+
+        //The burst is available right away, then one permit every 100 ms.
+        assertTrue(limiter.tryAcquire(start));
+        assertTrue(limiter.tryAcquire(start));
+        assertTrue(limiter.tryAcquire(start));
+        assertFalse(limiter.tryAcquire(start));
+        assertTrue(limiter.delayNanos(start) > 0L);
+        assertFalse(limiter.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(99L)));
+        assertTrue(limiter.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(100L)));
+        assertFalse(limiter.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(100L)));
+
+        //A long quiet period only refills the burst.
+        final long later = start + TimeUnit.SECONDS.toNanos(10L);
+        assertEquals(0L, limiter.delayNanos(later));
+        int granted = 0;
+        while(limiter.tryAcquire(later)) {
+            ++granted;
+        }
+        assertEquals(3, granted);
+    }
+
+    @Test
+    public void testRingBuffer() throws Exception {
+        final TFlyLog.RingBuffer<Long> buffer = new TFlyLog.RingBuffer<Long>(4);
+        assertNull(buffer.poll());
+        for(long i = 0L; i < 4L; ++i) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4L));
+        assertEquals(Long.valueOf(0L), buffer.poll());
+        assertTrue(buffer.offer(4L));
+        for(long i = 1L; i <= 4L; ++i) {
+            assertEquals(Long.valueOf(i), buffer.poll());
+        }
+        assertNull(buffer.poll());
+
+        //Several producers, one consumer; nothing is lost or duplicated.
+        final TFlyLog.RingBuffer<Long> shared = new TFlyLog.RingBuffer<Long>(1024);
+        final int PRODUCERS = 4;
+        final long PER_PRODUCER = 50000L;
+        final CountDownLatch done = new CountDownLatch(PRODUCERS);
+        for(int p = 0; p < PRODUCERS; ++p) {
+            final long base = p * PER_PRODUCER;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(long i = 0L; i < PER_PRODUCER; ++i) {
+                        while(!shared.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        long count = 0L;
+        long sum = 0L;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30L);
+        while(count < PRODUCERS * PER_PRODUCER) {
+            assertTrue(System.nanoTime() < deadline);
+            final Long value = shared.poll();
+            if (value != null) {
+                ++count;
+                sum += value;
+            }
+        }
+        assertTrue(done.await(10L, TimeUnit.SECONDS));
+        final long n = PRODUCERS * PER_PRODUCER;
+        assertEquals(n * (n - 1L) / 2L, sum);
+        assertNull(shared.poll());
+    }
+
+    /**
+     * Messages beyond the rate limit are dropped and summarized, parameters are
+     * left for the publishing thread to format, and buffers are decoded up front.
+     */
+    @Test
+    public void testRateLimitedAsyncLogging() throws Exception {
+        final CapturingHandler handler = new CapturingHandler();
+        final CapturingHandler summaries = new CapturingHandler();
+        final Logger logger = capture(TFlyLogTests.class.getName() + ".limited", handler);
+        capture(TFlyLog.class.getName(), summaries);
+        final TFlyLog log = TFlyLog.of(logger);
+
+        TFlyLog.Category.UNEXPECTED.configure(1.0d, 2, 1);
+        try {
+            final Object parameter = new Object();
+            log.log(Level.WARNING, TFlyLog.Category.UNEXPECTED, "first {0}", parameter);
+            log.log(Level.WARNING, TFlyLog.Category.UNEXPECTED, "second {0}", Unpooled.copiedBuffer("bytes", CharsetUtil.UTF_8));
+            for(int i = 0; i < 8; ++i) {
+                log.log(Level.WARNING, TFlyLog.Category.UNEXPECTED, "dropped {0}", i);
+            }
+
+            final LogRecord first = handler.records.poll(10L, TimeUnit.SECONDS);
+            assertNotNull(first);
+            assertEquals("first {0}", first.getMessage());
+            assertSame(parameter, first.getParameters()[0]);
+            assertEquals(logger.getName(), first.getSourceClassName());
+            final LogRecord second = handler.records.poll(10L, TimeUnit.SECONDS);
+            assertNotNull(second);
+            assertEquals("bytes", second.getParameters()[0]);
+
+            //The summary comes from the publishing thread within a second or so.
+            LogRecord summary;
+            do {
+                summary = summaries.records.poll(10L, TimeUnit.SECONDS);
+                assertNotNull(summary);
+            } while(summary.getParameters()[1] != TFlyLog.Category.UNEXPECTED);
+            assertEquals(8L, summary.getParameters()[0]);
+            assertNull(handler.records.poll(100L, TimeUnit.MILLISECONDS));
+        } finally {
+            TFlyLog.Category.UNEXPECTED.configure(10.0d, 10, 1);
+            Logger.getLogger(TFlyLog.class.getName()).removeHandler(summaries);
+            Logger.getLogger(TFlyLog.class.getName()).setUseParentHandlers(true);
+        }
+    }
+
+    /**
+     * Only one in every few messages is considered, and nothing at all happens
+     * for a level that's disabled.
+     */
+    @Test
+    public void testSamplingAndDisabledLevels() throws Exception {
+        final CapturingHandler handler = new CapturingHandler();
+        final Logger logger = capture(TFlyLogTests.class.getName() + ".sampled", handler);
+        final TFlyLog log = TFlyLog.of(logger);
+
+        TFlyLog.Category.SERVICE.configure(1000.0d, 1000, 3);
+        try {
+            final long suppressed = TFlyLog.Category.SERVICE.getSuppressed();
+            logger.setLevel(Level.INFO);
+            final AtomicLong formatted = new AtomicLong(0L);
+            final Object counting = new Object() {
+                @Override
+                public String toString() {
+                    formatted.incrementAndGet();
+                    return "counted";
+                }
+            };
+            for(int i = 0; i < 10; ++i) {
+                log.log(Level.FINE, TFlyLog.Category.SERVICE, "disabled {0}", counting);
+            }
+            assertEquals(suppressed, TFlyLog.Category.SERVICE.getSuppressed());
+
+            for(int i = 0; i < 9; ++i) {
+                log.log(Level.INFO, TFlyLog.Category.SERVICE, "sampled {0}", i);
+            }
+            for(int i = 0; i < 3; ++i) {
+                final LogRecord record = handler.records.poll(10L, TimeUnit.SECONDS);
+                assertNotNull(record);
+                assertEquals(3 * i, record.getParameters()[0]);
+            }
+            assertNull(handler.records.poll(100L, TimeUnit.MILLISECONDS));
+            assertEquals(0L, formatted.get());
+        } finally {
+            TFlyLog.Category.SERVICE.configure(10.0d, 10, 1);
+        }
+    }
+
+    /**
+     * With nothing to publish or summarize, the publishing thread waits
+     * without a timeout and is woken by the next message.
+     */
+    @Test
+    public void testPublisherSleepsWhenIdle() throws Exception {
+        final CapturingHandler handler = new CapturingHandler();
+        final Logger logger = capture(TFlyLogTests.class.getName() + ".idle", handler);
+        final TFlyLog log = TFlyLog.of(logger);
+
+        log.log(Level.INFO, TFlyLog.Category.UNEXPECTED, "first");
+        assertNotNull(handler.records.poll(10L, TimeUnit.SECONDS));
+
+        Thread publisher = null;
+        for(Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("tfly-log".equals(thread.getName())) {
+                publisher = thread;
+            }
+        }
+        assertNotNull(publisher);
+
+        //Anything left to summarize by other tests is summarized within a second or so.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+        while(publisher.getState() != Thread.State.WAITING) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(10L);
+        }
+
+        final long start = System.nanoTime();
+        log.log(Level.INFO, TFlyLog.Category.UNEXPECTED, "second");
+        assertEquals("second", handler.records.poll(10L, TimeUnit.SECONDS).getMessage());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000L);
+    }
+}
@@ -0,0 +1,111 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates {@link TFlyRequestParser} against the regular expressions it replaced.
+ */
+public class TFlyRequestParserTests {
+    private static final Pattern REGEX_MATCH_REQUEST_AND_SEQ_NUMBER = Pattern.compile("([a-zA-Z0-9_\\ ]+)\\ ([0-9]+)([\\r\\n]+)");
+    private static final Pattern REGEX_MATCH_REQUEST_ONLY = Pattern.compile("[a-zA-Z0-9_]+[\\r\\n]+");
+
+    /**
+     * Parses the input and describes the outcome the way the original regular expressions would.
+     */
+    private static String parse(String input) {
+        final TFlyRequestParser parser = new TFlyRequestParser();
+        final ByteBuf frame = Unpooled.copiedBuffer(input, CharsetUtil.UTF_8);
+        final ErrorCode error = parser.parse(frame);
+
+        assertEquals(0, frame.readerIndex());
+        if (error != null) {
+            return error.name();
+        }
+
+        String request = frame.toString(parser.requestStart(), parser.requestEnd() - parser.requestStart(), CharsetUtil.UTF_8);
+        String terminator = frame.toString(parser.terminatorStart(), parser.terminatorEnd() - parser.terminatorStart(), CharsetUtil.UTF_8);
+        return request + terminator + (parser.hasSequenceNumber() ? "#" + parser.sequenceNumber() : "");
+    }
+
+    /**
+     * The outcome according to the original regular expressions.
+     */
+    private static String expected(String input) {
+        Matcher matcher;
+        if ((matcher = REGEX_MATCH_REQUEST_AND_SEQ_NUMBER.matcher(input)).matches()) {
+            try {
+                return matcher.group(1) + matcher.group(3) + "#" + Long.parseLong(matcher.group(2));
+            } catch(NumberFormatException e) {
+                return ErrorCode.ERROR_INVALID_SEQUENCE_NUMBER.name();
+            }
+        } else if ((matcher = REGEX_MATCH_REQUEST_ONLY.matcher(input)).matches()) {
+            return matcher.group();
+        }
+        return ErrorCode.ERROR_INVALID_INPUT_FORMAT.name();
+    }
+
+    @Test
+    public void testValidRequests() {
+        assertEquals("ticketfly\n", parse("ticketfly\n"));
+        assertEquals("is_rad\n#789", parse("is_rad 789\n"));
+        assertEquals("a b c\r\n#12", parse("a b c 12\r\n"));
+        assertEquals("a 1\n#2", parse("a 1 2\n"));
+        assertEquals("test_message4\n#0", parse("test_message4 0\n"));
+        assertEquals("x\n#7", parse("x 0000007\n"));
+        assertEquals("x\n#2147483648", parse("x 2147483648\n"));
+        assertEquals("x\n#" + Long.MAX_VALUE, parse("x " + Long.MAX_VALUE + "\n"));
+    }
+
+    @Test
+    public void testInvalidRequests() {
+        assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT.name(), parse("a b\n"));
+        assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT.name(), parse(" 12\n"));
+        assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT.name(), parse("a 12 \n"));
+        assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT.name(), parse("a-b\n"));
+        assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT.name(), parse("ab\rc\n"));
+        assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT.name(), parse("abc"));
+        assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT.name(), parse("café\n"));
+        assertEquals(ErrorCode.ERROR_INVALID_SEQUENCE_NUMBER.name(), parse("x 9223372036854775808\n"));
+        assertEquals(ErrorCode.ERROR_INVALID_SEQUENCE_NUMBER.name(), parse("x 99999999999999999999999\n"));
+    }
+
+    @Test
+    public void testBlank() {
+        assertTrue(TFlyRequestParser.isBlank(Unpooled.copiedBuffer("\n", CharsetUtil.UTF_8)));
+        assertTrue(TFlyRequestParser.isBlank(Unpooled.copiedBuffer(" \t\r\n", CharsetUtil.UTF_8)));
+        assertFalse(TFlyRequestParser.isBlank(Unpooled.copiedBuffer(" a\n", CharsetUtil.UTF_8)));
+    }
+
+    /**
+     * Compares the parser with the original regular expressions on random input
+     * drawn from an alphabet that favors the interesting characters.
+     */
+    @Test
+    public void testMatchesRegularExpressions() {
+        final char[] alphabet = "aZ_09 9 \r-".toCharArray();
+        final Random random = new Random(42L);
+
+        for(int i = 0; i < 100000; ++i) {
+            final StringBuilder sb = new StringBuilder();
+            for(int j = random.nextInt(12); j > 0; --j) {
+                sb.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            sb.append('\n');
+
+            final String input = sb.toString();
+            if ("".equals(input.trim())) {
+                continue;
+            }
+            assertEquals(input, expected(input), parse(input));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.ticketfly;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TFlyResponseEncoderTests {
+    private static String encode(String input, long sequence_number) {
+        final TFlyRequestParser parser = new TFlyRequestParser();
+        final ByteBuf frame = Unpooled.copiedBuffer(input, CharsetUtil.UTF_8);
+        assertNull(parser.parse(frame));
+
+        final ByteBuf out = Unpooled.buffer(4);
+        TFlyResponseEncoder.encodeResponse(out, frame, parser, sequence_number);
+        return out.toString(CharsetUtil.UTF_8);
+    }
+
+    @Test
+    public void testEncodeResponse() {
+        assertEquals("\nylftekcit 12\n\n", encode("ticketfly\n", 12L));
+        assertEquals("\ndar_si 790\n\n", encode("is_rad 789\n", 790L));
+        assertEquals("\n\rc b a 0\n\n", encode("a b c 1\r\n", 0L));
+        assertEquals("\nx " + Long.MAX_VALUE + "\n\n", encode("x\n", Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testWriteDecimal() {
+        final long[] values = { 0L, 1L, 9L, 10L, 99L, 100L, 123456789L, Integer.MAX_VALUE, Long.MAX_VALUE };
+        for(long value : values) {
+            final ByteBuf out = Unpooled.buffer(1);
+            TFlyResponseEncoder.writeDecimal(out, value);
+            assertEquals(Long.toString(value), out.toString(CharsetUtil.US_ASCII));
+        }
+    }
+
+    /**
+     * The pre-encoded error messages are shared and must survive being written repeatedly.
+     */
+    @Test
+    public void testEncodeError() {
+        for(ErrorCode error : ErrorCode.values()) {
+            for(int i = 0; i < 3; ++i) {
+                final ByteBuf out = Unpooled.buffer();
+                TFlyResponseEncoder.encodeError(out, error);
+                assertEquals(error.getOutputMessage(), out.toString(CharsetUtil.UTF_8));
+            }
+        }
+    }
+}
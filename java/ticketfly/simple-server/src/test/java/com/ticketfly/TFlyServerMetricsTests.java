@@ -0,0 +1,105 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates {@link TFlyServerMetrics} and its Prometheus rendering.
+ */
+public class TFlyServerMetricsTests {
+    @Test
+    public void testCounts() {
+        final TFlyServerMetrics metrics = new TFlyServerMetrics();
+        metrics.connectionOpened();
+        metrics.connectionOpened();
+        metrics.connectionClosed();
+        metrics.requestSucceeded();
+        metrics.requestSucceeded();
+        metrics.requestFailed(ErrorCode.ERROR_INVALID_INPUT_FORMAT);
+        metrics.sequenceOverride(true);
+        metrics.sequenceOverride(false);
+        metrics.sequenceOverride(false);
+        metrics.bytesReceived(10);
+        metrics.bytesSent(25);
+        metrics.flushed(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(2L), 3);
+
+        assertEquals(1L, metrics.getConnections());
+        assertEquals(2L, metrics.getConnectionsOpened());
+        assertEquals(3L, metrics.getRequests());
+        assertEquals(2L, metrics.getSuccessfulRequests());
+        assertEquals(1L, metrics.getFailedRequests());
+        assertEquals(1L, metrics.getFailedRequests(ErrorCode.ERROR_INVALID_INPUT_FORMAT));
+        assertEquals(Long.valueOf(0L), metrics.getFailedRequestsByError().get(ErrorCode.ERROR_MISSING_INPUT.name()));
+        assertEquals(1L, metrics.getSequenceOverridesAccepted());
+        assertEquals(2L, metrics.getSequenceOverridesIgnored());
+        assertEquals(10L, metrics.getBytesReceived());
+        assertEquals(25L, metrics.getBytesSent());
+
+        assertEquals(3L, metrics.getRequestToFlushLatency().getTotalCount());
+        assertTrue(metrics.getRequestToFlushLatencyMicrosP50() >= 2000.0d);
+        assertTrue(metrics.getRequestToFlushLatencyTotal(TimeUnit.MILLISECONDS) >= 6L);
+
+        //Reading drains the recorder; nothing is lost or counted twice.
+        metrics.flushed(System.nanoTime(), 1);
+        assertEquals(4L, metrics.getRequestToFlushLatency().getTotalCount());
+        assertEquals(4L, metrics.getRequestToFlushLatency().getTotalCount());
+    }
+
+    /**
+     * Several event loops update the same metrics at once.
+     */
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final TFlyServerMetrics metrics = new TFlyServerMetrics();
+        final int THREADS = 4;
+        final int UPDATES = 100000;
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for(int i = 0; i < THREADS; ++i) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j = 0; j < UPDATES; ++j) {
+                        metrics.requestSucceeded();
+                        metrics.bytesSent(2);
+                        metrics.flushed(System.nanoTime(), 1);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(30L, TimeUnit.SECONDS));
+
+        assertEquals(THREADS * UPDATES, metrics.getSuccessfulRequests());
+        assertEquals(2L * THREADS * UPDATES, metrics.getBytesSent());
+        assertEquals(THREADS * UPDATES, metrics.getRequestToFlushLatency().getTotalCount());
+    }
+
+    @Test
+    public void testPrometheusFormat() {
+        final TFlyServerMetrics metrics = new TFlyServerMetrics();
+        metrics.connectionOpened();
+        metrics.requestSucceeded();
+        metrics.requestFailed(ErrorCode.ERROR_MISSING_INPUT);
+        metrics.flushed(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(3L), 2);
+
+        final String text = TFlyMetricsEndpoint.format(metrics, 4567);
+        assertTrue(text.contains("# TYPE tfly_requests_total counter\n"));
+        assertTrue(text.contains("tfly_connections{port=\"4567\"} 1\n"));
+        assertTrue(text.contains("tfly_requests_total{port=\"4567\",outcome=\"success\"} 1\n"));
+        assertTrue(text.contains("tfly_requests_total{port=\"4567\",outcome=\"error_missing_input\"} 1\n"));
+        assertTrue(text.contains("tfly_requests_total{port=\"4567\",outcome=\"error_service_failure\"} 0\n"));
+        assertTrue(text.contains("tfly_request_to_flush_seconds_bucket{port=\"4567\",le=\"0.001\"} 0\n"));
+        assertTrue(text.contains("tfly_request_to_flush_seconds_bucket{port=\"4567\",le=\"0.005\"} 2\n"));
+        assertTrue(text.contains("tfly_request_to_flush_seconds_bucket{port=\"4567\",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("tfly_request_to_flush_seconds_count{port=\"4567\"} 2\n"));
+
+        //Every line is a comment or a sample.
+        for(String line : text.split("\n")) {
+            assertTrue(line, line.startsWith("# ") || line.matches("tfly_[a-z_]+\\{[^}]*\\} [0-9.E+-]+"));
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.ticketfly;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Validates the server when requests are handed off to a service.
+ */
+public class TFlyServiceHandlerTests {
+    private static final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 10;
+
+    private static final String INPUT = "ticketfly\nis_rad 789\nbad!\nab\r\nq 5\n";
+
+    /**
+     * Sends raw input (followed by an empty line to close the connection) and returns everything the server sent back.
+     */
+    static String exchange(int port, String input) throws IOException {
+        final Socket socket = new Socket("localhost", port);
+        try {
+            socket.setSoTimeout(30 * 1000);
+            final OutputStream out = socket.getOutputStream();
+            out.write((input + "\n").getBytes("UTF-8"));
+            out.flush();
+
+            final InputStream in = socket.getInputStream();
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) >= 0) {
+                received.write(buffer, 0, read);
+            }
+            return received.toString("UTF-8");
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * A service that reverses its input after a random delay, so calls complete out of order.
+     */
+    private static final class ReversingInvoker implements ServiceInvoker {
+        private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+        private final Random random = new Random(7L);
+
+        @Override
+        public void invoke(final String request, final ServiceCallback callback) {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callback.completed(new StringBuilder(request).reverse().toString());
+                }
+            }, random.nextInt(50), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void testResponsesMatchAndStayInOrder() throws IOException {
+        final TFlySimpleServer plain = TFlySimpleServer.create(PORT).withSequenceSource(new AtomicSequenceSource()).start();
+        final String expected;
+        try {
+            assertTrue(plain.isRunning());
+            expected = exchange(PORT, INPUT);
+        } finally {
+            plain.stop();
+        }
+        assertEquals("\nylftekcit 1\n\n\ndar_si 790\n\n" + ErrorCode.ERROR_INVALID_INPUT_FORMAT.getOutputMessage() + "\n\rba 791\n\n\nq 792\n\n", expected);
+
+        final ReversingInvoker invoker = new ReversingInvoker();
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT).withSequenceSource(new AtomicSequenceSource()).withService(invoker).start();
+        try {
+            assertTrue(server.isRunning());
+            assertEquals(expected, exchange(PORT, INPUT));
+        } finally {
+            server.stop();
+            invoker.executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testServiceFailure() throws IOException {
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT).withSequenceSource(new AtomicSequenceSource()).withService(new ServiceInvoker() {
+            @Override
+            public void invoke(String request, ServiceCallback callback) {
+                if ("fail".equals(request)) {
+                    callback.failed(new TFlyService.TFlyServiceException("Service Error"));
+                } else {
+                    callback.completed(new StringBuilder(request).reverse().toString());
+                }
+            }
+        }).start();
+        try {
+            assertEquals("\nkao 1\n\n" + ErrorCode.ERROR_SERVICE_FAILURE.getOutputMessage() + "\nkao 2\n\n", exchange(PORT, "oak\nfail\noak\n"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Pipelines many requests to the real service. Each call takes 100 ms, so
+     * they must be in flight concurrently for this to finish in time.
+     */
+    @Test
+    public void testConcurrentServiceCalls() throws IOException {
+        final int NUM_REQUESTS = 500;
+        final ExecutorServiceInvoker invoker = ExecutorServiceInvoker.create(new TFlyService(), ServiceBackend.preferred());
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT).withSequenceSource(new AtomicSequenceSource()).withService(invoker).start();
+        try {
+            final StringBuilder input = new StringBuilder();
+            for(int i = 0; i < NUM_REQUESTS; ++i) {
+                input.append("request_").append(i).append('\n');
+            }
+
+            final long start = System.nanoTime();
+            final String output = exchange(PORT, input.toString());
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Took " + elapsed + " ms", elapsed < NUM_REQUESTS * 100L / 4L);
+
+            //Successful responses arrive in request order with increasing sequence numbers.
+            int failures = 0;
+            int next_request = 0;
+            long previous_sequence = 0L;
+            for(String line : output.split("\n")) {
+                if ("".equals(line)) {
+                    continue;
+                }
+                if (line.equals(ErrorCode.ERROR_SERVICE_FAILURE.getOutputMessage().trim())) {
+                    ++failures;
+                    ++next_request;
+                    continue;
+                }
+                final String[] parts = line.split(" ");
+                assertEquals(new StringBuilder("request_" + next_request).reverse().toString(), parts[0]);
+                final long sequence = Long.parseLong(parts[1]);
+                assertTrue(sequence > previous_sequence);
+                previous_sequence = sequence;
+                ++next_request;
+            }
+            assertEquals(NUM_REQUESTS, next_request);
+            assertTrue(failures < NUM_REQUESTS / 4);
+        } finally {
+            server.stop();
+            invoker.shutdown();
+        }
+    }
+
+    /**
+     * Requests beyond a connection's limit are answered as unavailable, in order.
+     */
+    @Test
+    public void testPerConnectionLimit() throws IOException {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT)
+            .withSequenceSource(new AtomicSequenceSource())
+            .withMaximumServiceCallsPerConnection(2)
+            .withService(new ServiceInvoker() {
+                @Override
+                public void invoke(final String request, final ServiceCallback callback) {
+                    executor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.completed(request);
+                        }
+                    }, 200L, TimeUnit.MILLISECONDS);
+                }
+            })
+            .start();
+        try {
+            final String unavailable = ErrorCode.ERROR_SERVICE_UNAVAILABLE.getOutputMessage();
+            assertEquals("\na 1\n\n\nb 2\n\n" + unavailable + unavailable, exchange(PORT, "a\nb\nc\nd\n"));
+            assertEquals(2L, server.getConnectionServiceRejections());
+        } finally {
+            server.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A call that completes after the server has stopped is quietly dropped.
+     */
+    @Test
+    public void testCompletesAfterStop() throws Exception {
+        final BlockingQueue<ServiceCallback> callbacks = new LinkedBlockingQueue<ServiceCallback>();
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT)
+            .withSequenceSource(new AtomicSequenceSource())
+            .withService(new ServiceInvoker() {
+                @Override
+                public void invoke(String request, ServiceCallback callback) {
+                    callbacks.add(callback);
+                }
+            })
+            .start();
+        final Socket socket = new Socket("localhost", PORT);
+        try {
+            socket.getOutputStream().write("slow\n".getBytes("UTF-8"));
+            socket.getOutputStream().flush();
+            final ServiceCallback callback = callbacks.poll(10L, TimeUnit.SECONDS);
+            assertNotNull(callback);
+
+            server.stop();
+            callback.completed("wols");
+        } finally {
+            socket.close();
+            server.stop();
+        }
+    }
+}
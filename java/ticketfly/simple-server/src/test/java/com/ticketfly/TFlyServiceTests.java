@@ -2,7 +2,12 @@ package com.ticketfly;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class TFlyServiceTests {
@@ -48,5 +53,36 @@ public class TFlyServiceTests {
 		assertTrue( .01d < d );
 		assertTrue( .1d > d );
 	}
+	
+	/**
+	 * A whole batch should take about as long as a single execution, and 
+	 * each item either succeeds with its reversed input or fails on its own.
+	 */
+	@Test
+	public void testExecuteBatch() {
+		TFlyService service = new TFlyService();
+		List<String> inputs = new ArrayList<String>();
+		for(int i = 0; i < 200; i++)
+			inputs.add("tester" + i);
+		
+		long start = System.currentTimeMillis();
+		List<TFlyService.BatchResult> results = service.executeBatch(inputs);
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue( elapsed < 1000 );
+		
+		assertEquals(inputs.size(), results.size());
+		int failures = 0;
+		for(int i = 0; i < inputs.size(); i++){
+			TFlyService.BatchResult result = results.get(i);
+			if(result.isSuccess()){
+				assertNull(result.getException());
+				assertEquals(new StringBuilder(inputs.get(i)).reverse().toString(), result.getResponse());
+			} else {
+				assertNotNull(result.getException());
+				failures++;
+			}
+		}
+		assertTrue( failures < inputs.size() / 2 );
+	}
 
 }
@@ -2,11 +2,22 @@ package com.ticketfly;
 
 import io.netty.channel.ChannelHandlerContext;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.*;
 
@@ -114,4 +125,270 @@ public class TFlySimpleClientTests {
         //    netstat -ton | grep CLOSE_WAIT | wc -l
         //Should return 0 if you have no other sockets open on the system.
     }
+
+    /**
+     * Connects a client to a server and waits until it's connected.
+     */
+    private static TFlySimpleClient connect(int port) {
+        return connect(port, Framing.NEWLINE);
+    }
+
+    private static TFlySimpleClient connect(int port, Framing framing) {
+        final TFlySimpleClient client = TFlySimpleClient.create("localhost", port, new TFlySimpleClient.Callback()).withFraming(framing);
+        assertTrue(client.connect().awaitUninterruptibly(10L * 1000L));
+        //The connect future completes only once the client is marked connected.
+        assertTrue(client.isConnected());
+        return client;
+    }
+
+    private static Throwable failure(CompletableFuture<String> future) throws InterruptedException {
+        try {
+            future.get(10L, TimeUnit.SECONDS);
+        } catch(ExecutionException e) {
+            return e.getCause();
+        } catch(TimeoutException e) {
+            fail("The future was never completed");
+        }
+        fail("The future should have failed");
+        return null;
+    }
+
+    /**
+     * Pipelines many requests on one connection and matches each response to its request.
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        final int NUM_REQUESTS = 2000;
+        final TFlySimpleClient client_001 = connect(TFlySimpleClient.DEFAULT_SERVER_PORT).withMaximumOutstandingRequests(NUM_REQUESTS);
+        try {
+            final List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>(NUM_REQUESTS);
+            for(int i = 0; i < NUM_REQUESTS; ++i) {
+                responses.add(client_001.request("request_" + i));
+            }
+
+            long previous_sequence = 0L;
+            for(int i = 0; i < NUM_REQUESTS; ++i) {
+                final String[] parts = responses.get(i).get(10L, TimeUnit.SECONDS).split(" ");
+                assertEquals(new StringBuilder("request_" + i).reverse().toString(), parts[0]);
+                final long sequence = Long.parseLong(parts[1]);
+                assertTrue(sequence > previous_sequence);
+                previous_sequence = sequence;
+            }
+
+            //Errors are answered in order too.
+            final CompletableFuture<String> invalid = client_001.request("bad!");
+            final CompletableFuture<String> overridden = client_001.request("ab", previous_sequence + 1000L);
+            assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT.getOutputMessage().trim(), invalid.get(10L, TimeUnit.SECONDS));
+            assertEquals("ba " + (previous_sequence + 1001L), overridden.get(10L, TimeUnit.SECONDS));
+            assertEquals(0, client_001.getOutstandingRequests());
+        } finally {
+            client_001.disconnect();
+        }
+    }
+
+    /**
+     * Requests beyond the cap fail fast, slow responses time out, and
+     * whatever's outstanding fails when the connection closes.
+     */
+    @Test
+    public void testOutstandingLimitAndTimeouts() throws Exception {
+        final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 11;
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT).withService(new ServiceInvoker() {
+            @Override
+            public void invoke(String request, ServiceCallback callback) {
+                //Never answers.
+            }
+        }).start();
+        try {
+            final TFlySimpleClient client_001 = connect(PORT).withMaximumOutstandingRequests(2);
+            final CompletableFuture<String> timed_out = client_001.request("a", 100L, TimeUnit.MILLISECONDS);
+            final CompletableFuture<String> waiting = client_001.request("b", 0L, TimeUnit.MILLISECONDS);
+            final CompletableFuture<String> rejected = client_001.request("c");
+
+            assertTrue(failure(rejected) instanceof RejectedExecutionException);
+            assertEquals(1L, client_001.getRejectedRequests());
+
+            assertTrue(failure(timed_out) instanceof TimeoutException);
+            assertEquals(1L, client_001.getRequestTimeouts());
+            assertFalse(waiting.isDone());
+
+            //The timed out request still holds its place until the connection closes.
+            assertEquals(2, client_001.getOutstandingRequests());
+            server.stop();
+            assertTrue(failure(waiting) instanceof ClosedChannelException);
+            assertEquals(0, client_001.getOutstandingRequests());
+
+            assertTrue(failure(client_001.request("d")) instanceof ClosedChannelException);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Coalesced writes are held until a threshold is reached or they're flushed explicitly.
+     */
+    @Test
+    public void testWriteCoalescing() throws InterruptedException {
+        final Semaphore sem_responses = new Semaphore(0);
+        final TFlySimpleClient client_001 = TFlySimpleClient.createLocal(new TFlySimpleClient.Callback() {
+            @Override
+            public void dataReceived(TFlySimpleClient tFlySimpleClient, String msg) throws InterruptedException {
+                if (!"".equals(msg.trim())) {
+                    sem_responses.release();
+                }
+            }
+        }).withWriteCoalescing(64 * 1024, 10, 1L, TimeUnit.HOURS);
+        assertTrue(client_001.connect().awaitUninterruptibly(10L * 1000L));
+        try {
+            for(int i = 0; i < 25; ++i) {
+                client_001.write("test");
+            }
+            assertTrue(sem_responses.tryAcquire(20, 10L * 1000L, TimeUnit.MILLISECONDS));
+            assertFalse(sem_responses.tryAcquire(1, 200L, TimeUnit.MILLISECONDS));
+            assertEquals(2L, client_001.getFlushes());
+
+            client_001.flush();
+            assertTrue(sem_responses.tryAcquire(5, 10L * 1000L, TimeUnit.MILLISECONDS));
+            assertEquals(3L, client_001.getFlushes());
+            assertEquals(25L, client_001.getMessagesWritten());
+
+            //A bulk write is flushed once, however many messages it holds.
+            assertTrue(client_001.writeAll(Collections.nCopies(50, "test")).awaitUninterruptibly(10L * 1000L));
+            assertTrue(sem_responses.tryAcquire(50, 10L * 1000L, TimeUnit.MILLISECONDS));
+            assertEquals(4L, client_001.getFlushes());
+
+            //A short linger flushes on its own.
+            client_001.withWriteCoalescing(64 * 1024, 10, 10L, TimeUnit.MILLISECONDS);
+            client_001.write("test");
+            assertTrue(sem_responses.tryAcquire(1, 10L * 1000L, TimeUnit.MILLISECONDS));
+            assertEquals(5L, client_001.getFlushes());
+        } finally {
+            client_001.disconnect();
+        }
+    }
+
+    /**
+     * Pipelines length prefixed requests, negotiated on the main port and on a
+     * dedicated port in front of a service. Responses look just like they do with newlines.
+     */
+    @Test
+    public void testLengthPrefixedRequests() throws Exception {
+        final TFlySimpleClient client_001 = connect(TFlySimpleClient.DEFAULT_SERVER_PORT, Framing.LENGTH_PREFIXED);
+        try {
+            assertEquals(Framing.LENGTH_PREFIXED, client_001.getFraming());
+            final List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>();
+            for(int i = 0; i < 500; ++i) {
+                responses.add(client_001.request("request_" + i));
+            }
+
+            long previous_sequence = 0L;
+            for(int i = 0; i < responses.size(); ++i) {
+                final String[] parts = responses.get(i).get(10L, TimeUnit.SECONDS).split(" ");
+                assertEquals(new StringBuilder("request_" + i).reverse().toString(), parts[0]);
+                final long sequence = Long.parseLong(parts[1]);
+                assertTrue(sequence > previous_sequence);
+                previous_sequence = sequence;
+            }
+
+            //Payloads may hold anything but nothing, and the override travels in the header.
+            assertEquals("senil\nowt " + (previous_sequence + 1L), client_001.request("two\nlines").get(10L, TimeUnit.SECONDS));
+            assertEquals("ba " + (previous_sequence + 1001L), client_001.request("ab", previous_sequence + 1000L).get(10L, TimeUnit.SECONDS));
+            try {
+                client_001.request("");
+                fail("Empty requests should be refused");
+            } catch(IllegalArgumentException e) {
+                //Expected.
+            }
+        } finally {
+            client_001.disconnect();
+        }
+
+        final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 17;
+        final int LENGTH_PREFIXED_PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 18;
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT)
+            .withSequenceSource(new AtomicSequenceSource())
+            .withLengthPrefixedPort(LENGTH_PREFIXED_PORT)
+            .withService(new ServiceInvoker() {
+                @Override
+                public void invoke(String request, ServiceCallback callback) {
+                    callback.completed(new StringBuilder(request).reverse().toString());
+                }
+            })
+            .start();
+        try {
+            final TFlySimpleClient client_002 = connect(LENGTH_PREFIXED_PORT, Framing.LENGTH_PREFIXED);
+            assertEquals("\u00e9a b 1", client_002.request("b a\u00e9").get(10L, TimeUnit.SECONDS));
+            assertEquals("c 11", client_002.request("c", 10L).get(10L, TimeUnit.SECONDS));
+
+            //Disconnecting sends a close frame, which the server answers by closing.
+            client_002.disconnect();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+            while(client_002.isConnected()) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(10L);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Clients on the same machine connect over the server's Unix domain
+     * socket with either framing. A stale socket file is replaced, one in use isn't,
+     * anything else at the path is left alone, and the server removes its own when it stops.
+     */
+    @Test
+    public void testUnixDomainSocket() throws Exception {
+        Assume.assumeTrue(TFlySimpleServer.isUnixDomainSocketSupported());
+
+        final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 26;
+        final Path directory = Files.createTempDirectory("tfly");
+        final Path path = directory.resolve("tfly.sock");
+
+        //An ordinary file isn't mistaken for a stale socket.
+        Files.createFile(path);
+        assertFalse(TFlySimpleServer.create(PORT).withUnixDomainSocket(path.toString()).start().isRunning());
+        assertTrue(Files.exists(path));
+        Files.delete(path);
+
+        //A socket file left behind by a server that's gone.
+        final UnixDomainSocket.ServerChannel stale = new UnixDomainSocket.ServerChannel(path.toString(), 1);
+        stale.javaChannel().bind(UnixDomainSocket.address(path.toString()), 1);
+        stale.javaChannel().close();
+        assertTrue(UnixDomainSocket.isSocketFile(path));
+
+        final TFlySimpleServer server = TFlySimpleServer.create(PORT)
+            .withSequenceSource(new AtomicSequenceSource())
+            .withUnixDomainSocket(path.toString())
+            .start();
+        try {
+            assertTrue(server.isRunning());
+            assertFalse(TFlySimpleServer.create(PORT + 1).withUnixDomainSocket(path.toString()).start().isRunning());
+
+            final TFlySimpleClient client_001 = TFlySimpleClient.createUnixDomain(path.toString(), new TFlySimpleClient.Callback()).withMaximumOutstandingRequests(500);
+            final TFlySimpleClient client_002 = TFlySimpleClient.createUnixDomain(path.toString(), new TFlySimpleClient.Callback()).withFraming(Framing.LENGTH_PREFIXED);
+            assertEquals(path.toString(), client_001.getUnixDomainSocket());
+            assertTrue(client_001.connect().awaitUninterruptibly(10L * 1000L));
+            assertTrue(client_002.connect().awaitUninterruptibly(10L * 1000L));
+            try {
+                final List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>();
+                for(int i = 0; i < 500; ++i) {
+                    responses.add(client_001.request("request_" + i));
+                }
+                for(int i = 0; i < responses.size(); ++i) {
+                    assertEquals(new StringBuilder("request_" + i).reverse().toString() + " " + (i + 1), responses.get(i).get(10L, TimeUnit.SECONDS));
+                }
+                assertEquals("senil\nowt 501", client_002.request("two\nlines").get(10L, TimeUnit.SECONDS));
+                //The refused server checked that the socket was in use by connecting to it.
+                assertEquals(3L, server.getMetrics().getConnectionsOpened());
+            } finally {
+                client_001.disconnect();
+                client_002.disconnect();
+            }
+        } finally {
+            server.stop();
+        }
+        assertFalse(Files.exists(path));
+        Files.delete(directory);
+    }
 }
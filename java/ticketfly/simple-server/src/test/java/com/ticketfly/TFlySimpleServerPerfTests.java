@@ -5,9 +5,24 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import static com.ticketfly.TFlySimpleServerTestUtil.*;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -20,6 +35,8 @@ import static org.junit.Assert.assertTrue;
  * </ol>
  */
 public class TFlySimpleServerPerfTests {
+    private static final Logger logger = Logger.getLogger(TFlySimpleServerPerfTests.class.getName());
+
     private static TFlySimpleServer server_001;
 
     @BeforeClass
@@ -71,7 +88,7 @@ public class TFlySimpleServerPerfTests {
                     }
                 }
             });
-            clients[i].connect();
+            assertTrue(clients[i].connect().awaitUninterruptibly(10L * 1000L));
         }
 
         for(int i = 0; i < NUM_MSGS_PER_CLIENT; ++i) {
@@ -87,4 +104,375 @@ public class TFlySimpleServerPerfTests {
 
         assertTrue(latch_client_disconnect.await(10, TimeUnit.SECONDS));
     }
+
+    /**
+     * Runs the same load against a server using each available {@link Transport} and
+     * reports throughput and latency percentiles for each so they can be compared.
+     */
+    @Test
+    public void testTransportComparison() throws InterruptedException {
+        final int NUM_CLIENTS = 50;
+        final int NUM_MSGS_PER_CLIENT = 200;
+
+        for(Transport transport : Transport.values()) {
+            if (!transport.isAvailable()) {
+                logger.log(Level.INFO, "Skipping unavailable transport: " + transport);
+                continue;
+            }
+
+            final TFlySimpleServer server = TFlySimpleServer.create(TFlySimpleServer.DEFAULT_SERVER_PORT + 1).withTransport(transport).start();
+            assertTrue(server.isRunning());
+            try {
+                //Warm up before measuring.
+                measureRoundTrips(server, transport, NUM_CLIENTS, NUM_MSGS_PER_CLIENT);
+                logger.log(Level.INFO, measureRoundTrips(server, transport, NUM_CLIENTS, NUM_MSGS_PER_CLIENT).toString());
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Many connections each have a service call in flight at once. Every call
+     * sleeps for 100 ms, so the throughput shows how many calls overlap.
+     */
+    @Test
+    public void testServiceCallsInFlight() throws InterruptedException {
+        final int NUM_CLIENTS = 1000;
+        final int NUM_MSGS_PER_CLIENT = 2;
+
+        for(ServiceBackend backend : ServiceBackend.values()) {
+            if (!backend.isAvailable()) {
+                logger.log(Level.INFO, "Skipping unavailable service backend: " + backend);
+                continue;
+            }
+
+            final ExecutorServiceInvoker invoker = ExecutorServiceInvoker.create(new TFlyService(), backend, NUM_CLIENTS, NUM_CLIENTS * NUM_MSGS_PER_CLIENT);
+            final TFlySimpleServer server = TFlySimpleServer.create(TFlySimpleServer.DEFAULT_SERVER_PORT + 1).withService(invoker).start();
+            assertTrue(server.isRunning());
+            try {
+                logger.log(Level.INFO, backend + " " + measureRoundTrips(server, Transport.NIO, NUM_CLIENTS, NUM_MSGS_PER_CLIENT));
+            } finally {
+                server.stop();
+                invoker.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Sends requests over a single connection, first one at a time and then
+     * with many in flight, and reports the throughput of each.
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        final int NUM_SEQUENTIAL = 2000;
+        final int NUM_PIPELINED = 20000;
+        final int WINDOW = 1000;
+
+        final TFlySimpleClient client = TFlySimpleClient.createLocal(new TFlySimpleClient.Callback()).withMaximumOutstandingRequests(WINDOW);
+        assertTrue(client.connect().awaitUninterruptibly(10L * 1000L));
+        try {
+            long start = System.nanoTime();
+            for(int i = 0; i < NUM_SEQUENTIAL; ++i) {
+                assertTrue(client.request("test").get(10L, TimeUnit.SECONDS).startsWith("tset"));
+            }
+            logger.log(Level.INFO, String.format("sequential %8d requests %10.0f requests/sec", NUM_SEQUENTIAL, NUM_SEQUENTIAL / ((System.nanoTime() - start) / 1e9d)));
+
+            start = System.nanoTime();
+            final List<CompletableFuture<String>> window = new ArrayList<CompletableFuture<String>>(WINDOW);
+            for(int i = 0; i < NUM_PIPELINED; i += WINDOW) {
+                for(int j = 0; j < WINDOW; ++j) {
+                    window.add(client.request("test"));
+                }
+                for(CompletableFuture<String> response : window) {
+                    assertTrue(response.get(10L, TimeUnit.SECONDS).startsWith("tset"));
+                }
+                window.clear();
+            }
+            logger.log(Level.INFO, String.format("pipelined  %8d requests %10.0f requests/sec", NUM_PIPELINED, NUM_PIPELINED / ((System.nanoTime() - start) / 1e9d)));
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Sends the same messages over a single connection flushing every write,
+     * coalescing writes, and writing them in bulk. Reports throughput and how
+     * many messages went out per flush (roughly, per write syscall).
+     */
+    @Test
+    public void testWriteCoalescing() throws InterruptedException {
+        final int NUM_MSGS = 50000;
+        final int BULK_SIZE = 100;
+
+        for(String mode : new String[] { "flush-per-write", "coalesced", "writeAll" }) {
+            final Semaphore responses = new Semaphore(0);
+            final TFlySimpleClient client = TFlySimpleClient.createLocal(new TFlySimpleClient.Callback() {
+                @Override
+                public void dataReceived(TFlySimpleClient client, String msg) throws InterruptedException {
+                    if (!"".equals(msg.trim())) {
+                        responses.release();
+                    }
+                }
+            });
+            if ("coalesced".equals(mode)) {
+                client.withWriteCoalescing();
+            }
+            assertTrue(client.connect().awaitUninterruptibly(10L * 1000L));
+            try {
+                final long start = System.nanoTime();
+                if ("writeAll".equals(mode)) {
+                    final List<String> bulk = Collections.nCopies(BULK_SIZE, "test");
+                    for(int i = 0; i < NUM_MSGS; i += BULK_SIZE) {
+                        client.writeAll(bulk);
+                    }
+                } else {
+                    for(int i = 0; i < NUM_MSGS; ++i) {
+                        client.write("test");
+                    }
+                }
+                assertTrue(responses.tryAcquire(NUM_MSGS, 60L, TimeUnit.SECONDS));
+                final long elapsed = System.nanoTime() - start;
+
+                logger.log(Level.INFO, String.format("%-16s %8d msgs %10.0f msgs/sec %8d flushes %6.3f flushes/msg",
+                    mode, NUM_MSGS, NUM_MSGS / (elapsed / 1e9d), client.getFlushes(), (double)client.getFlushes() / client.getMessagesWritten()));
+            } finally {
+                client.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Pipelines bursts of requests over a single connection to a server that
+     * flushes after every response and to one that flushes once per read.
+     * Each is run twice and only the second run is reported.
+     */
+    @Test
+    public void testFlushPerReadBurst() throws InterruptedException {
+        final int NUM_MSGS = 50000;
+        final int BULK_SIZE = 100;
+        int runs = 0;
+
+        for(int maximum_unflushed_bytes : new int[] { 1, TFlySimpleServer.DEFAULT_MAXIMUM_UNFLUSHED_BYTES, 1, TFlySimpleServer.DEFAULT_MAXIMUM_UNFLUSHED_BYTES }) {
+            final boolean warm_up = ++runs <= 2;
+            final TFlySimpleServer server = TFlySimpleServer.create(TFlySimpleServer.DEFAULT_SERVER_PORT + 1).withMaximumUnflushedBytes(maximum_unflushed_bytes).start();
+            assertTrue(server.isRunning());
+
+            final Semaphore responses = new Semaphore(0);
+            final TFlySimpleClient client = TFlySimpleClient.create("localhost", server.getPort(), new TFlySimpleClient.Callback() {
+                @Override
+                public void dataReceived(TFlySimpleClient client, String msg) throws InterruptedException {
+                    if (!"".equals(msg.trim())) {
+                        responses.release();
+                    }
+                }
+            });
+            try {
+                assertTrue(client.connect().awaitUninterruptibly(10L * 1000L));
+                final List<String> bulk = Collections.nCopies(BULK_SIZE, "test");
+                final long start = System.nanoTime();
+                for(int i = 0; i < NUM_MSGS; i += BULK_SIZE) {
+                    client.writeAll(bulk);
+                }
+                assertTrue(responses.tryAcquire(NUM_MSGS, 60L, TimeUnit.SECONDS));
+                final long elapsed = System.nanoTime() - start;
+
+                if (warm_up) {
+                    continue;
+                }
+                logger.log(Level.INFO, String.format("%-24s %8d msgs %10.0f msgs/sec %8d flushes %6.3f flushes/msg",
+                    maximum_unflushed_bytes == 1 ? "flush per response" : "flush per read burst", NUM_MSGS, NUM_MSGS / (elapsed / 1e9d),
+                    server.getResponseFlushes(), (double)server.getResponseFlushes() / NUM_MSGS));
+            } finally {
+                client.disconnect();
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Pipelines requests of several sizes, up to the largest the server
+     * accepts, with each framing over a single connection and reports
+     * throughput. The first run warms up and isn't reported.
+     */
+    @Test
+    public void testFramings() throws Exception {
+        final int MAXIMUM_BYTES_PER_RUN = 40 * 1024 * 1024;
+        final int MAXIMUM_REQUESTS_PER_RUN = 20000;
+        final int WINDOW = 500;
+        final int[] PAYLOAD_SIZES = { 16, 256, 1024, 4096, TFlySimpleServer.DEFAULT_MAX_REQUEST_SIZE };
+
+        final TFlySimpleServer server = TFlySimpleServer.create(TFlySimpleServer.DEFAULT_SERVER_PORT + 1).start();
+        assertTrue(server.isRunning());
+        try {
+            boolean warm_up = true;
+            for(int run = 0; run < 2; ++run) {
+                for(int payload_size : PAYLOAD_SIZES) {
+                    final char[] chars = new char[payload_size];
+                    Arrays.fill(chars, 'a');
+                    final String payload = new String(chars);
+                    final int num_requests = Math.min(MAXIMUM_REQUESTS_PER_RUN, MAXIMUM_BYTES_PER_RUN / payload_size);
+
+                    for(Framing framing : Framing.values()) {
+                        final TFlySimpleClient client = TFlySimpleClient.create("localhost", server.getPort(), new TFlySimpleClient.Callback())
+                            .withFraming(framing)
+                            .withMaximumOutstandingRequests(WINDOW);
+                        assertTrue(client.connect().awaitUninterruptibly(10L * 1000L));
+                        try {
+                            final List<CompletableFuture<String>> window = new ArrayList<CompletableFuture<String>>(WINDOW);
+                            final long start = System.nanoTime();
+                            for(int i = 0; i < num_requests; i += WINDOW) {
+                                for(int j = 0; j < WINDOW && i + j < num_requests; ++j) {
+                                    window.add(client.request(payload));
+                                }
+                                for(CompletableFuture<String> response : window) {
+                                    assertTrue(response.get(10L, TimeUnit.SECONDS).startsWith(payload));
+                                }
+                                window.clear();
+                            }
+                            final double seconds = (System.nanoTime() - start) / 1e9d;
+
+                            if (!warm_up) {
+                                logger.log(Level.INFO, String.format("%-15s %6d byte payloads %8d requests %10.0f requests/sec %8.1f MB/sec",
+                                    framing, payload_size, num_requests, num_requests / seconds, (double)num_requests * payload_size / seconds / (1024 * 1024)));
+                            }
+                        } finally {
+                            client.disconnect();
+                        }
+                    }
+                }
+                warm_up = false;
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Opens and closes connections as fast as several threads can against a
+     * server with one acceptor and against one with several sharing the port
+     * (see {@link TFlySimpleServer#withAcceptors(int)}), and reports how many
+     * connections each accepted per second. The first run warms up and isn't reported.
+     */
+    @Test
+    public void testAcceptRate() throws Exception {
+        final int NUM_THREADS = 8;
+        final int NUM_CONNECTIONS_PER_THREAD = 250;
+        final int[] ACCEPTORS = { 1, 4 };
+
+        boolean warm_up = true;
+        for(int run = 0; run < 2; ++run) {
+            for(int acceptors : ACCEPTORS) {
+                if (acceptors > 1 && !TFlySimpleServer.isReusePortSupported()) {
+                    logger.log(Level.INFO, "Skipping " + acceptors + " acceptors, SO_REUSEPORT is not supported on this platform");
+                    continue;
+                }
+
+                final TFlySimpleServer server = TFlySimpleServer.create(TFlySimpleServer.DEFAULT_SERVER_PORT + 1).withAcceptors(acceptors).start();
+                assertTrue(server.isRunning());
+                try {
+                    final CountDownLatch latch_threads = new CountDownLatch(NUM_THREADS);
+                    final AtomicLong failures = new AtomicLong(0L);
+                    final long start = System.nanoTime();
+                    for(int i = 0; i < NUM_THREADS; ++i) {
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    for(int j = 0; j < NUM_CONNECTIONS_PER_THREAD; ++j) {
+                                        //A blank line asks the server to close the connection.
+                                        if (!TFlyServiceHandlerTests.exchange(server.getPort(), "").isEmpty()) {
+                                            failures.incrementAndGet();
+                                        }
+                                    }
+                                } catch(IOException e) {
+                                    failures.incrementAndGet();
+                                } finally {
+                                    latch_threads.countDown();
+                                }
+                            }
+                        }).start();
+                    }
+                    assertTrue(latch_threads.await(60L, TimeUnit.SECONDS));
+                    final double seconds = (System.nanoTime() - start) / 1e9d;
+                    assertEquals(0L, failures.get());
+
+                    if (!warm_up) {
+                        final int num_connections = NUM_THREADS * NUM_CONNECTIONS_PER_THREAD;
+                        logger.log(Level.INFO, String.format("%d acceptor(s) %8d connections %10.0f connections/sec",
+                            acceptors, num_connections, num_connections / seconds));
+                    }
+                } finally {
+                    server.stop();
+                }
+            }
+            warm_up = false;
+        }
+    }
+
+    /**
+     * Runs the round trip load and then pipelined requests over a single
+     * connection, both over localhost TCP and over the server's Unix domain
+     * socket, and reports throughput and latency for each so they can be compared.
+     */
+    @Test
+    public void testUnixDomainSocketComparison() throws Exception {
+        final int NUM_CLIENTS = 50;
+        final int NUM_MSGS_PER_CLIENT = 200;
+        final int NUM_REQUESTS = 20000;
+        final int WINDOW = 500;
+
+        if (!TFlySimpleServer.isUnixDomainSocketSupported()) {
+            logger.log(Level.INFO, "Skipping, Unix domain sockets are not supported by this JDK");
+            return;
+        }
+
+        final Path directory = Files.createTempDirectory("tfly");
+        final String path = directory.resolve("tfly.sock").toString();
+        final TFlySimpleServer server = TFlySimpleServer.create(TFlySimpleServer.DEFAULT_SERVER_PORT + 1).withUnixDomainSocket(path).start();
+        assertTrue(server.isRunning());
+        try {
+            for(String unix_domain_socket_path : Arrays.asList(null, path)) {
+                //Warm up before measuring.
+                measureRoundTrips(server, Transport.NIO, NUM_CLIENTS, NUM_MSGS_PER_CLIENT, unix_domain_socket_path);
+                logger.log(Level.INFO, measureRoundTrips(server, Transport.NIO, NUM_CLIENTS, NUM_MSGS_PER_CLIENT, unix_domain_socket_path).toString());
+            }
+
+            boolean warm_up = true;
+            for(int run = 0; run < 2; ++run) {
+                for(String unix_domain_socket_path : Arrays.asList(null, path)) {
+                    final TFlySimpleClient client = (unix_domain_socket_path != null
+                        ? TFlySimpleClient.createUnixDomain(unix_domain_socket_path, new TFlySimpleClient.Callback())
+                        : TFlySimpleClient.create("localhost", server.getPort(), new TFlySimpleClient.Callback())
+                    ).withMaximumOutstandingRequests(WINDOW);
+                    assertTrue(client.connect().awaitUninterruptibly(10L * 1000L));
+                    try {
+                        final List<CompletableFuture<String>> window = new ArrayList<CompletableFuture<String>>(WINDOW);
+                        final long start = System.nanoTime();
+                        for(int i = 0; i < NUM_REQUESTS; i += WINDOW) {
+                            for(int j = 0; j < WINDOW; ++j) {
+                                window.add(client.request("test"));
+                            }
+                            for(CompletableFuture<String> response : window) {
+                                assertTrue(response.get(10L, TimeUnit.SECONDS).startsWith("tset "));
+                            }
+                            window.clear();
+                        }
+                        final double seconds = (System.nanoTime() - start) / 1e9d;
+
+                        if (!warm_up) {
+                            logger.log(Level.INFO, String.format("%-24s %8d pipelined requests %10.0f requests/sec",
+                                unix_domain_socket_path != null ? "unix domain socket" : "localhost tcp", NUM_REQUESTS, NUM_REQUESTS / seconds));
+                        }
+                    } finally {
+                        client.disconnect();
+                    }
+                }
+                warm_up = false;
+            }
+        } finally {
+            server.stop();
+            Files.delete(directory);
+        }
+    }
 }
@@ -2,10 +2,18 @@ package com.ticketfly;
 
 import io.netty.channel.ChannelHandlerContext;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Utility class for interacting with a {@link TFlySimpleServer} server.
@@ -74,4 +82,105 @@ public class TFlySimpleServerTestUtil {
     public static String[] responsesFromServer(String...responses) {
         return responses;
     }
+
+    /**
+     * Summarizes a run of {@link #measureRoundTrips(TFlySimpleServer, Transport, int, int)}.
+     */
+    public static class RoundTripResults {
+        public final String name;
+        public final int messages;
+        public final long elapsed_nanos;
+        public final long[] sorted_latencies_nanos;
+
+        RoundTripResults(String name, int messages, long elapsed_nanos, long[] sorted_latencies_nanos) {
+            this.name = name;
+            this.messages = messages;
+            this.elapsed_nanos = elapsed_nanos;
+            this.sorted_latencies_nanos = sorted_latencies_nanos;
+        }
+
+        public double throughput() {
+            return messages / (elapsed_nanos / 1e9d);
+        }
+
+        public long percentileMicros(double percentile) {
+            int index = (int)Math.ceil(percentile / 100.0d * sorted_latencies_nanos.length) - 1;
+            return TimeUnit.NANOSECONDS.toMicros(sorted_latencies_nanos[Math.max(0, index)]);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-24s %8d msgs %10.0f msgs/sec  p50 %7d us  p99 %7d us  max %7d us",
+                name, messages, throughput(), percentileMicros(50.0d), percentileMicros(99.0d), percentileMicros(100.0d));
+        }
+    }
+
+    /**
+     * Connects several clients to a server, has every client pipeline a number of messages,
+     * and measures the time from each write until its response arrives.
+     */
+    public static RoundTripResults measureRoundTrips(final TFlySimpleServer server, final Transport transport, final int num_clients, final int num_msgs_per_client) throws InterruptedException {
+        return measureRoundTrips(server, transport, num_clients, num_msgs_per_client, null);
+    }
+
+    /**
+     * Same as {@link #measureRoundTrips(TFlySimpleServer, Transport, int, int)}, but the
+     * clients connect over the server's Unix domain socket unless its path is null.
+     */
+    public static RoundTripResults measureRoundTrips(final TFlySimpleServer server, final Transport transport, final int num_clients, final int num_msgs_per_client, final String unix_domain_socket_path) throws InterruptedException {
+        final int total = num_clients * num_msgs_per_client;
+        final long[] latencies = new long[total];
+        final AtomicInteger recorded = new AtomicInteger(0);
+        final CountDownLatch latch_client_messages = new CountDownLatch(total);
+        final CountDownLatch latch_client_disconnect = new CountDownLatch(num_clients);
+        final TFlySimpleClient[] clients = new TFlySimpleClient[num_clients];
+        final List<Queue<Long>> send_times = new ArrayList<Queue<Long>>(num_clients);
+
+        for(int i = 0; i < num_clients; ++i) {
+            final Queue<Long> sent = new ConcurrentLinkedQueue<Long>();
+            send_times.add(sent);
+            final TFlySimpleClient.Callback callback = new TFlySimpleClient.Callback() {
+                @Override
+                public void disconnected(TFlySimpleClient client, ChannelHandlerContext context) throws InterruptedException {
+                    latch_client_disconnect.countDown();
+                }
+
+                @Override
+                public void dataReceived(TFlySimpleClient client, String msg) throws InterruptedException {
+                    if ("".equals(msg.trim())) {
+                        return;
+                    }
+
+                    Long started = sent.poll();
+                    if (started != null) {
+                        latencies[recorded.getAndIncrement()] = System.nanoTime() - started;
+                        latch_client_messages.countDown();
+                    }
+                }
+            };
+            clients[i] = unix_domain_socket_path != null
+                ? TFlySimpleClient.createUnixDomain(unix_domain_socket_path, callback)
+                : TFlySimpleClient.create("localhost", server.getPort(), callback).withTransport(transport);
+            assertTrue(clients[i].connect().awaitUninterruptibly(10L * 1000L));
+        }
+
+        final long start = System.nanoTime();
+        for(int i = 0; i < num_msgs_per_client; ++i) {
+            for(int j = 0; j < num_clients; ++j) {
+                send_times.get(j).add(System.nanoTime());
+                clients[j].write("test");
+            }
+        }
+
+        assertTrue(latch_client_messages.await(60, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - start;
+
+        for(int i = 0; i < num_clients; ++i) {
+            clients[i].disconnect();
+        }
+        assertTrue(latch_client_disconnect.await(10, TimeUnit.SECONDS));
+
+        Arrays.sort(latencies);
+        return new RoundTripResults(unix_domain_socket_path != null ? "unix domain socket" : server.getTransport() + "/" + transport, total, elapsed, latencies);
+    }
 }
@@ -1,10 +1,34 @@
 package com.ticketfly;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.CharsetUtil;
+import org.junit.Assume;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.ticketfly.TFlySimpleServerTestUtil.*;
 import static org.junit.Assert.*;
@@ -62,8 +86,8 @@ public class TFlySimpleServerTests {
     public void testSimpleClientCommunication() throws InterruptedException {
         final Semaphore sem_client_001 = new Semaphore(0);
 
-        //Start the server
-        final TFlySimpleServer server_001 = TFlySimpleServer.create();
+        //Start the server with its own sequence so the first response is predictable
+        final TFlySimpleServer server_001 = TFlySimpleServer.create().withSequenceSource(new AtomicSequenceSource());
         final TFlySimpleClient client_001 = TFlySimpleClient.createLocal(new TFlySimpleClient.Callback() {
             @Override
             public void connected(TFlySimpleClient tFlySimpleClient, ChannelHandlerContext context) throws InterruptedException {
@@ -109,7 +133,7 @@ public class TFlySimpleServerTests {
      */
     @Test
     public void testStandardClientCommunication() throws InterruptedException {
-        final TFlySimpleServer server_001 = TFlySimpleServer.create().start();
+        final TFlySimpleServer server_001 = TFlySimpleServer.create().withSequenceSource(new AtomicSequenceSource()).start();
         validateMessages(
             server_001,
             messagesToServer(
@@ -128,4 +152,358 @@ public class TFlySimpleServerTests {
         );
         server_001.stop();
     }
+
+    /**
+     * Pipelines a burst of requests in a single write. Every response comes back
+     * in order whether the burst is flushed once or after every response, and
+     * an empty line part way through still gets the earlier responses out first.
+     */
+    @Test
+    public void testPipelinedBurst() throws IOException {
+        final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 12;
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for(int i = 1; i <= 500; ++i) {
+            input.append("burst_").append(i).append('\n');
+            expected.append('\n').append(new StringBuilder("burst_" + i).reverse()).append(' ').append(i).append("\n\n");
+        }
+        input.append("\nignored\n");
+
+        for(int maximum_unflushed_bytes : new int[] { TFlySimpleServer.DEFAULT_MAXIMUM_UNFLUSHED_BYTES, 1024, 1 }) {
+            final TFlySimpleServer server_001 = TFlySimpleServer.create(PORT)
+                .withSequenceSource(new AtomicSequenceSource())
+                .withMaximumUnflushedBytes(maximum_unflushed_bytes)
+                .start();
+            try {
+                assertTrue(server_001.isRunning());
+                //The exchange appends one more empty line, which must be ignored too.
+                assertEquals(expected.toString(), TFlyServiceHandlerTests.exchange(PORT, input.toString()));
+            } finally {
+                server_001.stop();
+            }
+        }
+    }
+
+    /**
+     * Sends raw frames and decodes every frame the server sent back before closing the connection.
+     */
+    static List<String> exchangeFrames(int port, ByteBuf input) throws Exception {
+        final Socket socket = new Socket("localhost", port);
+        try {
+            socket.setSoTimeout(30 * 1000);
+            final OutputStream out = socket.getOutputStream();
+            out.write(input.array(), input.arrayOffset() + input.readerIndex(), input.readableBytes());
+            out.flush();
+
+            final InputStream in = socket.getInputStream();
+            final ByteBuf received = Unpooled.buffer();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) >= 0) {
+                received.writeBytes(buffer, 0, read);
+            }
+
+            final List<String> responses = new ArrayList<String>();
+            while(received.readable()) {
+                final ByteBuf frame = received.readSlice(received.readInt());
+                responses.add(TFlyBinaryCodec.RESPONSE_DECODER.decode(null, frame));
+            }
+            return responses;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Speaks the length prefixed protocol on the main port after negotiating
+     * it, and on the dedicated port with or without negotiating.
+     */
+    @Test
+    public void testLengthPrefixedFraming() throws Exception {
+        final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 15;
+        final int LENGTH_PREFIXED_PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 16;
+        final TFlySimpleServer server_001 = TFlySimpleServer.create(PORT)
+            .withSequenceSource(new AtomicSequenceSource())
+            .withLengthPrefixedPort(LENGTH_PREFIXED_PORT)
+            .start();
+        try {
+            assertTrue(server_001.isRunning());
+            assertEquals(LENGTH_PREFIXED_PORT, server_001.getLengthPrefixedPort());
+
+            final ByteBuf input = Unpooled.buffer();
+            TFlyBinaryCodec.encodeRequest(input, "ticketfly".getBytes(CharsetUtil.UTF_8), TFlyBinaryCodec.NO_SEQUENCE_NUMBER);
+            TFlyBinaryCodec.encodeRequest(input, "is_rad".getBytes(CharsetUtil.UTF_8), 789L);
+            TFlyBinaryCodec.encodeRequest(input, "two\nlines".getBytes(CharsetUtil.UTF_8), TFlyBinaryCodec.NO_SEQUENCE_NUMBER);
+            TFlyBinaryCodec.encodeRequest(input, new byte[0], TFlyBinaryCodec.NO_SEQUENCE_NUMBER);
+            TFlyBinaryCodec.encodeRequest(input, "x".getBytes(CharsetUtil.UTF_8), -1L);
+            input.writeInt(1);
+            input.writeByte(42);
+            TFlyBinaryCodec.encodeClose(input);
+            //Anything after the close is ignored.
+            TFlyBinaryCodec.encodeRequest(input, "ignored".getBytes(CharsetUtil.UTF_8), TFlyBinaryCodec.NO_SEQUENCE_NUMBER);
+
+            final ByteBuf negotiated = Unpooled.buffer();
+            negotiated.writeByte(TFlyBinaryCodec.NEGOTIATE_LENGTH_PREFIXED);
+            negotiated.writeBytes(input, input.readerIndex(), input.readableBytes());
+            final List<String> responses = exchangeFrames(PORT, negotiated);
+            assertEquals(6, responses.size());
+            assertEquals("ylftekcit 1\n", responses.get(0));
+            assertEquals("dar_si 790\n", responses.get(1));
+            assertEquals("senil\nowt 791\n", responses.get(2));
+            assertEquals(ErrorCode.ERROR_MISSING_INPUT.getOutputMessage(), responses.get(3));
+            assertEquals(ErrorCode.ERROR_INVALID_SEQUENCE_NUMBER.getOutputMessage(), responses.get(4));
+            assertEquals(ErrorCode.ERROR_INVALID_INPUT_FORMAT.getOutputMessage(), responses.get(5));
+
+            assertEquals("ylftekcit 792\n", exchangeFrames(LENGTH_PREFIXED_PORT, input).get(0));
+            assertEquals("ylftekcit 795\n", exchangeFrames(LENGTH_PREFIXED_PORT, negotiated).get(0));
+
+            //The main port still speaks the newline protocol to everyone else.
+            assertEquals("\nylftekcit 798\n\n", TFlyServiceHandlerTests.exchange(PORT, "ticketfly\n"));
+        } finally {
+            server_001.stop();
+        }
+        assertFalse(server_001.isRunning());
+    }
+
+    /**
+     * Counts requests by outcome and publishes the counts over JMX and HTTP.
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 20;
+        final int ADMIN_PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 21;
+        final TFlySimpleServer server_001 = TFlySimpleServer.create(PORT)
+            .withSequenceSource(new AtomicSequenceSource())
+            .withAdminPort(ADMIN_PORT)
+            .start();
+        final MBeanServer mbean_server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName("com.ticketfly:type=TFlySimpleServer,port=" + PORT);
+        try {
+            assertTrue(server_001.isRunning());
+            assertEquals(ADMIN_PORT, server_001.getAdminPort());
+
+            final String output = TFlyServiceHandlerTests.exchange(PORT, "ticketfly\nis_rad 789\nbad!\nagain 5\n");
+            final TFlyServerMetrics metrics = server_001.getMetrics();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+            while(metrics.getConnections() > 0L) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(10L);
+            }
+
+            assertEquals(1L, metrics.getConnectionsOpened());
+            assertEquals(3L, metrics.getSuccessfulRequests());
+            assertEquals(1L, metrics.getFailedRequests(ErrorCode.ERROR_INVALID_INPUT_FORMAT));
+            assertEquals(1L, metrics.getSequenceOverridesAccepted());
+            assertEquals(1L, metrics.getSequenceOverridesIgnored());
+            //The exchange ends with an empty line.
+            assertEquals("ticketfly\nis_rad 789\nbad!\nagain 5\n\n".length(), metrics.getBytesReceived());
+            assertEquals(output.getBytes(CharsetUtil.UTF_8).length, metrics.getBytesSent());
+            assertEquals(4L, metrics.getRequestToFlushLatency().getTotalCount());
+
+            assertEquals(3L, mbean_server.getAttribute(name, "SuccessfulRequests"));
+
+            final InputStream in = new URL("http://localhost:" + ADMIN_PORT + TFlyMetricsEndpoint.PATH).openStream();
+            final ByteBuf body = Unpooled.buffer();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) >= 0) {
+                body.writeBytes(buffer, 0, read);
+            }
+            in.close();
+            final String text = body.toString(CharsetUtil.UTF_8);
+            assertTrue(text, text.contains("tfly_requests_total{port=\"" + PORT + "\",outcome=\"success\"} 3\n"));
+            assertTrue(text, text.contains("tfly_request_to_flush_seconds_count{port=\"" + PORT + "\"} 4\n"));
+        } finally {
+            server_001.stop();
+        }
+        assertFalse(mbean_server.isRegistered(name));
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A client that pipelines far more requests than it reads responses for
+     * gets its reads suspended instead of having the responses pile up on the
+     * server's heap. Once it starts reading, every response arrives in order.
+     */
+    @Test
+    public void testSlowConsumer() throws Exception {
+        final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 22;
+        final TFlySimpleServer server_001 = TFlySimpleServer.create(PORT)
+            .withSequenceSource(new AtomicSequenceSource())
+            .withWriteBufferWaterMarks(16 * 1024, SLOW_CONSUMER_HIGH_WATER_MARK)
+            .start();
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setReceiveBufferSize(4096);
+            channel.connect(new InetSocketAddress("localhost", PORT));
+            //The loopback's socket buffers are large, so some of what's written can be on the heap by the time the writer stalls.
+            assertSlowConsumerSuspended(server_001.getMetrics(), channel, 8L * 1024L * 1024L);
+        } finally {
+            channel.close();
+            server_001.stop();
+        }
+    }
+
+    /**
+     * Suspending reads holds back a slow client on the Unix domain socket just
+     * as it does one over TCP.
+     */
+    @Test
+    public void testSlowConsumerOverUnixDomainSocket() throws Exception {
+        Assume.assumeTrue(TFlySimpleServer.isUnixDomainSocketSupported());
+
+        final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 27;
+        final Path directory = Files.createTempDirectory("tfly");
+        final String path = directory.resolve("tfly.sock").toString();
+        final TFlySimpleServer server_001 = TFlySimpleServer.create(PORT)
+            .withSequenceSource(new AtomicSequenceSource())
+            .withWriteBufferWaterMarks(16 * 1024, SLOW_CONSUMER_HIGH_WATER_MARK)
+            .withUnixDomainSocket(path)
+            .start();
+        //Never registered with an event loop, so it can be used as a plain blocking channel.
+        final SocketChannel channel = new UnixDomainSocket.StreamChannel(path).javaChannel();
+        try {
+            assertTrue(server_001.isRunning());
+            channel.configureBlocking(true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+            //Lets the writer get far ahead of a server that doesn't stop reading.
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, 4 * 1024 * 1024);
+            channel.connect(UnixDomainSocket.address(path));
+            assertSlowConsumerSuspended(server_001.getMetrics(), channel, 1024L * 1024L);
+        } finally {
+            channel.close();
+            server_001.stop();
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static final int SLOW_CONSUMER_HIGH_WATER_MARK = 64 * 1024;
+
+    /**
+     * Pipelines requests on a blocking channel until the server stops
+     * reading, then reads every response.
+     *
+     * @param maximum_heap_growth how much the heap may grow while the writer is stalled
+     */
+    private static void assertSlowConsumerSuspended(TFlyServerMetrics metrics, final SocketChannel channel, long maximum_heap_growth) throws Exception {
+        final int REQUESTS = 32 * 1024;
+        final byte[] request = new byte[1024];
+        Arrays.fill(request, (byte)'a');
+        request[request.length - 1] = '\n';
+        final AtomicLong written = new AtomicLong(0L);
+        final long heap_before = usedHeapAfterGc();
+
+        //Blocks once the server stops reading.
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for(int i = 0; i < REQUESTS; ++i) {
+                        final ByteBuffer buffer = ByteBuffer.wrap(request);
+                        while(buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        written.addAndGet(request.length);
+                    }
+                } catch(IOException ignored) {
+                }
+            }
+        });
+        writer.start();
+
+        //Wait for the writer to stall.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30L);
+        long last;
+        do {
+            last = written.get();
+            Thread.sleep(500L);
+            assertTrue(System.nanoTime() < deadline);
+        } while(written.get() != last);
+
+        final long heap_growth = usedHeapAfterGc() - heap_before;
+        assertTrue(written.get() < (long)REQUESTS * request.length);
+        assertTrue(metrics.getReadSuspensions() > 0L);
+        assertTrue(metrics.getPendingOutboundBytes() + " bytes pending", metrics.getPendingOutboundBytes() <= 2L * SLOW_CONSUMER_HIGH_WATER_MARK);
+        assertTrue("Heap grew by " + heap_growth, heap_growth < maximum_heap_growth);
+
+        //Channels.newInputStream() would wait on the lock the blocked writer holds.
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+        }, CharsetUtil.UTF_8));
+        int responses = 0;
+        String line;
+        while(responses < REQUESTS && (line = in.readLine()) != null) {
+            if (!line.isEmpty()) {
+                assertTrue(line, line.endsWith(" " + (++responses)));
+            }
+        }
+        assertEquals(REQUESTS, responses);
+        writer.join(10000L);
+        assertEquals(0L, metrics.getSlowConsumersClosed());
+    }
+
+    /**
+     * Servers that ask to reuse the port all listen on it and share its
+     * connections, and the port keeps answering as each is stopped in turn.
+     */
+    @Test
+    public void testReusePort() throws Exception {
+        Assume.assumeTrue(TFlySimpleServer.isReusePortSupported());
+
+        final int PORT = TFlySimpleServer.DEFAULT_SERVER_PORT + 25;
+        final int CONNECTIONS = 40;
+        final TFlySimpleServer server_001 = TFlySimpleServer.create(PORT).withReusePort(true).start();
+        final TFlySimpleServer server_002 = TFlySimpleServer.create(PORT).withAcceptors(3).start();
+        try {
+            assertTrue(server_001.isRunning());
+            assertTrue(server_002.isRunning());
+            assertTrue(server_002.isReusePort());
+
+            for(int i = 0; i < CONNECTIONS; ++i) {
+                assertTrue(TFlyServiceHandlerTests.exchange(PORT, "four\n").startsWith("\nruof "));
+            }
+            assertEquals(CONNECTIONS, server_001.getMetrics().getConnectionsOpened() + server_002.getMetrics().getConnectionsOpened());
+            assertTrue(server_001.getMetrics().getConnectionsOpened() > 0L);
+            assertTrue(server_002.getMetrics().getConnectionsOpened() > 0L);
+
+            //Like a rolling restart: the old server goes away and the new one takes every connection.
+            server_001.stop();
+            final long opened = server_002.getMetrics().getConnectionsOpened();
+            for(int i = 0; i < CONNECTIONS; ++i) {
+                assertTrue(TFlyServiceHandlerTests.exchange(PORT, "four\n").startsWith("\nruof "));
+            }
+            assertEquals(opened + CONNECTIONS, server_002.getMetrics().getConnectionsOpened());
+        } finally {
+            server_001.stop();
+            server_002.stop();
+        }
+
+        //Without asking to share it, the port is still taken by one server at a time.
+        final TFlySimpleServer server_003 = TFlySimpleServer.create(PORT).start();
+        final TFlySimpleServer server_004 = TFlySimpleServer.create(PORT).withReusePort(true).start();
+        try {
+            assertTrue(server_003.isRunning());
+            assertFalse(server_004.isRunning());
+        } finally {
+            server_003.stop();
+            server_004.stop();
+        }
+    }
 }